@@ -2,15 +2,22 @@ package org.reactome.idg;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import org.reactome.idg.model.Provenance;
 
+import org.reactome.idg.loader.CorrelationQuantizer;
 import org.reactome.idg.loader.HarmonizomeLoader;
 
 /**
  * Contains data loaded from various Harmonizome data sources.
+ * <br/>
+ * If the repository is created as quantized (see {@link #createDataRepository(Map, boolean)}), correlation values are kept as
+ * 2-byte shorts instead of boxed Doubles, and converted back to doubles when they are looked up. Values that are looked up are
+ * then within {@link CorrelationQuantizer#SHORT_ERROR_BOUND} of the values in the files.
  * @author sshorser
  *
  */
@@ -19,9 +26,13 @@ public class HarmonizomeDataRepository implements DataRepository
 
 	// A mapping of a Provenance to a loader.
 	private Map<org.reactome.idg.model.Provenance, HarmonizomeLoader> dataLoaders;
-	// A mapping of Provenance to actual data.
-	private Map<Provenance, TreeMap<String,List<Double>>> dataByGeneSymbol = new TreeMap<>();
-	private Map<Provenance, TreeMap<String,List<Double>>> dataByUniprotAccession = new TreeMap<>();;
+	// A mapping of Provenance to actual data. Provenance is not Comparable, so these are HashMaps.
+	private Map<Provenance, TreeMap<String,List<Double>>> dataByGeneSymbol = new HashMap<>();
+	private Map<Provenance, TreeMap<String,List<Double>>> dataByUniprotAccession = new HashMap<>();
+	// Used instead of the maps above, when the repository is quantized.
+	private Map<Provenance, TreeMap<String,short[]>> quantizedDataByGeneSymbol = new HashMap<>();
+	private Map<Provenance, TreeMap<String,short[]>> quantizedDataByUniprotAccession = new HashMap<>();
+	private boolean quantized = false;
 
 	
 	/**
@@ -45,6 +56,19 @@ public class HarmonizomeDataRepository implements DataRepository
 		return repository;
 	}
 	
+	/**
+	 * Creates a new DataLoader for Harmonizome.
+	 * @param loaders - a map of loaders, keyed by their provenance.
+	 * @param quantized - if true, correlation values will be stored as quantized shorts (see {@link CorrelationQuantizer}).
+	 * @return A new HarmonizomeDataRepository.
+	 */
+	public static HarmonizomeDataRepository createDataRepository(Map<Provenance, HarmonizomeLoader> loaders, boolean quantized)
+	{
+		HarmonizomeDataRepository repository = new HarmonizomeDataRepository(loaders);
+		repository.quantized = quantized;
+		return repository;
+	}
+	
 	public void executeDataLoaders()
 	{
 		for (Provenance p : this.dataLoaders.keySet())
@@ -53,8 +77,16 @@ public class HarmonizomeDataRepository implements DataRepository
 			try
 			{
 				long numRecords = loader.loadGeneAssociationData();
-				this.dataByGeneSymbol.put(p, loader.getGeneSymbolDataset());
-				this.dataByUniprotAccession.put(p, loader.getUniprotAccessionDataset());
+				if (this.quantized)
+				{
+					this.quantizedDataByGeneSymbol.put(p, quantize(loader.getGeneSymbolDataset()));
+					this.quantizedDataByUniprotAccession.put(p, quantize(loader.getUniprotAccessionDataset()));
+				}
+				else
+				{
+					this.dataByGeneSymbol.put(p, loader.getGeneSymbolDataset());
+					this.dataByUniprotAccession.put(p, loader.getUniprotAccessionDataset());
+				}
 			}
 			catch (FileNotFoundException e)
 			{
@@ -67,6 +99,55 @@ public class HarmonizomeDataRepository implements DataRepository
 		}
 	}
 	
+	/**
+	 * Converts a loaded dataset to quantized values. The values are removed from the original dataset as they are converted, so that
+	 * they can be garbage-collected.
+	 */
+	private static TreeMap<String, short[]> quantize(TreeMap<String, List<Double>> dataset)
+	{
+		TreeMap<String, short[]> quantizedDataset = new TreeMap<>();
+		while (!dataset.isEmpty())
+		{
+			Map.Entry<String, List<Double>> entry = dataset.pollFirstEntry();
+			short[] quantizedValues = new short[entry.getValue().size()];
+			for (int i = 0; i < quantizedValues.length; i++)
+			{
+				quantizedValues[i] = CorrelationQuantizer.toShort(entry.getValue().get(i));
+			}
+			quantizedDataset.put(entry.getKey(), quantizedValues);
+		}
+		return quantizedDataset;
+	}
+	
+	/**
+	 * Converts quantized values back to doubles.
+	 */
+	private static List<Double> dequantize(short[] quantizedValues)
+	{
+		List<Double> values = new ArrayList<>(quantizedValues.length);
+		for (short quantizedValue : quantizedValues)
+		{
+			values.add(CorrelationQuantizer.fromShort(quantizedValue));
+		}
+		return values;
+	}
+	
+	/**
+	 * Gets the values for a key from one provenance's dataset, whether or not the repository is quantized.
+	 * @return the values, or null if the key is not in the dataset.
+	 */
+	private List<Double> getValues(Provenance prov, String key, LookupKeyType keyType)
+	{
+		if (this.quantized)
+		{
+			TreeMap<String, short[]> dataset = keyType == LookupKeyType.GENE_SYMBOL ? this.quantizedDataByGeneSymbol.get(prov) : this.quantizedDataByUniprotAccession.get(prov);
+			short[] quantizedValues = dataset.get(key);
+			return quantizedValues == null ? null : dequantize(quantizedValues);
+		}
+		TreeMap<String, List<Double>> dataset = keyType == LookupKeyType.GENE_SYMBOL ? this.dataByGeneSymbol.get(prov) : this.dataByUniprotAccession.get(prov);
+		return dataset.get(key);
+	}
+	
 	/**
 	 * Returns the correlations between the two genes, mapped by their provenance.
 	 * @param gene1
@@ -77,25 +158,22 @@ public class HarmonizomeDataRepository implements DataRepository
 	public Map<Provenance, List<Double>> getGeneCorrelation(String gene1, String gene2, LookupKeyType keyType)
 	{
 		String key = DataRepository.generateKey(gene1, gene2);
-		Map<Provenance, List<Double>> correlations = new TreeMap<>();
+		Map<Provenance, List<Double>> correlations = new HashMap<>();
+		Iterable<Provenance> provenances;
 		if (keyType == LookupKeyType.GENE_SYMBOL)
 		{
-			for (Provenance p : dataByGeneSymbol.keySet())
-			{
-				if (this.dataByGeneSymbol.get(p).containsKey(key))
-				{
-					correlations.put(p, this.dataByGeneSymbol.get(p).get(key));
-				}
-			}
+			provenances = this.quantized ? this.quantizedDataByGeneSymbol.keySet() : this.dataByGeneSymbol.keySet();
 		}
 		else
 		{
-			for (Provenance p : dataByUniprotAccession.keySet())
+			provenances = this.quantized ? this.quantizedDataByUniprotAccession.keySet() : this.dataByUniprotAccession.keySet();
+		}
+		for (Provenance p : provenances)
+		{
+			List<Double> values = this.getValues(p, key, keyType);
+			if (values != null)
 			{
-				if (this.dataByUniprotAccession.get(p).containsKey(key))
-				{
-					correlations.put(p, this.dataByUniprotAccession.get(p).get(key));
-				}
+				correlations.put(p, values);
 			}
 		}
 		return correlations;
@@ -112,17 +190,8 @@ public class HarmonizomeDataRepository implements DataRepository
 	@Override
 	public List<Double> getGeneCorrelation(Provenance prov, String gene1, String gene2, LookupKeyType keyType)
 	{
-		List<Double> correlation;
 		String key = DataRepository.generateKey(gene1, gene2);
-		if (keyType == LookupKeyType.GENE_SYMBOL)
-		{
-			correlation = this.dataByGeneSymbol.get(prov).get(key);
-		}
-		else
-		{
-			correlation = this.dataByUniprotAccession.get(prov).get(key);
-		}
-		return correlation;
+		return this.getValues(prov, key, keyType);
 	}
 
 	@Override
@@ -158,7 +158,10 @@ public class AppConfig {
 	@Bean(name= "archs4Loader")
 	public Archs4Loader getArchs4Loader()
 	{
-		return new Archs4Loader(env.getProperty("files.archs4.correlation_file"));
+		Archs4Loader loader = new Archs4Loader(env.getProperty("files.archs4.correlation_file"));
+		// 0 (the default) loads every gene-pair.
+		loader.setCorrelationThreshold(Double.parseDouble(env.getProperty("files.archs4.correlation_threshold", "0.0")));
+		return loader;
 	}
 	
 }
\ No newline at end of file
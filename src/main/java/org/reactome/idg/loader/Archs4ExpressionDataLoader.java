@@ -1,10 +1,12 @@
 package org.reactome.idg.loader;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -14,10 +16,7 @@ import java.util.Set;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import hdf.hdf5lib.H5;
-import hdf.hdf5lib.HDF5Constants;
-
-public class Archs4ExpressionDataLoader
+public class Archs4ExpressionDataLoader implements Closeable
 {
 	private static final Logger logger = LogManager.getLogger();
 	// Need a list of all Tissue-type names.
@@ -42,7 +41,24 @@ public class Archs4ExpressionDataLoader
 	// Eventually, we will need to *filter* the genes from the Expression file: genes not in the Correlation file will need to be excluded.
 	private int numberOfGenes ;
 
-	private static Map<String,Object> expressionValuesCache = new HashMap<>();
+	// Each loader has its own cache, bounded in size. A matrix is cached under the HDF file, the set of samples, and a variant (see below).
+	private final ExpressionValuesCache expressionValuesCache = new ExpressionValuesCache();
+	// The variant for sample-major matrices, as they are read from the HDF file.
+	private static final String SAMPLE_MAJOR_VARIANT = "";
+	// The variant for gene-major matrices.
+	private static final String GENE_MAJOR_VARIANT = "gene-major";
+	// The variant for per-gene ranks, which are cached alongside the expression values they were calculated from.
+	private static final String RANKS_VARIANT = "ranks";
+	// The variant for normalized values; it is followed by the normalization's cache key.
+	private static final String NORMALIZED_VARIANT_PREFIX = "normalized:";
+	// If set, each tissue's gene-major counts (and normalized values) are written to a TissueMatrixFile in this directory,
+	// and read back from there instead of from the HDF file.
+	private Path tissueMatrixDirectory;
+	// Plans how the rows of the expression dataset are read.
+	private final HDF5ReadPlanner readPlanner = new HDF5ReadPlanner();
+	// The HDF file stays open, with its datasets, from the first read until close() is called.
+	private volatile HDF5Session hdfSession;
+	private final Object hdfSessionLock = new Object();
 	
 	Archs4ExpressionDataLoader(String fileName)
 	{
@@ -50,51 +66,362 @@ public class Archs4ExpressionDataLoader
 	}
 
 	/**
-	 * Gets element coordinates for a gene (identified by index) across all samples for a tissue (identified by name).
-	 * @param tissue - The name of the tissue.
-	 * @param geneIndex - The index of a gene.
-	 * @return An array that contains the coordinates in the dataset of the expression data for a specific gene across all samples for the specified tissue.
+	 * Get expression values for all genes, for a tissue. All sample IDs for the tissue should be in a text file. 
+	 * @param tissueFileName - the name of the file that contains the sample IDs for the tissue.
+	 * @return a matrix of expression values. Columns are genes, rows are samples, in the order of the tissue file.
+	 * @throws IOException
 	 */
-	private long[][] getElementCoordinatesForTissue(String tissue, int geneIndex)
+	public synchronized int[][] getExpressionValuesforTissue(Path tissueFileName) throws IOException
 	{
-		List<Integer> indicesForTissue = tissueTypeToIndex.get(tissue);
-		long[][] elementCoords = new long[indicesForTissue.size()][2];
-		
-		for (int i = 0; i < indicesForTissue.size(); i++)
+		ExpressionValuesCache.CacheKey cacheKey = getCacheKey(tissueFileName, SAMPLE_MAJOR_VARIANT);
+		int[][] values = (int[][]) expressionValuesCache.get(cacheKey);
+		if (values != null)
 		{
-			elementCoords[i][1] = geneIndex;
-			elementCoords[i][0] = indicesForTissue.get(i);
+			logger.trace("expression values found in cache for {}", tissueFileName.toString());
+			return values;
+		}
+		else
+		{
+			logger.info("Nothing in expression value cache for {}, loading it now...", tissueFileName.toString());
+			values = readExpressionValuesForTissue(tissueFileName);
+			expressionValuesCache.put(cacheKey, values);
+			return values;
 		}
-		return elementCoords;
+	}
+
+	/**
+	 * Gets the key that a tissue's values are cached under. The set of samples is identified by the absolute path of the tissue file,
+	 * so the file should not be changed while its values are cached (see {@link #evictTissue(Path)}).
+	 */
+	private ExpressionValuesCache.CacheKey getCacheKey(Path tissueFileName, String variant)
+	{
+		return new ExpressionValuesCache.CacheKey(hdfExpressionFile, getSampleSetKey(tissueFileName), variant);
+	}
+
+	private static String getSampleSetKey(Path tissueFileName)
+	{
+		return "file:" + tissueFileName.toAbsolutePath().normalize().toString();
 	}
 	
 	/**
-	 * Get expression values for all genes, for a tissue. All sample IDs for the tissue should be in a text file. 
+	 * Reads expression values for all genes, for a tissue, from the HDF file. Nothing is cached.
 	 * @param tissueFileName - the name of the file that contains the sample IDs for the tissue.
-	 * @return a matrix of expression values. Columns are genes, rows are samples.
+	 * @return a matrix of expression values. Columns are genes, rows are samples, in the order of the tissue file.
 	 * @throws IOException
 	 */
-	public synchronized int[][] getExpressionValuesforTissue(Path tissueFileName) throws IOException
+	private int[][] readExpressionValuesForTissue(Path tissueFileName) throws IOException
 	{
-		if (expressionValuesCache.containsKey(tissueFileName.toString()))
+		List<String> sampleIds = Files.readAllLines(tissueFileName);
+		List<Integer> indicesForTissue = new ArrayList<>();
+		for (String sampleId : sampleIds)
 		{
-			logger.trace("expression values found in cache for {}", tissueFileName.toString());
-			return (int[][]) expressionValuesCache.get(tissueFileName.toString());
+			indicesForTissue.add(sampleIdToIndex.get(sampleId));
 		}
-		else
+		String tissueName = tissueFileName.getFileName().toString();
+		return getExpressionValuesByIndices(indicesForTissue, tissueName);
+	}
+	
+	/**
+	 * Get expression values for all genes, for a tissue, in a gene-major layout: each gene's values are one contiguous array.
+	 * All sample IDs for the tissue should be in a text file.
+	 * <br/>
+	 * The gene-major matrix is cached separately from the sample-major matrix. If the sample-major matrix is already in the cache, it is
+	 * transposed. Otherwise, the values are read from the tissue's matrix file (if a tissue matrix directory has been set, and the file is
+	 * up to date) or from the HDF file, and only the gene-major matrix is cached. Values that were read from the HDF file are written to
+	 * the tissue matrix directory.
+	 * @param tissueFileName - the name of the file that contains the sample IDs for the tissue.
+	 * @return a gene-major matrix of expression values.
+	 * @throws IOException
+	 */
+	public synchronized GeneMajorExpressionMatrix getGeneMajorExpressionValuesForTissue(Path tissueFileName) throws IOException
+	{
+		ExpressionValuesCache.CacheKey cacheKey = getCacheKey(tissueFileName, GENE_MAJOR_VARIANT);
+		GeneMajorExpressionMatrix cachedValues = (GeneMajorExpressionMatrix) expressionValuesCache.get(cacheKey);
+		if (cachedValues != null)
 		{
-			logger.info("Nothing in expression value cache for {}, loading it now...", tissueFileName.toString());
-			List<String> sampleIds = Files.readAllLines(tissueFileName);
-			List<Integer> indicesForTissue = new ArrayList<>();
-			for (String sampleId : sampleIds)
+			logger.trace("gene-major expression values found in cache for {}", tissueFileName.toString());
+			return cachedValues;
+		}
+		GeneMajorExpressionMatrix values = null;
+		// The miss has been counted already, so this second look does not count as another.
+		int[][] sampleValues = (int[][]) expressionValuesCache.peek(getCacheKey(tissueFileName, SAMPLE_MAJOR_VARIANT));
+		if (sampleValues == null)
+		{
+			try (TissueMatrixFile tissueMatrixFile = openTissueMatrixFile(tissueFileName, SAMPLE_MAJOR_VARIANT))
 			{
-				indicesForTissue.add(sampleIdToIndex.get(sampleId));
+				if (tissueMatrixFile != null)
+				{
+					values = tissueMatrixFile.toGeneMajorExpressionMatrix();
+				}
 			}
-			String tissueName = tissueFileName.getFileName().toString();
-			int[][] values = getExpressionValuesByIndices(indicesForTissue, tissueName);
-			expressionValuesCache.put(tissueFileName.toString(), values);
-			return values;
+			if (values == null)
+			{
+				logger.info("Nothing in expression value cache for {}, loading it now...", tissueFileName.toString());
+				sampleValues = readExpressionValuesForTissue(tissueFileName);
+			}
+		}
+		if (values == null)
+		{
+			values = GeneMajorExpressionMatrix.fromSampleValues(sampleValues);
+			writeTissueMatrixFile(tissueFileName, SAMPLE_MAJOR_VARIANT, values);
+		}
+		expressionValuesCache.put(cacheKey, values);
+		return values;
+	}
+
+	/**
+	 * Reads expression values for all genes, for an arbitrary set of samples, in a gene-major layout. Only those samples are read from the HDF file,
+	 * and nothing is cached - this is for reading a batch of samples (such as samples that were just added to a tissue) without loading the whole tissue.
+	 * @param sampleIds - the IDs of the samples to read.
+	 * @return a gene-major matrix of expression values. The samples are in the order that they are in the HDF file, which is not necessarily the order of <code>sampleIds</code>.
+	 * @throws IllegalArgumentException If any of the sample IDs are not in the HDF file.
+	 */
+	public GeneMajorExpressionMatrix getGeneMajorExpressionValuesForSamples(List<String> sampleIds)
+	{
+		List<Integer> indices = new ArrayList<>(sampleIds.size());
+		for (String sampleId : sampleIds)
+		{
+			Integer index = sampleIdToIndex.get(sampleId);
+			if (index == null)
+			{
+				throw new IllegalArgumentException("Sample " + sampleId + " is not in " + hdfExpressionFile);
+			}
+			indices.add(index);
+		}
+		// The samples are returned in the order that they are in the HDF file.
+		Collections.sort(indices);
+		return GeneMajorExpressionMatrix.fromSampleValues(getExpressionValuesByIndices(indices, sampleIds.size() + " samples"));
+	}
+
+	/**
+	 * Gets the ranks of each gene's expression values for a tissue (see {@link GeneRankMatrix}), for calculating Spearman correlations.
+	 * Each gene is only ranked once: the ranks are cached, so later calls for the same tissue return the same object.
+	 * @param tissueFileName - the name of the file that contains the sample IDs for the tissue.
+	 * @return the ranks of every gene's values, for the tissue.
+	 * @throws IOException
+	 */
+	public synchronized GeneRankMatrix getGeneRanksForTissue(Path tissueFileName) throws IOException
+	{
+		ExpressionValuesCache.CacheKey cacheKey = getCacheKey(tissueFileName, RANKS_VARIANT);
+		GeneRankMatrix ranks = (GeneRankMatrix) expressionValuesCache.get(cacheKey);
+		if (ranks != null)
+		{
+			logger.trace("gene ranks found in cache for {}", tissueFileName.toString());
+			return ranks;
+		}
+		logger.info("Ranking expression values for {}", tissueFileName.toString());
+		ranks = GeneRankMatrix.fromGeneMajorValues(getGeneMajorExpressionValuesForTissue(tissueFileName));
+		expressionValuesCache.put(cacheKey, ranks);
+		return ranks;
+	}
+	
+	/**
+	 * Gets the normalized expression values for a tissue. The values are normalized once for each tissue and normalization, and cached
+	 * (and kept in the tissue matrix directory, if one has been set).
+	 * @param tissueFileName - the name of the file that contains the sample IDs for the tissue.
+	 * @param normalization - how the values are normalized.
+	 * @return the normalized values.
+	 * @throws IOException
+	 */
+	public synchronized NormalizedExpressionMatrix getNormalizedExpressionValuesForTissue(Path tissueFileName, ExpressionNormalization normalization) throws IOException
+	{
+		ExpressionValuesCache.CacheKey cacheKey = getCacheKey(tissueFileName, NORMALIZED_VARIANT_PREFIX + normalization.getCacheKey());
+		NormalizedExpressionMatrix normalizedValues = (NormalizedExpressionMatrix) expressionValuesCache.get(cacheKey);
+		if (normalizedValues != null)
+		{
+			logger.trace("normalized values found in cache for {}", tissueFileName.toString());
+			return normalizedValues;
+		}
+		try (TissueMatrixFile tissueMatrixFile = openTissueMatrixFile(tissueFileName, normalization.getCacheKey()))
+		{
+			if (tissueMatrixFile != null)
+			{
+				normalizedValues = tissueMatrixFile.toNormalizedExpressionMatrix(normalization);
+			}
+		}
+		if (normalizedValues == null)
+		{
+			logger.info("Normalizing expression values for {} with {}", tissueFileName.toString(), normalization);
+			normalizedValues = normalization.normalize(getGeneMajorExpressionValuesForTissue(tissueFileName));
+			writeTissueMatrixFile(tissueFileName, normalization.getCacheKey(), normalizedValues);
+		}
+		expressionValuesCache.put(cacheKey, normalizedValues);
+		return normalizedValues;
+	}
+	
+	/**
+	 * Gets the ranks of each gene's normalized values for a tissue (see {@link GeneRankMatrix#fromNormalizedValues(NormalizedExpressionMatrix)}).
+	 * Library-size scaling changes the order of a gene's values across samples, so these are not the same as the ranks of the raw counts. They are cached.
+	 * @param tissueFileName - the name of the file that contains the sample IDs for the tissue.
+	 * @param normalization - how the values are normalized.
+	 * @return the ranks of every gene's normalized values, for the tissue.
+	 * @throws IOException
+	 */
+	public synchronized GeneRankMatrix getGeneRanksForTissue(Path tissueFileName, ExpressionNormalization normalization) throws IOException
+	{
+		ExpressionValuesCache.CacheKey cacheKey = getCacheKey(tissueFileName, RANKS_VARIANT + "#" + NORMALIZED_VARIANT_PREFIX + normalization.getCacheKey());
+		GeneRankMatrix ranks = (GeneRankMatrix) expressionValuesCache.get(cacheKey);
+		if (ranks != null)
+		{
+			logger.trace("gene ranks found in cache for {}", tissueFileName.toString());
+			return ranks;
+		}
+		logger.info("Ranking normalized expression values for {}", tissueFileName.toString());
+		ranks = GeneRankMatrix.fromNormalizedValues(getNormalizedExpressionValuesForTissue(tissueFileName, normalization));
+		expressionValuesCache.put(cacheKey, ranks);
+		return ranks;
+	}
+	
+	/**
+	 * Removes everything that has been cached for a tissue (expression values in both layouts, normalized values, and ranks), so that it can be garbage-collected.
+	 * This should be called when nothing else will need the tissue, or when its file of sample IDs has changed.
+	 * @param tissueFileName - the name of the file that contains the sample IDs for the tissue.
+	 */
+	public synchronized void evictTissue(Path tissueFileName)
+	{
+		int evicted = expressionValuesCache.removeSampleSet(getSampleSetKey(tissueFileName));
+		logger.info("{} cached value sets evicted for {}", evicted, tissueFileName.toString());
+	}
+
+	/**
+	 * Gets the file in the tissue matrix directory for a tissue's values. The name includes a hash of the tissue file's full path, so that tissue
+	 * files with the same name in different directories do not share a matrix file.
+	 * @param variant - "" for the counts, or a normalization's cache key.
+	 */
+	private Path getTissueMatrixFile(Path tissueFileName, String variant)
+	{
+		String fileName = tissueFileName.getFileName().toString() + "-" + Integer.toHexString(getSampleSetKey(tissueFileName).hashCode());
+		if (!variant.isEmpty())
+		{
+			fileName += "-" + Integer.toHexString(variant.hashCode());
+		}
+		return tissueMatrixDirectory.resolve(fileName + ".tmat");
+	}
+
+	/**
+	 * Opens a tissue's matrix file, if there is one and it was made from the current HDF file and tissue file.
+	 * @param variant - "" for the counts, or a normalization's cache key.
+	 * @return the open file, or null if there is no tissue matrix directory, or no usable file in it.
+	 */
+	private TissueMatrixFile openTissueMatrixFile(Path tissueFileName, String variant) throws IOException
+	{
+		if (tissueMatrixDirectory == null)
+		{
+			return null;
+		}
+		Path matrixFile = getTissueMatrixFile(tissueFileName, variant);
+		if (!Files.exists(matrixFile))
+		{
+			return null;
+		}
+		TissueMatrixFile tissueMatrixFile;
+		try
+		{
+			tissueMatrixFile = TissueMatrixFile.open(matrixFile);
+		}
+		catch (IOException e)
+		{
+			logger.warn("Could not read " + matrixFile + ", so it will be rewritten.", e);
+			return null;
+		}
+		if (tissueMatrixFile.isValidFor(Paths.get(hdfExpressionFile), getSampleIdsForTissue(tissueFileName), variant))
+		{
+			logger.info("Reading values for {} from {}", tissueFileName.toString(), matrixFile);
+			return tissueMatrixFile;
 		}
+		logger.info("{} is out of date (the HDF file or the tissue's samples have changed), so it will be rewritten.", matrixFile);
+		tissueMatrixFile.close();
+		return null;
+	}
+
+	/**
+	 * Writes a tissue's values to its matrix file, if there is a tissue matrix directory. A failure is logged, since the values can always be read again.
+	 * @param variant - "" for the counts, or a normalization's cache key.
+	 * @param values - a {@link GeneMajorExpressionMatrix} or a {@link NormalizedExpressionMatrix}.
+	 */
+	private void writeTissueMatrixFile(Path tissueFileName, String variant, GeneVectorSource values)
+	{
+		if (tissueMatrixDirectory == null)
+		{
+			return;
+		}
+		Path matrixFile = getTissueMatrixFile(tissueFileName, variant);
+		try
+		{
+			List<String> sampleIds = getSampleIdsForTissue(tissueFileName);
+			if (values instanceof NormalizedExpressionMatrix)
+			{
+				TissueMatrixFile.writeNormalizedValues(matrixFile, (NormalizedExpressionMatrix) values, Paths.get(hdfExpressionFile), sampleIds);
+			}
+			else
+			{
+				TissueMatrixFile.writeCounts(matrixFile, (GeneMajorExpressionMatrix) values, Paths.get(hdfExpressionFile), sampleIds);
+			}
+			logger.info("Values for {} written to {}", tissueFileName.toString(), matrixFile);
+		}
+		catch (IOException | IllegalArgumentException e)
+		{
+			logger.warn("Could not write values for " + tissueFileName + " to " + matrixFile, e);
+		}
+	}
+
+	/**
+	 * Gets the IDs of a tissue's samples, in the order of the tissue file, which is the order of the values that are read for the tissue.
+	 */
+	private static List<String> getSampleIdsForTissue(Path tissueFileName) throws IOException
+	{
+		return Files.readAllLines(tissueFileName);
+	}
+
+	/**
+	 * Gets the planner that decides how rows are read from the HDF file, to change its settings or read its totals of bytes read and used.
+	 */
+	public HDF5ReadPlanner getReadPlanner()
+	{
+		return readPlanner;
+	}
+
+	public Path getTissueMatrixDirectory()
+	{
+		return tissueMatrixDirectory;
+	}
+
+	/**
+	 * Sets a directory to keep each tissue's gene-major values in (see {@link TissueMatrixFile}), so that they do not have to be read from the HDF file
+	 * again when the JVM is restarted. A file is rewritten automatically if the HDF file or the tissue's samples change. The default is null: no files are kept.
+	 * @param tissueMatrixDirectory - an existing directory, on a local disk.
+	 */
+	public synchronized void setTissueMatrixDirectory(Path tissueMatrixDirectory)
+	{
+		this.tissueMatrixDirectory = tissueMatrixDirectory;
+	}
+
+	/**
+	 * Gets this loader's cache, to set its ceiling or spill directory, or to read its hit, miss and eviction counts.
+	 * @return the cache of expression values (and everything derived from them) that this loader has read.
+	 */
+	public ExpressionValuesCache getExpressionValuesCache()
+	{
+		return expressionValuesCache;
+	}
+	
+	/**
+	 * Gets the expression values of one gene, across all samples for a tissue. The values come from the (cached) gene-major matrix for the tissue,
+	 * so nothing is copied: the returned array must not be modified.
+	 * @param tissueFileName - the name of the file that contains the sample IDs for the tissue.
+	 * @param gene - A gene symbol/id.
+	 * @return the expression values of the gene, in the same sample order as the rows returned by <code>getExpressionValuesforTissue</code>.
+	 * @throws IOException
+	 * @throws IllegalArgumentException If the gene is not in the HDF file.
+	 */
+	public int[] getGeneVector(Path tissueFileName, String gene) throws IOException
+	{
+		Integer geneIndex = geneIndices.get(gene);
+		if (geneIndex == null)
+		{
+			throw new IllegalArgumentException("Gene " + gene + " is not recognized in the HDF file.");
+		}
+		return getGeneMajorExpressionValuesForTissue(tissueFileName).getGeneVector(geneIndex);
 	}
 
 	/**
@@ -104,17 +431,19 @@ public class Archs4ExpressionDataLoader
 	 */
 	public synchronized int[][] getExpressionValuesforTissue(String tissue)
 	{
-		if (expressionValuesCache.containsKey(tissue))
+		ExpressionValuesCache.CacheKey cacheKey = new ExpressionValuesCache.CacheKey(hdfExpressionFile, "tissue:" + tissue, SAMPLE_MAJOR_VARIANT);
+		int[][] values = (int[][]) expressionValuesCache.get(cacheKey);
+		if (values != null)
 		{
 			logger.trace("expression values found in cache for {}", tissue);
-			return (int[][])expressionValuesCache.get(tissue);
+			return values;
 		}
 		else
 		{
 			logger.info("Nothing in expression value cache for {}, loading it now...", tissue);
 			List<Integer> indicesForTissue = tissueTypeToIndex.get(tissue);
-			int[][] values = getExpressionValuesByIndices(indicesForTissue, tissue);
-			expressionValuesCache.put(tissue, values);
+			values = getExpressionValuesByIndices(indicesForTissue, tissue);
+			expressionValuesCache.put(cacheKey, values);
 			return values;	
 		}
 	}
@@ -140,132 +469,87 @@ public class Archs4ExpressionDataLoader
 	}
 	
 	/**
-	 * Gets expression values based on a list of indices.
-	 * @param indices
+	 * Gets expression values based on a list of indices. The rows are read as planned by the read planner (see {@link HDF5ReadPlanner}).
+	 * @param indices - the indices of the samples, in any order.
 	 * @param datasubsetName
-	 * @return
+	 * @return the expression values: one row per index, in the order of <code>indices</code>.
 	 */
-	private synchronized int[][] getExpressionValuesByIndices(List<Integer> indices, String datasubsetName)
+	private int[][] getExpressionValuesByIndices(List<Integer> indices, String datasubsetName)
 	{
 		logger.info("number of samples for tissue ({}): {}", datasubsetName, indices.size());
-		logger.info("Tissue indices: {}", indices.toString());
-		int[][] expressionValues = new int[numberOfGenes][indices.size()];
-		
-		long file_id = H5.H5Fopen(hdfExpressionFile, HDF5Constants.H5F_ACC_RDONLY, HDF5Constants.H5P_DEFAULT);
-		long dataset_id = H5.H5Dopen(file_id, expressionDSName, HDF5Constants.H5P_DEFAULT);
-		long dset_space_id = H5.H5Dget_space(dataset_id);
-		
-		boolean isFirst = true;
-		int op = HDF5Constants.H5S_SELECT_SET;
-		
-		List<List<Integer>> contigBlocks = new ArrayList<>();
-		int maxBlockWidth = 0;
-		int blockCount = 0;
-		int blockWidth = 1;
-		// make a list of contiguous blocks.
-		for (int i = 0; i<indices.size(); i += blockWidth)
-		{
-			blockWidth = 1;
-			int initialIndex = indices.get(i);
-			int currentIndex = indices.get(i);
-			// If there IS a next index, try to determine the block width.
-			if (i + blockWidth < indices.size())
-			{
-				int nextIndex = indices.get(i + 1);
-				// keep adding to the contiguous block, until we get a point where the next index is no longer a part of this block.
-				while (nextIndex - currentIndex == 1 && i + blockWidth < indices.size() - 1)
-				{
-					blockWidth++;
-					currentIndex = nextIndex;
-					nextIndex = indices.get(i + blockWidth);
-				}
-			}
-			// If there is no next index, then this block's width is 1.
-			else 
-			{
-				blockWidth = 1;
-			}
-			
-			maxBlockWidth = Math.max(blockWidth, maxBlockWidth);
-			blockCount++;
-			// A block is defined as having a starting point and a width. Create a "block" and add it to the list.
-			List<Integer> currentBlock = Arrays.asList( initialIndex, blockWidth );
-			contigBlocks.add(currentBlock);
-		}
-		logger.info("{} contiguous blocks; max block width: {}", blockCount, maxBlockWidth);
-		
-		// Append tissue-sample columns to the hyperslab...
-		for (List<Integer> contigBlock : contigBlocks)
-		{
-			// Select a column (for a tissue sample) from the first gene to the last.
-			long[] start = { contigBlock.get(0), 0 };
-			long[] count = { 1, 1 };
-			long[] block = { contigBlock.get(1), numberOfGenes };
-			int status = H5.H5Sselect_hyperslab(dset_space_id, op, start, null, count, block);
-			if (status < 0)
-			{
-				logger.error("Selection returned an error code: {}", status);
-			}
-			// After the first selection, need to use H5S_SELECT_OR to combine multiple selections.
-			if (isFirst)
-			{
-				isFirst = false;
-				op = HDF5Constants.H5S_SELECT_OR;
-			}
+		logger.debug("Tissue indices: {}", indices.toString());
+		int[] sampleIndices = new int[indices.size()];
+		for (int i = 0; i < sampleIndices.length; i++)
+		{
+			sampleIndices[i] = indices.get(i);
 		}
-		
-		// Now... read the selections into a dataset.
-		// DimX is how many total indices there were for a tissue.
-		int dimx = indices.size();
-		// DimY is how many genes there were (assume all, for all tissues).
-		int dimy = numberOfGenes;		
-
-		// Now that the selections have all been made, it is FINALLY time to read the data.
-		expressionValues = HDFUtils.readData(dataset_id, dset_space_id, dimx, dimy);
-		H5.H5close();
-		return expressionValues;
+		return readPlanner.read(this.getHdfSession(), expressionDSName, sampleIndices);
 	}
 	
 	/**
-	 * Gets a list of expression values for a gene/tissue pair, across all samples for the tissue.
+	 * Gets a list of expression values for a gene/tissue pair, across all samples for the tissue. To get more than one gene, use
+	 * {@link #getExpressionValuesForGenesAndTissue(List, String)}, which reads them all at once.
 	 * @param gene - A gene symbol/id.
 	 * @param tissue - The name of the tissue.
 	 * @return
 	 */
 	public int[] getExpressionValuesForGeneAndTissue(String gene, String tissue)
 	{
-		int geneIndex = geneIndices.get(gene);
-		
-		long file_id = H5.H5Fopen(hdfExpressionFile, HDF5Constants.H5F_ACC_RDONLY, HDF5Constants.H5P_DEFAULT);
-		long dataset_id = H5.H5Dopen(file_id, expressionDSName, HDF5Constants.H5P_DEFAULT);
-		long space_id = H5.H5Dget_space(dataset_id);
+		return getExpressionValuesForGenesAndTissue(Collections.singletonList(gene), tissue).getGeneVector(0);
+	}
 
+	/**
+	 * Gets the expression values of a set of genes, across all samples for a tissue. Only those genes are read from the HDF file, in one planned
+	 * read (see {@link HDF5ReadPlanner#readColumns(HDF5Session, String, int[], int[])}), which is much cheaper than reading the genes one at a time,
+	 * or reading every gene for the tissue. Nothing is cached.
+	 * @param genes - Gene symbols/ids. Gene <code>i</code> of the returned matrix is <code>genes.get(i)</code>.
+	 * @param tissue - The name of the tissue, as it is found in the dataset /meta/Sample_source_name_ch1
+	 * @return the expression values: one gene vector per gene, with the samples in the same order as <code>getExpressionValuesForGeneAndTissue</code>.
+	 * @throws IllegalArgumentException If a gene or the tissue is not in the HDF file.
+	 */
+	public GeneMajorExpressionMatrix getExpressionValuesForGenesAndTissue(List<String> genes, String tissue)
+	{
 		List<Integer> indicesForTissue = tissueTypeToIndex.get(tissue);
-
-		long[][] elementCoords = getElementCoordinatesForTissue(tissue, geneIndex);
-		
-		int status = H5.H5Sselect_elements(space_id, HDF5Constants.H5S_SELECT_SET, elementCoords.length, elementCoords);
-		if (status < 0)
+		if (indicesForTissue == null)
 		{
-			logger.error("Error selecting elements! response code: {}",status);
-			return null;
+			throw new IllegalArgumentException("Tissue " + tissue + " is not recognized in the HDF file.");
+		}
+		int[] sampleIndices = new int[indicesForTissue.size()];
+		for (int i = 0; i < sampleIndices.length; i++)
+		{
+			sampleIndices[i] = indicesForTissue.get(i);
 		}
+		return readGeneValues(genes, sampleIndices, tissue);
+	}
 
-		int dimx = indicesForTissue.size();
-		int dimy = 1;
-		
-		int[][] dset_data = HDFUtils.readData(dataset_id, space_id, dimx, dimy);
-		int[] expressionValues = new int[dset_data.length];
-		for (int i = 0; i < dset_data.length; i ++)
+	/**
+	 * Gets the expression values of a set of genes, across all samples for a tissue. All sample IDs for the tissue should be in a text file.
+	 * Only those genes are read from the HDF file (see {@link #getExpressionValuesForGenesAndTissue(List, String)}). Nothing is cached.
+	 * @param genes - Gene symbols/ids. Gene <code>i</code> of the returned matrix is <code>genes.get(i)</code>.
+	 * @param tissueFileName - the name of the file that contains the sample IDs for the tissue.
+	 * @return the expression values: one gene vector per gene, with the samples in the order of the tissue file.
+	 * @throws IOException
+	 * @throws IllegalArgumentException If a gene is not in the HDF file.
+	 */
+	public GeneMajorExpressionMatrix getExpressionValuesForGenesAndTissue(List<String> genes, Path tissueFileName) throws IOException
+	{
+		return readGeneValues(genes, getSampleIndicesForTissue(tissueFileName), tissueFileName.toString());
+	}
+
+	private GeneMajorExpressionMatrix readGeneValues(List<String> genes, int[] sampleIndices, String datasubsetName)
+	{
+		int[] geneIndexes = new int[genes.size()];
+		for (int i = 0; i < geneIndexes.length; i++)
 		{
-			for (int j = 0; j < dset_data[0].length; j++)
+			Integer geneIndex = geneIndices.get(genes.get(i));
+			if (geneIndex == null)
 			{
-				int expressionValue = dset_data[i][j];
-				expressionValues[i] = expressionValue;
+				throw new IllegalArgumentException("Gene " + genes.get(i) + " is not recognized in the HDF file.");
 			}
+			geneIndexes[i] = geneIndex;
 		}
-		H5.H5close();
-		return expressionValues;
+		logger.info("number of samples for tissue ({}): {}; number of genes: {}", datasubsetName, sampleIndices.length, geneIndexes.length);
+		return new GeneMajorExpressionMatrix(readPlanner.readColumns(this.getHdfSession(), expressionDSName, sampleIndices, geneIndexes));
 	}
 	
 	/**
@@ -275,7 +559,7 @@ public class Archs4ExpressionDataLoader
 	{
 		this.sampleIdToIndex = new HashMap<>();
 		
-		StringBuffer[] str_data = HDFUtils.readDataSet(this.hdfExpressionFile, Archs4ExpressionDataLoader.sampleIdDSName, this.numberOfSamples);
+		StringBuffer[] str_data = HDFUtils.readDataSet(this.getHdfSession(), Archs4ExpressionDataLoader.sampleIdDSName, this.numberOfSamples);
 		logger.info("Number of elements: {}", str_data.length);
 		for (int indx = 0; indx <  str_data.length; indx++)
 		{
@@ -291,7 +575,7 @@ public class Archs4ExpressionDataLoader
 	public void loadGeneNames()
 	{
 		this.geneIndices = new HashMap<>();
-		StringBuffer[] str_data = HDFUtils.readDataSet(this.hdfExpressionFile, Archs4ExpressionDataLoader.genesDSName, this.numberOfGenes);
+		StringBuffer[] str_data = HDFUtils.readDataSet(this.getHdfSession(), Archs4ExpressionDataLoader.genesDSName, this.numberOfGenes);
 		logger.info("Number of elements: {}", str_data.length);
 		for (int indx = 0; indx < str_data.length; indx++)
 		{
@@ -318,7 +602,7 @@ public class Archs4ExpressionDataLoader
 		this.tissueTypeToIndex = new HashMap<>();
 		this.indexOfTissues = new HashMap<>();
 
-		StringBuffer[] str_data = HDFUtils.readDataSet(this.hdfExpressionFile,tissueDSName, numberOfSamples);
+		StringBuffer[] str_data = HDFUtils.readDataSet(this.getHdfSession(),tissueDSName, numberOfSamples);
 		logger.info("Number of elements: ", str_data.length);
 		for (int indx = 0; indx < str_data.length; indx++)
 		{
@@ -377,6 +661,22 @@ public class Archs4ExpressionDataLoader
 		return geneIndices;
 	}
 	
+	/**
+	 * Gets the number of genes in the HDF file, as read by {@link #loadCounts()}.
+	 */
+	public int getNumberOfGenes()
+	{
+		return numberOfGenes;
+	}
+	
+	/**
+	 * Gets the number of samples in the HDF file, as read by {@link #loadCounts()}.
+	 */
+	public int getNumberOfSamples()
+	{
+		return numberOfSamples;
+	}
+	
 	/**
 	 * Sets the path to the HDF file containe gene expression data, and then load some data.
 	 * NOTE: This method will ALSO attempt to read the file and load the number of
@@ -385,13 +685,7 @@ public class Archs4ExpressionDataLoader
 	 */
 	public void loadCounts()
 	{
-		long file_id = H5.H5Fopen(this.hdfExpressionFile, HDF5Constants.H5F_ACC_RDONLY, HDF5Constants.H5P_DEFAULT);
-		long[] dims = new long[2];
-		long[] maxdims = new long[2];
-		
-		long dataset_id = H5.H5Dopen(file_id, expressionDSName, HDF5Constants.H5P_DEFAULT);
-		long space_id = H5.H5Dget_space(dataset_id);
-		H5.H5Sget_simple_extent_dims(space_id, dims, maxdims);
+		long[] dims = this.getHdfSession().getDimensions(expressionDSName);
 		numberOfSamples = (int) dims[0]; // You should get ~167k here.
 		numberOfGenes = (int) dims[1]; // You should get ~35k here.
 	}
@@ -416,6 +710,44 @@ public class Archs4ExpressionDataLoader
 		return geneIndicesToNames;
 	}
 
+	/**
+	 * Gets the session that the HDF file is open in, opening it if this is the first read (or the first since {@link #close()}).
+	 */
+	private HDF5Session getHdfSession()
+	{
+		HDF5Session session = this.hdfSession;
+		if (session == null)
+		{
+			synchronized (this.hdfSessionLock)
+			{
+				session = this.hdfSession;
+				if (session == null)
+				{
+					session = new HDF5Session(this.hdfExpressionFile);
+					this.hdfSession = session;
+				}
+			}
+		}
+		return session;
+	}
+
+	/**
+	 * Closes the HDF file, and every dataset and dataspace that was opened in it. The in-memory caches are kept, and the file is opened again
+	 * if anything else needs to be read from it. Nothing should be reading from the file when this is called.
+	 */
+	@Override
+	public void close()
+	{
+		synchronized (this.hdfSessionLock)
+		{
+			if (this.hdfSession != null)
+			{
+				this.hdfSession.close();
+				this.hdfSession = null;
+			}
+		}
+	}
+
 	/**
 	 * Gets a mapping of sample indices mapped to sample IDs.
 	 * @return
@@ -40,4 +40,17 @@ public class Archs4ExpressionDataLoaderFactory
 			return loader;
 		}
 	}
+
+	/**
+	 * Closes the HDF file of every loader that has been created (see {@link Archs4ExpressionDataLoader#close()}), and forgets the loaders,
+	 * so the next call to {@link #buildInstanceForHDFFile(String)} creates a new one.
+	 */
+	public static void closeAll()
+	{
+		for (Archs4ExpressionDataLoader loader : loaders.values())
+		{
+			loader.close();
+		}
+		loaders.clear();
+	}
 }
@@ -3,6 +3,7 @@ package org.reactome.idg.loader;
 import java.io.BufferedWriter;
 import java.io.FileInputStream;
 import java.io.FileWriter;
+import java.io.IOException;
 import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.Paths;
@@ -56,6 +57,8 @@ public class Archs4Loader
 	@Autowired
 	CommonsPool2TargetSource daoPool;
 	
+	private double correlationThreshold = 0.0;
+	
 	public Archs4Loader()
 	{
 		
@@ -74,12 +77,7 @@ public class Archs4Loader
 			if (scanner.hasNext())
 			{
 				String geneSymbolHeader = scanner.nextLine();
-				String[] parts = geneSymbolHeader.split(",");
-				String[] allGeneSymbols = new String[parts.length-1];
-				for (int i = 1; i < parts.length; i++)
-				{
-					allGeneSymbols[i - 1] = parts[i].replaceAll("\"", "");
-				}
+				String[] allGeneSymbols = parseGeneSymbols(geneSymbolHeader);
 
 				logger.info("{} gene symbols in the header.", allGeneSymbols.length);
 				int maxPairs = (allGeneSymbols.length * (allGeneSymbols.length + 1))/2;
@@ -98,6 +96,7 @@ public class Archs4Loader
 				Provenance provenanceToUse = provenanceDao.addProvenance(archs4Provenance);
 //				Provenance provenanceToUse = dao.addProvenance(archs4Provenance);
 				AtomicInteger recordCount = new AtomicInteger(0);
+				AtomicInteger belowThresholdCount = new AtomicInteger(0);
 				int lineStartOffset = 1;
 				
 				int numWorkers = 1;
@@ -108,7 +107,7 @@ public class Archs4Loader
 				{
 					
 					String line = scanner.nextLine();
-					parts = line.split(",");
+					String[] parts = line.split(",");
 					String currentGeneSymbol = parts[0].substring(1, parts[0].length()-1);
 
 					int j = 1;
@@ -135,6 +134,11 @@ public class Archs4Loader
 								int lookupIndex = i - 1;
 								String correlationValue = "";
 								correlationValue = subParts.get(i-startIndex);
+								if (this.correlationThreshold > 0.0 && isBelowThreshold(correlationValue))
+								{
+									belowThresholdCount.incrementAndGet();
+									continue;
+								}
 								String otherGeneSymbol = allGeneSymbols[lookupIndex];
 								String key = DataRepository.generateKey(currentGeneSymbol, otherGeneSymbol);
 								String keyParts[] = key.split("\\|");
@@ -184,8 +188,128 @@ public class Archs4Loader
 				Files.move(Paths.get(tempFileName), Paths.get(tempFileName + "_" + fileNum.getAndIncrement()));
 				writer.close();
 				LocalDateTime endTime = LocalDateTime.now();
+				if (this.correlationThreshold > 0.0)
+				{
+					logger.info("{} gene-pairs loaded, {} gene-pairs skipped because |r| < {}", recordCount.get(), belowThresholdCount.get(), this.correlationThreshold);
+				}
 				logger.info("{} time spent loading the data.", Duration.between(startTime, endTime).toString());
 			}
 		}
-	}	
+	}
+	
+	/**
+	 * Reads the correlation file into a sparse matrix, keeping only the gene pairs whose absolute correlation is at least a threshold.
+	 * Nothing is loaded into the database. Like {@link #loadData()}, only the upper triangle of the file is read: row i's values start at gene i.
+	 * @param threshold - the smallest absolute correlation value that will be kept.
+	 * @return a sparse matrix of the pairs that were kept, which can be queried by gene symbol.
+	 * @throws IOException If the file could not be read, or if it is incomplete or malformed: a missing row, a row with the wrong number of
+	 * columns, a row that is not in the same order as the header, or a value that is not a number. A matrix with missing pairs is never returned.
+	 */
+	public SparseCorrelationMatrix loadSparseMatrix(double threshold) throws IOException
+	{
+		try(FileInputStream fis = new FileInputStream(this.filePath);
+			Scanner scanner = new Scanner(fis);)
+		{
+			if (!scanner.hasNext())
+			{
+				throw new IOException(this.filePath + " is empty.");
+			}
+			final LocalDateTime startTime = LocalDateTime.now();
+			String[] allGeneSymbols = parseGeneSymbols(scanner.nextLine());
+			logger.info("{} gene symbols in the header.", allGeneSymbols.length);
+			SparseCorrelationMatrix.Builder builder = new SparseCorrelationMatrix.Builder(allGeneSymbols.length, threshold, allGeneSymbols);
+			int rowIndex = 0;
+			while (scanner.hasNext() && rowIndex < allGeneSymbols.length)
+			{
+				// The header is line 1.
+				int lineNumber = rowIndex + 2;
+				String[] parts = scanner.nextLine().split(",");
+				if (parts.length != allGeneSymbols.length + 1)
+				{
+					throw new IOException("Line " + lineNumber + " of " + this.filePath + " has " + parts.length + " columns, but there should be " + (allGeneSymbols.length + 1)
+							+ " (a gene symbol, and a value for each of the genes in the header).");
+				}
+				String geneSymbol = parts[0].replaceAll("\"", "");
+				if (!geneSymbol.equals(allGeneSymbols[rowIndex]))
+				{
+					throw new IOException("Line " + lineNumber + " of " + this.filePath + " is for " + geneSymbol + ", but the rows should be in the same order as the header, so it should be for "
+							+ allGeneSymbols[rowIndex]);
+				}
+				// parts[0] is the gene symbol, so gene c's value is in parts[c + 1]. The diagonal is skipped.
+				for (int column = rowIndex + 1; column < allGeneSymbols.length; column++)
+				{
+					double value;
+					try
+					{
+						value = Double.parseDouble(parts[column + 1]);
+					}
+					catch (NumberFormatException e)
+					{
+						throw new IOException("The value for " + allGeneSymbols[rowIndex] + " and " + allGeneSymbols[column] + " on line " + lineNumber + " of " + this.filePath
+								+ " is not a number: " + parts[column + 1], e);
+					}
+					if (Math.abs(value) >= threshold)
+					{
+						builder.addPair(rowIndex, column, value);
+					}
+				}
+				rowIndex++;
+				if (rowIndex % 1000 == 0)
+				{
+					logger.info("{} rows read, {} gene-pairs kept so far.", rowIndex, builder.getNumberOfPairs());
+				}
+			}
+			if (rowIndex < allGeneSymbols.length)
+			{
+				throw new IOException(this.filePath + " has " + rowIndex + " rows, but there are " + allGeneSymbols.length + " genes in the header.");
+			}
+			SparseCorrelationMatrix matrix = builder.build();
+			matrix.logDensityStatistics();
+			logger.info("{} time spent reading the data.", Duration.between(startTime, LocalDateTime.now()).toString());
+			return matrix;
+		}
+	}
+	
+	/**
+	 * Gets the gene symbols from the header line of the correlation file.
+	 */
+	private static String[] parseGeneSymbols(String geneSymbolHeader)
+	{
+		String[] parts = geneSymbolHeader.split(",");
+		String[] allGeneSymbols = new String[parts.length-1];
+		for (int i = 1; i < parts.length; i++)
+		{
+			allGeneSymbols[i - 1] = parts[i].replaceAll("\"", "");
+		}
+		return allGeneSymbols;
+	}
+	
+	/**
+	 * Checks if a value from the correlation file is below the threshold. Values that are not numbers are not below the threshold, so they will still be loaded.
+	 */
+	private boolean isBelowThreshold(String correlationValue)
+	{
+		try
+		{
+			return Math.abs(Double.parseDouble(correlationValue)) < this.correlationThreshold;
+		}
+		catch (NumberFormatException e)
+		{
+			return false;
+		}
+	}
+	
+	public double getCorrelationThreshold()
+	{
+		return this.correlationThreshold;
+	}
+	
+	/**
+	 * Sets a threshold for {@link #loadData()}: gene pairs whose absolute correlation is below it will not be loaded. The default is 0, which loads every pair.
+	 * @param correlationThreshold
+	 */
+	public void setCorrelationThreshold(double correlationThreshold)
+	{
+		this.correlationThreshold = correlationThreshold;
+	}
 }
@@ -0,0 +1,272 @@
+package org.reactome.idg.loader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Writes the upper triangle of a correlation matrix to a binary file.
+ * <br/>
+ * The file starts with a header of four big-endian ints: {@link #MAGIC_NUMBER}, {@link #FORMAT_VERSION}, N (the number of genes) and the
+ * {@link Encoding} of the values. After the header, the values from the main diagonal to the end of each row are written one row after another,
+ * so the file has N * (N + 1) / 2 values. Use {@link #readMatrix(Path)} to read it back.
+ * <br/>
+ * Version 1 files (which had no encoding in the header, and were always floats) can still be read.
+ * @author sshorser
+ *
+ */
+public class BinaryFileRowSink implements CorrelationRowSink
+{
+	private static final Logger logger = LogManager.getLogger();
+
+	public static final int MAGIC_NUMBER = 0x434F5252; // "CORR"
+	public static final int FORMAT_VERSION = 2;
+	private static final int VERSION_1_HEADER_SIZE = 3 * Integer.BYTES;
+	private static final int HEADER_SIZE = 4 * Integer.BYTES;
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	/**
+	 * The ways that values can be written. The quantized encodings are described in {@link CorrelationQuantizer}.
+	 * The ordinal is written to the file header, so new encodings must only be added at the end.
+	 */
+	public enum Encoding
+	{
+		/**
+		 * Big-endian floats.
+		 */
+		FLOAT(Float.BYTES),
+		/**
+		 * Big-endian shorts, quantized with {@link CorrelationQuantizer#toShort(double)}. Half the size of FLOAT.
+		 */
+		SHORT(Short.BYTES),
+		/**
+		 * Bytes, quantized with {@link CorrelationQuantizer#toByte(double)}. A quarter of the size of FLOAT, but much less precise.
+		 */
+		BYTE(Byte.BYTES);
+
+		private final int bytesPerValue;
+
+		private Encoding(int bytesPerValue)
+		{
+			this.bytesPerValue = bytesPerValue;
+		}
+
+		public int getBytesPerValue()
+		{
+			return this.bytesPerValue;
+		}
+	}
+
+	private final Path outputFile;
+	private final Encoding encoding;
+	private FileChannel channel;
+	private ByteBuffer buffer;
+	private long valuesWritten = 0;
+
+	/**
+	 * Creates a sink that will write floats to a file. If the file already exists, it will be overwritten.
+	 * @param outputFile - the path to the file to write.
+	 */
+	public BinaryFileRowSink(Path outputFile)
+	{
+		this(outputFile, Encoding.FLOAT);
+	}
+
+	/**
+	 * Creates a sink that will write to a file. If the file already exists, it will be overwritten.
+	 * @param outputFile - the path to the file to write.
+	 * @param encoding - how the values will be written.
+	 */
+	public BinaryFileRowSink(Path outputFile, Encoding encoding)
+	{
+		this.outputFile = outputFile;
+		this.encoding = encoding;
+	}
+
+	@Override
+	public void start(int numberOfGenes) throws IOException
+	{
+		ByteBuffer header = this.createHeader(numberOfGenes);
+		this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		this.channel = FileChannel.open(this.outputFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		header.flip();
+		while (header.hasRemaining())
+		{
+			this.channel.write(header);
+		}
+	}
+
+	/**
+	 * Creates the header that is written before the values.
+	 * @param numberOfGenes - the size (N) of the N x N matrix.
+	 * @return a buffer whose position is at the end of the header.
+	 * @throws IOException
+	 */
+	protected ByteBuffer createHeader(int numberOfGenes) throws IOException
+	{
+		return ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC_NUMBER).putInt(FORMAT_VERSION).putInt(numberOfGenes).putInt(this.encoding.ordinal());
+	}
+
+	public Encoding getEncoding()
+	{
+		return this.encoding;
+	}
+
+	@Override
+	public void accept(CorrelationRowBlock block) throws IOException
+	{
+		for (int row = block.getStartRow(); row < block.getEndRow(); row++)
+		{
+			for (int column = row; column < block.getNumberOfGenes(); column++)
+			{
+				if (this.buffer.remaining() < this.encoding.getBytesPerValue())
+				{
+					this.flush();
+				}
+				double value = block.getValue(row, column);
+				switch (this.encoding)
+				{
+					case SHORT:
+						this.buffer.putShort(CorrelationQuantizer.toShort(value));
+						break;
+					case BYTE:
+						this.buffer.put(CorrelationQuantizer.toByte(value));
+						break;
+					default:
+						this.buffer.putFloat((float) value);
+						break;
+				}
+			}
+		}
+		this.valuesWritten += block.getNumberOfValues();
+	}
+
+	private void flush() throws IOException
+	{
+		this.buffer.flip();
+		while (this.buffer.hasRemaining())
+		{
+			this.channel.write(this.buffer);
+		}
+		this.buffer.clear();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if (this.channel != null)
+		{
+			try
+			{
+				this.flush();
+			}
+			finally
+			{
+				this.channel.close();
+				this.channel = null;
+			}
+			logger.info("{} correlation values written to {}", this.valuesWritten, this.outputFile.toString());
+		}
+	}
+
+	/**
+	 * Reads a file that was written by a BinaryFileRowSink.
+	 * @param inputFile - the path to the file.
+	 * @return the matrix that was in the file. Its type depends on the file's encoding: {@link PackedFloatSymmetricMatrix} for FLOAT,
+	 * {@link PackedShortSymmetricMatrix} for SHORT and {@link PackedByteSymmetricMatrix} for BYTE. Quantized values are not converted
+	 * when they are read, only when they are looked up.
+	 * @throws IOException If the file is not in the expected format.
+	 */
+	public static PackedSymmetricMatrix readMatrix(Path inputFile) throws IOException
+	{
+		try (FileChannel inChannel = FileChannel.open(inputFile, StandardOpenOption.READ))
+		{
+			ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			readBuffer.limit(VERSION_1_HEADER_SIZE);
+			readFully(inChannel, readBuffer);
+			readBuffer.flip();
+			int magicNumber = readBuffer.getInt();
+			int version = readBuffer.getInt();
+			if (magicNumber != MAGIC_NUMBER || version < 1 || version > FORMAT_VERSION)
+			{
+				throw new IOException(inputFile.toString() + " is not a correlation matrix file (version " + FORMAT_VERSION + " or earlier).");
+			}
+			int numberOfGenes = readBuffer.getInt();
+			Encoding encoding = Encoding.FLOAT;
+			int headerSize = VERSION_1_HEADER_SIZE;
+			if (version >= 2)
+			{
+				readBuffer.clear();
+				readBuffer.limit(Integer.BYTES);
+				readFully(inChannel, readBuffer);
+				readBuffer.flip();
+				int encodingId = readBuffer.getInt();
+				if (encodingId < 0 || encodingId >= Encoding.values().length)
+				{
+					throw new IOException(inputFile.toString() + " has an unknown encoding: " + encodingId);
+				}
+				encoding = Encoding.values()[encodingId];
+				headerSize = HEADER_SIZE;
+			}
+			PackedSymmetricMatrix matrix;
+			switch (encoding)
+			{
+				case SHORT:
+					matrix = new PackedShortSymmetricMatrix(numberOfGenes);
+					break;
+				case BYTE:
+					matrix = new PackedByteSymmetricMatrix(numberOfGenes);
+					break;
+				default:
+					matrix = new PackedFloatSymmetricMatrix(numberOfGenes);
+					break;
+			}
+			long numberOfValues = matrix.getNumberOfPackedValues();
+			int bytesPerValue = encoding.getBytesPerValue();
+			if (inChannel.size() != headerSize + numberOfValues * bytesPerValue)
+			{
+				throw new IOException(inputFile.toString() + " should contain " + numberOfValues + " values, but it is " + inChannel.size() + " bytes long.");
+			}
+			long packedIndex = 0;
+			while (packedIndex < numberOfValues)
+			{
+				readBuffer.clear();
+				readBuffer.limit((int) Math.min(BUFFER_SIZE, (numberOfValues - packedIndex) * bytesPerValue));
+				readFully(inChannel, readBuffer);
+				readBuffer.flip();
+				while (readBuffer.hasRemaining())
+				{
+					switch (encoding)
+					{
+						case SHORT:
+							((PackedShortSymmetricMatrix) matrix).setQuantizedValue(packedIndex++, readBuffer.getShort());
+							break;
+						case BYTE:
+							((PackedByteSymmetricMatrix) matrix).setQuantizedValue(packedIndex++, readBuffer.get());
+							break;
+						default:
+							matrix.setPackedValue(packedIndex++, readBuffer.getFloat());
+							break;
+					}
+				}
+			}
+			return matrix;
+		}
+	}
+
+	private static void readFully(FileChannel inChannel, ByteBuffer readBuffer) throws IOException
+	{
+		while (readBuffer.hasRemaining())
+		{
+			if (inChannel.read(readBuffer) < 0)
+			{
+				throw new IOException("Unexpected end of file.");
+			}
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package org.reactome.idg.loader;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Calculates the Pearson correlations of every pair of genes for a tissue in a single pass over its samples, without ever holding all of the tissue's
+ * expression values in memory. This is for tissues with so many samples that their <code>int[samples][genes]</code> matrix would not fit beside the output.
+ * <br/>
+ * The tissue's samples are read from the HDF file in chunks of {@link #getChunkSize()} samples, in the order they are in the file (so that each chunk's
+ * hyperslab selection is as contiguous as possible). Each chunk is merged into a {@link CorrelationSufficientStatistics} - the running means and co-moments -
+ * tile by tile, and then discarded. The correlations are only calculated at the end, from the co-moments.
+ * <br/>
+ * At most one chunk's values are held at a time (as ints, and then as doubles centred on the chunk's means), so the expression values need about
+ * <code>chunkSize * numberOfGenes * 16</code> bytes, however many samples the tissue has. The co-moments need about <code>4 * numberOfGenes^2</code> bytes.
+ * <br/>
+ * Only {@link CorrelationType#PEARSON} is supported, because a sample's ranks depend on every other sample. For the same reason, normalizations that filter
+ * genes are not supported; library-size scaling and the log transform only depend on the sample itself, so each chunk is normalized on its own.
+ * @author sshorser
+ *
+ */
+public class ChunkedCorrelationCalculator extends CorrelationCalculator
+{
+	private static final Logger logger = LogManager.getLogger();
+
+	private static final int DEFAULT_CHUNK_SIZE = 1000;
+	private static final int DEFAULT_TILE_SIZE = 64;
+
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+	private int tileSize = DEFAULT_TILE_SIZE;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Creates a calculator.
+	 * @param t - the path to the file with the tissue samples.
+	 * @param loader - the data loader, associated with a specific HDF file.
+	 */
+	public ChunkedCorrelationCalculator(String t, Archs4ExpressionDataLoader loader)
+	{
+		super(t, loader);
+	}
+
+	/**
+	 * Calculates the correlations of every pair of genes, for all of the tissue's samples, and sends them to a sink.
+	 * @param sink - will receive the rows of the upper triangle of the matrix, in order. The sink will be closed when this method returns.
+	 * @throws IOException If the tissue file could not be read, or the sink could not write the rows.
+	 */
+	public void calculateCorrelation(CorrelationRowSink sink) throws IOException
+	{
+		CorrelationSufficientStatistics statistics;
+		try
+		{
+			statistics = this.calculateStatistics();
+		}
+		catch (IOException | RuntimeException e)
+		{
+			sink.close();
+			throw e;
+		}
+		statistics.calculateCorrelation(sink, this.tileSize);
+	}
+
+	/**
+	 * Reads all of the tissue's samples, one chunk at a time, and accumulates their sufficient statistics.
+	 * @return the statistics for all of the tissue's samples.
+	 * @throws IOException If the tissue file could not be read.
+	 */
+	public CorrelationSufficientStatistics calculateStatistics() throws IOException
+	{
+		CorrelationSufficientStatistics statistics = this.createStatistics();
+		this.addSamples(statistics, this.getSampleIdsInFileOrder());
+		return statistics;
+	}
+
+	/**
+	 * Creates empty statistics for the HDF file's genes, with this calculator's normalization.
+	 */
+	protected CorrelationSufficientStatistics createStatistics()
+	{
+		return new CorrelationSufficientStatistics(this.dataLoader.getNumberOfGenes(), this.getNormalizationKey(), this.getGeneListFingerprint());
+	}
+
+	/**
+	 * @return identifies this calculator's normalization, as it is recorded in the statistics.
+	 */
+	protected String getNormalizationKey()
+	{
+		return this.normalization == null ? "none" : this.normalization.getCacheKey();
+	}
+
+	/**
+	 * @return the fingerprint of the HDF file's genes, in index order (see {@link CorrelationSufficientStatistics#getGeneListFingerprint(List)}).
+	 */
+	protected String getGeneListFingerprint()
+	{
+		Map<Integer, String> geneIndicesToNames = this.dataLoader.getGeneIndicesToNames();
+		List<String> geneSymbols = new ArrayList<>(this.dataLoader.getNumberOfGenes());
+		for (int geneIndex = 0; geneIndex < this.dataLoader.getNumberOfGenes(); geneIndex++)
+		{
+			geneSymbols.add(geneIndicesToNames.get(geneIndex));
+		}
+		return CorrelationSufficientStatistics.getGeneListFingerprint(geneSymbols);
+	}
+
+	/**
+	 * Reads samples from the HDF file, one chunk at a time, and merges them into a set of statistics.
+	 * @param statistics - the statistics to add the samples to.
+	 * @param sampleIds - the IDs of the samples to add. None of them may be in <code>statistics</code> already.
+	 */
+	protected void addSamples(CorrelationSufficientStatistics statistics, List<String> sampleIds)
+	{
+		this.checkSettings();
+		int numberOfChunks = (sampleIds.size() + this.chunkSize - 1) / this.chunkSize;
+		try (CorrelationTileScheduler scheduler = new CorrelationTileScheduler(this.parallelism, this.tileSize))
+		{
+			for (int chunk = 0; chunk < numberOfChunks; chunk++)
+			{
+				List<String> chunkSampleIds = sampleIds.subList(chunk * this.chunkSize, Math.min((chunk + 1) * this.chunkSize, sampleIds.size()));
+				statistics.addSamples(this.getGeneVectors(this.dataLoader.getGeneMajorExpressionValuesForSamples(chunkSampleIds)), chunkSampleIds, scheduler);
+				logger.info("Chunk {} of {} ({} samples) added for {}", chunk + 1, numberOfChunks, chunkSampleIds.size(), this.tissue);
+			}
+		}
+	}
+
+	/**
+	 * Gets the tissue's sample IDs, without duplicates, in the order that the samples are in the HDF file.
+	 */
+	protected List<String> getSampleIdsInFileOrder() throws IOException
+	{
+		int[] sampleIndices = Arrays.stream(this.dataLoader.getSampleIndicesForTissue(Paths.get(this.tissue))).sorted().distinct().toArray();
+		Map<Integer, String> sampleIndexToId = this.dataLoader.getSampleIndexToID();
+		List<String> sampleIds = new ArrayList<>(sampleIndices.length);
+		for (int sampleIndex : sampleIndices)
+		{
+			sampleIds.add(sampleIndexToId.get(sampleIndex));
+		}
+		return sampleIds;
+	}
+
+	/**
+	 * Checks that the correlation type and normalization can be calculated one chunk of samples at a time.
+	 */
+	protected void checkSettings()
+	{
+		if (this.correlationType != CorrelationType.PEARSON)
+		{
+			throw new IllegalStateException("Only Pearson correlations can be calculated one chunk of samples at a time, but the correlation type is " + this.correlationType);
+		}
+		if (this.normalization != null && this.normalization.getMinimumFractionOfSamples() > 0.0)
+		{
+			throw new IllegalStateException(this.normalization + " filters genes using all of the samples, so it cannot be applied one chunk of samples at a time.");
+		}
+	}
+
+	public int getChunkSize()
+	{
+		return this.chunkSize;
+	}
+
+	/**
+	 * Sets the largest number of samples that are read from the HDF file at once. The default is 1000.
+	 * @param chunkSize
+	 */
+	public void setChunkSize(int chunkSize)
+	{
+		if (chunkSize < 1)
+		{
+			throw new IllegalArgumentException("Chunk size must be greater than 0, but was " + chunkSize);
+		}
+		this.chunkSize = chunkSize;
+	}
+
+	public int getTileSize()
+	{
+		return this.tileSize;
+	}
+
+	/**
+	 * Sets the number of genes along each side of the tiles that the co-moments are accumulated in (and the number of rows in each block sent to a sink). The default is 64.
+	 * @param tileSize
+	 */
+	public void setTileSize(int tileSize)
+	{
+		if (tileSize < 1)
+		{
+			throw new IllegalArgumentException("Tile size must be greater than 0, but was " + tileSize);
+		}
+		this.tileSize = tileSize;
+	}
+
+	public int getParallelism()
+	{
+		return this.parallelism;
+	}
+
+	/**
+	 * Sets the number of threads that accumulate the co-moments. The default is the number of available processors.
+	 * @param parallelism
+	 */
+	public void setParallelism(int parallelism)
+	{
+		if (parallelism < 1)
+		{
+			throw new IllegalArgumentException("Parallelism must be greater than 0, but was " + parallelism);
+		}
+		this.parallelism = parallelism;
+	}
+}
@@ -1,13 +1,36 @@
 package org.reactome.idg.loader;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
 /**
  * @author sshorser
  *
  */
 public abstract class CorrelationCalculator
 {
+	/**
+	 * The kinds of correlation that can be calculated.
+	 */
+	public enum CorrelationType
+	{
+		/**
+		 * Pearson's correlation of the expression values.
+		 */
+		PEARSON,
+		/**
+		 * Spearman's rank correlation: Pearson's correlation of the ranks of the expression values (see {@link GeneRankMatrix}).
+		 * Less sensitive to the very large counts that some samples have.
+		 */
+		SPEARMAN;
+	}
+
 	protected String tissue;
 	protected Archs4ExpressionDataLoader dataLoader ;
+	protected CorrelationType correlationType = CorrelationType.PEARSON;
+	// null means that correlations are calculated from the raw counts.
+	protected ExpressionNormalization normalization;
 
 	/**
 	 * Create a new calculator for a specific tissue (whose sample IDs come from a file), using a specific Archs4 data loader.
@@ -20,13 +43,73 @@ public abstract class CorrelationCalculator
 		this.dataLoader = loader;
 	}
 
+	/**
+	 * Gets the gene-major expression values for this calculator's tissue. The loader caches these, so
+	 * a calculator can read any gene's vector without copying it.
+	 * @return the expression values for the tissue.
+	 * @throws IOException
+	 */
+	protected GeneMajorExpressionMatrix getGeneMajorExpressionValues() throws IOException
+	{
+		return this.dataLoader.getGeneMajorExpressionValuesForTissue(Paths.get(this.tissue));
+	}
+	
+	/**
+	 * Gets the gene vectors that correlations should be calculated from, for this calculator's tissue: the expression values (normalized, if a
+	 * normalization has been set) for {@link CorrelationType#PEARSON}, or their ranks for {@link CorrelationType#SPEARMAN}. The loader caches all of these.
+	 * @return the gene vectors for the tissue.
+	 * @throws IOException
+	 */
+	protected GeneVectorSource getGeneVectors() throws IOException
+	{
+		Path tissuePath = Paths.get(this.tissue);
+		if (this.normalization != null)
+		{
+			if (this.correlationType == CorrelationType.SPEARMAN)
+			{
+				return this.dataLoader.getGeneRanksForTissue(tissuePath, this.normalization);
+			}
+			return this.dataLoader.getNormalizedExpressionValuesForTissue(tissuePath, this.normalization);
+		}
+		if (this.correlationType == CorrelationType.SPEARMAN)
+		{
+			return this.dataLoader.getGeneRanksForTissue(tissuePath);
+		}
+		return this.getGeneMajorExpressionValues();
+	}
+	
+	/**
+	 * Gets the gene vectors that correlations should be calculated from, for a matrix of expression values that was not loaded by the data loader.
+	 * @param expressionValues - the expression values.
+	 * @return <code>expressionValues</code> (normalized, if a normalization has been set) for {@link CorrelationType#PEARSON}, or their ranks for {@link CorrelationType#SPEARMAN}.
+	 */
+	protected GeneVectorSource getGeneVectors(GeneMajorExpressionMatrix expressionValues)
+	{
+		if (this.normalization != null)
+		{
+			NormalizedExpressionMatrix normalizedValues = this.normalization.normalize(expressionValues);
+			if (this.correlationType == CorrelationType.SPEARMAN)
+			{
+				return GeneRankMatrix.fromNormalizedValues(normalizedValues);
+			}
+			return normalizedValues;
+		}
+		if (this.correlationType == CorrelationType.SPEARMAN)
+		{
+			return GeneRankMatrix.fromGeneMajorValues(expressionValues);
+		}
+		return expressionValues;
+	}
+	
 	/**
 	 * Gets the sample values for a specific gene, from a set of sample values.
 	 * @param sampleValues - the list of ALL sample values.
 	 * @param geneIndex - the index in the array of the gene.
 	 * @param numberOfSamples - the total number of samples in the result.
 	 * @return
+	 * @deprecated This gathers a strided column into a new array on every call. Use a {@link GeneMajorExpressionMatrix} and {@link GeneVectorSource#readGeneVector(int, double[])} instead.
 	 */
+	@Deprecated
 	protected static double[] getSampleValuesForGene(int[][] sampleValues, int geneIndex, int numberOfSamples )
 	{
 		double[] geneSamples = new double[numberOfSamples];
@@ -37,4 +120,31 @@ public abstract class CorrelationCalculator
 		return geneSamples;
 	}
 	
+	public CorrelationType getCorrelationType()
+	{
+		return this.correlationType;
+	}
+
+	/**
+	 * Sets the kind of correlation to calculate. The default is {@link CorrelationType#PEARSON}.
+	 * @param correlationType
+	 */
+	public void setCorrelationType(CorrelationType correlationType)
+	{
+		this.correlationType = correlationType;
+	}
+
+	public ExpressionNormalization getNormalization()
+	{
+		return this.normalization;
+	}
+
+	/**
+	 * Sets how the expression values are normalized before correlations are calculated. The default is null: the raw counts are used.
+	 * @param normalization
+	 */
+	public void setNormalization(ExpressionNormalization normalization)
+	{
+		this.normalization = normalization;
+	}
 }
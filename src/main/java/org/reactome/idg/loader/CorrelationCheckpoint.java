@@ -0,0 +1,229 @@
+package org.reactome.idg.loader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A working directory that holds the row blocks of a correlation matrix as they are completed, so that a calculation that
+ * crashes (or runs out of memory) can be resumed without re-calculating them.
+ * <br/>
+ * The directory has a manifest (a properties file) that describes the calculation: the HDF file and its gene and sample counts, the tissue,
+ * and the parameters that change the blocks. A checkpoint is only reused if its manifest is exactly the same as the manifest of the
+ * new calculation; otherwise, its blocks are deleted and it starts again.
+ * <br/>
+ * Each block is written to its own file (named for its first row), as big-endian doubles after a small header. A block file is written
+ * to a temporary file first and then moved into place, so a block file that exists is always complete.
+ * @author sshorser
+ *
+ */
+public class CorrelationCheckpoint
+{
+	private static final Logger logger = LogManager.getLogger();
+
+	public static final String MANIFEST_FILE_NAME = "manifest.properties";
+	// Increase this if the block file format changes, so that old checkpoints are not reused.
+	public static final String FORMAT_VERSION = "1";
+	private static final String FORMAT_VERSION_KEY = "checkpoint.formatVersion";
+	private static final int BLOCK_MAGIC_NUMBER = 0x43484B50; // "CHKP"
+	private static final int BLOCK_HEADER_SIZE = 4 * Integer.BYTES;
+	private static final String BLOCK_FILE_PREFIX = "rows-";
+	private static final String BLOCK_FILE_SUFFIX = ".block";
+
+	private final Path directory;
+	private final Properties manifest;
+
+	private CorrelationCheckpoint(Path directory, Properties manifest)
+	{
+		this.directory = directory;
+		this.manifest = manifest;
+	}
+
+	/**
+	 * Opens the checkpoint in a working directory. If the directory has a checkpoint for the same calculation, its completed blocks can be
+	 * reused. If it has a checkpoint for a different calculation (or one whose manifest cannot be read), that checkpoint's blocks are deleted.
+	 * @param directory - the working directory. It will be created if it does not exist.
+	 * @param manifest - describes the calculation. Every property must match for an existing checkpoint to be reused.
+	 * @return the checkpoint.
+	 * @throws IOException If the directory could not be read or written.
+	 */
+	public static CorrelationCheckpoint open(Path directory, Properties manifest) throws IOException
+	{
+		Properties expectedManifest = new Properties();
+		expectedManifest.putAll(manifest);
+		expectedManifest.setProperty(FORMAT_VERSION_KEY, FORMAT_VERSION);
+		CorrelationCheckpoint checkpoint = new CorrelationCheckpoint(directory, expectedManifest);
+		Files.createDirectories(directory);
+		Path manifestFile = directory.resolve(MANIFEST_FILE_NAME);
+		if (Files.exists(manifestFile))
+		{
+			Properties existingManifest = new Properties();
+			try (InputStream inputStream = Files.newInputStream(manifestFile))
+			{
+				existingManifest.load(inputStream);
+			}
+			catch (IOException | IllegalArgumentException e)
+			{
+				logger.warn("The checkpoint manifest in " + directory + " could not be read.", e);
+			}
+			if (existingManifest.equals(expectedManifest))
+			{
+				logger.info("Resuming from the checkpoint in {}: {} completed row blocks.", directory, checkpoint.getNumberOfCompletedBlocks());
+				return checkpoint;
+			}
+			logger.warn("The checkpoint in {} is for a different calculation, and will be discarded. Checkpoint: {}; this calculation: {}",
+					directory, existingManifest, expectedManifest);
+		}
+		checkpoint.deleteBlocks();
+		Path tempFile = directory.resolve(MANIFEST_FILE_NAME + ".tmp");
+		try (OutputStream outputStream = Files.newOutputStream(tempFile))
+		{
+			expectedManifest.store(outputStream, "Correlation matrix checkpoint");
+		}
+		Files.move(tempFile, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return checkpoint;
+	}
+
+	/**
+	 * Checks if the block that starts at a row has been completed.
+	 * @param startRow
+	 */
+	public boolean hasBlock(int startRow)
+	{
+		return Files.exists(this.getBlockFile(startRow));
+	}
+
+	/**
+	 * Writes a completed block.
+	 * @param block
+	 * @throws IOException
+	 */
+	public void writeBlock(CorrelationRowBlock block) throws IOException
+	{
+		double[] values = block.getValues();
+		ByteBuffer buffer = ByteBuffer.allocate(BLOCK_HEADER_SIZE + values.length * Double.BYTES);
+		buffer.putInt(BLOCK_MAGIC_NUMBER).putInt(block.getNumberOfGenes()).putInt(block.getStartRow()).putInt(block.getRowCount());
+		buffer.asDoubleBuffer().put(values);
+		// The double view does not move the buffer's position, so the whole buffer (header and values) is written from the start.
+		buffer.rewind();
+		Path blockFile = this.getBlockFile(block.getStartRow());
+		Path tempFile = blockFile.resolveSibling(blockFile.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			while (buffer.hasRemaining())
+			{
+				channel.write(buffer);
+			}
+			channel.force(false);
+		}
+		Files.move(tempFile, blockFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Reads a completed block.
+	 * @param numberOfGenes - the size (N) of the whole N x N matrix.
+	 * @param startRow - the first row in the block.
+	 * @param rowCount - the number of rows in the block.
+	 * @return the block.
+	 * @throws IOException If the block file is missing, or is not the expected block.
+	 */
+	public CorrelationRowBlock readBlock(int numberOfGenes, int startRow, int rowCount) throws IOException
+	{
+		CorrelationRowBlock block = new CorrelationRowBlock(numberOfGenes, startRow, rowCount);
+		double[] values = block.getValues();
+		Path blockFile = this.getBlockFile(startRow);
+		try (FileChannel channel = FileChannel.open(blockFile, StandardOpenOption.READ))
+		{
+			long expectedSize = BLOCK_HEADER_SIZE + (long) values.length * Double.BYTES;
+			if (channel.size() != expectedSize)
+			{
+				throw new IOException(blockFile + " has " + channel.size() + " bytes, but " + expectedSize + " were expected.");
+			}
+			ByteBuffer buffer = ByteBuffer.allocate((int) expectedSize);
+			while (buffer.hasRemaining())
+			{
+				if (channel.read(buffer) < 0)
+				{
+					throw new IOException("Unexpected end of " + blockFile);
+				}
+			}
+			buffer.flip();
+			if (buffer.getInt() != BLOCK_MAGIC_NUMBER || buffer.getInt() != numberOfGenes || buffer.getInt() != startRow || buffer.getInt() != rowCount)
+			{
+				throw new IOException(blockFile + " is not the block of " + rowCount + " rows starting at row " + startRow + " of " + numberOfGenes);
+			}
+			buffer.asDoubleBuffer().get(values);
+		}
+		return block;
+	}
+
+	/**
+	 * @return the number of blocks that have been completed.
+	 * @throws IOException
+	 */
+	public int getNumberOfCompletedBlocks() throws IOException
+	{
+		try (Stream<Path> files = Files.list(this.directory))
+		{
+			return (int) files.filter(CorrelationCheckpoint::isBlockFile).count();
+		}
+	}
+
+	/**
+	 * Deletes the manifest and all of the blocks. Call this when the calculation has finished and the checkpoint is no longer needed.
+	 * The working directory itself is not deleted.
+	 * @throws IOException
+	 */
+	public void delete() throws IOException
+	{
+		this.deleteBlocks();
+		Files.deleteIfExists(this.directory.resolve(MANIFEST_FILE_NAME));
+		logger.info("Checkpoint in {} deleted.", this.directory);
+	}
+
+	private void deleteBlocks() throws IOException
+	{
+		try (Stream<Path> files = Files.list(this.directory))
+		{
+			for (Path file : (Iterable<Path>) files.filter(f -> isBlockFile(f) || f.getFileName().toString().endsWith(".tmp"))::iterator)
+			{
+				Files.delete(file);
+			}
+		}
+	}
+
+	private Path getBlockFile(int startRow)
+	{
+		return this.directory.resolve(BLOCK_FILE_PREFIX + startRow + BLOCK_FILE_SUFFIX);
+	}
+
+	private static boolean isBlockFile(Path file)
+	{
+		String fileName = file.getFileName().toString();
+		return fileName.startsWith(BLOCK_FILE_PREFIX) && fileName.endsWith(BLOCK_FILE_SUFFIX);
+	}
+
+	public Path getDirectory()
+	{
+		return this.directory;
+	}
+
+	/**
+	 * @return the manifest of this checkpoint's calculation.
+	 */
+	public Properties getManifest()
+	{
+		return this.manifest;
+	}
+}
@@ -0,0 +1,344 @@
+package org.reactome.idg.loader;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Live progress of one correlation matrix calculation: pairs completed, throughput over sliding windows, per-worker busy time,
+ * queue depth, estimated time remaining, and heap in use.
+ * <br/>
+ * Tiles are only counted when they have been calculated (NOT when they are scheduled). The number of pairs calculated is sampled at most
+ * once a second, when a tile is recorded or a rate is read, and the samples from the last 5 minutes are kept for the sliding-window rates. A summary is logged every 30 seconds, and when
+ * the calculation finishes (when these metrics are closed).
+ * <br/>
+ * While the calculation runs, the metrics are registered as an MXBean (see {@link CorrelationProgressMetricsMXBean}). Use {@link #snapshot()}
+ * to read them from code.
+ * @author sshorser
+ *
+ */
+public class CorrelationProgressMetrics implements CorrelationProgressMetricsMXBean, AutoCloseable
+{
+	private static final Logger logger = LogManager.getLogger();
+
+	private static final String OBJECT_NAME_PREFIX = "org.reactome.idg:type=CorrelationProgress";
+	private static final AtomicInteger nextId = new AtomicInteger(1);
+	private static final long SAMPLE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+	// 5 minutes of samples, plus the one at the start of the window.
+	private static final int MAX_SAMPLES = 301;
+	private static final long LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+	private final String name;
+	private final long totalPairs;
+	private final long startTime = System.nanoTime();
+	private final LongAdder pairsCalculated = new LongAdder();
+	private final LongAdder pairsSkipped = new LongAdder();
+	private final Map<String, LongAdder> workerBusyNanos = new ConcurrentHashMap<>();
+	// A ring of (time, pairs calculated) samples; guarded by this.
+	private final long[] sampleTimes = new long[MAX_SAMPLES];
+	private final long[] samplePairs = new long[MAX_SAMPLES];
+	private int numberOfSamples = 0;
+	private int nextSample = 0;
+	private volatile long lastSampleTime;
+	private volatile long lastLogTime;
+	private volatile long endTime = 0;
+	private volatile IntSupplier queuedTiles = () -> 0;
+	private volatile IntSupplier blocksWaitingForSink = () -> 0;
+	private ObjectName objectName;
+
+	/**
+	 * Creates metrics for a calculation that is starting now.
+	 * @param name - identifies the calculation, such as the tissue file name.
+	 * @param totalPairs - the number of gene pairs in the whole calculation.
+	 */
+	public CorrelationProgressMetrics(String name, long totalPairs)
+	{
+		this.name = name;
+		this.totalPairs = totalPairs;
+		this.lastSampleTime = this.startTime;
+		this.lastLogTime = this.startTime;
+		this.addSample(this.startTime, 0);
+	}
+
+	/**
+	 * Records a tile that the current thread has calculated.
+	 * @param pairs - the number of gene pairs in the tile.
+	 * @param busyNanos - how long the tile took to calculate.
+	 */
+	public void recordTile(long pairs, long busyNanos)
+	{
+		this.pairsCalculated.add(pairs);
+		this.workerBusyNanos.computeIfAbsent(Thread.currentThread().getName(), threadName -> new LongAdder()).add(busyNanos);
+		long now = System.nanoTime();
+		if (now - this.lastSampleTime >= SAMPLE_INTERVAL_NANOS)
+		{
+			this.sample(now);
+		}
+	}
+
+	/**
+	 * Records pairs that did not need to be calculated (such as pairs read from a checkpoint). They count towards completion, but not towards throughput.
+	 * @param pairs
+	 */
+	public void recordSkippedPairs(long pairs)
+	{
+		this.pairsSkipped.add(pairs);
+	}
+
+	/**
+	 * Sets where the number of tiles that are waiting to be calculated comes from.
+	 * @param queuedTiles
+	 */
+	public void setQueuedTiles(IntSupplier queuedTiles)
+	{
+		this.queuedTiles = queuedTiles;
+	}
+
+	/**
+	 * Sets where the number of row blocks that are waiting for a sink comes from.
+	 * @param blocksWaitingForSink
+	 */
+	public void setBlocksWaitingForSink(IntSupplier blocksWaitingForSink)
+	{
+		this.blocksWaitingForSink = blocksWaitingForSink;
+	}
+
+	private synchronized void sample(long now)
+	{
+		if (now - this.lastSampleTime < SAMPLE_INTERVAL_NANOS)
+		{
+			// Another thread has just taken a sample.
+			return;
+		}
+		this.lastSampleTime = now;
+		this.addSample(now, this.pairsCalculated.sum());
+		if (now - this.lastLogTime >= LOG_INTERVAL_NANOS)
+		{
+			this.lastLogTime = now;
+			logger.info("{}", this.snapshot());
+		}
+	}
+
+	private synchronized void addSample(long time, long pairs)
+	{
+		this.sampleTimes[this.nextSample] = time;
+		this.samplePairs[this.nextSample] = pairs;
+		this.nextSample = (this.nextSample + 1) % MAX_SAMPLES;
+		this.numberOfSamples = Math.min(this.numberOfSamples + 1, MAX_SAMPLES);
+	}
+
+	/**
+	 * Calculates the rate over (about) the last <code>windowNanos</code>: from the newest sample at or before the start of the window to now.
+	 * If the samples do not go back that far (the calculation started less than <code>windowNanos</code> ago), the oldest sample is used.
+	 * A sample is taken first, so that a calculation that has stopped finishing tiles (which is when they would otherwise be sampled)
+	 * shows a rate of 0 once the window has passed, rather than the rate from before it stopped.
+	 */
+	private synchronized double getRate(long windowNanos)
+	{
+		long now = this.endTime != 0 ? this.endTime : System.nanoTime();
+		long pairs = this.pairsCalculated.sum();
+		if (this.endTime == 0 && now - this.lastSampleTime >= SAMPLE_INTERVAL_NANOS)
+		{
+			this.lastSampleTime = now;
+			this.addSample(now, pairs);
+		}
+		// Oldest sample, unless a newer one is at or before the start of the window.
+		int windowStartSample = (this.nextSample - this.numberOfSamples + MAX_SAMPLES) % MAX_SAMPLES;
+		for (int i = this.numberOfSamples; i > 0; i--)
+		{
+			int sample = (this.nextSample - i + MAX_SAMPLES) % MAX_SAMPLES;
+			if (now - this.sampleTimes[sample] < windowNanos)
+			{
+				break;
+			}
+			windowStartSample = sample;
+		}
+		long windowPairs = pairs - this.samplePairs[windowStartSample];
+		long windowTime = now - this.sampleTimes[windowStartSample];
+		return windowPairs <= 0 || windowTime <= 0 ? 0 : windowPairs / (windowTime / 1e9);
+	}
+
+	/**
+	 * Marks the calculation as finished, logs a final summary, and unregisters the MXBean.
+	 */
+	@Override
+	public void close()
+	{
+		this.endTime = System.nanoTime();
+		logger.info("Finished. {}", this.snapshot());
+		this.unregister();
+	}
+
+	/**
+	 * Registers these metrics with the platform MBean server. A failure is logged, but does not stop the calculation.
+	 */
+	public synchronized void register()
+	{
+		try
+		{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			this.objectName = new ObjectName(OBJECT_NAME_PREFIX + ",name=" + ObjectName.quote(this.name) + ",id=" + nextId.getAndIncrement());
+			server.registerMBean(this, this.objectName);
+		}
+		catch (JMException e)
+		{
+			logger.warn("Progress metrics for " + this.name + " could not be registered with JMX.", e);
+			this.objectName = null;
+		}
+	}
+
+	/**
+	 * Removes these metrics from the platform MBean server, if they were registered.
+	 */
+	public synchronized void unregister()
+	{
+		if (this.objectName != null)
+		{
+			try
+			{
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.objectName);
+			}
+			catch (JMException e)
+			{
+				logger.warn("Progress metrics for " + this.name + " could not be unregistered from JMX.", e);
+			}
+			this.objectName = null;
+		}
+	}
+
+	/**
+	 * @return the current state of the calculation.
+	 */
+	public CorrelationProgressSnapshot snapshot()
+	{
+		Map<String, Duration> workerBusyTimes = new TreeMap<>();
+		for (Map.Entry<String, LongAdder> entry : this.workerBusyNanos.entrySet())
+		{
+			workerBusyTimes.put(entry.getKey(), Duration.ofNanos(entry.getValue().sum()));
+		}
+		long estimatedSeconds = this.getEstimatedSecondsRemaining();
+		return new CorrelationProgressSnapshot(this.name, this.totalPairs, this.getPairsCompleted(), Duration.ofNanos(this.getElapsedNanos()), this.getPairsPerSecond(),
+				this.getPairsPerSecondLast10Seconds(), this.getPairsPerSecondLastMinute(), this.getPairsPerSecondLast5Minutes(), workerBusyTimes, this.getQueuedTiles(),
+				this.getBlocksWaitingForSink(), estimatedSeconds < 0 ? null : Duration.ofSeconds(estimatedSeconds), this.getHeapUsedBytes(), this.isFinished());
+	}
+
+	private long getElapsedNanos()
+	{
+		return (this.endTime != 0 ? this.endTime : System.nanoTime()) - this.startTime;
+	}
+
+	@Override
+	public String getName()
+	{
+		return this.name;
+	}
+
+	@Override
+	public long getTotalPairs()
+	{
+		return this.totalPairs;
+	}
+
+	@Override
+	public long getPairsCompleted()
+	{
+		return this.pairsCalculated.sum() + this.pairsSkipped.sum();
+	}
+
+	@Override
+	public double getPercentComplete()
+	{
+		return this.totalPairs == 0 ? 100.0 : 100.0 * this.getPairsCompleted() / this.totalPairs;
+	}
+
+	@Override
+	public long getElapsedSeconds()
+	{
+		return TimeUnit.NANOSECONDS.toSeconds(this.getElapsedNanos());
+	}
+
+	@Override
+	public double getPairsPerSecond()
+	{
+		long elapsedNanos = this.getElapsedNanos();
+		return elapsedNanos == 0 ? 0 : this.pairsCalculated.sum() / (elapsedNanos / 1e9);
+	}
+
+	@Override
+	public double getPairsPerSecondLast10Seconds()
+	{
+		return this.getRate(TimeUnit.SECONDS.toNanos(10));
+	}
+
+	@Override
+	public double getPairsPerSecondLastMinute()
+	{
+		return this.getRate(TimeUnit.MINUTES.toNanos(1));
+	}
+
+	@Override
+	public double getPairsPerSecondLast5Minutes()
+	{
+		return this.getRate(TimeUnit.MINUTES.toNanos(5));
+	}
+
+	@Override
+	public Map<String, Long> getWorkerBusyMillis()
+	{
+		Map<String, Long> workerBusyMillis = new TreeMap<>();
+		for (Map.Entry<String, LongAdder> entry : this.workerBusyNanos.entrySet())
+		{
+			workerBusyMillis.put(entry.getKey(), TimeUnit.NANOSECONDS.toMillis(entry.getValue().sum()));
+		}
+		return workerBusyMillis;
+	}
+
+	@Override
+	public int getQueuedTiles()
+	{
+		return this.isFinished() ? 0 : this.queuedTiles.getAsInt();
+	}
+
+	@Override
+	public int getBlocksWaitingForSink()
+	{
+		return this.isFinished() ? 0 : this.blocksWaitingForSink.getAsInt();
+	}
+
+	@Override
+	public long getEstimatedSecondsRemaining()
+	{
+		long remainingPairs = this.totalPairs - this.getPairsCompleted();
+		if (remainingPairs <= 0 || this.isFinished())
+		{
+			return 0;
+		}
+		double rate = this.getPairsPerSecondLastMinute();
+		return rate > 0 ? (long) Math.ceil(remainingPairs / rate) : -1;
+	}
+
+	@Override
+	public long getHeapUsedBytes()
+	{
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	@Override
+	public boolean isFinished()
+	{
+		return this.endTime != 0;
+	}
+}
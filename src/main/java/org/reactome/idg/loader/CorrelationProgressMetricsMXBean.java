@@ -0,0 +1,60 @@
+package org.reactome.idg.loader;
+
+import java.util.Map;
+
+/**
+ * The JMX view of a running correlation matrix calculation (see {@link CorrelationProgressMetrics}). Each calculation is registered
+ * as <code>org.reactome.idg:type=CorrelationProgress,name=&lt;tissue&gt;,id=&lt;n&gt;</code> while it runs.
+ * @author sshorser
+ *
+ */
+public interface CorrelationProgressMetricsMXBean
+{
+	String getName();
+
+	long getTotalPairs();
+
+	/**
+	 * @return the number of gene pairs that are finished: calculated, or read from a checkpoint.
+	 */
+	long getPairsCompleted();
+
+	double getPercentComplete();
+
+	long getElapsedSeconds();
+
+	/**
+	 * @return the average number of pairs calculated per second since the calculation started.
+	 */
+	double getPairsPerSecond();
+
+	double getPairsPerSecondLast10Seconds();
+
+	double getPairsPerSecondLastMinute();
+
+	double getPairsPerSecondLast5Minutes();
+
+	/**
+	 * @return the time that each worker thread has spent calculating tiles, in milliseconds, keyed by thread name.
+	 */
+	Map<String, Long> getWorkerBusyMillis();
+
+	/**
+	 * @return the number of tiles that have been scheduled but not yet started.
+	 */
+	int getQueuedTiles();
+
+	/**
+	 * @return the number of finished row blocks that are waiting for a {@link CorrelationRowSink}. Always 0 when the result is not being streamed.
+	 */
+	int getBlocksWaitingForSink();
+
+	/**
+	 * @return the estimated number of seconds until the calculation finishes, from the rate over the last minute; or -1 if there is no estimate yet.
+	 */
+	long getEstimatedSecondsRemaining();
+
+	long getHeapUsedBytes();
+
+	boolean isFinished();
+}
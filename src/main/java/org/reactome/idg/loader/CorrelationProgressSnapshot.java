@@ -0,0 +1,138 @@
+package org.reactome.idg.loader;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The state of a correlation matrix calculation at one moment (see {@link CorrelationProgressMetrics#snapshot()}).
+ * @author sshorser
+ *
+ */
+public class CorrelationProgressSnapshot
+{
+	private final String name;
+	private final long totalPairs;
+	private final long pairsCompleted;
+	private final Duration elapsed;
+	private final double pairsPerSecond;
+	private final double pairsPerSecondLast10Seconds;
+	private final double pairsPerSecondLastMinute;
+	private final double pairsPerSecondLast5Minutes;
+	private final Map<String, Duration> workerBusyTimes;
+	private final int queuedTiles;
+	private final int blocksWaitingForSink;
+	private final Duration estimatedTimeRemaining;
+	private final long heapUsedBytes;
+	private final boolean finished;
+
+	CorrelationProgressSnapshot(String name, long totalPairs, long pairsCompleted, Duration elapsed, double pairsPerSecond, double pairsPerSecondLast10Seconds,
+			double pairsPerSecondLastMinute, double pairsPerSecondLast5Minutes, Map<String, Duration> workerBusyTimes, int queuedTiles, int blocksWaitingForSink,
+			Duration estimatedTimeRemaining, long heapUsedBytes, boolean finished)
+	{
+		this.name = name;
+		this.totalPairs = totalPairs;
+		this.pairsCompleted = pairsCompleted;
+		this.elapsed = elapsed;
+		this.pairsPerSecond = pairsPerSecond;
+		this.pairsPerSecondLast10Seconds = pairsPerSecondLast10Seconds;
+		this.pairsPerSecondLastMinute = pairsPerSecondLastMinute;
+		this.pairsPerSecondLast5Minutes = pairsPerSecondLast5Minutes;
+		this.workerBusyTimes = Collections.unmodifiableMap(workerBusyTimes);
+		this.queuedTiles = queuedTiles;
+		this.blocksWaitingForSink = blocksWaitingForSink;
+		this.estimatedTimeRemaining = estimatedTimeRemaining;
+		this.heapUsedBytes = heapUsedBytes;
+		this.finished = finished;
+	}
+
+	public String getName()
+	{
+		return this.name;
+	}
+
+	public long getTotalPairs()
+	{
+		return this.totalPairs;
+	}
+
+	public long getPairsCompleted()
+	{
+		return this.pairsCompleted;
+	}
+
+	public double getFractionComplete()
+	{
+		return this.totalPairs == 0 ? 1.0 : (double) this.pairsCompleted / this.totalPairs;
+	}
+
+	public Duration getElapsed()
+	{
+		return this.elapsed;
+	}
+
+	public double getPairsPerSecond()
+	{
+		return this.pairsPerSecond;
+	}
+
+	public double getPairsPerSecondLast10Seconds()
+	{
+		return this.pairsPerSecondLast10Seconds;
+	}
+
+	public double getPairsPerSecondLastMinute()
+	{
+		return this.pairsPerSecondLastMinute;
+	}
+
+	public double getPairsPerSecondLast5Minutes()
+	{
+		return this.pairsPerSecondLast5Minutes;
+	}
+
+	/**
+	 * @return the time that each worker thread has spent calculating tiles, keyed by thread name.
+	 */
+	public Map<String, Duration> getWorkerBusyTimes()
+	{
+		return this.workerBusyTimes;
+	}
+
+	public int getQueuedTiles()
+	{
+		return this.queuedTiles;
+	}
+
+	public int getBlocksWaitingForSink()
+	{
+		return this.blocksWaitingForSink;
+	}
+
+	/**
+	 * @return the estimated time until the calculation finishes, or null if there is no estimate yet.
+	 */
+	public Duration getEstimatedTimeRemaining()
+	{
+		return this.estimatedTimeRemaining;
+	}
+
+	public long getHeapUsedBytes()
+	{
+		return this.heapUsedBytes;
+	}
+
+	public boolean isFinished()
+	{
+		return this.finished;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("%s: %d of %d pairs (%.1f%%) in %s; %.0f pairs/sec (last 10s: %.0f, last minute: %.0f); %d tiles queued, %d blocks waiting for the sink; ETA %s; heap %d MB",
+				this.name, this.pairsCompleted, this.totalPairs, 100.0 * this.getFractionComplete(), this.elapsed, this.pairsPerSecond, this.pairsPerSecondLast10Seconds,
+				this.pairsPerSecondLastMinute, this.queuedTiles, this.blocksWaitingForSink, this.estimatedTimeRemaining == null ? "unknown" : this.estimatedTimeRemaining,
+				this.heapUsedBytes >> 20);
+	}
+}
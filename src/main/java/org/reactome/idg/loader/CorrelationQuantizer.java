@@ -0,0 +1,69 @@
+package org.reactome.idg.loader;
+
+/**
+ * Converts correlation values to and from small fixed-point integers. Correlations are always in [-1, 1], so a value can be
+ * scaled to a signed short (2 bytes) or byte (1 byte) instead of being stored as an 8-byte double.
+ * <br/>
+ * A short stores round(r * 32767), so a value read back is within {@link #SHORT_ERROR_BOUND} (about 1.5e-5) of the original. That is
+ * coarser than the 6 decimal places of the database column, but far finer than any difference that matters when comparing correlations.
+ * A byte stores round(r * 127), and is within {@link #BYTE_ERROR_BOUND} (about 0.004); that is only good enough for coarse screening.
+ * <br/>
+ * NaN is stored as the one value that a correlation can never produce: {@link Short#MIN_VALUE} or {@link Byte#MIN_VALUE}.
+ * Values outside [-1, 1] (from rounding error) are clamped.
+ * @author sshorser
+ *
+ */
+public final class CorrelationQuantizer
+{
+	public static final int SHORT_SCALE = Short.MAX_VALUE;
+	public static final short SHORT_NAN = Short.MIN_VALUE;
+	/**
+	 * The largest difference between a correlation and its value after being stored as a short and read back.
+	 */
+	public static final double SHORT_ERROR_BOUND = 0.5 / SHORT_SCALE;
+
+	public static final int BYTE_SCALE = Byte.MAX_VALUE;
+	public static final byte BYTE_NAN = Byte.MIN_VALUE;
+	/**
+	 * The largest difference between a correlation and its value after being stored as a byte and read back.
+	 */
+	public static final double BYTE_ERROR_BOUND = 0.5 / BYTE_SCALE;
+
+	private CorrelationQuantizer()
+	{
+		// only static methods.
+	}
+
+	public static short toShort(double correlationValue)
+	{
+		if (Double.isNaN(correlationValue))
+		{
+			return SHORT_NAN;
+		}
+		return (short) Math.round(clamp(correlationValue) * SHORT_SCALE);
+	}
+
+	public static double fromShort(short quantizedValue)
+	{
+		return quantizedValue == SHORT_NAN ? Double.NaN : (double) quantizedValue / SHORT_SCALE;
+	}
+
+	public static byte toByte(double correlationValue)
+	{
+		if (Double.isNaN(correlationValue))
+		{
+			return BYTE_NAN;
+		}
+		return (byte) Math.round(clamp(correlationValue) * BYTE_SCALE);
+	}
+
+	public static double fromByte(byte quantizedValue)
+	{
+		return quantizedValue == BYTE_NAN ? Double.NaN : (double) quantizedValue / BYTE_SCALE;
+	}
+
+	private static double clamp(double correlationValue)
+	{
+		return Math.max(-1.0, Math.min(1.0, correlationValue));
+	}
+}
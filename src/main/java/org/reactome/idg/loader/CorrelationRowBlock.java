@@ -0,0 +1,122 @@
+package org.reactome.idg.loader;
+
+import org.reactome.idg.loader.PackedSymmetricMatrix.EntryVisitor;
+
+/**
+ * A block of consecutive rows from the upper triangle of a correlation matrix. Each row only has the values from
+ * the main diagonal to the end of the row, packed one row after another.
+ * @author sshorser
+ *
+ */
+public class CorrelationRowBlock
+{
+	private final int numberOfGenes;
+	private final int startRow;
+	private final int rowCount;
+	private final double[] values;
+	// The offset in values where each row begins.
+	private final int[] rowOffsets;
+
+	/**
+	 * Creates an empty block of rows.
+	 * @param numberOfGenes - the size (N) of the whole N x N matrix.
+	 * @param startRow - the first row in the block.
+	 * @param rowCount - the number of rows in the block.
+	 */
+	public CorrelationRowBlock(int numberOfGenes, int startRow, int rowCount)
+	{
+		this.numberOfGenes = numberOfGenes;
+		this.startRow = startRow;
+		this.rowCount = rowCount;
+		this.rowOffsets = new int[rowCount + 1];
+		long size = 0;
+		for (int i = 0; i < rowCount; i++)
+		{
+			this.rowOffsets[i] = (int) size;
+			size += numberOfGenes - (startRow + i);
+			if (size > Integer.MAX_VALUE)
+			{
+				throw new IllegalArgumentException("A block of " + rowCount + " rows is too large for a matrix of " + numberOfGenes + " genes.");
+			}
+		}
+		this.rowOffsets[rowCount] = (int) size;
+		this.values = new double[(int) size];
+	}
+
+	/**
+	 * Gets a value in this block.
+	 * @param row - must be in this block.
+	 * @param column - must be &gt;= row.
+	 */
+	public double getValue(int row, int column)
+	{
+		return this.values[this.rowOffsets[row - this.startRow] + (column - row)];
+	}
+
+	/**
+	 * Sets a value in this block.
+	 * @param row - must be in this block.
+	 * @param column - must be &gt;= row.
+	 * @param value
+	 */
+	public void setValue(int row, int column, double value)
+	{
+		this.values[this.rowOffsets[row - this.startRow] + (column - row)] = value;
+	}
+
+	/**
+	 * Visits every value in this block, in row order. Within a row, the values from the main diagonal to the end of the row are visited in column order.
+	 * @param visitor
+	 */
+	public void walkRows(EntryVisitor visitor)
+	{
+		for (int i = 0; i < this.rowCount; i++)
+		{
+			int row = this.startRow + i;
+			int offset = this.rowOffsets[i];
+			for (int column = row; column < this.numberOfGenes; column++)
+			{
+				visitor.visit(row, column, this.values[offset++]);
+			}
+		}
+	}
+
+	/**
+	 * Gets the values of this block, packed as described for the class. This is the block's own array, NOT a copy.
+	 */
+	double[] getValues()
+	{
+		return this.values;
+	}
+
+	public int getNumberOfGenes()
+	{
+		return this.numberOfGenes;
+	}
+
+	public int getStartRow()
+	{
+		return this.startRow;
+	}
+
+	/**
+	 * @return the row after the last row in this block.
+	 */
+	public int getEndRow()
+	{
+		return this.startRow + this.rowCount;
+	}
+
+	public int getRowCount()
+	{
+		return this.rowCount;
+	}
+
+	/**
+	 * @return the number of values in this block.
+	 */
+	public int getNumberOfValues()
+	{
+		return this.values.length;
+	}
+}
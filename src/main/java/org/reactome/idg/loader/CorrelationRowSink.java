@@ -0,0 +1,29 @@
+package org.reactome.idg.loader;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Receives the rows of a correlation matrix as they are calculated, so that the whole matrix never has to be in memory at once.
+ * <br/>
+ * The calculator will call <code>start</code> once, then <code>accept</code> for each block of rows (in row order, from a single thread),
+ * and then <code>close</code>, even if the calculation failed.
+ * @author sshorser
+ *
+ */
+public interface CorrelationRowSink extends Closeable
+{
+	/**
+	 * Called before any rows are sent to this sink.
+	 * @param numberOfGenes - the size (N) of the N x N matrix.
+	 * @throws IOException
+	 */
+	public void start(int numberOfGenes) throws IOException;
+
+	/**
+	 * Receives the next block of rows. The sink should not keep a reference to the block after this method returns.
+	 * @param block - the rows.
+	 * @throws IOException
+	 */
+	public void accept(CorrelationRowBlock block) throws IOException;
+}
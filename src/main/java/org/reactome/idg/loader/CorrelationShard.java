@@ -0,0 +1,289 @@
+package org.reactome.idg.loader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.reactome.idg.loader.CorrelationCalculator.CorrelationType;
+import org.reactome.idg.loader.ExpressionNormalization.LibrarySizeScaling;
+
+/**
+ * Describes a part (shard) of an all-pairs correlation calculation that can be done by a separate JVM: which HDF file and tissue,
+ * how the values are prepared, and which tiles of the upper triangle to calculate.
+ * <br/>
+ * The upper triangle of the N x N matrix is divided into square tiles of <code>tileSize</code> genes, which are numbered row by row:
+ * tile row 0 has tiles 0 to T-1 (where T = ceil(N / tileSize)), tile row 1 starts at tile T, and so on; a tile row only has the tiles on or
+ * to the right of the diagonal. A shard covers the tiles in [firstTile, lastTile).
+ * <br/>
+ * Shards are written to (and read from) properties files, so they can be handed to workers on other nodes (see {@link ShardedCorrelationWorker}).
+ * @author sshorser
+ *
+ */
+public class CorrelationShard
+{
+	private static final String HDF_FILE_KEY = "hdf.file";
+	private static final String TISSUE_FILE_KEY = "tissue.file";
+	private static final String NUMBER_OF_GENES_KEY = "numberOfGenes";
+	private static final String TILE_SIZE_KEY = "tileSize";
+	private static final String CORRELATION_TYPE_KEY = "correlationType";
+	private static final String LIBRARY_SIZE_SCALING_KEY = "normalization.librarySizeScaling";
+	private static final String LOG_TRANSFORM_KEY = "normalization.logTransform";
+	private static final String MINIMUM_EXPRESSION_KEY = "normalization.minimumExpression";
+	private static final String MINIMUM_FRACTION_OF_SAMPLES_KEY = "normalization.minimumFractionOfSamples";
+	private static final String FIRST_TILE_KEY = "firstTile";
+	private static final String LAST_TILE_KEY = "lastTile";
+
+	private final String hdfFile;
+	private final String tissueFile;
+	private final int numberOfGenes;
+	private final int tileSize;
+	private final CorrelationType correlationType;
+	private final ExpressionNormalization normalization;
+	private final int firstTile;
+	private final int lastTile;
+
+	/**
+	 * Creates a shard.
+	 * @param hdfFile - the path to the HDF file.
+	 * @param tissueFile - the path to the file with the tissue samples.
+	 * @param numberOfGenes - the number of genes in the HDF file (N).
+	 * @param tileSize - the number of genes along each side of a tile.
+	 * @param correlationType - the kind of correlation to calculate.
+	 * @param normalization - how the expression values are normalized; null for raw counts.
+	 * @param firstTile - the first tile in the shard (inclusive).
+	 * @param lastTile - the last tile in the shard (exclusive).
+	 */
+	public CorrelationShard(String hdfFile, String tissueFile, int numberOfGenes, int tileSize, CorrelationType correlationType, ExpressionNormalization normalization,
+			int firstTile, int lastTile)
+	{
+		if (tileSize < 1)
+		{
+			throw new IllegalArgumentException("Tile size must be greater than 0, but was " + tileSize);
+		}
+		if (firstTile < 0 || lastTile < firstTile || lastTile > getNumberOfTiles(numberOfGenes, tileSize))
+		{
+			throw new IllegalArgumentException("Tiles [" + firstTile + ", " + lastTile + ") are not in the " + getNumberOfTiles(numberOfGenes, tileSize) + " tiles of the matrix.");
+		}
+		this.hdfFile = hdfFile;
+		this.tissueFile = tissueFile;
+		this.numberOfGenes = numberOfGenes;
+		this.tileSize = tileSize;
+		this.correlationType = correlationType;
+		this.normalization = normalization;
+		this.firstTile = firstTile;
+		this.lastTile = lastTile;
+	}
+
+	/**
+	 * Divides all of the tiles of a matrix into shards with (nearly) the same number of tiles.
+	 * @param hdfFile - the path to the HDF file.
+	 * @param tissueFile - the path to the file with the tissue samples.
+	 * @param numberOfGenes - the number of genes in the HDF file (N).
+	 * @param tileSize - the number of genes along each side of a tile.
+	 * @param correlationType - the kind of correlation to calculate.
+	 * @param normalization - how the expression values are normalized; null for raw counts.
+	 * @param numberOfShards - how many shards to create.
+	 * @return the shards, in tile order.
+	 */
+	public static List<CorrelationShard> partition(String hdfFile, String tissueFile, int numberOfGenes, int tileSize, CorrelationType correlationType,
+			ExpressionNormalization normalization, int numberOfShards)
+	{
+		int numberOfTiles = getNumberOfTiles(numberOfGenes, tileSize);
+		List<CorrelationShard> shards = new ArrayList<>(numberOfShards);
+		for (int shard = 0; shard < numberOfShards; shard++)
+		{
+			int firstTile = (int) ((long) numberOfTiles * shard / numberOfShards);
+			int lastTile = (int) ((long) numberOfTiles * (shard + 1) / numberOfShards);
+			shards.add(new CorrelationShard(hdfFile, tissueFile, numberOfGenes, tileSize, correlationType, normalization, firstTile, lastTile));
+		}
+		return shards;
+	}
+
+	/**
+	 * @return the number of tiles along each side of the matrix (T).
+	 */
+	public static int getTilesPerSide(int numberOfGenes, int tileSize)
+	{
+		return (numberOfGenes + tileSize - 1) / tileSize;
+	}
+
+	/**
+	 * @return the number of tiles that cover the upper triangle: T * (T + 1) / 2.
+	 */
+	public static int getNumberOfTiles(int numberOfGenes, int tileSize)
+	{
+		long tilesPerSide = getTilesPerSide(numberOfGenes, tileSize);
+		long numberOfTiles = tilesPerSide * (tilesPerSide + 1) / 2;
+		if (numberOfTiles > Integer.MAX_VALUE)
+		{
+			throw new IllegalArgumentException("A tile size of " + tileSize + " gives too many tiles for " + numberOfGenes + " genes.");
+		}
+		return (int) numberOfTiles;
+	}
+
+	/**
+	 * Gets the number of the first tile in a tile row.
+	 * @param tileRow - the tile row (0 to T - 1).
+	 */
+	public int getFirstTileOfRow(int tileRow)
+	{
+		int tilesPerSide = getTilesPerSide(this.numberOfGenes, this.tileSize);
+		return tileRow * tilesPerSide - tileRow * (tileRow - 1) / 2;
+	}
+
+	/**
+	 * Gets the genes that a tile covers.
+	 * @param tileNumber - the number of the tile.
+	 * @return {rowStart, rowEnd, colStart, colEnd}, where the starts are inclusive and the ends are exclusive.
+	 */
+	public int[] getTileBounds(int tileNumber)
+	{
+		int tilesPerSide = getTilesPerSide(this.numberOfGenes, this.tileSize);
+		int tileRow = 0;
+		while (tileRow + 1 < tilesPerSide && this.getFirstTileOfRow(tileRow + 1) <= tileNumber)
+		{
+			tileRow++;
+		}
+		int tileColumn = tileRow + (tileNumber - this.getFirstTileOfRow(tileRow));
+		int rowStart = tileRow * this.tileSize;
+		int colStart = tileColumn * this.tileSize;
+		return new int[] { rowStart, Math.min(rowStart + this.tileSize, this.numberOfGenes), colStart, Math.min(colStart + this.tileSize, this.numberOfGenes) };
+	}
+
+	/**
+	 * Gets the properties that describe the whole calculation (everything except the range of tiles). Every shard of a calculation has the same run properties.
+	 */
+	public Properties getRunProperties()
+	{
+		Properties properties = new Properties();
+		properties.setProperty(HDF_FILE_KEY, this.hdfFile);
+		properties.setProperty(TISSUE_FILE_KEY, this.tissueFile);
+		properties.setProperty(NUMBER_OF_GENES_KEY, String.valueOf(this.numberOfGenes));
+		properties.setProperty(TILE_SIZE_KEY, String.valueOf(this.tileSize));
+		properties.setProperty(CORRELATION_TYPE_KEY, this.correlationType.toString());
+		if (this.normalization != null)
+		{
+			properties.setProperty(LIBRARY_SIZE_SCALING_KEY, this.normalization.getLibrarySizeScaling().toString());
+			properties.setProperty(LOG_TRANSFORM_KEY, String.valueOf(this.normalization.isLogTransform()));
+			properties.setProperty(MINIMUM_EXPRESSION_KEY, String.valueOf(this.normalization.getMinimumExpression()));
+			properties.setProperty(MINIMUM_FRACTION_OF_SAMPLES_KEY, String.valueOf(this.normalization.getMinimumFractionOfSamples()));
+		}
+		return properties;
+	}
+
+	/**
+	 * @return all of the properties of this shard, including the range of tiles.
+	 */
+	public Properties toProperties()
+	{
+		Properties properties = this.getRunProperties();
+		properties.setProperty(FIRST_TILE_KEY, String.valueOf(this.firstTile));
+		properties.setProperty(LAST_TILE_KEY, String.valueOf(this.lastTile));
+		return properties;
+	}
+
+	/**
+	 * Creates a shard from its properties. If there is no range of tiles (as in the run properties), the shard covers all of the tiles.
+	 * @param properties
+	 * @return the shard.
+	 */
+	public static CorrelationShard fromProperties(Properties properties)
+	{
+		int numberOfGenes = Integer.parseInt(properties.getProperty(NUMBER_OF_GENES_KEY));
+		int tileSize = Integer.parseInt(properties.getProperty(TILE_SIZE_KEY));
+		ExpressionNormalization normalization = null;
+		if (properties.containsKey(LIBRARY_SIZE_SCALING_KEY))
+		{
+			normalization = new ExpressionNormalization(LibrarySizeScaling.valueOf(properties.getProperty(LIBRARY_SIZE_SCALING_KEY)),
+					Boolean.parseBoolean(properties.getProperty(LOG_TRANSFORM_KEY)), Double.parseDouble(properties.getProperty(MINIMUM_EXPRESSION_KEY)),
+					Double.parseDouble(properties.getProperty(MINIMUM_FRACTION_OF_SAMPLES_KEY)));
+		}
+		int firstTile = Integer.parseInt(properties.getProperty(FIRST_TILE_KEY, "0"));
+		int lastTile = Integer.parseInt(properties.getProperty(LAST_TILE_KEY, String.valueOf(getNumberOfTiles(numberOfGenes, tileSize))));
+		return new CorrelationShard(properties.getProperty(HDF_FILE_KEY), properties.getProperty(TISSUE_FILE_KEY), numberOfGenes, tileSize,
+				CorrelationType.valueOf(properties.getProperty(CORRELATION_TYPE_KEY)), normalization, firstTile, lastTile);
+	}
+
+	/**
+	 * Writes this shard to a properties file.
+	 * @param file
+	 * @throws IOException
+	 */
+	public void writeTo(Path file) throws IOException
+	{
+		try (OutputStream outputStream = Files.newOutputStream(file))
+		{
+			this.toProperties().store(outputStream, "Correlation shard");
+		}
+	}
+
+	/**
+	 * Reads a shard from a properties file.
+	 * @param file
+	 * @return the shard.
+	 * @throws IOException
+	 */
+	public static CorrelationShard readFrom(Path file) throws IOException
+	{
+		Properties properties = new Properties();
+		try (InputStream inputStream = Files.newInputStream(file))
+		{
+			properties.load(inputStream);
+		}
+		return fromProperties(properties);
+	}
+
+	public String getHdfFile()
+	{
+		return this.hdfFile;
+	}
+
+	public String getTissueFile()
+	{
+		return this.tissueFile;
+	}
+
+	public int getNumberOfGenes()
+	{
+		return this.numberOfGenes;
+	}
+
+	public int getTileSize()
+	{
+		return this.tileSize;
+	}
+
+	public CorrelationType getCorrelationType()
+	{
+		return this.correlationType;
+	}
+
+	/**
+	 * @return the normalization, or null for raw counts.
+	 */
+	public ExpressionNormalization getNormalization()
+	{
+		return this.normalization;
+	}
+
+	public int getFirstTile()
+	{
+		return this.firstTile;
+	}
+
+	public int getLastTile()
+	{
+		return this.lastTile;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "CorrelationShard[" + this.tissueFile + ", tiles " + this.firstTile + " to " + this.lastTile + "]";
+	}
+}
@@ -0,0 +1,369 @@
+package org.reactome.idg.loader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The sufficient statistics for the Pearson correlations of every pair of genes in a tissue: the number of samples, each gene's mean,
+ * and the co-moment matrix C, where C[i][j] is the sum over all samples of (x_i - mean_i)(x_j - mean_j). The diagonal of C is each gene's
+ * sum of squared deviations (M2), so the correlation of genes i and j is C[i][j] / sqrt(C[i][i] * C[j][j]).
+ * <br/>
+ * When samples are added to a tissue, only the new samples need to be read: a batch B of new samples is merged into the statistics A of the
+ * old samples with the pairwise update of Chan et al. With delta = mean_B - mean_A and n = n_A + n_B:
+ * <pre>
+ * C[i][j] += C_B[i][j] + delta_i * delta_j * n_A * n_B / n
+ * mean    += delta * n_B / n
+ * </pre>
+ * C_B is calculated from the batch's values, centred on the batch's means, so the cost of the update is proportional to the number of new samples,
+ * not the number of samples in the tissue. Centring each batch on its own means keeps the sums small, so the merged statistics are as accurate as
+ * statistics calculated from all of the samples at once.
+ * <br/>
+ * C is stored as a {@link PackedDoubleSymmetricMatrix}, so the statistics for N genes need about 4 * N^2 bytes.
+ * The IDs of the samples that have been added are kept too, so that a tissue's new samples can be found (see {@link IncrementalCorrelationCalculator}).
+ * So that new samples are only merged into statistics of the same kind of values, the statistics also record the normalization that the values had,
+ * and a fingerprint of the genes (in index order) that they are for (see {@link #getGeneListFingerprint(List)}).
+ * @author sshorser
+ *
+ */
+public class CorrelationSufficientStatistics
+{
+	private static final Logger logger = LogManager.getLogger();
+
+	private static final int MAGIC_NUMBER = 0x53554653; // "SUFS"
+	// Increase this if the file format changes.
+	private static final int FORMAT_VERSION = 2;
+
+	private final int numberOfGenes;
+	private final String normalizationKey;
+	private final String geneListFingerprint;
+	private long numberOfSamples;
+	private final double[] means;
+	private final PackedDoubleSymmetricMatrix coMoments;
+	private final Set<String> sampleIds;
+
+	/**
+	 * Creates statistics for no samples, without a normalization or gene list.
+	 * @param numberOfGenes - the number of genes.
+	 */
+	public CorrelationSufficientStatistics(int numberOfGenes)
+	{
+		this(numberOfGenes, "", "");
+	}
+
+	/**
+	 * Creates statistics for no samples.
+	 * @param numberOfGenes - the number of genes.
+	 * @param normalizationKey - identifies the normalization of the values that will be added (see {@link ExpressionNormalization#getCacheKey()}).
+	 * @param geneListFingerprint - identifies the genes, in index order (see {@link #getGeneListFingerprint(List)}).
+	 */
+	public CorrelationSufficientStatistics(int numberOfGenes, String normalizationKey, String geneListFingerprint)
+	{
+		this(numberOfGenes, normalizationKey, geneListFingerprint, 0L, new double[numberOfGenes], new PackedDoubleSymmetricMatrix(numberOfGenes), new LinkedHashSet<>());
+	}
+
+	private CorrelationSufficientStatistics(int numberOfGenes, String normalizationKey, String geneListFingerprint, long numberOfSamples, double[] means,
+			PackedDoubleSymmetricMatrix coMoments, Set<String> sampleIds)
+	{
+		this.numberOfGenes = numberOfGenes;
+		this.normalizationKey = normalizationKey;
+		this.geneListFingerprint = geneListFingerprint;
+		this.numberOfSamples = numberOfSamples;
+		this.means = means;
+		this.coMoments = coMoments;
+		this.sampleIds = sampleIds;
+	}
+
+	/**
+	 * Merges a batch of samples into these statistics.
+	 * @param batch - the values of the new samples. Must have the same genes as these statistics.
+	 * @param batchSampleIds - the IDs of the new samples. None of them may have been added already.
+	 * @param scheduler - the scheduler that calculates the batch's co-moments in parallel.
+	 */
+	public void addSamples(GeneVectorSource batch, Collection<String> batchSampleIds, CorrelationTileScheduler scheduler)
+	{
+		if (batch.getNumberOfGenes() != this.numberOfGenes)
+		{
+			throw new IllegalArgumentException("The statistics are for " + this.numberOfGenes + " genes, but the batch has " + batch.getNumberOfGenes());
+		}
+		if (batch.getNumberOfSamples() != batchSampleIds.size())
+		{
+			throw new IllegalArgumentException("The batch has " + batch.getNumberOfSamples() + " samples, but " + batchSampleIds.size() + " sample IDs");
+		}
+		for (String sampleId : batchSampleIds)
+		{
+			if (this.sampleIds.contains(sampleId))
+			{
+				throw new IllegalArgumentException("Sample " + sampleId + " has already been added.");
+			}
+		}
+		int batchSize = batch.getNumberOfSamples();
+		if (batchSize == 0)
+		{
+			return;
+		}
+		long totalSamples = this.numberOfSamples + batchSize;
+		// The weight of the delta_i * delta_j term; 0 for the first batch.
+		double deltaWeight = (double) this.numberOfSamples * batchSize / totalSamples;
+		double[][] centredValues = new double[this.numberOfGenes][];
+		double[] deltas = new double[this.numberOfGenes];
+		IntStream.range(0, this.numberOfGenes).parallel().forEach(geneIndex -> {
+			double[] values = new double[batchSize];
+			batch.readGeneVector(geneIndex, values);
+			double sum = 0.0;
+			for (double value : values)
+			{
+				sum += value;
+			}
+			double batchMean = sum / batchSize;
+			for (int sampleIndex = 0; sampleIndex < batchSize; sampleIndex++)
+			{
+				values[sampleIndex] -= batchMean;
+			}
+			centredValues[geneIndex] = values;
+			deltas[geneIndex] = batchMean - this.means[geneIndex];
+		});
+		// Tiles never overlap, so each entry of C is only updated by one tile.
+		scheduler.runUpperTriangle(0, this.numberOfGenes, this.numberOfGenes, (rowStart, rowEnd, colStart, colEnd) -> {
+			for (int geneIndex = rowStart; geneIndex < rowEnd; geneIndex++)
+			{
+				for (int otherGeneIndex = Math.max(geneIndex, colStart); otherGeneIndex < colEnd; otherGeneIndex++)
+				{
+					long packedIndex = this.coMoments.getPackedIndex(geneIndex, otherGeneIndex);
+					double batchCoMoment = StandardizedGeneMatrix.dot(centredValues[geneIndex], centredValues[otherGeneIndex], 0, batchSize);
+					this.coMoments.setPackedValue(packedIndex, this.coMoments.getPackedValue(packedIndex) + batchCoMoment + deltas[geneIndex] * deltas[otherGeneIndex] * deltaWeight);
+				}
+			}
+		});
+		for (int geneIndex = 0; geneIndex < this.numberOfGenes; geneIndex++)
+		{
+			this.means[geneIndex] += deltas[geneIndex] * batchSize / totalSamples;
+		}
+		this.numberOfSamples = totalSamples;
+		this.sampleIds.addAll(batchSampleIds);
+		logger.debug("{} samples added; the statistics now cover {} samples.", batchSize, totalSamples);
+	}
+
+	/**
+	 * Gets the Pearson correlation of two genes, over all of the samples that have been added.
+	 * @return the correlation, or NaN if either gene has no variance.
+	 */
+	public double getCorrelation(int geneIndex, int otherGeneIndex)
+	{
+		double variance = this.coMoments.getEntry(geneIndex, geneIndex);
+		double otherVariance = this.coMoments.getEntry(otherGeneIndex, otherGeneIndex);
+		if (!(variance > 0.0) || !(otherVariance > 0.0))
+		{
+			return Double.NaN;
+		}
+		double correlationValue = this.coMoments.getEntry(geneIndex, otherGeneIndex) / Math.sqrt(variance * otherVariance);
+		// Rounding can push the correlation of (nearly) identical genes a tiny bit past +/-1.
+		return Math.max(-1.0, Math.min(1.0, correlationValue));
+	}
+
+	/**
+	 * Sends the correlations of every pair of genes to a sink, in blocks of rows.
+	 * @param sink - will receive the rows of the upper triangle of the matrix, in order. The sink will be closed when this method returns.
+	 * @param rowsPerBlock - the number of rows in each block.
+	 * @throws IOException
+	 */
+	public void calculateCorrelation(CorrelationRowSink sink, int rowsPerBlock) throws IOException
+	{
+		try
+		{
+			sink.start(this.numberOfGenes);
+			for (int startRow = 0; startRow < this.numberOfGenes; startRow += rowsPerBlock)
+			{
+				CorrelationRowBlock block = new CorrelationRowBlock(this.numberOfGenes, startRow, Math.min(rowsPerBlock, this.numberOfGenes - startRow));
+				IntStream.range(startRow, block.getEndRow()).parallel().forEach(geneIndex -> {
+					for (int otherGeneIndex = geneIndex; otherGeneIndex < this.numberOfGenes; otherGeneIndex++)
+					{
+						block.setValue(geneIndex, otherGeneIndex, this.getCorrelation(geneIndex, otherGeneIndex));
+					}
+				});
+				sink.accept(block);
+			}
+		}
+		finally
+		{
+			sink.close();
+		}
+	}
+
+	/**
+	 * Writes these statistics to a file. The file is written to a temporary file first and then moved into place, so an update that
+	 * fails part way through does not leave the old statistics corrupted.
+	 * @param file
+	 * @throws IOException
+	 */
+	public void writeTo(Path file) throws IOException
+	{
+		Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+		try (DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile))))
+		{
+			outputStream.writeInt(MAGIC_NUMBER);
+			outputStream.writeInt(FORMAT_VERSION);
+			outputStream.writeInt(this.numberOfGenes);
+			outputStream.writeUTF(this.normalizationKey);
+			outputStream.writeUTF(this.geneListFingerprint);
+			outputStream.writeLong(this.numberOfSamples);
+			outputStream.writeInt(this.sampleIds.size());
+			for (String sampleId : this.sampleIds)
+			{
+				outputStream.writeUTF(sampleId);
+			}
+			for (double mean : this.means)
+			{
+				outputStream.writeDouble(mean);
+			}
+			long numberOfPackedValues = this.coMoments.getNumberOfPackedValues();
+			for (long packedIndex = 0; packedIndex < numberOfPackedValues; packedIndex++)
+			{
+				outputStream.writeDouble(this.coMoments.getPackedValue(packedIndex));
+			}
+		}
+		Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Reads statistics that were written by {@link #writeTo(Path)}.
+	 * @param file
+	 * @return the statistics.
+	 * @throws IOException If the file could not be read, or is not a statistics file.
+	 */
+	public static CorrelationSufficientStatistics readFrom(Path file) throws IOException
+	{
+		try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(Files.newInputStream(file))))
+		{
+			if (inputStream.readInt() != MAGIC_NUMBER)
+			{
+				throw new IOException(file + " is not a correlation statistics file.");
+			}
+			int formatVersion = inputStream.readInt();
+			if (formatVersion != FORMAT_VERSION)
+			{
+				throw new IOException(file + " has format version " + formatVersion + ", but only version " + FORMAT_VERSION + " can be read.");
+			}
+			int numberOfGenes = inputStream.readInt();
+			String normalizationKey = inputStream.readUTF();
+			String geneListFingerprint = inputStream.readUTF();
+			long numberOfSamples = inputStream.readLong();
+			int numberOfSampleIds = inputStream.readInt();
+			Set<String> sampleIds = new LinkedHashSet<>();
+			for (int i = 0; i < numberOfSampleIds; i++)
+			{
+				sampleIds.add(inputStream.readUTF());
+			}
+			double[] means = new double[numberOfGenes];
+			for (int geneIndex = 0; geneIndex < numberOfGenes; geneIndex++)
+			{
+				means[geneIndex] = inputStream.readDouble();
+			}
+			PackedDoubleSymmetricMatrix coMoments = new PackedDoubleSymmetricMatrix(numberOfGenes);
+			long numberOfPackedValues = coMoments.getNumberOfPackedValues();
+			for (long packedIndex = 0; packedIndex < numberOfPackedValues; packedIndex++)
+			{
+				coMoments.setPackedValue(packedIndex, inputStream.readDouble());
+			}
+			return new CorrelationSufficientStatistics(numberOfGenes, normalizationKey, geneListFingerprint, numberOfSamples, means, coMoments, sampleIds);
+		}
+	}
+
+	public int getNumberOfGenes()
+	{
+		return this.numberOfGenes;
+	}
+
+	/**
+	 * Gets a fingerprint of a list of genes: the SHA-256 digest of the gene symbols, in order. Two lists with the same genes in a different
+	 * order have different fingerprints.
+	 * @param geneSymbols - the gene symbols, in index order.
+	 * @return the fingerprint, as a hexadecimal string.
+	 */
+	public static String getGeneListFingerprint(List<String> geneSymbols)
+	{
+		MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			// Every Java platform has SHA-256.
+			throw new IllegalStateException(e);
+		}
+		for (String geneSymbol : geneSymbols)
+		{
+			digest.update(String.valueOf(geneSymbol).getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) '\n');
+		}
+		StringBuilder fingerprint = new StringBuilder();
+		for (byte b : digest.digest())
+		{
+			fingerprint.append(String.format("%02x", b));
+		}
+		return fingerprint.toString();
+	}
+
+	/**
+	 * @return identifies the normalization of the values that have been added, or "" if it was not given.
+	 */
+	public String getNormalizationKey()
+	{
+		return this.normalizationKey;
+	}
+
+	/**
+	 * @return identifies the genes that the statistics are for, or "" if they were not given.
+	 */
+	public String getGeneListFingerprint()
+	{
+		return this.geneListFingerprint;
+	}
+
+	public long getNumberOfSamples()
+	{
+		return this.numberOfSamples;
+	}
+
+	/**
+	 * @return the mean of a gene's values, over all of the samples that have been added.
+	 */
+	public double getMean(int geneIndex)
+	{
+		return this.means[geneIndex];
+	}
+
+	/**
+	 * @return the co-moment of two genes: the sum of the products of their deviations from their means.
+	 */
+	public double getCoMoment(int geneIndex, int otherGeneIndex)
+	{
+		return this.coMoments.getEntry(geneIndex, otherGeneIndex);
+	}
+
+	/**
+	 * @return the IDs of the samples that have been added, in the order they were added.
+	 */
+	public Set<String> getSampleIds()
+	{
+		return Collections.unmodifiableSet(this.sampleIds);
+	}
+}
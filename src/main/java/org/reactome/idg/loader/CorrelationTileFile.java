@@ -0,0 +1,114 @@
+package org.reactome.idg.loader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads and writes the output of one tile of a sharded calculation. The file has a header of big-endian ints ({@link #MAGIC_NUMBER}, the number
+ * of genes, and the tile's rowStart, rowEnd, colStart and colEnd), followed by the tile's values on or above the main diagonal as big-endian doubles,
+ * row by row - the order that {@link StandardizedGeneMatrix#computeTile(int, int, int, int, StandardizedGeneMatrix.CorrelationValueConsumer)} produces them in.
+ * @author sshorser
+ *
+ */
+final class CorrelationTileFile
+{
+	static final int MAGIC_NUMBER = 0x54494C45; // "TILE"
+	private static final int HEADER_SIZE = 6 * Integer.BYTES;
+
+	private CorrelationTileFile()
+	{
+		// only static methods.
+	}
+
+	/**
+	 * Calculates a tile and writes it to a file. The file is written to a temporary file first and then moved into place, so a tile file that exists is complete.
+	 * Each writer has its own temporary file, so two workers that end up calculating the same tile (after a stale claim is taken over) do not
+	 * overwrite each other's file; if the tile file is already there when the move fails, the other worker's tile is kept.
+	 * @param writerId - identifies the writer in the temporary file's name, such as the worker ID.
+	 */
+	static void calculateAndWrite(StandardizedGeneMatrix standardizedMatrix, int[] tileBounds, Path tileFile, String writerId) throws IOException
+	{
+		int rowStart = tileBounds[0], rowEnd = tileBounds[1], colStart = tileBounds[2], colEnd = tileBounds[3];
+		long numberOfValues = GenePairCorrelationMatrixCalculator.countPairsInTile(rowStart, rowEnd, colStart, colEnd);
+		ByteBuffer buffer = ByteBuffer.allocate(getFileSize(numberOfValues, tileBounds));
+		buffer.putInt(MAGIC_NUMBER).putInt(standardizedMatrix.getNumberOfGenes()).putInt(rowStart).putInt(rowEnd).putInt(colStart).putInt(colEnd);
+		DoubleBuffer values = buffer.asDoubleBuffer();
+		standardizedMatrix.computeTile(rowStart, rowEnd, colStart, colEnd, (geneIndex, otherGeneIndex, correlationValue) -> values.put(correlationValue));
+		buffer.rewind();
+		Path tempFile = tileFile.resolveSibling(tileFile.getFileName() + "." + writerId + "-" + System.nanoTime() + ".tmp");
+		try
+		{
+			try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))
+			{
+				while (buffer.hasRemaining())
+				{
+					channel.write(buffer);
+				}
+			}
+			try
+			{
+				Files.move(tempFile, tileFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (IOException e)
+			{
+				if (!Files.exists(tileFile))
+				{
+					throw e;
+				}
+				// Another worker has already moved its copy of this tile into place, and a tile file that exists is complete.
+			}
+		}
+		finally
+		{
+			Files.deleteIfExists(tempFile);
+		}
+	}
+
+	/**
+	 * Gets the size of a tile file. A tile file is written from (and read into) one buffer, so it must be smaller than 2 GB.
+	 * @throws IllegalArgumentException If the tile has too many values for one file.
+	 */
+	private static int getFileSize(long numberOfValues, int[] tileBounds)
+	{
+		try
+		{
+			return Math.toIntExact(Math.addExact(HEADER_SIZE, Math.multiplyExact(numberOfValues, Double.BYTES)));
+		}
+		catch (ArithmeticException e)
+		{
+			throw new IllegalArgumentException("The tile for rows " + tileBounds[0] + " to " + tileBounds[1] + " and columns " + tileBounds[2] + " to " + tileBounds[3]
+					+ " has " + numberOfValues + " values, which is too many for one tile file (the limit is " + (Integer.MAX_VALUE - HEADER_SIZE) / Double.BYTES
+					+ "). Use a smaller tile size.", e);
+		}
+	}
+
+	/**
+	 * Reads a tile file into a block of rows. The tile must be in the block's rows.
+	 * @throws IOException If the file is not the expected tile.
+	 */
+	static void readInto(Path tileFile, int[] tileBounds, CorrelationRowBlock block) throws IOException
+	{
+		int rowStart = tileBounds[0], rowEnd = tileBounds[1], colStart = tileBounds[2], colEnd = tileBounds[3];
+		long numberOfValues = GenePairCorrelationMatrixCalculator.countPairsInTile(rowStart, rowEnd, colStart, colEnd);
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(tileFile));
+		if (buffer.remaining() != getFileSize(numberOfValues, tileBounds) || buffer.getInt() != MAGIC_NUMBER || buffer.getInt() != block.getNumberOfGenes()
+				|| buffer.getInt() != rowStart || buffer.getInt() != rowEnd || buffer.getInt() != colStart || buffer.getInt() != colEnd)
+		{
+			throw new IOException(tileFile + " is not the tile for rows " + rowStart + " to " + rowEnd + " and columns " + colStart + " to " + colEnd);
+		}
+		DoubleBuffer values = buffer.asDoubleBuffer();
+		for (int row = rowStart; row < rowEnd; row++)
+		{
+			for (int column = Math.max(row, colStart); column < colEnd; column++)
+			{
+				block.setValue(row, column, values.get());
+			}
+		}
+	}
+}
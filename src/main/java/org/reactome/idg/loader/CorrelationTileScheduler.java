@@ -0,0 +1,172 @@
+package org.reactome.idg.loader;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Splits a correlation matrix into square tiles of genes, and calculates the tiles in parallel on a work-stealing ForkJoinPool.
+ * <br/>
+ * The tiles are numbered, and each task covers a range of tile numbers. Tasks split their range in half until there is
+ * only one tile left, so idle workers can steal half of a busy worker's remaining tiles. Tiles never overlap,
+ * so each tile can write its results into its own region of the output without any locking.
+ * @author sshorser
+ *
+ */
+public class CorrelationTileScheduler implements AutoCloseable
+{
+	private final ForkJoinPool pool;
+	private final int tileSize;
+	// Tiles that have been scheduled, but not started.
+	private final AtomicInteger queuedTiles = new AtomicInteger(0);
+
+	/**
+	 * Calculates the values for one tile. Rows and columns are gene indices. Ranges are [start, end).
+	 */
+	@FunctionalInterface
+	public interface TileComputation
+	{
+		void computeTile(int rowStart, int rowEnd, int colStart, int colEnd);
+	}
+
+	/**
+	 * Creates a scheduler with its own pool of worker threads. The pool will be shut down when the scheduler is closed.
+	 * @param parallelism - the number of worker threads.
+	 * @param tileSize - the number of genes along each side of a tile.
+	 */
+	public CorrelationTileScheduler(int parallelism, int tileSize)
+	{
+		if (tileSize < 1)
+		{
+			throw new IllegalArgumentException("Tile size must be greater than 0, but was " + tileSize);
+		}
+		this.pool = new ForkJoinPool(parallelism);
+		this.tileSize = tileSize;
+	}
+
+	/**
+	 * Calculates the tiles that cover the upper triangle (including the main diagonal) of an N x N matrix, for a range of rows.
+	 * Tiles that are on the diagonal extend below it, so the computation should ignore entries where column &lt; row.
+	 * @param rowStart - the first row (inclusive). Should be a multiple of the tile size.
+	 * @param rowEnd - the last row (exclusive).
+	 * @param numberOfGenes - N
+	 * @param computation - calculates a tile.
+	 */
+	public void runUpperTriangle(int rowStart, int rowEnd, int numberOfGenes, TileComputation computation)
+	{
+		int tileCount = 0;
+		for (int tileRowStart = rowStart; tileRowStart < rowEnd; tileRowStart += this.tileSize)
+		{
+			tileCount += (numberOfGenes - tileRowStart + this.tileSize - 1) / this.tileSize;
+		}
+		int[] tileRows = new int[tileCount];
+		int[] tileColumns = new int[tileCount];
+		int tile = 0;
+		for (int tileRowStart = rowStart; tileRowStart < rowEnd; tileRowStart += this.tileSize)
+		{
+			for (int tileColStart = tileRowStart; tileColStart < numberOfGenes; tileColStart += this.tileSize)
+			{
+				tileRows[tile] = tileRowStart;
+				tileColumns[tile] = tileColStart;
+				tile++;
+			}
+		}
+		this.queuedTiles.addAndGet(tileCount);
+		this.pool.invoke(new TileRangeAction(tileRows, tileColumns, 0, tileCount, rowEnd, numberOfGenes, computation));
+	}
+
+	/**
+	 * Calculates the tiles that cover a whole rectangular matrix.
+	 * @param numberOfRows
+	 * @param numberOfColumns
+	 * @param computation - calculates a tile.
+	 */
+	public void runRectangle(int numberOfRows, int numberOfColumns, TileComputation computation)
+	{
+		int tilesPerRow = (numberOfColumns + this.tileSize - 1) / this.tileSize;
+		int tileCount = ((numberOfRows + this.tileSize - 1) / this.tileSize) * tilesPerRow;
+		int[] tileRows = new int[tileCount];
+		int[] tileColumns = new int[tileCount];
+		for (int tile = 0; tile < tileCount; tile++)
+		{
+			tileRows[tile] = (tile / tilesPerRow) * this.tileSize;
+			tileColumns[tile] = (tile % tilesPerRow) * this.tileSize;
+		}
+		this.queuedTiles.addAndGet(tileCount);
+		this.pool.invoke(new TileRangeAction(tileRows, tileColumns, 0, tileCount, numberOfRows, numberOfColumns, computation));
+	}
+
+	/**
+	 * A range of tiles to calculate. Splits in half until there is only one tile in the range.
+	 */
+	private class TileRangeAction extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		private final int[] tileRows;
+		private final int[] tileColumns;
+		private final int first;
+		private final int last;
+		private final int rowLimit;
+		private final int columnLimit;
+		private final TileComputation computation;
+
+		TileRangeAction(int[] tileRows, int[] tileColumns, int first, int last, int rowLimit, int columnLimit, TileComputation computation)
+		{
+			this.tileRows = tileRows;
+			this.tileColumns = tileColumns;
+			this.first = first;
+			this.last = last;
+			this.rowLimit = rowLimit;
+			this.columnLimit = columnLimit;
+			this.computation = computation;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (this.last - this.first <= 1)
+			{
+				for (int tile = this.first; tile < this.last; tile++)
+				{
+					int rowStart = this.tileRows[tile];
+					int colStart = this.tileColumns[tile];
+					queuedTiles.decrementAndGet();
+					this.computation.computeTile(rowStart, Math.min(rowStart + tileSize, this.rowLimit), colStart, Math.min(colStart + tileSize, this.columnLimit));
+				}
+			}
+			else
+			{
+				int middle = (this.first + this.last) >>> 1;
+				invokeAll(new TileRangeAction(this.tileRows, this.tileColumns, this.first, middle, this.rowLimit, this.columnLimit, this.computation),
+						new TileRangeAction(this.tileRows, this.tileColumns, middle, this.last, this.rowLimit, this.columnLimit, this.computation));
+			}
+		}
+	}
+
+	public int getTileSize()
+	{
+		return this.tileSize;
+	}
+
+	/**
+	 * @return the number of tiles that have been scheduled, but not yet started.
+	 */
+	public int getQueuedTiles()
+	{
+		return this.queuedTiles.get();
+	}
+
+	public int getParallelism()
+	{
+		return this.pool.getParallelism();
+	}
+
+	/**
+	 * Shuts down the worker threads.
+	 */
+	@Override
+	public void close()
+	{
+		this.pool.shutdown();
+	}
+}
@@ -0,0 +1,217 @@
+package org.reactome.idg.loader;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Describes how raw ARCHS4 counts are normalized before correlations are calculated, and does the normalization.
+ * <br/>
+ * The steps are, in order:
+ * <ol>
+ * <li>Library-size scaling: {@link LibrarySizeScaling#CPM} divides each sample's counts by the sample's total count (over all genes) and multiplies by a million,
+ * so that samples that were sequenced more deeply do not dominate.</li>
+ * <li>Gene filtering (optional): genes whose scaled value is below <code>minimumExpression</code> in more than <code>1 - minimumFractionOfSamples</code> of the
+ * samples are filtered out. Filtered genes keep their index, but their values are all set to 0, so they have no variance and every correlation with them
+ * is NaN - just like a gene that is never expressed.</li>
+ * <li>log2(x + 1) (optional).</li>
+ * </ol>
+ * Normalizations with the same settings are equal, so the loader can cache the normalized values of a tissue for each normalization (see
+ * {@link Archs4ExpressionDataLoader#getNormalizedExpressionValuesForTissue(java.nio.file.Path, ExpressionNormalization)}).
+ * @author sshorser
+ *
+ */
+public class ExpressionNormalization
+{
+	private static final Logger logger = LogManager.getLogger();
+
+	private static final double COUNTS_PER_MILLION = 1.0E6;
+	private static final double LN_2 = Math.log(2.0);
+	// The number of samples whose library sizes are summed by one task. Each task reads every gene's values for its samples.
+	private static final int SAMPLE_BLOCK_SIZE = 256;
+
+	/**
+	 * The ways that samples can be scaled to account for their library size (sequencing depth).
+	 */
+	public enum LibrarySizeScaling
+	{
+		/**
+		 * Use the raw counts.
+		 */
+		NONE,
+		/**
+		 * Counts per million: count * 10^6 / (the sample's total count). The ARCHS4 file does not have gene lengths, so this is used
+		 * instead of TPM; for correlations across samples of the same gene, the gene length would cancel out anyway.
+		 */
+		CPM;
+	}
+
+	private final LibrarySizeScaling librarySizeScaling;
+	private final boolean logTransform;
+	private final double minimumExpression;
+	private final double minimumFractionOfSamples;
+
+	/**
+	 * Creates a normalization without gene filtering.
+	 * @param librarySizeScaling - how samples are scaled for their library size.
+	 * @param logTransform - if true, values are transformed to log2(x + 1) after they are scaled.
+	 */
+	public ExpressionNormalization(LibrarySizeScaling librarySizeScaling, boolean logTransform)
+	{
+		this(librarySizeScaling, logTransform, 0.0, 0.0);
+	}
+
+	/**
+	 * Creates a normalization.
+	 * @param librarySizeScaling - how samples are scaled for their library size.
+	 * @param logTransform - if true, values are transformed to log2(x + 1) after they are scaled.
+	 * @param minimumExpression - the smallest scaled value (before the log transform) that counts as expressed.
+	 * @param minimumFractionOfSamples - the fraction of samples that a gene must be expressed in, or it will be filtered out. Use 0 for no filtering.
+	 */
+	public ExpressionNormalization(LibrarySizeScaling librarySizeScaling, boolean logTransform, double minimumExpression, double minimumFractionOfSamples)
+	{
+		if (minimumFractionOfSamples < 0.0 || minimumFractionOfSamples > 1.0)
+		{
+			throw new IllegalArgumentException("minimumFractionOfSamples must be in [0, 1], but was " + minimumFractionOfSamples);
+		}
+		this.librarySizeScaling = librarySizeScaling;
+		this.logTransform = logTransform;
+		this.minimumExpression = minimumExpression;
+		this.minimumFractionOfSamples = minimumFractionOfSamples;
+	}
+
+	/**
+	 * The most common normalization for correlating RNA-seq data: log2(CPM + 1), without filtering.
+	 */
+	public static ExpressionNormalization logCpm()
+	{
+		return new ExpressionNormalization(LibrarySizeScaling.CPM, true);
+	}
+
+	/**
+	 * Normalizes a matrix of expression values.
+	 * @param expressionValues - the raw counts.
+	 * @return the normalized values.
+	 */
+	public NormalizedExpressionMatrix normalize(GeneMajorExpressionMatrix expressionValues)
+	{
+		int numberOfGenes = expressionValues.getNumberOfGenes();
+		int numberOfSamples = expressionValues.getNumberOfSamples();
+		double[] sampleScales = this.calculateSampleScales(expressionValues);
+		int minimumExpressedSamples = (int) Math.ceil(this.minimumFractionOfSamples * numberOfSamples);
+		float[][] normalizedValues = new float[numberOfGenes][];
+		boolean[] filtered = new boolean[numberOfGenes];
+		// Each task writes its own genes' arrays, so no two tasks write to the same array.
+		IntStream.range(0, numberOfGenes).parallel().forEach(geneIndex -> {
+			int[] counts = expressionValues.getGeneVector(geneIndex);
+			float[] values = new float[numberOfSamples];
+			int expressedSamples = 0;
+			for (int sampleIndex = 0; sampleIndex < numberOfSamples; sampleIndex++)
+			{
+				double value = counts[sampleIndex] * sampleScales[sampleIndex];
+				if (value >= this.minimumExpression)
+				{
+					expressedSamples++;
+				}
+				values[sampleIndex] = (float) (this.logTransform ? Math.log1p(value) / LN_2 : value);
+			}
+			if (minimumExpressedSamples > 0 && expressedSamples < minimumExpressedSamples)
+			{
+				values = new float[numberOfSamples];
+				filtered[geneIndex] = true;
+			}
+			normalizedValues[geneIndex] = values;
+		});
+		NormalizedExpressionMatrix normalizedMatrix = new NormalizedExpressionMatrix(normalizedValues, numberOfSamples, filtered, this);
+		if (minimumExpressedSamples > 0)
+		{
+			logger.info("{} of {} genes were filtered out by {}", normalizedMatrix.getNumberOfFilteredGenes(), numberOfGenes, this);
+		}
+		return normalizedMatrix;
+	}
+
+	/**
+	 * Calculates the factor that each sample's counts are multiplied by. For CPM, each sample's library size is the sum of its counts over
+	 * all genes; the samples are split into blocks, and each block is summed in parallel (reading each gene's values for those samples).
+	 */
+	private double[] calculateSampleScales(GeneMajorExpressionMatrix expressionValues)
+	{
+		int numberOfGenes = expressionValues.getNumberOfGenes();
+		int numberOfSamples = expressionValues.getNumberOfSamples();
+		double[] sampleScales = new double[numberOfSamples];
+		if (this.librarySizeScaling == LibrarySizeScaling.NONE)
+		{
+			Arrays.fill(sampleScales, 1.0);
+			return sampleScales;
+		}
+		long[] librarySizes = new long[numberOfSamples];
+		IntStream.range(0, (numberOfSamples + SAMPLE_BLOCK_SIZE - 1) / SAMPLE_BLOCK_SIZE).parallel().forEach(sampleBlock -> {
+			int firstSample = sampleBlock * SAMPLE_BLOCK_SIZE;
+			int lastSample = Math.min(firstSample + SAMPLE_BLOCK_SIZE, numberOfSamples);
+			long[] blockSums = new long[lastSample - firstSample];
+			for (int geneIndex = 0; geneIndex < numberOfGenes; geneIndex++)
+			{
+				int[] counts = expressionValues.getGeneVector(geneIndex);
+				for (int sampleIndex = firstSample; sampleIndex < lastSample; sampleIndex++)
+				{
+					blockSums[sampleIndex - firstSample] += counts[sampleIndex];
+				}
+			}
+			System.arraycopy(blockSums, 0, librarySizes, firstSample, blockSums.length);
+		});
+		for (int sampleIndex = 0; sampleIndex < numberOfSamples; sampleIndex++)
+		{
+			// A sample with no counts at all stays at 0.
+			sampleScales[sampleIndex] = librarySizes[sampleIndex] > 0 ? COUNTS_PER_MILLION / librarySizes[sampleIndex] : 0.0;
+		}
+		return sampleScales;
+	}
+
+	/**
+	 * @return a string that identifies these settings, for use in cache keys.
+	 */
+	public String getCacheKey()
+	{
+		return this.librarySizeScaling + (this.logTransform ? ",log2" : "") + (this.minimumFractionOfSamples > 0.0 ? ",min=" + this.minimumExpression + "@" + this.minimumFractionOfSamples : "");
+	}
+
+	public LibrarySizeScaling getLibrarySizeScaling()
+	{
+		return this.librarySizeScaling;
+	}
+
+	public boolean isLogTransform()
+	{
+		return this.logTransform;
+	}
+
+	public double getMinimumExpression()
+	{
+		return this.minimumExpression;
+	}
+
+	public double getMinimumFractionOfSamples()
+	{
+		return this.minimumFractionOfSamples;
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		return obj instanceof ExpressionNormalization && ((ExpressionNormalization) obj).getCacheKey().equals(this.getCacheKey());
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return this.getCacheKey().hashCode();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "ExpressionNormalization[" + this.getCacheKey() + "]";
+	}
+}
@@ -0,0 +1,576 @@
+package org.reactome.idg.loader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A cache of the matrices that a loader has read or derived, bounded by an estimate of their size in bytes.
+ * <br/>
+ * When adding a matrix takes the cache over its ceiling, the least recently used matrices are evicted until it fits again. If a spill directory
+ * has been set, evicted raw counts (sample-major <code>int[][]</code>s and {@link GeneMajorExpressionMatrix}es) are written to it, and are read back
+ * from there (instead of from the HDF file) the next time they are asked for. The spill directory has its own ceiling, and evicts its least recently
+ * spilled files in the same way. Derived matrices (normalized values and ranks) are not spilled, since they are quicker to recalculate from the
+ * counts than to read back.
+ * <br/>
+ * All methods are synchronized.
+ * @author sshorser
+ *
+ */
+public class ExpressionValuesCache
+{
+	private static final Logger logger = LogManager.getLogger();
+
+	// Estimated JVM overhead of an array object, and of a reference to it.
+	private static final long ARRAY_HEADER_BYTES = 16;
+	private static final long REFERENCE_BYTES = 8;
+
+	private static final int SPILL_MAGIC_NUMBER = 0x45564353; // "EVCS"
+	private static final int SAMPLE_MAJOR = 0;
+	private static final int GENE_MAJOR = 1;
+
+	/**
+	 * Identifies a cached matrix: which HDF file it came from, which set of samples it is for, and which variant of the values it is
+	 * (for example, gene-major or normalized).
+	 */
+	public static final class CacheKey
+	{
+		private final String hdfFile;
+		private final String sampleSet;
+		private final String variant;
+
+		/**
+		 * @param hdfFile - the HDF file that the values were read from.
+		 * @param sampleSet - identifies the samples, such as the path of the file that lists them.
+		 * @param variant - identifies what was derived from the values, or "" for the values as they were read.
+		 */
+		public CacheKey(String hdfFile, String sampleSet, String variant)
+		{
+			this.hdfFile = Objects.requireNonNull(hdfFile);
+			this.sampleSet = Objects.requireNonNull(sampleSet);
+			this.variant = Objects.requireNonNull(variant);
+		}
+
+		public String getHdfFile()
+		{
+			return this.hdfFile;
+		}
+
+		public String getSampleSet()
+		{
+			return this.sampleSet;
+		}
+
+		public String getVariant()
+		{
+			return this.variant;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof CacheKey))
+			{
+				return false;
+			}
+			CacheKey other = (CacheKey) obj;
+			return this.hdfFile.equals(other.hdfFile) && this.sampleSet.equals(other.sampleSet) && this.variant.equals(other.variant);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return Objects.hash(this.hdfFile, this.sampleSet, this.variant);
+		}
+
+		@Override
+		public String toString()
+		{
+			return this.hdfFile + ":" + this.sampleSet + (this.variant.isEmpty() ? "" : "#" + this.variant);
+		}
+	}
+
+	private static final class CacheEntry
+	{
+		private final Object value;
+		private final long sizeInBytes;
+
+		private CacheEntry(Object value, long sizeInBytes)
+		{
+			this.value = value;
+			this.sizeInBytes = sizeInBytes;
+		}
+	}
+
+	private static final class SpilledEntry
+	{
+		private final Path file;
+		private final long sizeInBytes;
+
+		private SpilledEntry(Path file, long sizeInBytes)
+		{
+			this.file = file;
+			this.sizeInBytes = sizeInBytes;
+		}
+	}
+
+	// Access-ordered, so iteration starts at the least recently used entry.
+	private final LinkedHashMap<CacheKey, CacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	// Insertion-ordered, so iteration starts at the least recently spilled entry.
+	private final LinkedHashMap<CacheKey, SpilledEntry> spilledEntries = new LinkedHashMap<>();
+	private long maximumBytes;
+	private long sizeInBytes;
+	private Path spillDirectory;
+	private long maximumSpillBytes = Long.MAX_VALUE;
+	private long spilledBytes;
+	private long spillFileCounter;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long spills;
+	private long spillHits;
+
+	/**
+	 * Creates a cache with a ceiling of half of the maximum heap size.
+	 */
+	public ExpressionValuesCache()
+	{
+		this(Runtime.getRuntime().maxMemory() / 2);
+	}
+
+	/**
+	 * Creates a cache.
+	 * @param maximumBytes - the ceiling on the estimated size of everything in the cache.
+	 */
+	public ExpressionValuesCache(long maximumBytes)
+	{
+		this.setMaximumBytes(maximumBytes);
+	}
+
+	/**
+	 * Gets a matrix from the cache, or from the spill directory if it was spilled there.
+	 * @param key - the matrix's key.
+	 * @return the matrix, or null if it is not cached.
+	 */
+	public synchronized Object get(CacheKey key)
+	{
+		return this.get(key, true);
+	}
+
+	/**
+	 * Gets a matrix from the cache, like {@link #get(CacheKey)}, but without counting a hit or a miss. Use this for a second look, such as for
+	 * a matrix that the one that was asked for can be made from, so that one request is not counted as two misses.
+	 * @param key - the matrix's key.
+	 * @return the matrix, or null if it is not cached.
+	 */
+	public synchronized Object peek(CacheKey key)
+	{
+		return this.get(key, false);
+	}
+
+	private Object get(CacheKey key, boolean countLookup)
+	{
+		CacheEntry entry = this.entries.get(key);
+		if (entry != null)
+		{
+			if (countLookup)
+			{
+				this.hits++;
+			}
+			return entry.value;
+		}
+		SpilledEntry spilledEntry = this.spilledEntries.remove(key);
+		if (spilledEntry != null)
+		{
+			this.spilledBytes -= spilledEntry.sizeInBytes;
+			try
+			{
+				Object value = readSpillFile(spilledEntry.file);
+				this.spillHits++;
+				logger.debug("{} was read back from {}", key, spilledEntry.file);
+				this.put(key, value);
+				return value;
+			}
+			catch (IOException e)
+			{
+				logger.warn("Could not read " + key + " back from " + spilledEntry.file + ", so it will be reloaded.", e);
+			}
+			finally
+			{
+				deleteSpillFile(spilledEntry.file);
+			}
+		}
+		if (countLookup)
+		{
+			this.misses++;
+		}
+		return null;
+	}
+
+	/**
+	 * Adds a matrix to the cache, evicting the least recently used matrices if it does not fit. A matrix that is bigger than the whole ceiling
+	 * is not cached.
+	 * @param key - the matrix's key.
+	 * @param value - a sample-major <code>int[][]</code> of counts, or a {@link GeneVectorSource} whose vectors are 4-byte values.
+	 */
+	public synchronized void put(CacheKey key, Object value)
+	{
+		long valueSize = estimateSizeInBytes(value);
+		this.remove(key);
+		if (valueSize > this.maximumBytes)
+		{
+			logger.warn("{} ({} bytes) is bigger than the cache's ceiling of {} bytes, so it will not be cached.", key, valueSize, this.maximumBytes);
+			return;
+		}
+		this.entries.put(key, new CacheEntry(value, valueSize));
+		this.sizeInBytes += valueSize;
+		this.evictToFit(this.maximumBytes);
+	}
+
+	/**
+	 * Removes every matrix (cached or spilled) for a set of samples, in any HDF file.
+	 * @param sampleSet - the set of samples, as it was given to {@link CacheKey#CacheKey(String, String, String)}.
+	 * @return the number of matrices that were removed.
+	 */
+	public synchronized int removeSampleSet(String sampleSet)
+	{
+		List<CacheKey> keys = new ArrayList<>();
+		for (CacheKey key : this.entries.keySet())
+		{
+			if (key.getSampleSet().equals(sampleSet))
+			{
+				keys.add(key);
+			}
+		}
+		for (CacheKey key : this.spilledEntries.keySet())
+		{
+			if (key.getSampleSet().equals(sampleSet))
+			{
+				keys.add(key);
+			}
+		}
+		for (CacheKey key : keys)
+		{
+			this.remove(key);
+		}
+		return keys.size();
+	}
+
+	/**
+	 * Removes everything from the cache, and deletes the spilled files.
+	 */
+	public synchronized void clear()
+	{
+		this.entries.clear();
+		this.sizeInBytes = 0;
+		for (SpilledEntry spilledEntry : this.spilledEntries.values())
+		{
+			deleteSpillFile(spilledEntry.file);
+		}
+		this.spilledEntries.clear();
+		this.spilledBytes = 0;
+	}
+
+	private void remove(CacheKey key)
+	{
+		CacheEntry entry = this.entries.remove(key);
+		if (entry != null)
+		{
+			this.sizeInBytes -= entry.sizeInBytes;
+		}
+		SpilledEntry spilledEntry = this.spilledEntries.remove(key);
+		if (spilledEntry != null)
+		{
+			this.spilledBytes -= spilledEntry.sizeInBytes;
+			deleteSpillFile(spilledEntry.file);
+		}
+	}
+
+	private void evictToFit(long ceiling)
+	{
+		Iterator<Map.Entry<CacheKey, CacheEntry>> iterator = this.entries.entrySet().iterator();
+		while (this.sizeInBytes > ceiling && iterator.hasNext())
+		{
+			Map.Entry<CacheKey, CacheEntry> eldest = iterator.next();
+			iterator.remove();
+			this.sizeInBytes -= eldest.getValue().sizeInBytes;
+			this.evictions++;
+			logger.info("Evicted {} ({} bytes) from the expression values cache", eldest.getKey(), eldest.getValue().sizeInBytes);
+			this.spill(eldest.getKey(), eldest.getValue());
+		}
+	}
+
+	private void spill(CacheKey key, CacheEntry entry)
+	{
+		if (this.spillDirectory == null || entry.sizeInBytes > this.maximumSpillBytes
+			|| !(entry.value instanceof int[][] || entry.value instanceof GeneMajorExpressionMatrix))
+		{
+			return;
+		}
+		Path file = this.spillDirectory.resolve("spill-" + (this.spillFileCounter++) + ".bin");
+		try
+		{
+			writeSpillFile(file, entry.value);
+		}
+		catch (IOException e)
+		{
+			logger.warn("Could not spill " + key + " to " + file, e);
+			deleteSpillFile(file);
+			return;
+		}
+		this.spilledEntries.put(key, new SpilledEntry(file, entry.sizeInBytes));
+		this.spilledBytes += entry.sizeInBytes;
+		this.spills++;
+		Iterator<SpilledEntry> iterator = this.spilledEntries.values().iterator();
+		while (this.spilledBytes > this.maximumSpillBytes && iterator.hasNext())
+		{
+			SpilledEntry eldest = iterator.next();
+			iterator.remove();
+			this.spilledBytes -= eldest.sizeInBytes;
+			deleteSpillFile(eldest.file);
+		}
+	}
+
+	/**
+	 * Writes the rows of a matrix (samples for sample-major counts, genes for gene-major counts) as big-endian ints, after a header of
+	 * the magic number, the layout, and the number of rows and columns.
+	 */
+	private static void writeSpillFile(Path file, Object value) throws IOException
+	{
+		int layout = value instanceof int[][] ? SAMPLE_MAJOR : GENE_MAJOR;
+		int[][] rows = layout == SAMPLE_MAJOR ? (int[][]) value : null;
+		GeneMajorExpressionMatrix geneMajorValues = layout == GENE_MAJOR ? (GeneMajorExpressionMatrix) value : null;
+		int numberOfRows = layout == SAMPLE_MAJOR ? rows.length : geneMajorValues.getNumberOfGenes();
+		int numberOfColumns = layout == SAMPLE_MAJOR ? (numberOfRows > 0 ? rows[0].length : 0) : geneMajorValues.getNumberOfSamples();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+		{
+			ByteBuffer header = ByteBuffer.allocate(4 * Integer.BYTES);
+			header.putInt(SPILL_MAGIC_NUMBER).putInt(layout).putInt(numberOfRows).putInt(numberOfColumns);
+			header.flip();
+			writeFully(channel, header);
+			ByteBuffer rowBuffer = ByteBuffer.allocate(numberOfColumns * Integer.BYTES);
+			for (int rowIndex = 0; rowIndex < numberOfRows; rowIndex++)
+			{
+				rowBuffer.clear();
+				rowBuffer.asIntBuffer().put(layout == SAMPLE_MAJOR ? rows[rowIndex] : geneMajorValues.getGeneVector(rowIndex));
+				writeFully(channel, rowBuffer);
+			}
+		}
+	}
+
+	private static Object readSpillFile(Path file) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+		{
+			ByteBuffer header = ByteBuffer.allocate(4 * Integer.BYTES);
+			readFully(channel, header);
+			if (header.getInt() != SPILL_MAGIC_NUMBER)
+			{
+				throw new IOException(file + " is not a spilled matrix.");
+			}
+			int layout = header.getInt();
+			int[][] rows = new int[header.getInt()][header.getInt()];
+			ByteBuffer rowBuffer = ByteBuffer.allocate(rows.length > 0 ? rows[0].length * Integer.BYTES : 0);
+			for (int[] row : rows)
+			{
+				rowBuffer.clear();
+				readFully(channel, rowBuffer);
+				IntBuffer rowValues = rowBuffer.asIntBuffer();
+				rowValues.get(row);
+			}
+			return layout == SAMPLE_MAJOR ? rows : new GeneMajorExpressionMatrix(rows);
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException
+	{
+		buffer.rewind();
+		while (buffer.hasRemaining())
+		{
+			channel.write(buffer);
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			if (channel.read(buffer) < 0)
+			{
+				throw new IOException("Unexpected end of spill file.");
+			}
+		}
+		buffer.flip();
+	}
+
+	private static void deleteSpillFile(Path file)
+	{
+		try
+		{
+			Files.deleteIfExists(file);
+		}
+		catch (IOException e)
+		{
+			logger.warn("Could not delete spill file " + file, e);
+		}
+	}
+
+	/**
+	 * Estimates how much heap a matrix uses: the values, plus the overhead of one array per row.
+	 * @param value - a sample-major <code>int[][]</code>, or a {@link GeneVectorSource} whose vectors are 4-byte values (ints or floats), one array per gene.
+	 * @return the estimate, in bytes.
+	 */
+	static long estimateSizeInBytes(Object value)
+	{
+		long numberOfRows;
+		long numberOfColumns;
+		if (value instanceof int[][])
+		{
+			int[][] rows = (int[][]) value;
+			numberOfRows = rows.length;
+			numberOfColumns = rows.length > 0 ? rows[0].length : 0;
+		}
+		else if (value instanceof GeneVectorSource)
+		{
+			numberOfRows = ((GeneVectorSource) value).getNumberOfGenes();
+			numberOfColumns = ((GeneVectorSource) value).getNumberOfSamples();
+		}
+		else
+		{
+			throw new IllegalArgumentException("Cannot estimate the size of a " + value.getClass().getName());
+		}
+		return ARRAY_HEADER_BYTES + numberOfRows * (REFERENCE_BYTES + ARRAY_HEADER_BYTES + numberOfColumns * Integer.BYTES);
+	}
+
+	public synchronized long getMaximumBytes()
+	{
+		return this.maximumBytes;
+	}
+
+	/**
+	 * Sets the ceiling on the estimated size of everything in the cache. If the cache is already bigger, matrices are evicted straight away.
+	 * @param maximumBytes
+	 */
+	public synchronized void setMaximumBytes(long maximumBytes)
+	{
+		if (maximumBytes < 0)
+		{
+			throw new IllegalArgumentException("maximumBytes must not be negative, but was " + maximumBytes);
+		}
+		this.maximumBytes = maximumBytes;
+		this.evictToFit(maximumBytes);
+	}
+
+	public synchronized Path getSpillDirectory()
+	{
+		return this.spillDirectory;
+	}
+
+	/**
+	 * Sets the directory that evicted counts are spilled to. The default is null, which means that nothing is spilled.
+	 * @param spillDirectory - an existing directory, on a local disk.
+	 */
+	public synchronized void setSpillDirectory(Path spillDirectory)
+	{
+		this.spillDirectory = spillDirectory;
+	}
+
+	public synchronized long getMaximumSpillBytes()
+	{
+		return this.maximumSpillBytes;
+	}
+
+	/**
+	 * Sets the ceiling on the estimated size of everything in the spill directory. The default is no ceiling.
+	 * @param maximumSpillBytes
+	 */
+	public synchronized void setMaximumSpillBytes(long maximumSpillBytes)
+	{
+		this.maximumSpillBytes = maximumSpillBytes;
+	}
+
+	/**
+	 * @return the estimated size of everything in the cache (not including what was spilled).
+	 */
+	public synchronized long getSizeInBytes()
+	{
+		return this.sizeInBytes;
+	}
+
+	/**
+	 * @return the estimated size of everything in the spill directory.
+	 */
+	public synchronized long getSpilledBytes()
+	{
+		return this.spilledBytes;
+	}
+
+	/**
+	 * @return the number of matrices in the cache (not including what was spilled).
+	 */
+	public synchronized int size()
+	{
+		return this.entries.size();
+	}
+
+	/**
+	 * @return the number of {@link #get(CacheKey)} lookups that found the matrix in memory.
+	 */
+	public synchronized long getHits()
+	{
+		return this.hits;
+	}
+
+	/**
+	 * @return the number of {@link #get(CacheKey)} lookups that found nothing, in memory or in the spill directory.
+	 */
+	public synchronized long getMisses()
+	{
+		return this.misses;
+	}
+
+	/**
+	 * @return the number of matrices that were evicted from memory to keep the cache under its ceiling.
+	 */
+	public synchronized long getEvictions()
+	{
+		return this.evictions;
+	}
+
+	/**
+	 * @return the number of evicted matrices that were written to the spill directory.
+	 */
+	public synchronized long getSpills()
+	{
+		return this.spills;
+	}
+
+	/**
+	 * @return the number of lookups that read the matrix back from the spill directory.
+	 */
+	public synchronized long getSpillHits()
+	{
+		return this.spillHits;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return "ExpressionValuesCache[" + this.entries.size() + " matrices, " + this.sizeInBytes + " of " + this.maximumBytes + " bytes; hits=" + this.hits
+				+ ", misses=" + this.misses + ", evictions=" + this.evictions + ", spills=" + this.spills + ", spillHits=" + this.spillHits + "]";
+	}
+}
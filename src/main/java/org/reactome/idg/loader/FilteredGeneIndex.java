@@ -0,0 +1,202 @@
+package org.reactome.idg.loader;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.reactome.idg.loader.GenePrefilter.ExclusionReason;
+
+/**
+ * The result of a {@link GenePrefilter}: a compact index for the genes that were kept, and the reason each of the other genes was excluded.
+ * <br/>
+ * Compact index <code>i</code> is the i-th kept gene, in the order of the original (HDF file) indices, so a correlation matrix of the kept genes is
+ * indexed by compact index. Use {@link #getOriginalGeneIndex(int)} or {@link #remapGeneNames(Map)} to report the original gene names.
+ * @author sshorser
+ *
+ */
+public class FilteredGeneIndex
+{
+	// compact index -> original index.
+	private final int[] keptGeneIndices;
+	// original index -> compact index, or -1 if the gene was excluded.
+	private final int[] compactGeneIndices;
+	// indexed by original index; null if the gene was kept.
+	private final ExclusionReason[] reasons;
+	private final double[] zeroFractions;
+	private final double[] means;
+	private final double[] variances;
+
+	FilteredGeneIndex(ExclusionReason[] reasons, double[] zeroFractions, double[] means, double[] variances)
+	{
+		this.reasons = reasons;
+		this.zeroFractions = zeroFractions;
+		this.means = means;
+		this.variances = variances;
+		this.compactGeneIndices = new int[reasons.length];
+		Arrays.fill(this.compactGeneIndices, -1);
+		int numberOfKeptGenes = 0;
+		for (int geneIndex = 0; geneIndex < reasons.length; geneIndex++)
+		{
+			if (reasons[geneIndex] == null)
+			{
+				this.compactGeneIndices[geneIndex] = numberOfKeptGenes++;
+			}
+		}
+		this.keptGeneIndices = new int[numberOfKeptGenes];
+		for (int geneIndex = 0; geneIndex < reasons.length; geneIndex++)
+		{
+			if (this.compactGeneIndices[geneIndex] >= 0)
+			{
+				this.keptGeneIndices[this.compactGeneIndices[geneIndex]] = geneIndex;
+			}
+		}
+	}
+
+	/**
+	 * Gets the vectors of the kept genes only, by compact index. Nothing is copied: each read is passed through to <code>geneVectors</code>.
+	 * @param geneVectors - vectors for all of the original genes (expression values, normalized values, or ranks).
+	 * @return a source whose gene <code>i</code> is original gene <code>getOriginalGeneIndex(i)</code>.
+	 */
+	public GeneVectorSource select(GeneVectorSource geneVectors)
+	{
+		if (geneVectors.getNumberOfGenes() != this.reasons.length)
+		{
+			throw new IllegalArgumentException("The filter is for " + this.reasons.length + " genes, but there are " + geneVectors.getNumberOfGenes());
+		}
+		return new GeneVectorSource()
+		{
+			@Override
+			public int getNumberOfGenes()
+			{
+				return FilteredGeneIndex.this.keptGeneIndices.length;
+			}
+
+			@Override
+			public int getNumberOfSamples()
+			{
+				return geneVectors.getNumberOfSamples();
+			}
+
+			@Override
+			public void readGeneVector(int geneIndex, double[] destination)
+			{
+				geneVectors.readGeneVector(FilteredGeneIndex.this.keptGeneIndices[geneIndex], destination);
+			}
+		};
+	}
+
+	/**
+	 * Maps gene names from original indices to compact indices, so that sinks such as {@link LoadDataFileRowSink} write the original names.
+	 * @param geneIndicesToNames - gene names by original index, such as {@link Archs4ExpressionDataLoader#getGeneIndicesToNames()}.
+	 * @return gene names by compact index.
+	 */
+	public Map<Integer, String> remapGeneNames(Map<Integer, String> geneIndicesToNames)
+	{
+		Map<Integer, String> remappedNames = new HashMap<>();
+		for (int compactIndex = 0; compactIndex < this.keptGeneIndices.length; compactIndex++)
+		{
+			remappedNames.put(compactIndex, geneIndicesToNames.get(this.keptGeneIndices[compactIndex]));
+		}
+		return remappedNames;
+	}
+
+	/**
+	 * Writes the excluded genes to a tab-separated file, with the reason and the statistics that the decision was based on.
+	 * @param file - the file to write.
+	 * @param geneIndicesToNames - gene names by original index.
+	 * @throws IOException
+	 */
+	public void writeExclusions(Path file, Map<Integer, String> geneIndicesToNames) throws IOException
+	{
+		try (BufferedWriter writer = Files.newBufferedWriter(file))
+		{
+			writer.write("gene\treason\tzeroFraction\tmean\tvariance\n");
+			for (Map.Entry<Integer, ExclusionReason> exclusion : this.getExcludedGenes().entrySet())
+			{
+				int geneIndex = exclusion.getKey();
+				writer.write(geneIndicesToNames.get(geneIndex) + "\t" + exclusion.getValue() + "\t" + this.zeroFractions[geneIndex] + "\t" + this.means[geneIndex] + "\t" + this.variances[geneIndex] + "\n");
+			}
+		}
+	}
+
+	/**
+	 * @return the excluded genes' original indices, in order, with the reason each one was excluded.
+	 */
+	public Map<Integer, ExclusionReason> getExcludedGenes()
+	{
+		Map<Integer, ExclusionReason> excludedGenes = new LinkedHashMap<>();
+		for (int geneIndex = 0; geneIndex < this.reasons.length; geneIndex++)
+		{
+			if (this.reasons[geneIndex] != null)
+			{
+				excludedGenes.put(geneIndex, this.reasons[geneIndex]);
+			}
+		}
+		return excludedGenes;
+	}
+
+	/**
+	 * @return the number of genes that were kept: the size of the compact index.
+	 */
+	public int getNumberOfGenes()
+	{
+		return this.keptGeneIndices.length;
+	}
+
+	public int getNumberOfOriginalGenes()
+	{
+		return this.reasons.length;
+	}
+
+	public int getNumberOfExcludedGenes()
+	{
+		return this.reasons.length - this.keptGeneIndices.length;
+	}
+
+	/**
+	 * @param compactIndex - the index of a kept gene in the correlation matrix.
+	 * @return the gene's index in the HDF file.
+	 */
+	public int getOriginalGeneIndex(int compactIndex)
+	{
+		return this.keptGeneIndices[compactIndex];
+	}
+
+	/**
+	 * @param originalIndex - the gene's index in the HDF file.
+	 * @return the gene's index in the correlation matrix, or -1 if it was excluded.
+	 */
+	public int getCompactGeneIndex(int originalIndex)
+	{
+		return this.compactGeneIndices[originalIndex];
+	}
+
+	/**
+	 * @param originalIndex - the gene's index in the HDF file.
+	 * @return why the gene was excluded, or null if it was kept.
+	 */
+	public ExclusionReason getExclusionReason(int originalIndex)
+	{
+		return this.reasons[originalIndex];
+	}
+
+	public double getZeroFraction(int originalIndex)
+	{
+		return this.zeroFractions[originalIndex];
+	}
+
+	public double getMean(int originalIndex)
+	{
+		return this.means[originalIndex];
+	}
+
+	public double getVariance(int originalIndex)
+	{
+		return this.variances[originalIndex];
+	}
+}
@@ -0,0 +1,105 @@
+package org.reactome.idg.loader;
+
+import java.util.stream.IntStream;
+
+/**
+ * Expression values for a tissue, stored gene-major: each gene's values across all of the tissue's samples are in one contiguous int[].
+ * This is the transpose of the <code>int[samples][genes]</code> layout that is read from the HDF file. Calculators need to read
+ * one gene at a time, and with this layout that is a sequential read of an existing array instead of a strided gather into a new one.
+ * <br/>
+ * Each gene has its own array (rather than all genes sharing one flat array), so there is no 2^31 limit on genes x samples, which
+ * the largest tissues would exceed.
+ * @author sshorser
+ *
+ */
+public class GeneMajorExpressionMatrix implements GeneVectorSource
+{
+	// Size of the square blocks that the transpose is done in, so that both the source rows and destination rows stay in the CPU cache.
+	private static final int TRANSPOSE_BLOCK_SIZE = 64;
+
+	// outer index is gene, inner index is sample.
+	private final int[][] geneVectors;
+	private final int numberOfSamples;
+
+	/**
+	 * Creates a matrix from existing gene vectors. The arrays are used as-is, not copied.
+	 * @param geneVectors - outer index is gene, inner index is sample. All arrays must be the same length.
+	 */
+	public GeneMajorExpressionMatrix(int[][] geneVectors)
+	{
+		this.geneVectors = geneVectors;
+		this.numberOfSamples = geneVectors.length > 0 ? geneVectors[0].length : 0;
+	}
+
+	/**
+	 * Creates a gene-major matrix by transposing a sample-major one.
+	 * @param sampleValues - expression values: outer index is sample, inner index is gene.
+	 * @return a new GeneMajorExpressionMatrix.
+	 */
+	public static GeneMajorExpressionMatrix fromSampleValues(int[][] sampleValues)
+	{
+		int numberOfSamples = sampleValues.length;
+		int numberOfGenes = sampleValues[0].length;
+		int[][] geneVectors = new int[numberOfGenes][numberOfSamples];
+		// Each task transposes all of the samples for one block of genes, so no two tasks write to the same array.
+		IntStream.range(0, (numberOfGenes + TRANSPOSE_BLOCK_SIZE - 1) / TRANSPOSE_BLOCK_SIZE).parallel().forEach(geneBlock -> {
+			int firstGene = geneBlock * TRANSPOSE_BLOCK_SIZE;
+			int lastGene = Math.min(firstGene + TRANSPOSE_BLOCK_SIZE, numberOfGenes);
+			for (int firstSample = 0; firstSample < numberOfSamples; firstSample += TRANSPOSE_BLOCK_SIZE)
+			{
+				int lastSample = Math.min(firstSample + TRANSPOSE_BLOCK_SIZE, numberOfSamples);
+				for (int geneIndex = firstGene; geneIndex < lastGene; geneIndex++)
+				{
+					int[] geneVector = geneVectors[geneIndex];
+					for (int sampleIndex = firstSample; sampleIndex < lastSample; sampleIndex++)
+					{
+						geneVector[sampleIndex] = sampleValues[sampleIndex][geneIndex];
+					}
+				}
+			}
+		});
+		return new GeneMajorExpressionMatrix(geneVectors);
+	}
+
+	/**
+	 * Gets the expression values of a gene across all samples. This is the matrix's own array, NOT a copy, so it must not be modified.
+	 * @param geneIndex - the index of the gene.
+	 * @return the gene's values, in sample order.
+	 */
+	public int[] getGeneVector(int geneIndex)
+	{
+		return this.geneVectors[geneIndex];
+	}
+
+	@Override
+	public void readGeneVector(int geneIndex, double[] destination)
+	{
+		int[] geneVector = this.geneVectors[geneIndex];
+		for (int sampleIndex = 0; sampleIndex < this.numberOfSamples; sampleIndex++)
+		{
+			destination[sampleIndex] = geneVector[sampleIndex];
+		}
+	}
+
+	/**
+	 * Gets a single expression value.
+	 * @param geneIndex
+	 * @param sampleIndex
+	 */
+	public int getValue(int geneIndex, int sampleIndex)
+	{
+		return this.geneVectors[geneIndex][sampleIndex];
+	}
+
+	@Override
+	public int getNumberOfGenes()
+	{
+		return this.geneVectors.length;
+	}
+
+	@Override
+	public int getNumberOfSamples()
+	{
+		return this.numberOfSamples;
+	}
+}
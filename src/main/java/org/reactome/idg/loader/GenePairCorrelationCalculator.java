@@ -1,14 +1,20 @@
 package org.reactome.idg.loader;
 
 import java.io.IOException;
-import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.IntStream;
 
 import org.apache.commons.math3.stat.correlation.PearsonsCorrelation;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 /**
- * Can be used to calculate the correlation between two specific genes, for a specific tissue.
+ * Can be used to calculate the correlation between two specific genes, for a specific tissue. For Spearman correlations
+ * (see {@link #setCorrelationType(CorrelationType)}), the ranks of every gene are calculated once per tissue and cached by the data loader,
+ * so each pair does not need to be re-ranked.
  * @author sshorser
  *
  */
@@ -19,7 +25,11 @@ public class GenePairCorrelationCalculator extends CorrelationCalculator
 	private String gene2;
 	private static final Logger logger = LogManager.getLogger();
 	private String currentTissue;
-	private static int[][] cachedExprValues;
+	private CorrelationType currentCorrelationType;
+	private ExpressionNormalization currentNormalization;
+	// expression values (possibly normalized) for Pearson, or their ranks for Spearman. Per calculator, like the fields above that
+	// say what it holds: a shared cache could be read by a calculator with a different correlation type or normalization.
+	private GeneVectorSource cachedExprValues;
 	
 	/**
 	 * Creates a calculator without specify the genes.
@@ -68,41 +78,117 @@ public class GenePairCorrelationCalculator extends CorrelationCalculator
 	public double calculateGenePairCorrelation() throws IOException
 	{
 		this.verifyGenes();
-		int[][] sampleValues = new int[1][1];
-		// if the tissue has changed, we'll need to load new values into the cache.
-		if (!this.tissue.equals(currentTissue))
+		GeneVectorSource expressionValues;
+		// if the tissue (or the type of correlation, or the normalization) has changed, we'll need to load new values into the cache.
+		if (!this.tissue.equals(currentTissue) || this.correlationType != currentCorrelationType || !Objects.equals(this.normalization, currentNormalization))
 		{
 			currentTissue = this.tissue;
-			sampleValues = this.dataLoader.getExpressionValuesforTissue(Paths.get(this.tissue));
-			cachedExprValues = sampleValues;
+			currentCorrelationType = this.correlationType;
+			currentNormalization = this.normalization;
+			expressionValues = this.getGeneVectors();
+			cachedExprValues = expressionValues;
 		}
 		else
 		{
 			// if there is a cache then use it.
 			if (cachedExprValues != null)
 			{
-				sampleValues = cachedExprValues;
+				expressionValues = cachedExprValues;
 			}
 			else 
 			{
 				// this code path probably isn't possible, since the current and previous tissues are already known to match, meaning the samples have probaby already been loaded.
-				sampleValues = this.dataLoader.getExpressionValuesforTissue(Paths.get(this.tissue));
-				cachedExprValues = sampleValues;
+				expressionValues = this.getGeneVectors();
+				cachedExprValues = expressionValues;
 			}
 		}
-		int numberOfSamples = sampleValues.length;
 		// get indices of the genes.
 		int geneIndex = this.dataLoader.getGeneIndices().get(this.gene1);
 		int otherGeneIndex = this.dataLoader.getGeneIndices().get(this.gene2);
-		// get the sample values for the two genes.
-		final double[] geneSamples = CorrelationCalculator.getSampleValuesForGene(sampleValues, geneIndex, numberOfSamples);
-		final double[] otherGeneSamples = CorrelationCalculator.getSampleValuesForGene(sampleValues, otherGeneIndex, numberOfSamples);
+		// get the sample values for the two genes. Each gene's values are already contiguous, so this is a sequential copy.
+		final double[] geneSamples = new double[expressionValues.getNumberOfSamples()];
+		final double[] otherGeneSamples = new double[expressionValues.getNumberOfSamples()];
+		expressionValues.readGeneVector(geneIndex, geneSamples);
+		expressionValues.readGeneVector(otherGeneIndex, otherGeneSamples);
 		// calculate the Pearson's Correlation for the two sets of values, and return the correlation value.
+		// For Spearman, the values are already ranks, so this is the Spearman correlation of the expression values.
 		PearsonsCorrelation cor = new PearsonsCorrelation();
 		double correlationValue = cor.correlation(geneSamples, otherGeneSamples);
 		return correlationValue;
 	}
 	
+	/**
+	 * Calculates the correlations for a batch of gene pairs, for this calculator's tissue. Pair <code>i</code> is <code>firstGenes.get(i)</code>
+	 * and <code>secondGenes.get(i)</code>.
+	 * <br/>
+	 * Each distinct gene is only looked up and standardized once (see {@link StandardizedGeneMatrix}), however many pairs it is in, and the
+	 * pairs are calculated in parallel. A pair with a gene that is not in the HDF file does not stop the batch: it gets a value of NaN, and
+	 * is reported in {@link GenePairCorrelationResults#getFailures()}.
+	 * @param firstGenes - the first gene of each pair.
+	 * @param secondGenes - the second gene of each pair.
+	 * @return the correlation values, in the same order as the pairs.
+	 * @throws IOException
+	 * @throws IllegalArgumentException If the lists are not the same length.
+	 */
+	public GenePairCorrelationResults calculateGenePairCorrelations(List<String> firstGenes, List<String> secondGenes) throws IOException
+	{
+		return this.calculateGenePairCorrelations(this.getGeneVectors(), this.dataLoader.getGeneIndices(), firstGenes, secondGenes);
+	}
+	
+	/**
+	 * Calculates the correlations for a batch of gene pairs, from a gene-major matrix of expression values, as described for {@link #calculateGenePairCorrelations(List, List)}.
+	 * @param expressionValues - the expression values.
+	 * @param geneIndices - maps gene symbols to their indices in <code>expressionValues</code>.
+	 * @param firstGenes - the first gene of each pair.
+	 * @param secondGenes - the second gene of each pair.
+	 * @return the correlation values, in the same order as the pairs.
+	 */
+	public GenePairCorrelationResults calculateGenePairCorrelations(GeneMajorExpressionMatrix expressionValues, Map<String, Integer> geneIndices, List<String> firstGenes, List<String> secondGenes)
+	{
+		return this.calculateGenePairCorrelations(this.getGeneVectors(expressionValues), geneIndices, firstGenes, secondGenes);
+	}
+	
+	private GenePairCorrelationResults calculateGenePairCorrelations(GeneVectorSource geneVectors, Map<String, Integer> geneIndices, List<String> firstGenes, List<String> secondGenes)
+	{
+		if (firstGenes.size() != secondGenes.size())
+		{
+			throw new IllegalArgumentException("There are " + firstGenes.size() + " first genes but " + secondGenes.size() + " second genes; they must be the same length.");
+		}
+		int numberOfPairs = firstGenes.size();
+		GenePairCorrelationResults results = new GenePairCorrelationResults(numberOfPairs);
+		// Give each distinct gene a slot, so it is only standardized once. -1 marks a pair that failed.
+		Map<Integer, Integer> geneSlots = new HashMap<>();
+		int[] firstSlots = new int[numberOfPairs];
+		int[] secondSlots = new int[numberOfPairs];
+		for (int pairIndex = 0; pairIndex < numberOfPairs; pairIndex++)
+		{
+			Integer firstGeneIndex = geneIndices.get(firstGenes.get(pairIndex));
+			Integer secondGeneIndex = geneIndices.get(secondGenes.get(pairIndex));
+			if (firstGeneIndex == null || secondGeneIndex == null)
+			{
+				String unknownGene = firstGeneIndex == null ? firstGenes.get(pairIndex) : secondGenes.get(pairIndex);
+				results.addFailure(pairIndex, "Gene " + unknownGene + " is not recognized in the HDF file.");
+				firstSlots[pairIndex] = -1;
+				continue;
+			}
+			firstSlots[pairIndex] = geneSlots.computeIfAbsent(firstGeneIndex, k -> geneSlots.size());
+			secondSlots[pairIndex] = geneSlots.computeIfAbsent(secondGeneIndex, k -> geneSlots.size());
+		}
+		if (results.hasFailures())
+		{
+			logger.warn("{} of {} gene pairs have genes that are not in the HDF file.", results.getFailures().size(), numberOfPairs);
+		}
+		int[] slotGeneIndices = new int[geneSlots.size()];
+		for (Map.Entry<Integer, Integer> entry : geneSlots.entrySet())
+		{
+			slotGeneIndices[entry.getValue()] = entry.getKey();
+		}
+		StandardizedGeneMatrix standardizedGenes = StandardizedGeneMatrix.fromGeneVectors(geneVectors, slotGeneIndices);
+		IntStream.range(0, numberOfPairs).parallel().filter(pairIndex -> firstSlots[pairIndex] >= 0)
+			.forEach(pairIndex -> results.setValue(pairIndex, standardizedGenes.correlation(firstSlots[pairIndex], secondSlots[pairIndex])));
+		return results;
+	}
+	
 	/**
 	 * Verify that the genes are OK. If they are not known in the HDF file, then thrown an exception.
 	 * @throws IllegalArgumentException If genes are not valid.
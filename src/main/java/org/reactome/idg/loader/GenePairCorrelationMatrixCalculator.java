@@ -1,21 +1,33 @@
 package org.reactome.idg.loader;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.math3.linear.Array2DRowRealMatrix;
 import org.apache.commons.math3.linear.RealMatrix;
 import org.apache.commons.math3.stat.correlation.PearsonsCorrelation;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.reactome.idg.loader.CorrelationTileScheduler.TileComputation;
 
 /**
- * Calculates a matrix of N x N (where N is number of genes) for a specific tissue.
+ * Calculates a matrix of N x N (where N is number of genes) for a specific tissue. Pearson or Spearman correlations can be
+ * calculated (see {@link #setCorrelationType(CorrelationType)}); Spearman ranks each gene once, and then uses the same code as Pearson.
+ * <br/>
+ * If a {@link GenePrefilter} has been set, genes that it excludes are left out of the matrix, which is then indexed by the compact
+ * index of the kept genes (see {@link #getFilteredGeneIndex()}), not by the gene indices in the HDF file.
  * @author sshorser
  *
  */
@@ -23,6 +35,72 @@ public class GenePairCorrelationMatrixCalculator extends CorrelationCalculator
 {
 	private static final Logger logger = LogManager.getLogger();
 	
+	/**
+	 * The different ways that the correlation matrix can be calculated.
+	 */
+	public enum CalculationMode
+	{
+		/**
+		 * Uses a commons-math <code>PearsonsCorrelation</code> for every gene pair.
+		 */
+		COMMONS_MATH,
+		/**
+		 * Standardizes each gene's vector once (see {@link StandardizedGeneMatrix}) and then calculates the matrix as tiles of dot products.
+		 * Results match COMMONS_MATH to within {@link StandardizedGeneMatrix#TOLERANCE}.
+		 */
+		STANDARDIZED_TILED;
+	}
+	
+	/**
+	 * The different kinds of matrix that the results can be stored in.
+	 */
+	public enum MatrixStorage
+	{
+		/**
+		 * A dense N x N matrix of doubles (Array2DRowRealMatrix). Only the upper half gets used.
+		 */
+		DENSE,
+		/**
+		 * Only the upper triangle, stored as doubles (see {@link PackedDoubleSymmetricMatrix}). Half the size of DENSE.
+		 */
+		PACKED_DOUBLE,
+		/**
+		 * Only the upper triangle, stored as floats (see {@link PackedFloatSymmetricMatrix}). A quarter of the size of DENSE.
+		 */
+		PACKED_FLOAT,
+		/**
+		 * Only the upper triangle, quantized to shorts (see {@link PackedShortSymmetricMatrix}). An eighth of the size of DENSE;
+		 * values are within {@link CorrelationQuantizer#SHORT_ERROR_BOUND} of the calculated values.
+		 */
+		PACKED_SHORT,
+		/**
+		 * Only the upper triangle, quantized to bytes (see {@link PackedByteSymmetricMatrix}). A sixteenth of the size of DENSE;
+		 * values are only within {@link CorrelationQuantizer#BYTE_ERROR_BOUND} of the calculated values.
+		 */
+		PACKED_BYTE;
+	}
+	
+	// The number of genes along each side of a tile.
+	private static final int DEFAULT_TILE_SIZE = 64;
+	// The number of finished row blocks that can wait for a sink before the calculation pauses.
+	private static final int DEFAULT_MAX_BLOCKS_IN_FLIGHT = 4;
+	// Marks the end of the row blocks for the thread that feeds a sink.
+	private static final CorrelationRowBlock END_OF_ROWS = new CorrelationRowBlock(0, 0, 0);
+	
+	private CalculationMode calculationMode = CalculationMode.COMMONS_MATH;
+	private MatrixStorage matrixStorage = MatrixStorage.DENSE;
+	private int tileSize = DEFAULT_TILE_SIZE;
+	private int maxBlocksInFlight = DEFAULT_MAX_BLOCKS_IN_FLIGHT;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	private Path checkpointDirectory;
+	private boolean deleteCheckpointWhenComplete = true;
+	private volatile CorrelationProgressMetrics metrics;
+	private GenePrefilter prefilter;
+	private FilteredGeneIndex filteredGeneIndex;
+	// The expression values and prefilter that filteredGeneIndex was calculated for, so it is only calculated once for them.
+	private GeneMajorExpressionMatrix filteredGeneIndexSource;
+	private GenePrefilter filteredGeneIndexPrefilter;
+	
 	/**
 	 * Creates a calculator.
 	 * @param t - the path to the file with the tissue samples.
@@ -33,74 +111,704 @@ public class GenePairCorrelationMatrixCalculator extends CorrelationCalculator
 		super(t, loader);
 	}
 	
+	/**
+	 * Gets the gene vectors for this calculator's tissue (see {@link CorrelationCalculator#getGeneVectors()}), with only the genes that pass the prefilter, if one has been set.
+	 */
+	@Override
+	protected GeneVectorSource getGeneVectors() throws IOException
+	{
+		GeneVectorSource geneVectors = super.getGeneVectors();
+		if (this.prefilter == null)
+		{
+			return geneVectors;
+		}
+		return this.applyPrefilter(this.getGeneMajorExpressionValues(), geneVectors);
+	}
+	
+	/**
+	 * Gets the gene vectors for a matrix of expression values (see {@link CorrelationCalculator#getGeneVectors(GeneMajorExpressionMatrix)}), with only the genes
+	 * that pass the prefilter, if one has been set.
+	 */
+	@Override
+	protected GeneVectorSource getGeneVectors(GeneMajorExpressionMatrix expressionValues)
+	{
+		GeneVectorSource geneVectors = super.getGeneVectors(expressionValues);
+		if (this.prefilter == null)
+		{
+			return geneVectors;
+		}
+		return this.applyPrefilter(expressionValues, geneVectors);
+	}
+	
+	/**
+	 * Decides which genes pass the prefilter, using the raw counts (even if the correlations are of normalized values or ranks), and selects them from the gene vectors.
+	 */
+	private synchronized GeneVectorSource applyPrefilter(GeneMajorExpressionMatrix expressionValues, GeneVectorSource geneVectors)
+	{
+		if (this.filteredGeneIndexSource != expressionValues || !this.prefilter.equals(this.filteredGeneIndexPrefilter))
+		{
+			this.filteredGeneIndex = this.prefilter.apply(expressionValues);
+			this.filteredGeneIndexSource = expressionValues;
+			this.filteredGeneIndexPrefilter = this.prefilter;
+		}
+		return this.filteredGeneIndex.select(geneVectors);
+	}
+	
 	/**
 	 * Calculate the correlation between all genes for a specific tissue.
 	 * @return a triangular matrix containing correlation values. Only the main diagonal and values above will be populated (the whole thing does NOT need to be populated since the lower half is just the
-	 * mirror image of the upper half). The matrix will be N x N, where N = number of genes in HDF file.
+	 * mirror image of the upper half). The matrix will be N x N, where N = number of genes in HDF file. If the matrix storage is one of the PACKED
+	 * types, a {@link PackedSymmetricMatrix} will be returned, and the lower half will mirror the upper half.
 	 * @throws IOException
 	 */
 	public RealMatrix calculateCorrelation() throws IOException
 	{
 		// We're assuming that "tissues" are names of files with tissue-specific sample IDs.
-		// outer index is sample, inner index is gene.
-		int[][] sampleValues = this.dataLoader.getExpressionValuesforTissue(Paths.get(this.tissue));
-		int numberOfGenes = this.dataLoader.getGeneIndices().size();
-		RealMatrix corMatrix = new Array2DRowRealMatrix(numberOfGenes, numberOfGenes);
-//		ExecutorService execService = Executors.newCachedThreadPool();
-		ForkJoinPool pool = new ForkJoinPool();
-		List<Callable<Double>> workers = new ArrayList<>();
-		AtomicInteger calculationsPerformed = new AtomicInteger(0);
-		// need to compare each gene to each other gene.
-		for (int geneIndex = 0; geneIndex < numberOfGenes - 1; geneIndex++)
-		{
-			int numberOfSamples = sampleValues.length;
-			// Build a list of sample values for a gene, for all the samples associated with the given tissue.
-			final double[] geneSamples = CorrelationCalculator.getSampleValuesForGene(sampleValues, geneIndex, numberOfSamples);
-			// Now, for all OTHER genes...
-			for (int otherGeneIndex = geneIndex; otherGeneIndex < numberOfGenes - 1; otherGeneIndex ++)
+		return this.calculateCorrelationMatrix(this.getGeneVectors());
+	}
+	
+	/**
+	 * Calculate the correlation between all genes in a matrix of expression values, using the current calculation mode and correlation type.
+	 * @param sampleValues - expression values: outer index is sample, inner index is gene.
+	 * @return a triangular matrix containing correlation values, as described for {@link #calculateCorrelation()}. The matrix will be N x N,
+	 * where N is the number of genes in <code>sampleValues</code>.
+	 */
+	public RealMatrix calculateCorrelation(int[][] sampleValues)
+	{
+		return this.calculateCorrelation(GeneMajorExpressionMatrix.fromSampleValues(sampleValues));
+	}
+	
+	/**
+	 * Calculate the correlation between all genes in a gene-major matrix of expression values, using the current calculation mode and correlation type.
+	 * @param expressionValues - the expression values.
+	 * @return a triangular matrix containing correlation values, as described for {@link #calculateCorrelation()}. The matrix will be N x N,
+	 * where N is the number of genes in <code>expressionValues</code>.
+	 */
+	public RealMatrix calculateCorrelation(GeneMajorExpressionMatrix expressionValues)
+	{
+		return this.calculateCorrelationMatrix(this.getGeneVectors(expressionValues));
+	}
+	
+	/**
+	 * Calculates the correlation matrix for a set of gene vectors (expression values or ranks, depending on the correlation type), using the current calculation mode.
+	 */
+	private RealMatrix calculateCorrelationMatrix(GeneVectorSource geneVectors)
+	{
+		if (this.calculationMode == CalculationMode.STANDARDIZED_TILED)
+		{
+			return this.calculateCorrelationStandardized(geneVectors);
+		}
+		return this.calculateCorrelationWithCommonsMath(geneVectors);
+	}
+	
+	/**
+	 * Calculate the correlation between all genes for a specific tissue, and stream the rows of the result to a sink instead of returning a matrix.
+	 * This always uses the {@link CalculationMode#STANDARDIZED_TILED} engine.
+	 * <br/>
+	 * If a checkpoint directory has been set (see {@link #setCheckpointDirectory(Path)}), each row block is saved there as it is completed. If the
+	 * directory already has a checkpoint for the same tissue, HDF file and parameters, its blocks are read back instead of being re-calculated; if
+	 * every block was completed, the expression values are not even loaded. The sink still receives every row.
+	 * @param sink - will receive the rows of the upper triangle of the matrix. The sink will be closed when this method returns.
+	 * @throws IOException If the sink could not write the rows, or the checkpoint could not be read or written.
+	 */
+	public void calculateCorrelation(CorrelationRowSink sink) throws IOException
+	{
+		if (this.checkpointDirectory == null)
+		{
+			this.streamCorrelation(this.getGeneVectors(), null, sink);
+			return;
+		}
+		CorrelationCheckpoint checkpoint = this.openCheckpoint();
+		int numberOfGenes = this.dataLoader.getNumberOfGenes();
+		GeneVectorSource geneVectors = null;
+		if (this.prefilter != null)
+		{
+			// How many genes pass the prefilter is only known once the expression values have been read.
+			geneVectors = this.getGeneVectors();
+			numberOfGenes = geneVectors.getNumberOfGenes();
+		}
+		int numberOfBlocks = (numberOfGenes + this.tileSize - 1) / this.tileSize;
+		if (checkpoint.getNumberOfCompletedBlocks() == numberOfBlocks)
+		{
+			this.replayCheckpoint(checkpoint, numberOfGenes, sink);
+		}
+		else
+		{
+			if (geneVectors == null)
 			{
-				final double[] otherGeneSamples = CorrelationCalculator.getSampleValuesForGene(sampleValues, otherGeneIndex, numberOfSamples);
-				// now that we have a list of values for a gene, and for another gene, we can calculate the correlation:
-				final int gIndx = geneIndex;
-				final int gOtherIndx = otherGeneIndex;
-				// Create a worker than will calculate the correlation for two lists of sample data.
-				Callable<Double> worker = new Callable<Double>()
+				geneVectors = this.getGeneVectors();
+			}
+			if (geneVectors.getNumberOfGenes() != numberOfGenes)
+			{
+				throw new IllegalStateException("The expression values have " + geneVectors.getNumberOfGenes() + " genes, but the HDF file has " + numberOfGenes);
+			}
+			this.streamCorrelation(geneVectors, checkpoint, sink);
+		}
+		if (this.deleteCheckpointWhenComplete)
+		{
+			checkpoint.delete();
+		}
+	}
+	
+	/**
+	 * Opens the checkpoint for this calculator's tissue. The manifest has the HDF file's size and last-modified time, as well as its gene and
+	 * sample counts (which come from the open HDF session, so they do not show a change to the file on their own). A checkpoint for an HDF
+	 * file that has been changed or replaced since the checkpoint was started will never be reused.
+	 */
+	private CorrelationCheckpoint openCheckpoint() throws IOException
+	{
+		this.dataLoader.loadCounts();
+		int[] sampleIndices = this.dataLoader.getSampleIndicesForTissue(Paths.get(this.tissue));
+		Path hdfFile = Paths.get(this.dataLoader.getHdfExpressionFile());
+		Properties manifest = new Properties();
+		manifest.setProperty("hdf.file", hdfFile.toAbsolutePath().toString());
+		manifest.setProperty("hdf.size", String.valueOf(Files.size(hdfFile)));
+		manifest.setProperty("hdf.lastModified", String.valueOf(Files.getLastModifiedTime(hdfFile).toMillis()));
+		manifest.setProperty("hdf.numberOfGenes", String.valueOf(this.dataLoader.getNumberOfGenes()));
+		manifest.setProperty("hdf.numberOfSamples", String.valueOf(this.dataLoader.getNumberOfSamples()));
+		manifest.setProperty("tissue.file", Paths.get(this.tissue).toAbsolutePath().toString());
+		manifest.setProperty("tissue.numberOfSamples", String.valueOf(sampleIndices.length));
+		manifest.setProperty("tissue.sampleIndicesHash", String.valueOf(Arrays.hashCode(sampleIndices)));
+		manifest.setProperty("correlationType", this.correlationType.toString());
+		manifest.setProperty("normalization", this.normalization == null ? "none" : this.normalization.getCacheKey());
+		manifest.setProperty("prefilter", this.prefilter == null ? "none" : this.prefilter.getCacheKey());
+		manifest.setProperty("tileSize", String.valueOf(this.tileSize));
+		return CorrelationCheckpoint.open(this.checkpointDirectory, manifest);
+	}
+	
+	/**
+	 * Sends every block of a completed checkpoint to a sink.
+	 */
+	private void replayCheckpoint(CorrelationCheckpoint checkpoint, int numberOfGenes, CorrelationRowSink sink) throws IOException
+	{
+		logger.info("Every row block is in the checkpoint; the rows will be read from it.");
+		try
+		{
+			sink.start(numberOfGenes);
+			for (int rowStart = 0; rowStart < numberOfGenes; rowStart += this.tileSize)
+			{
+				sink.accept(checkpoint.readBlock(numberOfGenes, rowStart, Math.min(this.tileSize, numberOfGenes - rowStart)));
+			}
+		}
+		finally
+		{
+			sink.close();
+		}
+	}
+	
+	/**
+	 * Calculate the correlation between all genes in a matrix of expression values, and stream the rows of the result to a sink.
+	 * @param sampleValues - expression values: outer index is sample, inner index is gene.
+	 * @param sink - will receive the rows of the upper triangle of the matrix, in order. The sink will be closed when this method returns.
+	 * @throws IOException If the sink could not write the rows.
+	 * @see #calculateCorrelation(GeneMajorExpressionMatrix, CorrelationRowSink)
+	 */
+	public void calculateCorrelation(int[][] sampleValues, CorrelationRowSink sink) throws IOException
+	{
+		this.calculateCorrelation(GeneMajorExpressionMatrix.fromSampleValues(sampleValues), sink);
+	}
+	
+	/**
+	 * Calculate the correlation between all genes in a gene-major matrix of expression values, and stream the rows of the result to a sink.
+	 * <br/>
+	 * The rows are calculated in blocks of <code>tileSize</code> rows. Each block is handed to a separate thread that feeds the sink,
+	 * while the next block is being calculated. If the sink falls behind, the calculation waits until there are fewer than
+	 * <code>maxBlocksInFlight</code> blocks waiting, so the memory in use is about (maxBlocksInFlight + 2) * tileSize * N values, rather than N * N.
+	 * @param expressionValues - the expression values.
+	 * @param sink - will receive the rows of the upper triangle of the matrix, in order. The sink will be closed when this method returns.
+	 * @throws IOException If the sink could not write the rows.
+	 */
+	public void calculateCorrelation(GeneMajorExpressionMatrix expressionValues, CorrelationRowSink sink) throws IOException
+	{
+		this.streamCorrelation(this.getGeneVectors(expressionValues), null, sink);
+	}
+	
+	/**
+	 * Calculates the correlation matrix for a set of gene vectors and streams its rows to a sink, as described for
+	 * {@link #calculateCorrelation(GeneMajorExpressionMatrix, CorrelationRowSink)}.
+	 * If there is a checkpoint, blocks that it already has are read from it, and the other blocks are written to it (by the thread that feeds the sink)
+	 * before they are sent to the sink.
+	 */
+	private void streamCorrelation(GeneVectorSource geneVectors, CorrelationCheckpoint checkpoint, CorrelationRowSink sink) throws IOException
+	{
+		int numberOfGenes = geneVectors.getNumberOfGenes();
+		StandardizedGeneMatrix standardizedMatrix = StandardizedGeneMatrix.fromGeneVectors(geneVectors);
+		BlockingQueue<CorrelationRowBlock> blockQueue = new ArrayBlockingQueue<>(this.maxBlocksInFlight);
+		ExecutorService sinkExecutor = Executors.newSingleThreadExecutor();
+		CorrelationTileScheduler scheduler = this.createScheduler();
+		CorrelationProgressMetrics progressMetrics = this.startMetrics(numberOfGenes, scheduler);
+		progressMetrics.setBlocksWaitingForSink(blockQueue::size);
+		try
+		{
+			sink.start(numberOfGenes);
+			Future<?> sinkWriter = sinkExecutor.submit(() -> {
+				CorrelationRowBlock block = blockQueue.take();
+				while (block != END_OF_ROWS)
+				{
+					if (checkpoint != null && !checkpoint.hasBlock(block.getStartRow()))
+					{
+						checkpoint.writeBlock(block);
+					}
+					sink.accept(block);
+					block = blockQueue.take();
+				}
+				return null;
+			});
+			for (int rowStart = 0; rowStart < numberOfGenes; rowStart += this.tileSize)
+			{
+				int rowCount = Math.min(this.tileSize, numberOfGenes - rowStart);
+				CorrelationRowBlock block;
+				if (checkpoint != null && checkpoint.hasBlock(rowStart))
+				{
+					block = checkpoint.readBlock(numberOfGenes, rowStart, rowCount);
+					progressMetrics.recordSkippedPairs(block.getNumberOfValues());
+				}
+				else
+				{
+					CorrelationRowBlock newBlock = new CorrelationRowBlock(numberOfGenes, rowStart, rowCount);
+					scheduler.runUpperTriangle(newBlock.getStartRow(), newBlock.getEndRow(), numberOfGenes,
+							withMetrics(progressMetrics, (tileRowStart, tileRowEnd, colStart, colEnd) -> standardizedMatrix.computeTile(tileRowStart, tileRowEnd, colStart, colEnd, newBlock::setValue)));
+					block = newBlock;
+				}
+				putBlock(blockQueue, block, sinkWriter);
+			}
+			putBlock(blockQueue, END_OF_ROWS, sinkWriter);
+			waitForSinkWriter(sinkWriter);
+		}
+		finally
+		{
+			progressMetrics.close();
+			scheduler.close();
+			sinkExecutor.shutdownNow();
+			sink.close();
+		}
+	}
+	
+	/**
+	 * Calculate the correlation between all genes for a specific tissue, but only keep the pairs whose absolute correlation is at least a threshold.
+	 * This always uses the {@link CalculationMode#STANDARDIZED_TILED} engine.
+	 * @param threshold - the smallest absolute correlation value that will be kept.
+	 * @return a sparse matrix of the pairs that were kept. It can be queried by gene name.
+	 * @throws IOException
+	 */
+	public SparseCorrelationMatrix calculateSparseCorrelation(double threshold) throws IOException
+	{
+		Map<Integer, String> geneIndicesToNames = this.dataLoader.getGeneIndicesToNames();
+		if (this.prefilter != null)
+		{
+			// The matrix is indexed by the kept genes, so the prefilter has to be applied before the names can be matched to it.
+			this.getGeneVectors();
+			geneIndicesToNames = this.filteredGeneIndex.remapGeneNames(geneIndicesToNames);
+		}
+		String[] geneNames = new String[geneIndicesToNames.size()];
+		for (Map.Entry<Integer, String> entry : geneIndicesToNames.entrySet())
+		{
+			geneNames[entry.getKey()] = entry.getValue();
+		}
+		ThresholdRowSink sink = new ThresholdRowSink(threshold, geneNames);
+		this.calculateCorrelation(sink);
+		return sink.getMatrix();
+	}
+	
+	/**
+	 * Calculate the correlation between all genes in a gene-major matrix of expression values, but only keep the pairs whose absolute correlation is at least a threshold.
+	 * @param expressionValues - the expression values.
+	 * @param threshold - the smallest absolute correlation value that will be kept.
+	 * @return a sparse matrix of the pairs that were kept. It will not have gene names.
+	 * @throws IOException
+	 */
+	public SparseCorrelationMatrix calculateSparseCorrelation(GeneMajorExpressionMatrix expressionValues, double threshold) throws IOException
+	{
+		ThresholdRowSink sink = new ThresholdRowSink(threshold, null);
+		this.calculateCorrelation(expressionValues, sink);
+		return sink.getMatrix();
+	}
+	
+	/**
+	 * Finds the K genes that are most correlated with each gene, for a specific tissue, without keeping the whole matrix in memory.
+	 * This always uses the {@link CalculationMode#STANDARDIZED_TILED} engine.
+	 * @param k - the number of neighbours to keep for each gene.
+	 * @param rankByAbsoluteValue - if true, genes are ranked by the absolute value of their correlation, so strongly anti-correlated genes are included.
+	 * @return the neighbours of every gene. Use {@link TopCorrelatedGenes#getNeighbours(String, Archs4ExpressionDataLoader)} to look them up by gene name
+	 * (without a prefilter; with one, the genes are indexed by their compact index - see {@link #getFilteredGeneIndex()}).
+	 * @throws IOException
+	 */
+	public TopCorrelatedGenes calculateTopCorrelations(int k, boolean rankByAbsoluteValue) throws IOException
+	{
+		return this.calculateTopCorrelations(this.getGeneVectors(), k, rankByAbsoluteValue);
+	}
+	
+	/**
+	 * Finds the K genes that are most correlated with each gene, in a gene-major matrix of expression values.
+	 * @param expressionValues - the expression values.
+	 * @param k - the number of neighbours to keep for each gene.
+	 * @param rankByAbsoluteValue - if true, genes are ranked by the absolute value of their correlation.
+	 * @return the neighbours of every gene.
+	 */
+	public TopCorrelatedGenes calculateTopCorrelations(GeneMajorExpressionMatrix expressionValues, int k, boolean rankByAbsoluteValue)
+	{
+		return this.calculateTopCorrelations(this.getGeneVectors(expressionValues), k, rankByAbsoluteValue);
+	}
+	
+	/**
+	 * Calculates the upper triangle tile by tile, and offers each tile's values to the neighbour heaps of both genes in each pair.
+	 * Each tile's values are buffered, so that a gene's lock is only taken once per tile, rather than once per pair.
+	 */
+	private TopCorrelatedGenes calculateTopCorrelations(GeneVectorSource geneVectors, int k, boolean rankByAbsoluteValue)
+	{
+		int numberOfGenes = geneVectors.getNumberOfGenes();
+		TopCorrelatedGenes topCorrelatedGenes = new TopCorrelatedGenes(numberOfGenes, k, rankByAbsoluteValue);
+		StandardizedGeneMatrix standardizedMatrix = StandardizedGeneMatrix.fromGeneVectors(geneVectors);
+		try (CorrelationTileScheduler scheduler = this.createScheduler();
+				CorrelationProgressMetrics progressMetrics = this.startMetrics(numberOfGenes, scheduler))
+		{
+			scheduler.runUpperTriangle(0, numberOfGenes, numberOfGenes, withMetrics(progressMetrics, (rowStart, rowEnd, colStart, colEnd) -> {
+				int tileWidth = colEnd - colStart;
+				double[] tileValues = new double[(rowEnd - rowStart) * tileWidth];
+				// Entries below the diagonal are not calculated; NaN means they will be ignored.
+				Arrays.fill(tileValues, Double.NaN);
+				standardizedMatrix.computeTile(rowStart, rowEnd, colStart, colEnd,
+						(geneIndex, otherGeneIndex, correlationValue) -> tileValues[(geneIndex - rowStart) * tileWidth + otherGeneIndex - colStart] = correlationValue);
+				for (int geneIndex = rowStart; geneIndex < rowEnd; geneIndex++)
+				{
+					synchronized (topCorrelatedGenes.getLock(geneIndex))
+					{
+						for (int otherGeneIndex = colStart; otherGeneIndex < colEnd; otherGeneIndex++)
+						{
+							topCorrelatedGenes.offer(geneIndex, otherGeneIndex, tileValues[(geneIndex - rowStart) * tileWidth + otherGeneIndex - colStart]);
+						}
+					}
+				}
+				for (int otherGeneIndex = colStart; otherGeneIndex < colEnd; otherGeneIndex++)
 				{
-					@Override
-					public Double call() throws Exception
+					synchronized (topCorrelatedGenes.getLock(otherGeneIndex))
 					{
-						PearsonsCorrelation cor = new PearsonsCorrelation();
-						double correlationValue = cor.correlation(geneSamples, otherGeneSamples);
-						calculationsPerformed.getAndIncrement();
-						synchronized (corMatrix)
+						for (int geneIndex = rowStart; geneIndex < rowEnd; geneIndex++)
 						{
-							corMatrix.setEntry(gIndx, gOtherIndx, correlationValue);
+							topCorrelatedGenes.offer(otherGeneIndex, geneIndex, tileValues[(geneIndex - rowStart) * tileWidth + otherGeneIndex - colStart]);
 						}
-						// data gets saved into a shared array, so the return value won't really go anywhere.
-						return correlationValue;
 					}
-				};
-				workers.add(worker);
-				// When there are enough workers waiting, invoke them all. 10,000 (or maybe 5,000?) seems to be the most optimal group size,
-				// on my workstation (8 cores x @~3GHz, 64 GB RAM)
-				if (workers.size() % (pool.getParallelism() * 10000) == 0)
+				}
+			}));
+		}
+		topCorrelatedGenes.sortNeighbours();
+		return topCorrelatedGenes;
+	}
+	
+	/**
+	 * Puts a block on the queue for the sink, waiting for space if the queue is full. If the sink fails while waiting,
+	 * the sink's exception will be thrown.
+	 */
+	private static void putBlock(BlockingQueue<CorrelationRowBlock> blockQueue, CorrelationRowBlock block, Future<?> sinkWriter) throws IOException
+	{
+		try
+		{
+			while (!blockQueue.offer(block, 1, TimeUnit.SECONDS))
+			{
+				if (sinkWriter.isDone())
 				{
-					pool.invokeAll(workers);
-					workers.clear();
+					waitForSinkWriter(sinkWriter);
+					throw new IOException("The sink stopped accepting rows before all rows were calculated.");
 				}
 			}
-			if (geneIndex % 1000 == 0)
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the sink.", e);
+		}
+	}
+	
+	/**
+	 * Waits for the thread that feeds the sink to finish, and re-throws anything that the sink threw.
+	 */
+	private static void waitForSinkWriter(Future<?> sinkWriter) throws IOException
+	{
+		try
+		{
+			sinkWriter.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the sink.", e);
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof IOException)
 			{
-				logger.info(calculationsPerformed.get() + " calculations performed. Current Gene Index: " + geneIndex);
+				throw (IOException) e.getCause();
 			}
+			throw new IOException("The sink failed.", e.getCause());
 		}
-		if (workers.size() > 0)
+	}
+	
+	/**
+	 * Calculates the correlation matrix by standardizing every gene's vector once, and then calculating
+	 * the upper triangle as tiles of dot products. Each tile writes to its own region of the matrix, so no locking is needed.
+	 */
+	private RealMatrix calculateCorrelationStandardized(GeneVectorSource geneVectors)
+	{
+		int numberOfGenes = geneVectors.getNumberOfGenes();
+		StandardizedGeneMatrix standardizedMatrix = StandardizedGeneMatrix.fromGeneVectors(geneVectors);
+		RealMatrix corMatrix = this.createResultMatrix(numberOfGenes);
+		try (CorrelationTileScheduler scheduler = this.createScheduler();
+				CorrelationProgressMetrics progressMetrics = this.startMetrics(numberOfGenes, scheduler))
 		{
-			logger.info("Invoking {} remaining workers...", workers.size());
-			pool.invokeAll(workers);
-			workers.clear();
+			scheduler.runUpperTriangle(0, numberOfGenes, numberOfGenes, withMetrics(progressMetrics,
+					(rowStart, rowEnd, colStart, colEnd) -> standardizedMatrix.computeTile(rowStart, rowEnd, colStart, colEnd, corMatrix::setEntry)));
+		}
+		return corMatrix;
+	}
+	
+	/**
+	 * Calculates the correlation matrix with a separate PearsonsCorrelation for every gene pair. The sample values
+	 * for the genes in a tile are converted to doubles once per tile, rather than once per pair. For Spearman, the gene vectors
+	 * are already ranks, so Pearson's correlation of them is Spearman's correlation of the expression values.
+	 */
+	private RealMatrix calculateCorrelationWithCommonsMath(GeneVectorSource geneVectors)
+	{
+		int numberOfGenes = geneVectors.getNumberOfGenes();
+		int numberOfSamples = geneVectors.getNumberOfSamples();
+		RealMatrix corMatrix = this.createResultMatrix(numberOfGenes);
+		try (CorrelationTileScheduler scheduler = this.createScheduler();
+				CorrelationProgressMetrics progressMetrics = this.startMetrics(numberOfGenes, scheduler))
+		{
+			scheduler.runUpperTriangle(0, numberOfGenes, numberOfGenes, withMetrics(progressMetrics, (rowStart, rowEnd, colStart, colEnd) -> {
+				// Build the lists of sample values for the genes in this tile's columns.
+				double[][] otherGeneSamples = new double[colEnd - colStart][];
+				for (int otherGeneIndex = colStart; otherGeneIndex < colEnd; otherGeneIndex++)
+				{
+					otherGeneSamples[otherGeneIndex - colStart] = new double[numberOfSamples];
+					geneVectors.readGeneVector(otherGeneIndex, otherGeneSamples[otherGeneIndex - colStart]);
+				}
+				PearsonsCorrelation cor = new PearsonsCorrelation();
+				double[] geneSamples = new double[numberOfSamples];
+				for (int geneIndex = rowStart; geneIndex < rowEnd; geneIndex++)
+				{
+					geneVectors.readGeneVector(geneIndex, geneSamples);
+					for (int otherGeneIndex = Math.max(geneIndex, colStart); otherGeneIndex < colEnd; otherGeneIndex++)
+					{
+						corMatrix.setEntry(geneIndex, otherGeneIndex, cor.correlation(geneSamples, otherGeneSamples[otherGeneIndex - colStart]));
+					}
+				}
+			}));
 		}
-		
 		return corMatrix;
 	}
+	
+	/**
+	 * Creates a tile scheduler, using this calculator's parallelism and tile size.
+	 */
+	private CorrelationTileScheduler createScheduler()
+	{
+		return new CorrelationTileScheduler(this.parallelism, this.tileSize);
+	}
+	
+	/**
+	 * Creates the progress metrics for a calculation of the whole upper triangle, and registers them with JMX. They can be read with {@link #getMetrics()}
+	 * while the calculation runs, and after it has finished.
+	 */
+	private CorrelationProgressMetrics startMetrics(int numberOfGenes, CorrelationTileScheduler scheduler)
+	{
+		String name = this.tissue == null ? "in-memory" : Paths.get(this.tissue).getFileName().toString();
+		CorrelationProgressMetrics progressMetrics = new CorrelationProgressMetrics(name, (long) numberOfGenes * (numberOfGenes + 1) / 2);
+		progressMetrics.setQueuedTiles(scheduler::getQueuedTiles);
+		progressMetrics.register();
+		this.metrics = progressMetrics;
+		return progressMetrics;
+	}
+	
+	/**
+	 * Wraps a tile computation so that each tile is recorded in the progress metrics when it has been calculated.
+	 */
+	private static TileComputation withMetrics(CorrelationProgressMetrics progressMetrics, TileComputation computation)
+	{
+		return (rowStart, rowEnd, colStart, colEnd) -> {
+			long tileStartTime = System.nanoTime();
+			computation.computeTile(rowStart, rowEnd, colStart, colEnd);
+			progressMetrics.recordTile(countPairsInTile(rowStart, rowEnd, colStart, colEnd), System.nanoTime() - tileStartTime);
+		};
+	}
+	
+	/**
+	 * Counts the gene pairs on or above the main diagonal in a tile.
+	 */
+	static long countPairsInTile(int rowStart, int rowEnd, int colStart, int colEnd)
+	{
+		long pairs = 0;
+		for (int row = rowStart; row < rowEnd; row++)
+		{
+			pairs += Math.max(0, colEnd - Math.max(row, colStart));
+		}
+		return pairs;
+	}
+
+	/**
+	 * Creates an empty N x N matrix to hold the results, of the kind set with {@link #setMatrixStorage(MatrixStorage)}.
+	 */
+	private RealMatrix createResultMatrix(int numberOfGenes)
+	{
+		switch (this.matrixStorage)
+		{
+			case PACKED_DOUBLE:
+				return new PackedDoubleSymmetricMatrix(numberOfGenes);
+			case PACKED_FLOAT:
+				return new PackedFloatSymmetricMatrix(numberOfGenes);
+			case PACKED_SHORT:
+				return new PackedShortSymmetricMatrix(numberOfGenes);
+			case PACKED_BYTE:
+				return new PackedByteSymmetricMatrix(numberOfGenes);
+			default:
+				return new Array2DRowRealMatrix(numberOfGenes, numberOfGenes);
+		}
+	}
+	
+	public CalculationMode getCalculationMode()
+	{
+		return this.calculationMode;
+	}
+
+	/**
+	 * Sets the way that the correlation matrix will be calculated. The default is {@link CalculationMode#COMMONS_MATH}.
+	 * @param calculationMode
+	 */
+	public void setCalculationMode(CalculationMode calculationMode)
+	{
+		this.calculationMode = calculationMode;
+	}
+
+	public MatrixStorage getMatrixStorage()
+	{
+		return this.matrixStorage;
+	}
+
+	/**
+	 * Sets the kind of matrix that results will be stored in. The default is {@link MatrixStorage#DENSE}.
+	 * For a full human matrix (~35k genes), use one of the PACKED types.
+	 * @param matrixStorage
+	 */
+	public void setMatrixStorage(MatrixStorage matrixStorage)
+	{
+		this.matrixStorage = matrixStorage;
+	}
+
+	public int getMaxBlocksInFlight()
+	{
+		return this.maxBlocksInFlight;
+	}
+
+	/**
+	 * Sets how many calculated row blocks can be waiting for a sink before the calculation pauses. Only used when streaming to a {@link CorrelationRowSink}.
+	 * @param maxBlocksInFlight
+	 */
+	public void setMaxBlocksInFlight(int maxBlocksInFlight)
+	{
+		if (maxBlocksInFlight < 1)
+		{
+			throw new IllegalArgumentException("maxBlocksInFlight must be greater than 0, but was " + maxBlocksInFlight);
+		}
+		this.maxBlocksInFlight = maxBlocksInFlight;
+	}
+
+	public int getParallelism()
+	{
+		return this.parallelism;
+	}
+
+	/**
+	 * Sets the number of worker threads that will calculate tiles. The default is the number of available processors.
+	 * @param parallelism
+	 */
+	public void setParallelism(int parallelism)
+	{
+		if (parallelism < 1)
+		{
+			throw new IllegalArgumentException("Parallelism must be greater than 0, but was " + parallelism);
+		}
+		this.parallelism = parallelism;
+	}
+
+	public int getTileSize()
+	{
+		return this.tileSize;
+	}
+
+	/**
+	 * Sets the number of genes along each side of a tile. The matrix is calculated one tile at a time, by a pool of worker threads.
+	 * This is also the number of rows in each block that is sent to a {@link CorrelationRowSink}.
+	 * @param tileSize
+	 */
+	public void setTileSize(int tileSize)
+	{
+		if (tileSize < 1)
+		{
+			throw new IllegalArgumentException("Tile size must be greater than 0, but was " + tileSize);
+		}
+		this.tileSize = tileSize;
+	}
+
+	public Path getCheckpointDirectory()
+	{
+		return this.checkpointDirectory;
+	}
+
+	/**
+	 * Sets the working directory that completed row blocks are saved to, so that {@link #calculateCorrelation(CorrelationRowSink)} can be
+	 * resumed after a crash. The default is null: no checkpoint. Use a separate directory for each tissue.
+	 * @param checkpointDirectory
+	 */
+	public void setCheckpointDirectory(Path checkpointDirectory)
+	{
+		this.checkpointDirectory = checkpointDirectory;
+	}
+
+	public boolean isDeleteCheckpointWhenComplete()
+	{
+		return this.deleteCheckpointWhenComplete;
+	}
+
+	/**
+	 * Sets whether the checkpoint is deleted when the calculation has finished successfully. The default is true.
+	 * @param deleteCheckpointWhenComplete
+	 */
+	public void setDeleteCheckpointWhenComplete(boolean deleteCheckpointWhenComplete)
+	{
+		this.deleteCheckpointWhenComplete = deleteCheckpointWhenComplete;
+	}
+
+	public GenePrefilter getPrefilter()
+	{
+		return this.prefilter;
+	}
+
+	/**
+	 * Sets the prefilter that removes (nearly) unexpressed genes before the correlations are calculated. The default is null: every gene is kept.
+	 * <br/>
+	 * With a prefilter, results are indexed by the compact index of the kept genes: use {@link #getFilteredGeneIndex()} to map them back to the genes in the HDF
+	 * file, or {@link FilteredGeneIndex#remapGeneNames(Map)} to give a {@link LoadDataFileRowSink} the right names.
+	 * @param prefilter
+	 */
+	public void setPrefilter(GenePrefilter prefilter)
+	{
+		this.prefilter = prefilter;
+	}
+
+	/**
+	 * Gets the genes that were kept and excluded by the prefilter, for the last expression values that it was applied to.
+	 * @return the filtered gene index, or null if no prefilter has been applied.
+	 */
+	public synchronized FilteredGeneIndex getFilteredGeneIndex()
+	{
+		return this.filteredGeneIndex;
+	}
+
+	/**
+	 * Gets the progress metrics of the current calculation of a whole matrix, or the last one if none is running.
+	 * @return the metrics, or null if no matrix has been calculated yet.
+	 */
+	public CorrelationProgressMetrics getMetrics()
+	{
+		return this.metrics;
+	}
 }
@@ -0,0 +1,76 @@
+package org.reactome.idg.loader;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The results of calculating a batch of gene-pair correlations: one value for each pair, in the order the pairs were given,
+ * and the reason for any pair that could not be calculated (such as a gene that is not in the HDF file).
+ * A pair that failed has a value of NaN.
+ * @author sshorser
+ *
+ */
+public class GenePairCorrelationResults
+{
+	private final double[] values;
+	// pair index -> reason; sorted by pair index.
+	private final Map<Integer, String> failures = new TreeMap<>();
+
+	GenePairCorrelationResults(int numberOfPairs)
+	{
+		this.values = new double[numberOfPairs];
+	}
+
+	void setValue(int pairIndex, double correlationValue)
+	{
+		this.values[pairIndex] = correlationValue;
+	}
+
+	void addFailure(int pairIndex, String reason)
+	{
+		this.values[pairIndex] = Double.NaN;
+		this.failures.put(pairIndex, reason);
+	}
+
+	/**
+	 * Gets the correlation values, in the same order as the pairs. This is the results' own array, NOT a copy.
+	 */
+	public double[] getValues()
+	{
+		return this.values;
+	}
+
+	public double getValue(int pairIndex)
+	{
+		return this.values[pairIndex];
+	}
+
+	/**
+	 * Checks if a pair could not be calculated.
+	 * @param pairIndex
+	 */
+	public boolean isFailed(int pairIndex)
+	{
+		return this.failures.containsKey(pairIndex);
+	}
+
+	/**
+	 * Gets the pairs that could not be calculated.
+	 * @return a map of pair index to the reason the pair failed, in pair order.
+	 */
+	public Map<Integer, String> getFailures()
+	{
+		return Collections.unmodifiableMap(this.failures);
+	}
+
+	public boolean hasFailures()
+	{
+		return !this.failures.isEmpty();
+	}
+
+	public int getNumberOfPairs()
+	{
+		return this.values.length;
+	}
+}
@@ -0,0 +1,171 @@
+package org.reactome.idg.loader;
+
+import java.util.stream.IntStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Removes genes that are (nearly) unexpressed in a tissue before the all-pairs correlations are calculated. Every gene costs N correlations,
+ * and a gene with no variance only produces NaNs, so dropping them shrinks the N x N matrix for no loss.
+ * <br/>
+ * Each gene's zero fraction, mean count and variance are calculated from its raw counts, in a single sweep over its vector (Welford's method is used
+ * for the variance). A gene is excluded if any of them fails its threshold; the checks are made in the order of {@link ExclusionReason}, and the first one
+ * that fails is recorded as the reason. The default thresholds only exclude genes with no variance at all.
+ * <br/>
+ * The genes that are kept are given a compact index (see {@link FilteredGeneIndex}), which is what the correlation matrix is indexed by.
+ * @author sshorser
+ *
+ */
+public class GenePrefilter
+{
+	private static final Logger logger = LogManager.getLogger();
+
+	/**
+	 * Why a gene was excluded.
+	 */
+	public enum ExclusionReason
+	{
+		/**
+		 * The gene's count was 0 in more than the maximum fraction of samples.
+		 */
+		MOSTLY_ZERO,
+		/**
+		 * The gene's mean count was below the minimum.
+		 */
+		LOW_MEAN,
+		/**
+		 * The gene's variance was not above the minimum. With the default minimum of 0, this is a gene that is constant across the samples.
+		 */
+		LOW_VARIANCE;
+	}
+
+	private final double maximumZeroFraction;
+	private final double minimumMean;
+	private final double minimumVariance;
+
+	/**
+	 * Creates a prefilter that only excludes genes with no variance.
+	 */
+	public GenePrefilter()
+	{
+		this(1.0, 0.0, 0.0);
+	}
+
+	/**
+	 * Creates a prefilter.
+	 * @param maximumZeroFraction - the largest fraction of samples that a gene may have a count of 0 in. Use 1 to keep genes however many zeros they have.
+	 * @param minimumMean - the smallest mean count that a gene may have.
+	 * @param minimumVariance - a gene's (sample) variance must be greater than this.
+	 */
+	public GenePrefilter(double maximumZeroFraction, double minimumMean, double minimumVariance)
+	{
+		if (maximumZeroFraction < 0.0 || maximumZeroFraction > 1.0)
+		{
+			throw new IllegalArgumentException("maximumZeroFraction must be in [0, 1], but was " + maximumZeroFraction);
+		}
+		this.maximumZeroFraction = maximumZeroFraction;
+		this.minimumMean = minimumMean;
+		this.minimumVariance = minimumVariance;
+	}
+
+	/**
+	 * Decides which genes to keep.
+	 * @param expressionValues - the raw counts for the tissue.
+	 * @return the genes that were kept, and why the others were excluded.
+	 */
+	public FilteredGeneIndex apply(GeneMajorExpressionMatrix expressionValues)
+	{
+		int numberOfGenes = expressionValues.getNumberOfGenes();
+		int numberOfSamples = expressionValues.getNumberOfSamples();
+		double[] zeroFractions = new double[numberOfGenes];
+		double[] means = new double[numberOfGenes];
+		double[] variances = new double[numberOfGenes];
+		ExclusionReason[] reasons = new ExclusionReason[numberOfGenes];
+		IntStream.range(0, numberOfGenes).parallel().forEach(geneIndex -> {
+			int[] counts = expressionValues.getGeneVector(geneIndex);
+			int zeros = 0;
+			double mean = 0.0;
+			double m2 = 0.0;
+			for (int sampleIndex = 0; sampleIndex < numberOfSamples; sampleIndex++)
+			{
+				int count = counts[sampleIndex];
+				if (count == 0)
+				{
+					zeros++;
+				}
+				double delta = count - mean;
+				mean += delta / (sampleIndex + 1);
+				m2 += delta * (count - mean);
+			}
+			zeroFractions[geneIndex] = numberOfSamples > 0 ? (double) zeros / numberOfSamples : 1.0;
+			means[geneIndex] = mean;
+			variances[geneIndex] = numberOfSamples > 1 ? m2 / (numberOfSamples - 1) : 0.0;
+			reasons[geneIndex] = this.getExclusionReason(zeroFractions[geneIndex], mean, variances[geneIndex]);
+		});
+		FilteredGeneIndex filteredGeneIndex = new FilteredGeneIndex(reasons, zeroFractions, means, variances);
+		logger.info("{} of {} genes were excluded by {}", filteredGeneIndex.getNumberOfExcludedGenes(), numberOfGenes, this);
+		return filteredGeneIndex;
+	}
+
+	/**
+	 * @return the first threshold that the gene fails, or null if the gene should be kept.
+	 */
+	private ExclusionReason getExclusionReason(double zeroFraction, double mean, double variance)
+	{
+		if (zeroFraction > this.maximumZeroFraction)
+		{
+			return ExclusionReason.MOSTLY_ZERO;
+		}
+		if (mean < this.minimumMean)
+		{
+			return ExclusionReason.LOW_MEAN;
+		}
+		if (!(variance > this.minimumVariance))
+		{
+			return ExclusionReason.LOW_VARIANCE;
+		}
+		return null;
+	}
+
+	/**
+	 * @return a string that identifies these settings, for use in checkpoint manifests.
+	 */
+	public String getCacheKey()
+	{
+		return "zeros<=" + this.maximumZeroFraction + ",mean>=" + this.minimumMean + ",variance>" + this.minimumVariance;
+	}
+
+	public double getMaximumZeroFraction()
+	{
+		return this.maximumZeroFraction;
+	}
+
+	public double getMinimumMean()
+	{
+		return this.minimumMean;
+	}
+
+	public double getMinimumVariance()
+	{
+		return this.minimumVariance;
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		return obj instanceof GenePrefilter && ((GenePrefilter) obj).getCacheKey().equals(this.getCacheKey());
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return this.getCacheKey().hashCode();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "GenePrefilter[" + this.getCacheKey() + "]";
+	}
+}
@@ -0,0 +1,128 @@
+package org.reactome.idg.loader;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * The ranks of each gene's expression values across the samples of a tissue. The Spearman correlation of two genes is the
+ * Pearson correlation of their ranks, so ranking every gene once up front means that Spearman correlations can be calculated
+ * with the same code (and at the same speed) as Pearson correlations.
+ * <br/>
+ * Ties get the average of the ranks they span (so values 5, 7, 7, 9 are ranked 1, 2.5, 2.5, 4), which is what commons-math's
+ * <code>SpearmansCorrelation</code> does by default. Ranks are stored as floats, which hold them exactly for up to 2^23 samples.
+ * @author sshorser
+ *
+ */
+public class GeneRankMatrix implements GeneVectorSource
+{
+	// outer index is gene, inner index is sample.
+	private final float[][] geneRanks;
+	private final int numberOfSamples;
+
+	private GeneRankMatrix(float[][] geneRanks, int numberOfSamples)
+	{
+		this.geneRanks = geneRanks;
+		this.numberOfSamples = numberOfSamples;
+	}
+
+	/**
+	 * Ranks every gene in a matrix of expression values.
+	 * @param expressionValues - the expression values.
+	 * @return the ranks of each gene's values.
+	 */
+	public static GeneRankMatrix fromGeneMajorValues(GeneMajorExpressionMatrix expressionValues)
+	{
+		float[][] geneRanks = new float[expressionValues.getNumberOfGenes()][];
+		IntStream.range(0, geneRanks.length).parallel().forEach(geneIndex -> geneRanks[geneIndex] = rank(expressionValues.getGeneVector(geneIndex)));
+		return new GeneRankMatrix(geneRanks, expressionValues.getNumberOfSamples());
+	}
+
+	/**
+	 * Ranks every gene in a matrix of normalized expression values. Normalized values are never negative, and the bits of a non-negative float
+	 * sort in the same order as its value, so the values are ranked as ints with {@link #rank(int[])}.
+	 * @param normalizedValues - the normalized values.
+	 * @return the ranks of each gene's values.
+	 */
+	public static GeneRankMatrix fromNormalizedValues(NormalizedExpressionMatrix normalizedValues)
+	{
+		float[][] geneRanks = new float[normalizedValues.getNumberOfGenes()][];
+		int numberOfSamples = normalizedValues.getNumberOfSamples();
+		IntStream.range(0, geneRanks.length).parallel().forEach(geneIndex -> {
+			float[] geneVector = normalizedValues.getGeneVector(geneIndex);
+			int[] valueBits = new int[numberOfSamples];
+			for (int sampleIndex = 0; sampleIndex < numberOfSamples; sampleIndex++)
+			{
+				valueBits[sampleIndex] = Float.floatToIntBits(geneVector[sampleIndex]);
+			}
+			geneRanks[geneIndex] = rank(valueBits);
+		});
+		return new GeneRankMatrix(geneRanks, numberOfSamples);
+	}
+
+	/**
+	 * Ranks a vector of values, from 1 to n. Tied values get the average of their ranks.
+	 * @param values - the values to rank.
+	 * @return the rank of each value, in the same order as <code>values</code>.
+	 */
+	public static float[] rank(int[] values)
+	{
+		int n = values.length;
+		// Sort the values along with their positions, by packing the value into the high half of a long and the position into the low half.
+		long[] sortKeys = new long[n];
+		for (int i = 0; i < n; i++)
+		{
+			sortKeys[i] = ((long) values[i] << 32) | i;
+		}
+		Arrays.sort(sortKeys);
+		float[] ranks = new float[n];
+		int runStart = 0;
+		while (runStart < n)
+		{
+			int value = (int) (sortKeys[runStart] >> 32);
+			int runEnd = runStart + 1;
+			while (runEnd < n && (int) (sortKeys[runEnd] >> 32) == value)
+			{
+				runEnd++;
+			}
+			// positions runStart..runEnd-1 have ranks runStart+1..runEnd, so the average is:
+			float averageRank = (runStart + 1 + runEnd) / 2.0f;
+			for (int i = runStart; i < runEnd; i++)
+			{
+				ranks[(int) sortKeys[i]] = averageRank;
+			}
+			runStart = runEnd;
+		}
+		return ranks;
+	}
+
+	/**
+	 * Gets the ranks of a gene's values. This is the matrix's own array, NOT a copy, so it must not be modified.
+	 * @param geneIndex - the index of the gene.
+	 */
+	public float[] getGeneRanks(int geneIndex)
+	{
+		return this.geneRanks[geneIndex];
+	}
+
+	@Override
+	public void readGeneVector(int geneIndex, double[] destination)
+	{
+		float[] ranks = this.geneRanks[geneIndex];
+		for (int sampleIndex = 0; sampleIndex < this.numberOfSamples; sampleIndex++)
+		{
+			destination[sampleIndex] = ranks[sampleIndex];
+		}
+	}
+
+	@Override
+	public int getNumberOfGenes()
+	{
+		return this.geneRanks.length;
+	}
+
+	@Override
+	public int getNumberOfSamples()
+	{
+		return this.numberOfSamples;
+	}
+}
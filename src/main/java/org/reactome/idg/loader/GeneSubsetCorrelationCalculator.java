@@ -0,0 +1,125 @@
+package org.reactome.idg.loader;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Calculates the correlations between a subset of genes (such as the understudied IDG targets) and every gene, for a specific tissue.
+ * This costs O(|subset| * N * samples), instead of the O(N * N * samples) of the full matrix.
+ * <br/>
+ * Uses the same standardized kernel (see {@link StandardizedGeneMatrix}) and tile scheduler as {@link GenePairCorrelationMatrixCalculator}.
+ * @author sshorser
+ *
+ */
+public class GeneSubsetCorrelationCalculator extends CorrelationCalculator
+{
+	private static final Logger logger = LogManager.getLogger();
+
+	private static final int DEFAULT_TILE_SIZE = 64;
+
+	private int tileSize = DEFAULT_TILE_SIZE;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Creates a calculator.
+	 * @param t - the path to the file with the tissue samples.
+	 * @param loader - the data loader, associated with a specific HDF file.
+	 */
+	public GeneSubsetCorrelationCalculator(String t, Archs4ExpressionDataLoader loader)
+	{
+		super(t, loader);
+	}
+
+	/**
+	 * Calculates the correlations between some genes and every gene in the HDF file, for this calculator's tissue.
+	 * @param genes - the gene symbols. Duplicates are ignored.
+	 * @return a matrix with one row for each gene, in the order they were given, and one column for each gene in the HDF file.
+	 * @throws IOException
+	 * @throws IllegalArgumentException If any of the genes are not in the HDF file.
+	 */
+	public SubsetCorrelationMatrix calculateCorrelation(Collection<String> genes) throws IOException
+	{
+		Set<String> uniqueGenes = new LinkedHashSet<>(genes);
+		int[] subsetGeneIndices = new int[uniqueGenes.size()];
+		int position = 0;
+		for (String gene : uniqueGenes)
+		{
+			Integer geneIndex = this.dataLoader.getGeneIndices().get(gene);
+			if (geneIndex == null)
+			{
+				String message = "Gene " + gene + " is not recognized in the HDF file.";
+				logger.error(message);
+				throw new IllegalArgumentException(message);
+			}
+			subsetGeneIndices[position++] = geneIndex;
+		}
+		return this.calculateCorrelation(this.getGeneVectors(), subsetGeneIndices);
+	}
+
+	/**
+	 * Calculates the correlations between some genes and every gene in a gene-major matrix of expression values.
+	 * @param expressionValues - the expression values.
+	 * @param subsetGeneIndices - the indices of the genes for the rows. Must not contain duplicates.
+	 * @return a matrix with one row for each gene in <code>subsetGeneIndices</code>, and one column for each gene in <code>expressionValues</code>.
+	 */
+	public SubsetCorrelationMatrix calculateCorrelation(GeneMajorExpressionMatrix expressionValues, int[] subsetGeneIndices)
+	{
+		return this.calculateCorrelation(this.getGeneVectors(expressionValues), subsetGeneIndices);
+	}
+
+	private SubsetCorrelationMatrix calculateCorrelation(GeneVectorSource geneVectors, int[] subsetGeneIndices)
+	{
+		int numberOfGenes = geneVectors.getNumberOfGenes();
+		SubsetCorrelationMatrix result = new SubsetCorrelationMatrix(subsetGeneIndices, numberOfGenes);
+		StandardizedGeneMatrix standardizedMatrix = StandardizedGeneMatrix.fromGeneVectors(geneVectors);
+		logger.info("Calculating correlations for {} genes against {} genes.", subsetGeneIndices.length, numberOfGenes);
+		try (CorrelationTileScheduler scheduler = new CorrelationTileScheduler(this.parallelism, this.tileSize))
+		{
+			// Each tile writes to its own region of the result, so no locking is needed.
+			scheduler.runRectangle(subsetGeneIndices.length, numberOfGenes,
+					(rowStart, rowEnd, colStart, colEnd) -> standardizedMatrix.computeRectangle(subsetGeneIndices, rowStart, rowEnd, colStart, colEnd, result::setValue));
+		}
+		return result;
+	}
+
+	public int getParallelism()
+	{
+		return this.parallelism;
+	}
+
+	/**
+	 * Sets the number of worker threads that will calculate tiles. The default is the number of available processors.
+	 * @param parallelism
+	 */
+	public void setParallelism(int parallelism)
+	{
+		if (parallelism < 1)
+		{
+			throw new IllegalArgumentException("Parallelism must be greater than 0, but was " + parallelism);
+		}
+		this.parallelism = parallelism;
+	}
+
+	public int getTileSize()
+	{
+		return this.tileSize;
+	}
+
+	/**
+	 * Sets the number of genes along each side of a tile.
+	 * @param tileSize
+	 */
+	public void setTileSize(int tileSize)
+	{
+		if (tileSize < 1)
+		{
+			throw new IllegalArgumentException("Tile size must be greater than 0, but was " + tileSize);
+		}
+		this.tileSize = tileSize;
+	}
+}
@@ -0,0 +1,21 @@
+package org.reactome.idg.loader;
+
+/**
+ * Something that can provide a vector of values for each gene, across the samples of a tissue. Calculators
+ * read their inputs through this, so they do not need to know whether the values are raw expression counts, ranks, etc...
+ * @author sshorser
+ *
+ */
+public interface GeneVectorSource
+{
+	public int getNumberOfGenes();
+
+	public int getNumberOfSamples();
+
+	/**
+	 * Copies a gene's values into an array.
+	 * @param geneIndex - the index of the gene.
+	 * @param destination - an array of at least <code>getNumberOfSamples()</code> elements.
+	 */
+	public void readGeneVector(int geneIndex, double[] destination);
+}
@@ -0,0 +1,446 @@
+package org.reactome.idg.loader;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import hdf.hdf5lib.H5;
+import hdf.hdf5lib.HDF5Constants;
+
+/**
+ * Plans and runs the read of a set of rows (samples) of a 2-dimensional dataset, such as the expression dataset, with all of its columns (genes),
+ * or with only some of them (see {@link #readColumns(HDF5Session, String, int[], int[])}).
+ * <br/>
+ * The requested rows are sorted and de-duplicated, and grouped into runs of adjacent rows. Then one of three strategies is chosen (see {@link Strategy}):
+ * <ul>
+ * <li>If the dataset is chunked, the library decompresses whole chunks whatever is selected, so the runs are widened to the chunk boundaries, and
+ * runs that share a chunk are merged. Each band of chunks is read as its own block.</li>
+ * <li>If the dataset is contiguous, runs that are separated by small gaps (see {@link #setMaximumGapRows(int)}) are merged into strips, and the
+ * strips are read one at a time, discarding the rows in the gaps.</li>
+ * <li>If neither of those reads fewer selections, or they would read too many unused rows (see {@link #setMaximumReadAmplification(double)}),
+ * the runs are combined into one hyperslab selection and read in one call.</li>
+ * </ul>
+ * Whichever strategy is used, the rows are returned in the order they were asked for (with a copy for each duplicate). The plan, and the bytes
+ * read versus the bytes used, are logged.
+ * <br/>
+ * The strips are read one at a time. The HDF5 Java library's native methods are synchronized on one class lock, so reading strips from several
+ * threads would not read any of them sooner; a strategy is chosen only by the number of selections and the rows read.
+ * @author sshorser
+ *
+ */
+public class HDF5ReadPlanner
+{
+	private static final Logger logger = LogManager.getLogger();
+
+	/**
+	 * How the rows are read.
+	 */
+	public enum Strategy
+	{
+		/**
+		 * Every run is ORed into one hyperslab selection, which is read in one call. Only the requested rows are read.
+		 */
+		HYPERSLAB_UNION,
+		/**
+		 * Strips that may include a few unrequested rows (gaps, or the rest of a chunk) are read one at a time, and the unrequested rows are discarded.
+		 */
+		COALESCED_STRIPS;
+	}
+
+	/**
+	 * A plan for reading a set of rows: the strips (blocks of adjacent rows) to read, and where each requested row is in what is read.
+	 */
+	public static final class ReadPlan
+	{
+		private final Strategy strategy;
+		private final int[] stripStarts;
+		private final int[] stripLengths;
+		// The position of each strip's first row in the rows that are read.
+		private final int[] stripOffsets;
+		private final int rowsRead;
+		private final int distinctRows;
+		private final int[] readRows;
+		private final long bytesPerRow;
+
+		private ReadPlan(Strategy strategy, List<int[]> strips, int distinctRows, int[] requestedRows, long bytesPerRow)
+		{
+			this.strategy = strategy;
+			this.stripStarts = new int[strips.size()];
+			this.stripLengths = new int[strips.size()];
+			this.stripOffsets = new int[strips.size()];
+			int offset = 0;
+			for (int strip = 0; strip < strips.size(); strip++)
+			{
+				this.stripStarts[strip] = strips.get(strip)[0];
+				this.stripLengths[strip] = strips.get(strip)[1];
+				this.stripOffsets[strip] = offset;
+				offset += this.stripLengths[strip];
+			}
+			this.rowsRead = offset;
+			this.distinctRows = distinctRows;
+			this.bytesPerRow = bytesPerRow;
+			this.readRows = new int[requestedRows.length];
+			for (int request = 0; request < requestedRows.length; request++)
+			{
+				int strip = Arrays.binarySearch(this.stripStarts, requestedRows[request]);
+				if (strip < 0)
+				{
+					// Not the first row of a strip, so it is in the strip before the insertion point.
+					strip = -strip - 2;
+				}
+				this.readRows[request] = this.stripOffsets[strip] + (requestedRows[request] - this.stripStarts[strip]);
+			}
+		}
+
+		public Strategy getStrategy()
+		{
+			return this.strategy;
+		}
+
+		public int getNumberOfStrips()
+		{
+			return this.stripStarts.length;
+		}
+
+		/**
+		 * @return the first row (in the dataset) of a strip.
+		 */
+		public int getStripStart(int strip)
+		{
+			return this.stripStarts[strip];
+		}
+
+		/**
+		 * @return the number of rows in a strip.
+		 */
+		public int getStripLength(int strip)
+		{
+			return this.stripLengths[strip];
+		}
+
+		/**
+		 * @return the position of a strip's first row in the rows that are read.
+		 */
+		public int getStripOffset(int strip)
+		{
+			return this.stripOffsets[strip];
+		}
+
+		/**
+		 * @return the number of rows that are read, including unrequested rows.
+		 */
+		public int getRowsRead()
+		{
+			return this.rowsRead;
+		}
+
+		/**
+		 * @param request - the position of a row in the requested rows.
+		 * @return the position of that row in the rows that are read.
+		 */
+		public int getReadRow(int request)
+		{
+			return this.readRows[request];
+		}
+
+		public int getNumberOfRequests()
+		{
+			return this.readRows.length;
+		}
+
+		public long getBytesRead()
+		{
+			return this.rowsRead * this.bytesPerRow;
+		}
+
+		public long getBytesUsed()
+		{
+			return this.distinctRows * this.bytesPerRow;
+		}
+
+		@Override
+		public String toString()
+		{
+			return this.strategy + ": " + this.readRows.length + " requested rows (" + this.distinctRows + " distinct), " + this.stripStarts.length + " strips, "
+					+ this.rowsRead + " rows read; " + this.getBytesRead() + " bytes read, " + this.getBytesUsed() + " bytes used";
+		}
+	}
+
+	private int maximumGapRows = 16;
+	private double maximumReadAmplification = 2.0;
+	private final AtomicLong totalBytesRead = new AtomicLong();
+	private final AtomicLong totalBytesUsed = new AtomicLong();
+
+	/**
+	 * Plans a read.
+	 * @param requestedRows - the rows to read, in the order they should be returned. They may be in any order, and may repeat.
+	 * @param numberOfRows - the number of rows in the dataset.
+	 * @param bytesPerRow - the size of one row, to report the bytes read and used.
+	 * @param chunkRows - the number of rows in each of the dataset's chunks, or 0 if the dataset is not chunked.
+	 * @return the plan.
+	 */
+	public ReadPlan plan(int[] requestedRows, int numberOfRows, long bytesPerRow, long chunkRows)
+	{
+		int[] distinctRows = Arrays.stream(requestedRows).sorted().distinct().toArray();
+		if (distinctRows.length > 0 && (distinctRows[0] < 0 || distinctRows[distinctRows.length - 1] >= numberOfRows))
+		{
+			throw new IndexOutOfBoundsException("Rows must be in [0, " + numberOfRows + "), but rows " + distinctRows[0] + " to " + distinctRows[distinctRows.length - 1] + " were requested.");
+		}
+		List<int[]> runs = mergeRows(distinctRows, 0);
+		List<int[]> strips;
+		if (chunkRows > 0)
+		{
+			strips = alignToChunks(runs, (int) Math.min(chunkRows, numberOfRows), numberOfRows);
+		}
+		else
+		{
+			strips = mergeRows(distinctRows, this.maximumGapRows);
+		}
+		Strategy strategy = Strategy.COALESCED_STRIPS;
+		long rowsRead = 0;
+		for (int[] strip : strips)
+		{
+			rowsRead += strip[1];
+		}
+		if (strips.size() >= runs.size() || rowsRead > this.maximumReadAmplification * distinctRows.length)
+		{
+			strategy = Strategy.HYPERSLAB_UNION;
+			strips = runs;
+		}
+		return new ReadPlan(strategy, strips, distinctRows.length, requestedRows, bytesPerRow);
+	}
+
+	/**
+	 * Plans and runs a read of whole rows of an integer dataset.
+	 * @param session - the session that the HDF file is open in.
+	 * @param datasetName - the name of a 2-dimensional dataset.
+	 * @param requestedRows - the rows to read, in the order they should be returned. They may be in any order, and may repeat.
+	 * @return the rows, in the order of <code>requestedRows</code>.
+	 */
+	public int[][] read(HDF5Session session, String datasetName, int[] requestedRows)
+	{
+		long[] dimensions = session.getDimensions(datasetName);
+		int numberOfColumns = (int) dimensions[1];
+		ReadPlan plan = this.plan(requestedRows, (int) dimensions[0], (long) numberOfColumns * Integer.BYTES, getChunkRows(session, datasetName));
+		logger.info("Reading {} rows of {}: {}", requestedRows.length, datasetName, plan);
+		List<int[]> allColumns = new ArrayList<>();
+		allColumns.add(new int[] { 0, numberOfColumns });
+		int[][] rowsRead = readPlannedRows(session, datasetName, plan, allColumns, numberOfColumns);
+		return arrangeRows(plan, rowsRead);
+	}
+
+	/**
+	 * Plans and runs a read of some of the columns (genes) of some of the rows (samples) of an integer dataset. The rows are planned as they are
+	 * by {@link #read(HDF5Session, String, int[])}, and each of them is read with only the requested columns selected, so a few genes of a tissue
+	 * are read in the same number of calls as all of its genes, without reading the others.
+	 * @param session - the session that the HDF file is open in.
+	 * @param datasetName - the name of a 2-dimensional dataset.
+	 * @param requestedRows - the rows to read, in the order they should be returned. They may be in any order, and may repeat.
+	 * @param requestedColumns - the columns to read, in the order they should be returned. They may be in any order, and may repeat.
+	 * @return the values, column-major: outer index is the position in <code>requestedColumns</code>, inner index is the position in
+	 * <code>requestedRows</code>.
+	 */
+	public int[][] readColumns(HDF5Session session, String datasetName, int[] requestedRows, int[] requestedColumns)
+	{
+		long[] dimensions = session.getDimensions(datasetName);
+		int[] distinctColumns = Arrays.stream(requestedColumns).sorted().distinct().toArray();
+		if (distinctColumns.length > 0 && (distinctColumns[0] < 0 || distinctColumns[distinctColumns.length - 1] >= dimensions[1]))
+		{
+			throw new IndexOutOfBoundsException("Columns must be in [0, " + dimensions[1] + "), but columns " + distinctColumns[0] + " to " + distinctColumns[distinctColumns.length - 1] + " were requested.");
+		}
+		ReadPlan plan = this.plan(requestedRows, (int) dimensions[0], (long) distinctColumns.length * Integer.BYTES, getChunkRows(session, datasetName));
+		logger.info("Reading {} columns of {} rows of {}: {}", requestedColumns.length, requestedRows.length, datasetName, plan);
+		int[][] rowsRead = readPlannedRows(session, datasetName, plan, mergeRows(distinctColumns, 0), distinctColumns.length);
+		// Transposed while it is picked out, so that each column's values are one array.
+		int[][] columnValues = new int[requestedColumns.length][requestedRows.length];
+		for (int column = 0; column < requestedColumns.length; column++)
+		{
+			int readColumn = Arrays.binarySearch(distinctColumns, requestedColumns[column]);
+			int[] values = columnValues[column];
+			for (int request = 0; request < values.length; request++)
+			{
+				values[request] = rowsRead[plan.getReadRow(request)][readColumn];
+			}
+		}
+		return columnValues;
+	}
+
+	private static long getChunkRows(HDF5Session session, String datasetName)
+	{
+		long[] chunkDimensions = session.getChunkDimensions(datasetName);
+		return chunkDimensions == null ? 0 : chunkDimensions[0];
+	}
+
+	/**
+	 * Reads the rows of a plan, with the given runs of columns selected in each of them.
+	 * @param columnRuns - the runs of columns to select, as {start, length}, sorted and not overlapping.
+	 * @param numberOfColumns - the number of columns in <code>columnRuns</code>.
+	 * @return the rows that were read, in the order of the plan's strips.
+	 */
+	private int[][] readPlannedRows(HDF5Session session, String datasetName, ReadPlan plan, List<int[]> columnRuns, int numberOfColumns)
+	{
+		int[][] rowsRead;
+		if (plan.getRowsRead() == 0 || numberOfColumns == 0)
+		{
+			rowsRead = new int[plan.getRowsRead()][numberOfColumns];
+		}
+		else if (plan.getStrategy() == Strategy.HYPERSLAB_UNION)
+		{
+			long dataspaceId = session.getDataspace(datasetName);
+			for (int strip = 0; strip < plan.getNumberOfStrips(); strip++)
+			{
+				selectStrip(dataspaceId, plan, strip, columnRuns, strip == 0 ? HDF5Constants.H5S_SELECT_SET : HDF5Constants.H5S_SELECT_OR);
+			}
+			rowsRead = session.readData(datasetName, dataspaceId, plan.getRowsRead(), numberOfColumns);
+		}
+		else
+		{
+			rowsRead = new int[plan.getRowsRead()][];
+			long dataspaceId = session.getDataspace(datasetName);
+			for (int strip = 0; strip < plan.getNumberOfStrips(); strip++)
+			{
+				selectStrip(dataspaceId, plan, strip, columnRuns, HDF5Constants.H5S_SELECT_SET);
+				int[][] values = session.readData(datasetName, dataspaceId, plan.getStripLength(strip), numberOfColumns);
+				System.arraycopy(values, 0, rowsRead, plan.getStripOffset(strip), values.length);
+			}
+		}
+		this.totalBytesRead.addAndGet(plan.getBytesRead());
+		this.totalBytesUsed.addAndGet(plan.getBytesUsed());
+		return rowsRead;
+	}
+
+	/**
+	 * Puts the rows that were read into the requested order, dropping unrequested rows and copying repeated ones.
+	 */
+	private static int[][] arrangeRows(ReadPlan plan, int[][] rowsRead)
+	{
+		int[][] requestedValues = new int[plan.getNumberOfRequests()][];
+		boolean[] rowUsed = new boolean[rowsRead.length];
+		for (int request = 0; request < requestedValues.length; request++)
+		{
+			int readRow = plan.getReadRow(request);
+			requestedValues[request] = rowUsed[readRow] ? rowsRead[readRow].clone() : rowsRead[readRow];
+			rowUsed[readRow] = true;
+		}
+		return requestedValues;
+	}
+
+	/**
+	 * Selects a strip's rows, in each of the runs of columns. The first run is combined with the current selection by <code>op</code>, and the
+	 * others are ORed with it. The selected elements are read in row order, then column order, so each row's columns come out packed together.
+	 */
+	private static void selectStrip(long dataspaceId, ReadPlan plan, int strip, List<int[]> columnRuns, int op)
+	{
+		for (int columnRun = 0; columnRun < columnRuns.size(); columnRun++)
+		{
+			long[] start = { plan.getStripStart(strip), columnRuns.get(columnRun)[0] };
+			long[] count = { 1, 1 };
+			long[] block = { plan.getStripLength(strip), columnRuns.get(columnRun)[1] };
+			int status = H5.H5Sselect_hyperslab(dataspaceId, columnRun == 0 ? op : HDF5Constants.H5S_SELECT_OR, start, null, count, block);
+			if (status < 0)
+			{
+				logger.error("Selection returned an error code: {}", status);
+			}
+		}
+	}
+
+	/**
+	 * Merges sorted, distinct rows into strips of {start, length}, where the gap between the end of one strip and the start of the next is more than <code>maximumGap</code>.
+	 */
+	private static List<int[]> mergeRows(int[] distinctRows, int maximumGap)
+	{
+		List<int[]> strips = new ArrayList<>();
+		int index = 0;
+		while (index < distinctRows.length)
+		{
+			int start = distinctRows[index];
+			int end = start;
+			index++;
+			while (index < distinctRows.length && distinctRows[index] - end - 1 <= maximumGap)
+			{
+				end = distinctRows[index];
+				index++;
+			}
+			strips.add(new int[] { start, end - start + 1 });
+		}
+		return strips;
+	}
+
+	/**
+	 * Widens runs to the boundaries of the chunks they touch, and splits them into one strip per band of chunks.
+	 */
+	private static List<int[]> alignToChunks(List<int[]> runs, int chunkRows, int numberOfRows)
+	{
+		List<int[]> strips = new ArrayList<>();
+		int lastChunk = -1;
+		for (int[] run : runs)
+		{
+			int firstChunk = Math.max(run[0] / chunkRows, lastChunk + 1);
+			int endChunk = (run[0] + run[1] - 1) / chunkRows;
+			for (int chunk = firstChunk; chunk <= endChunk; chunk++)
+			{
+				int start = chunk * chunkRows;
+				strips.add(new int[] { start, Math.min(chunkRows, numberOfRows - start) });
+			}
+			lastChunk = Math.max(lastChunk, endChunk);
+		}
+		return strips;
+	}
+
+	public int getMaximumGapRows()
+	{
+		return this.maximumGapRows;
+	}
+
+	/**
+	 * Sets the largest gap (in rows) between two runs of a contiguous dataset that will be read through rather than selected around. The default is 16.
+	 * @param maximumGapRows
+	 */
+	public void setMaximumGapRows(int maximumGapRows)
+	{
+		if (maximumGapRows < 0)
+		{
+			throw new IllegalArgumentException("maximumGapRows must not be negative, but was " + maximumGapRows);
+		}
+		this.maximumGapRows = maximumGapRows;
+	}
+
+	public double getMaximumReadAmplification()
+	{
+		return this.maximumReadAmplification;
+	}
+
+	/**
+	 * Sets the most rows that a strip plan may read, as a multiple of the rows that were requested. A plan that would read more uses
+	 * {@link Strategy#HYPERSLAB_UNION} instead, so that the unrequested rows are not copied onto the heap. The default is 2.
+	 * @param maximumReadAmplification - at least 1.
+	 */
+	public void setMaximumReadAmplification(double maximumReadAmplification)
+	{
+		if (!(maximumReadAmplification >= 1.0))
+		{
+			throw new IllegalArgumentException("maximumReadAmplification must be at least 1, but was " + maximumReadAmplification);
+		}
+		this.maximumReadAmplification = maximumReadAmplification;
+	}
+
+	/**
+	 * @return the total bytes read by this planner's reads, including unrequested rows.
+	 */
+	public long getTotalBytesRead()
+	{
+		return this.totalBytesRead.get();
+	}
+
+	/**
+	 * @return the total bytes of requested (distinct) rows read by this planner's reads.
+	 */
+	public long getTotalBytesUsed()
+	{
+		return this.totalBytesUsed.get();
+	}
+}
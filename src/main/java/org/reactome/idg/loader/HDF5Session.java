@@ -0,0 +1,261 @@
+package org.reactome.idg.loader;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import hdf.hdf5lib.H5;
+import hdf.hdf5lib.HDF5Constants;
+
+/**
+ * Keeps an HDF file, and the datasets that have been used, open until the session is closed, so that a read costs only the read itself
+ * rather than opening (and closing) the file and dataset every time.
+ * <br/>
+ * A selection is part of a dataspace, so threads cannot share one. Each thread is given its own copy of a dataset's dataspace by
+ * {@link #getDataspace(String)}, which it keeps for the life of the session. A caller should make its first selection with
+ * <code>H5S_SELECT_SET</code>, which replaces whatever was selected by its previous read.
+ * <br/>
+ * Every native ID that the session opens is closed by {@link #close()}. The session never calls <code>H5close</code>, which would shut down
+ * the native library for every other session. Note that the HDF5 Java library serializes its native calls, so threads that share a session
+ * avoid each other's open/close overhead but their reads still happen one at a time.
+ * @author sshorser
+ *
+ */
+public class HDF5Session implements Closeable
+{
+	private static final Logger logger = LogManager.getLogger();
+
+	/**
+	 * The IDs of an open dataset.
+	 */
+	private static final class DatasetHandle
+	{
+		private final long datasetId;
+		private final long typeId;
+		private final long spaceId;
+		private final long[] dimensions;
+		// null if the dataset is not chunked.
+		private final long[] chunkDimensions;
+
+		private DatasetHandle(long fileId, String datasetName)
+		{
+			this.datasetId = H5.H5Dopen(fileId, datasetName, HDF5Constants.H5P_DEFAULT);
+			long openedTypeId = -1;
+			long openedSpaceId = -1;
+			try
+			{
+				openedTypeId = H5.H5Dget_type(this.datasetId);
+				openedSpaceId = H5.H5Dget_space(this.datasetId);
+				long[] dims = new long[2];
+				long[] maxdims = new long[2];
+				H5.H5Sget_simple_extent_dims(openedSpaceId, dims, maxdims);
+				this.dimensions = dims;
+				this.chunkDimensions = readChunkDimensions(this.datasetId);
+			}
+			catch (RuntimeException e)
+			{
+				// Nothing will be cached for the dataset, so close what was opened before the failure, or each retry would leak it again.
+				long spaceIdToClose = openedSpaceId;
+				long typeIdToClose = openedTypeId;
+				if (spaceIdToClose >= 0)
+				{
+					closeAfterFailure(() -> H5.H5Sclose(spaceIdToClose), e);
+				}
+				if (typeIdToClose >= 0)
+				{
+					closeAfterFailure(() -> H5.H5Tclose(typeIdToClose), e);
+				}
+				closeAfterFailure(() -> H5.H5Dclose(this.datasetId), e);
+				throw e;
+			}
+			this.typeId = openedTypeId;
+			this.spaceId = openedSpaceId;
+		}
+
+		/**
+		 * @return the dataset's chunk dimensions, or null if it is not chunked.
+		 */
+		private static long[] readChunkDimensions(long datasetId)
+		{
+			long plistId = H5.H5Dget_create_plist(datasetId);
+			try
+			{
+				if (H5.H5Pget_layout(plistId) == HDF5Constants.H5D_CHUNKED)
+				{
+					long[] chunkDimensions = new long[2];
+					H5.H5Pget_chunk(plistId, 2, chunkDimensions);
+					return chunkDimensions;
+				}
+				return null;
+			}
+			finally
+			{
+				H5.H5Pclose(plistId);
+			}
+		}
+
+		/**
+		 * Runs a close call while handling another failure, adding its failure (if it fails too) to the original one.
+		 */
+		private static void closeAfterFailure(Runnable closeCall, RuntimeException failure)
+		{
+			try
+			{
+				closeCall.run();
+			}
+			catch (RuntimeException e)
+			{
+				failure.addSuppressed(e);
+			}
+		}
+	}
+
+	private final String fileName;
+	private final long fileId;
+	private final Map<String, DatasetHandle> datasets = new ConcurrentHashMap<>();
+	// The dataspaces that have been given to each thread, by dataset name.
+	private final ThreadLocal<Map<String, Long>> threadDataspaces = ThreadLocal.withInitial(HashMap::new);
+	// Every dataspace that has been given to any thread, so that they can all be closed.
+	private final Set<Long> dataspaceIds = ConcurrentHashMap.newKeySet();
+	private volatile boolean closed;
+
+	/**
+	 * Opens an HDF file, read-only.
+	 * @param fileName - the path to the HDF file.
+	 */
+	public HDF5Session(String fileName)
+	{
+		this.fileName = fileName;
+		this.fileId = H5.H5Fopen(fileName, HDF5Constants.H5F_ACC_RDONLY, HDF5Constants.H5P_DEFAULT);
+		logger.debug("Opened HDF file {}", fileName);
+	}
+
+	private DatasetHandle getDataset(String datasetName)
+	{
+		if (this.closed)
+		{
+			throw new IllegalStateException("The HDF session for " + this.fileName + " has been closed.");
+		}
+		return this.datasets.computeIfAbsent(datasetName, name -> new DatasetHandle(this.fileId, name));
+	}
+
+	/**
+	 * @return the ID of a dataset, which is opened the first time it is asked for.
+	 */
+	public long getDatasetId(String datasetName)
+	{
+		return this.getDataset(datasetName).datasetId;
+	}
+
+	/**
+	 * @return the ID of a dataset's data type. It belongs to the session, so it must not be closed by the caller.
+	 */
+	public long getTypeId(String datasetName)
+	{
+		return this.getDataset(datasetName).typeId;
+	}
+
+	/**
+	 * @return the size of each of a dataset's dimensions (at most 2 are read).
+	 */
+	public long[] getDimensions(String datasetName)
+	{
+		return this.getDataset(datasetName).dimensions.clone();
+	}
+
+	/**
+	 * @return the size of each of a dataset's chunk dimensions (at most 2 are read), or null if the dataset is not chunked.
+	 */
+	public long[] getChunkDimensions(String datasetName)
+	{
+		long[] chunkDimensions = this.getDataset(datasetName).chunkDimensions;
+		return chunkDimensions == null ? null : chunkDimensions.clone();
+	}
+
+	/**
+	 * Gets the calling thread's copy of a dataset's dataspace, to make a selection in. The same thread gets the same copy each time.
+	 * It belongs to the session, so it must not be closed by the caller.
+	 * @param datasetName - the name of the dataset in the HDF file. For example: "/data/expression".
+	 * @return the ID of the dataspace.
+	 */
+	public long getDataspace(String datasetName)
+	{
+		DatasetHandle dataset = this.getDataset(datasetName);
+		Map<String, Long> dataspaces = this.threadDataspaces.get();
+		Long dataspaceId = dataspaces.get(datasetName);
+		if (dataspaceId == null)
+		{
+			dataspaceId = H5.H5Scopy(dataset.spaceId);
+			this.dataspaceIds.add(dataspaceId);
+			dataspaces.put(datasetName, dataspaceId);
+		}
+		return dataspaceId;
+	}
+
+	/**
+	 * Reads the selected elements of an integer dataset.
+	 * @param datasetName - the name of the dataset in the HDF file.
+	 * @param dataspaceId - the dataspace that has the selection, from {@link #getDataspace(String)}.
+	 * @param dimx - The size of the x-dimension of the selection.
+	 * @param dimy - The size of the y-dimension of the selection.
+	 * @return An array that is <code>dimx</code> x <code>dimy</code>.
+	 */
+	public int[][] readData(String datasetName, long dataspaceId, int dimx, int dimy)
+	{
+		DatasetHandle dataset = this.getDataset(datasetName);
+		return HDFUtils.readData(dataset.datasetId, dataset.typeId, dataspaceId, dimx, dimy);
+	}
+
+	public String getFileName()
+	{
+		return this.fileName;
+	}
+
+	/**
+	 * Closes every dataspace, dataset and type that the session opened, and then the file. Nothing should be reading from the session when
+	 * it is closed.
+	 */
+	@Override
+	public synchronized void close()
+	{
+		if (this.closed)
+		{
+			return;
+		}
+		this.closed = true;
+		for (long dataspaceId : this.dataspaceIds)
+		{
+			closeQuietly(() -> H5.H5Sclose(dataspaceId));
+		}
+		this.dataspaceIds.clear();
+		for (DatasetHandle dataset : this.datasets.values())
+		{
+			closeQuietly(() -> H5.H5Sclose(dataset.spaceId));
+			closeQuietly(() -> H5.H5Tclose(dataset.typeId));
+			closeQuietly(() -> H5.H5Dclose(dataset.datasetId));
+		}
+		this.datasets.clear();
+		closeQuietly(() -> H5.H5Fclose(this.fileId));
+		logger.debug("Closed HDF file {}", this.fileName);
+	}
+
+	/**
+	 * Runs a close call, logging (rather than throwing) a failure, so that one failure does not leave the remaining IDs open.
+	 */
+	private void closeQuietly(Runnable closeCall)
+	{
+		try
+		{
+			closeCall.run();
+		}
+		catch (RuntimeException e)
+		{
+			logger.error("Could not close an HDF ID for " + this.fileName, e);
+		}
+	}
+}
@@ -17,6 +17,28 @@ public class HDFUtils
 	 * @return An array that is <code>dimx</code> x <code>dimy</code>. 
 	 */
 	public static int[][] readData(long dataset_id, long space_id, int dimx, int dimy)
+	{
+		long type_id = H5.H5Dget_type(dataset_id);
+		try
+		{
+			return readData(dataset_id, type_id, space_id, dimx, dimy);
+		}
+		finally
+		{
+			H5.H5Tclose(type_id);
+		}
+	}
+
+	/**
+	 * Reads data from a dataset, with a data type that the caller has already opened (see {@link HDF5Session#getTypeId(String)}).
+	 * @param dataset_id - The dataset ID.
+	 * @param type_id - The ID of the dataset's data type.
+	 * @param space_id - The ID of the dataset's dataspace.
+	 * @param dimx - The size of the x-dimension of the portion to read.
+	 * @param dimy - The size of the y-dimension of the portion to read.
+	 * @return An array that is <code>dimx</code> x <code>dimy</code>.
+	 */
+	public static int[][] readData(long dataset_id, long type_id, long space_id, int dimx, int dimy)
 	{
 		int[][] dset_data = new int[dimx][dimy];
 		
@@ -24,32 +46,48 @@ public class HDFUtils
 		dims[0] = dimx;
 		dims[1] = dimy;
 		long memspace_id = H5.H5Screate_simple(2, dims, null);
-		long type_id = H5.H5Dget_type(dataset_id);
-		H5.H5Dread(dataset_id, type_id, memspace_id, space_id, HDF5Constants.H5P_DEFAULT, dset_data);
-		H5.H5Sclose(memspace_id);
-		H5.H5Tclose(type_id);
+		try
+		{
+			H5.H5Dread(dataset_id, type_id, memspace_id, space_id, HDF5Constants.H5P_DEFAULT, dset_data);
+		}
+		finally
+		{
+			H5.H5Sclose(memspace_id);
+		}
 
 		return dset_data;
 	}
 	
 	/**
-	 * Reads an array from dataset into an array of StringBuffers.
+	 * Reads an array from dataset into an array of StringBuffers. The file is opened and closed again; use {@link #readDataSet(HDF5Session, String, int)}
+	 * if it is already open.
 	 * @param dsName - The name of the dataset in the HDF5 file. For example: "/meta/genes".
 	 * @param dsSize - The number of data elements to read. This should be set to the size of the dataset.
 	 * @return An array of StringBuffers.
 	 */
 	public static StringBuffer[] readDataSet(String fileName, String dsName, int dsSize)
 	{
-		long file_id = H5.H5Fopen(fileName, HDF5Constants.H5F_ACC_RDONLY, HDF5Constants.H5P_DEFAULT);
-		long dataset_id = H5.H5Dopen(file_id, dsName, HDF5Constants.H5P_DEFAULT);
-		long type_id = H5.H5Dget_type(dataset_id);
+		try (HDF5Session session = new HDF5Session(fileName))
+		{
+			return readDataSet(session, dsName, dsSize);
+		}
+	}
+
+	/**
+	 * Reads an array from dataset into an array of StringBuffers.
+	 * @param session - The session that the HDF5 file is open in.
+	 * @param dsName - The name of the dataset in the HDF5 file. For example: "/meta/genes".
+	 * @param dsSize - The number of data elements to read. This should be set to the size of the dataset.
+	 * @return An array of StringBuffers.
+	 */
+	public static StringBuffer[] readDataSet(HDF5Session session, String dsName, int dsSize)
+	{
+		long dataset_id = session.getDatasetId(dsName);
+		long type_id = session.getTypeId(dsName);
 		long dataWidth = H5.H5Tget_size(type_id);
-		long space_id = H5.H5Dget_space(dataset_id);
-		long[] dims = new long[2];
-		long[] maxdims = new long[2];
-		H5.H5Sget_simple_extent_dims(space_id, dims, maxdims);
+		long[] dims = session.getDimensions(dsName);
 		byte[][] dset_data = new byte[dsSize][(int) dataWidth];
-		StringBuffer[] str_data = new StringBuffer[(int) maxdims[0]];
+		StringBuffer[] str_data = new StringBuffer[(int) dims[0]];
 		H5.H5Dread(dataset_id, type_id, HDF5Constants.H5S_ALL, HDF5Constants.H5S_ALL, HDF5Constants.H5P_DEFAULT, dset_data);
 		byte[] tempbuf = new byte[(int) dataWidth];
 		for (int indx = 0; indx < dset_data.length; indx++)
@@ -60,10 +98,6 @@ public class HDFUtils
 			}
 			str_data[indx] = new StringBuffer(new String(tempbuf).trim());
 		}
-		H5.H5Dclose(dataset_id);
-		H5.H5Tclose(type_id);
-		H5.H5Sclose(space_id);
-		H5.H5Fclose(file_id);
 		return str_data;
 	}
 }
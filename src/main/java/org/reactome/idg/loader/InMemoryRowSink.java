@@ -0,0 +1,71 @@
+package org.reactome.idg.loader;
+
+/**
+ * Collects the rows of a correlation matrix into a {@link PackedSymmetricMatrix}. This is mostly useful for testing,
+ * since it brings back the N x N memory use that the other sinks avoid.
+ * @author sshorser
+ *
+ */
+public class InMemoryRowSink implements CorrelationRowSink
+{
+	private final boolean useFloats;
+	private PackedSymmetricMatrix matrix;
+	private int blocksReceived = 0;
+
+	/**
+	 * Creates a sink that collects values as doubles.
+	 */
+	public InMemoryRowSink()
+	{
+		this(false);
+	}
+
+	/**
+	 * Creates a sink.
+	 * @param useFloats - if true, values are collected into a {@link PackedFloatSymmetricMatrix}, otherwise a {@link PackedDoubleSymmetricMatrix}.
+	 */
+	public InMemoryRowSink(boolean useFloats)
+	{
+		this.useFloats = useFloats;
+	}
+
+	@Override
+	public void start(int numberOfGenes)
+	{
+		this.matrix = this.useFloats ? new PackedFloatSymmetricMatrix(numberOfGenes) : new PackedDoubleSymmetricMatrix(numberOfGenes);
+		this.blocksReceived = 0;
+	}
+
+	@Override
+	public void accept(CorrelationRowBlock block)
+	{
+		long packedIndex = this.matrix.getPackedIndex(block.getStartRow(), block.getStartRow());
+		for (int row = block.getStartRow(); row < block.getEndRow(); row++)
+		{
+			for (int column = row; column < block.getNumberOfGenes(); column++)
+			{
+				this.matrix.setPackedValue(packedIndex++, block.getValue(row, column));
+			}
+		}
+		this.blocksReceived++;
+	}
+
+	@Override
+	public void close()
+	{
+		// Nothing to close.
+	}
+
+	/**
+	 * @return the matrix of all values received so far.
+	 */
+	public PackedSymmetricMatrix getMatrix()
+	{
+		return this.matrix;
+	}
+
+	public int getBlocksReceived()
+	{
+		return this.blocksReceived;
+	}
+}
@@ -0,0 +1,142 @@
+package org.reactome.idg.loader;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Keeps the Pearson correlations of a tissue up to date as samples are added to it, without re-reading the samples that were already included.
+ * <br/>
+ * The tissue's {@link CorrelationSufficientStatistics} are kept in a file. Each time {@link #update()} is called, the sample IDs in the tissue file
+ * are compared with the IDs in the statistics, and only the new samples are read from the HDF file (in chunks, as {@link ChunkedCorrelationCalculator}
+ * reads them) and merged into the statistics. The first update reads every sample.
+ * <br/>
+ * If samples have been <em>removed</em> from the tissue file, their contributions cannot be taken back out, so the statistics are calculated again from all of the samples.
+ * They are also calculated again if the HDF file's genes (or their order) or the calculator's normalization are not the ones that the statistics were calculated for.
+ * <br/>
+ * The same correlation types and normalizations as {@link ChunkedCorrelationCalculator} are supported: anything that depends on all of the samples
+ * (such as ranks, or gene filtering) cannot be updated incrementally.
+ * @author sshorser
+ *
+ */
+public class IncrementalCorrelationCalculator extends ChunkedCorrelationCalculator
+{
+	private static final Logger logger = LogManager.getLogger();
+
+	private final Path statisticsFile;
+
+	/**
+	 * Creates a calculator.
+	 * @param t - the path to the file with the tissue samples.
+	 * @param loader - the data loader, associated with a specific HDF file.
+	 * @param statisticsFile - the file that the tissue's sufficient statistics are kept in. It does not need to exist yet.
+	 */
+	public IncrementalCorrelationCalculator(String t, Archs4ExpressionDataLoader loader, Path statisticsFile)
+	{
+		super(t, loader);
+		this.statisticsFile = statisticsFile;
+	}
+
+	/**
+	 * Brings the statistics up to date with the tissue file, reading only the samples that are not in the statistics yet, and saves them.
+	 * @return the updated statistics.
+	 * @throws IOException If the tissue file or HDF file could not be read, or the statistics could not be read or written.
+	 */
+	public CorrelationSufficientStatistics update() throws IOException
+	{
+		this.checkSettings();
+		List<String> tissueSampleIds = this.getSampleIdsInFileOrder();
+		CorrelationSufficientStatistics statistics = this.loadStatistics(tissueSampleIds);
+		List<String> newSampleIds = new ArrayList<>();
+		for (String sampleId : tissueSampleIds)
+		{
+			if (!statistics.getSampleIds().contains(sampleId))
+			{
+				newSampleIds.add(sampleId);
+			}
+		}
+		if (newSampleIds.isEmpty())
+		{
+			logger.info("No new samples for {}; the statistics already cover all {} samples.", this.tissue, statistics.getNumberOfSamples());
+			return statistics;
+		}
+		logger.info("Adding {} new samples for {} to the statistics of {} samples.", newSampleIds.size(), this.tissue, statistics.getNumberOfSamples());
+		this.addSamples(statistics, newSampleIds);
+		statistics.writeTo(this.statisticsFile);
+		logger.info("Statistics for {} now cover {} samples; saved to {}", this.tissue, statistics.getNumberOfSamples(), this.statisticsFile);
+		return statistics;
+	}
+
+	/**
+	 * Brings the statistics up to date (see {@link #update()}), instead of reading every sample. {@link #calculateCorrelation(CorrelationRowSink)}
+	 * uses this, so it only reads the new samples too.
+	 * @return the updated statistics.
+	 * @throws IOException
+	 */
+	@Override
+	public CorrelationSufficientStatistics calculateStatistics() throws IOException
+	{
+		return this.update();
+	}
+
+	/**
+	 * Reads the existing statistics, if they are still usable for the tissue: for the same genes (in the same order) as the HDF file, with the same
+	 * normalization as this calculator, and with no samples that have been removed from the tissue. Otherwise, returns empty statistics.
+	 */
+	private CorrelationSufficientStatistics loadStatistics(List<String> tissueSampleIds) throws IOException
+	{
+		if (!Files.exists(this.statisticsFile))
+		{
+			return this.createStatistics();
+		}
+		CorrelationSufficientStatistics statistics;
+		try
+		{
+			statistics = CorrelationSufficientStatistics.readFrom(this.statisticsFile);
+		}
+		catch (IOException e)
+		{
+			logger.warn(this.statisticsFile + " could not be read (it may be from an older version). The statistics will be calculated again.", e);
+			return this.createStatistics();
+		}
+		int numberOfGenes = this.dataLoader.getNumberOfGenes();
+		if (statistics.getNumberOfGenes() != numberOfGenes)
+		{
+			logger.warn("{} has statistics for {} genes, but the HDF file has {} genes. The statistics will be calculated again.", this.statisticsFile,
+					statistics.getNumberOfGenes(), numberOfGenes);
+			return this.createStatistics();
+		}
+		if (!statistics.getGeneListFingerprint().equals(this.getGeneListFingerprint()))
+		{
+			logger.warn("{} has statistics for a different list of genes than the HDF file. The statistics will be calculated again.", this.statisticsFile);
+			return this.createStatistics();
+		}
+		if (!statistics.getNormalizationKey().equals(this.getNormalizationKey()))
+		{
+			logger.warn("{} has statistics with normalization {}, but this calculator's normalization is {}. The statistics will be calculated again.",
+					this.statisticsFile, statistics.getNormalizationKey(), this.getNormalizationKey());
+			return this.createStatistics();
+		}
+		Set<String> removedSampleIds = new LinkedHashSet<>(statistics.getSampleIds());
+		removedSampleIds.removeAll(tissueSampleIds);
+		if (!removedSampleIds.isEmpty())
+		{
+			logger.warn("{} samples (such as {}) have been removed from {}. The statistics will be calculated again.", removedSampleIds.size(),
+					removedSampleIds.iterator().next(), this.tissue);
+			return this.createStatistics();
+		}
+		return statistics;
+	}
+
+	public Path getStatisticsFile()
+	{
+		return this.statisticsFile;
+	}
+}
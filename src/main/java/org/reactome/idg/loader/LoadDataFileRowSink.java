@@ -0,0 +1,97 @@
+package org.reactome.idg.loader;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Writes gene-pair correlations to a tab-separated file that can be bulk-loaded with <code>GeneCorrelationDAO.loadGenePairsFromDataFile</code>.
+ * Each line looks like: <code>'gene1'	'gene2'	'correlation'	'provenanceId'</code>, the same as the files that {@link Archs4Loader} produces.
+ * The genes in a pair are written in alphabetical order, which is how gene-pairs are stored in the database.
+ * <br/>
+ * NaN correlations (from genes that have no variance) cannot be stored in the database, so they are not written.
+ * @author sshorser
+ *
+ */
+public class LoadDataFileRowSink implements CorrelationRowSink
+{
+	private static final Logger logger = LogManager.getLogger();
+
+	private final Path outputFile;
+	private final Map<Integer, String> geneIndicesToNames;
+	private final String provenanceId;
+	private BufferedWriter writer;
+	private long linesWritten = 0;
+	private long valuesSkipped = 0;
+
+	/**
+	 * Creates a sink that will write to a file. If the file already exists, it will be overwritten.
+	 * @param outputFile - the path to the file to write.
+	 * @param geneIndicesToNames - a mapping of gene indices to gene names, such as <code>Archs4ExpressionDataLoader.getGeneIndicesToNames()</code>.
+	 * @param provenanceId - the ID of the Provenance that the correlations will be loaded for.
+	 */
+	public LoadDataFileRowSink(Path outputFile, Map<Integer, String> geneIndicesToNames, long provenanceId)
+	{
+		this.outputFile = outputFile;
+		this.geneIndicesToNames = geneIndicesToNames;
+		this.provenanceId = String.valueOf(provenanceId);
+	}
+
+	@Override
+	public void start(int numberOfGenes) throws IOException
+	{
+		this.writer = Files.newBufferedWriter(this.outputFile, StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public void accept(CorrelationRowBlock block) throws IOException
+	{
+		for (int row = block.getStartRow(); row < block.getEndRow(); row++)
+		{
+			String gene = this.geneIndicesToNames.get(row);
+			for (int column = row; column < block.getNumberOfGenes(); column++)
+			{
+				double correlationValue = block.getValue(row, column);
+				if (Double.isNaN(correlationValue))
+				{
+					this.valuesSkipped++;
+					continue;
+				}
+				String otherGene = this.geneIndicesToNames.get(column);
+				boolean inOrder = gene.compareTo(otherGene) <= 0;
+				this.writer.write('\'');
+				this.writer.write(inOrder ? gene : otherGene);
+				this.writer.write("'\t'");
+				this.writer.write(inOrder ? otherGene : gene);
+				this.writer.write("'\t'");
+				this.writer.write(Double.toString(correlationValue));
+				this.writer.write("'\t'");
+				this.writer.write(this.provenanceId);
+				this.writer.write("'\n");
+				this.linesWritten++;
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if (this.writer != null)
+		{
+			this.writer.close();
+			this.writer = null;
+			logger.info("{} gene-pairs written to {}; {} NaN values skipped.", this.linesWritten, this.outputFile.toString(), this.valuesSkipped);
+		}
+	}
+
+	public long getLinesWritten()
+	{
+		return this.linesWritten;
+	}
+}
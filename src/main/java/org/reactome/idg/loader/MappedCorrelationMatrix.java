@@ -0,0 +1,254 @@
+package org.reactome.idg.loader;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.reactome.idg.loader.BinaryFileRowSink.Encoding;
+import org.reactome.idg.model.Provenance;
+
+/**
+ * A read-only correlation matrix that is queried in place, in a memory-mapped file written by {@link MappedMatrixFileRowSink}.
+ * <br/>
+ * Only the header (the gene names and provenance) is read onto the heap. A lookup is a few arithmetic operations and one absolute read from a mapped buffer:
+ * it allocates nothing, and the operating system's page cache decides which parts of the file stay in memory, so many tissues can be open at once
+ * (see {@link MappedCorrelationMatrixRegistry}). A <code>MappedByteBuffer</code> can only map 2 GB, so the values are mapped in segments of 1 GB;
+ * since every encoding's size is a power of 2, no value is split across segments.
+ * <br/>
+ * Lookups are thread-safe: they only use absolute reads, which do not change the buffers' positions.
+ * @author sshorser
+ *
+ */
+public class MappedCorrelationMatrix implements Closeable
+{
+	private static final int SEGMENT_BITS = 30;
+	private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+	private static final int FIXED_HEADER_SIZE = 5 * Integer.BYTES;
+
+	private final Path file;
+	private final int numberOfGenes;
+	private final Encoding encoding;
+	private final int bytesPerValueShift;
+	private final String[] geneNames;
+	private final Map<String, Integer> geneIndices;
+	private final Provenance provenance;
+	private final MappedByteBuffer[] segments;
+	private FileChannel channel;
+
+	private MappedCorrelationMatrix(Path file, FileChannel channel, int numberOfGenes, Encoding encoding, String[] geneNames, Provenance provenance, MappedByteBuffer[] segments)
+	{
+		this.file = file;
+		this.channel = channel;
+		this.numberOfGenes = numberOfGenes;
+		this.encoding = encoding;
+		this.bytesPerValueShift = Integer.numberOfTrailingZeros(encoding.getBytesPerValue());
+		this.geneNames = geneNames;
+		this.provenance = provenance;
+		this.segments = segments;
+		Map<String, Integer> indices = new HashMap<>();
+		for (int geneIndex = 0; geneIndex < geneNames.length; geneIndex++)
+		{
+			indices.put(geneNames[geneIndex], geneIndex);
+		}
+		this.geneIndices = Collections.unmodifiableMap(indices);
+	}
+
+	/**
+	 * Opens and maps a matrix file.
+	 * @param file - a file written by {@link MappedMatrixFileRowSink}.
+	 * @return the matrix.
+	 * @throws IOException If the file could not be read, or is not a matrix file of the expected size.
+	 */
+	public static MappedCorrelationMatrix open(Path file) throws IOException
+	{
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		try
+		{
+			ByteBuffer fixedHeader = ByteBuffer.allocate(FIXED_HEADER_SIZE);
+			readFully(channel, fixedHeader, 0);
+			if (fixedHeader.getInt() != MappedMatrixFileRowSink.MAGIC_NUMBER || fixedHeader.getInt() != MappedMatrixFileRowSink.FORMAT_VERSION)
+			{
+				throw new IOException(file + " is not a mapped correlation matrix file (version " + MappedMatrixFileRowSink.FORMAT_VERSION + ").");
+			}
+			int numberOfGenes = fixedHeader.getInt();
+			int encodingId = fixedHeader.getInt();
+			if (encodingId < 0 || encodingId >= Encoding.values().length)
+			{
+				throw new IOException(file + " has an unknown encoding: " + encodingId);
+			}
+			Encoding encoding = Encoding.values()[encodingId];
+			int headerSize = fixedHeader.getInt();
+			ByteBuffer variableHeader = ByteBuffer.allocate(headerSize - FIXED_HEADER_SIZE);
+			readFully(channel, variableHeader, FIXED_HEADER_SIZE);
+			Provenance provenance = new Provenance();
+			String[] geneNames = new String[numberOfGenes];
+			try (DataInputStream header = new DataInputStream(new ByteArrayInputStream(variableHeader.array())))
+			{
+				provenance.setName(emptyToNull(header.readUTF()));
+				provenance.setUrl(emptyToNull(header.readUTF()));
+				provenance.setCategory(emptyToNull(header.readUTF()));
+				provenance.setSubcategory(emptyToNull(header.readUTF()));
+				for (int geneIndex = 0; geneIndex < numberOfGenes; geneIndex++)
+				{
+					geneNames[geneIndex] = header.readUTF();
+				}
+			}
+			long bodySize = PackedSymmetricMatrix.getNumberOfPackedValues(numberOfGenes) * encoding.getBytesPerValue();
+			if (channel.size() != headerSize + bodySize)
+			{
+				throw new IOException(file + " should be " + (headerSize + bodySize) + " bytes long, but it is " + channel.size() + " bytes long.");
+			}
+			MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((bodySize + SEGMENT_MASK) >>> SEGMENT_BITS)];
+			for (int segment = 0; segment < segments.length; segment++)
+			{
+				long segmentStart = (long) segment << SEGMENT_BITS;
+				segments[segment] = channel.map(MapMode.READ_ONLY, headerSize + segmentStart, Math.min(1L << SEGMENT_BITS, bodySize - segmentStart));
+			}
+			return new MappedCorrelationMatrix(file, channel, numberOfGenes, encoding, geneNames, provenance, segments);
+		}
+		catch (IOException | RuntimeException e)
+		{
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Gets the correlation of two genes.
+	 * @param geneIndex - the index of one gene.
+	 * @param otherGeneIndex - the index of the other gene. The order of the genes does not matter.
+	 * @return the correlation value (NaN if either gene had no variance).
+	 */
+	public double get(int geneIndex, int otherGeneIndex)
+	{
+		if (geneIndex < 0 || geneIndex >= this.numberOfGenes || otherGeneIndex < 0 || otherGeneIndex >= this.numberOfGenes)
+		{
+			throw new IndexOutOfBoundsException("(" + geneIndex + ", " + otherGeneIndex + ") is not in a matrix of " + this.numberOfGenes + " genes.");
+		}
+		long i = Math.min(geneIndex, otherGeneIndex);
+		long j = Math.max(geneIndex, otherGeneIndex);
+		long offset = (i * this.numberOfGenes - i * (i - 1) / 2 + (j - i)) << this.bytesPerValueShift;
+		MappedByteBuffer segment = this.segments[(int) (offset >>> SEGMENT_BITS)];
+		int position = (int) (offset & SEGMENT_MASK);
+		switch (this.encoding)
+		{
+			case SHORT:
+				return CorrelationQuantizer.fromShort(segment.getShort(position));
+			case BYTE:
+				return CorrelationQuantizer.fromByte(segment.get(position));
+			default:
+				return segment.getFloat(position);
+		}
+	}
+
+	/**
+	 * Gets the correlation of two genes, by name.
+	 * @return the correlation value (NaN if either gene had no variance).
+	 * @throws IllegalArgumentException If either gene is not in the matrix.
+	 */
+	public double get(String gene, String otherGene)
+	{
+		return this.get(this.getGeneIndex(gene), this.getGeneIndex(otherGene));
+	}
+
+	/**
+	 * @return the gene's index in the matrix.
+	 * @throws IllegalArgumentException If the gene is not in the matrix.
+	 */
+	public int getGeneIndex(String gene)
+	{
+		Integer geneIndex = this.geneIndices.get(gene);
+		if (geneIndex == null)
+		{
+			throw new IllegalArgumentException("Gene " + gene + " is not in " + this.file);
+		}
+		return geneIndex;
+	}
+
+	/**
+	 * Asks the operating system to load the whole matrix into the page cache, so that the first lookups are not slowed down by page faults.
+	 */
+	public void load()
+	{
+		for (MappedByteBuffer segment : this.segments)
+		{
+			segment.load();
+		}
+	}
+
+	/**
+	 * Closes the file. The mapping itself is only released when the buffers are garbage-collected, so the matrix must not be used after it is closed.
+	 */
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if (this.channel != null)
+		{
+			this.channel.close();
+			this.channel = null;
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			if (channel.read(buffer, position + buffer.position()) < 0)
+			{
+				throw new IOException("Unexpected end of file.");
+			}
+		}
+		buffer.flip();
+	}
+
+	private static String emptyToNull(String value)
+	{
+		return value.isEmpty() ? null : value;
+	}
+
+	public Path getFile()
+	{
+		return this.file;
+	}
+
+	public int getNumberOfGenes()
+	{
+		return this.numberOfGenes;
+	}
+
+	public Encoding getEncoding()
+	{
+		return this.encoding;
+	}
+
+	/**
+	 * @return the name of a gene.
+	 */
+	public String getGeneName(int geneIndex)
+	{
+		return this.geneNames[geneIndex];
+	}
+
+	/**
+	 * @return the genes' indices in the matrix, by name.
+	 */
+	public Map<String, Integer> getGeneIndices()
+	{
+		return this.geneIndices;
+	}
+
+	public Provenance getProvenance()
+	{
+		return this.provenance;
+	}
+}
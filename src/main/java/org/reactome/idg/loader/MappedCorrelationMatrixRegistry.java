@@ -0,0 +1,136 @@
+package org.reactome.idg.loader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Keeps the {@link MappedCorrelationMatrix} of several tissues open at once, so that correlations can be looked up by tissue.
+ * <br/>
+ * Nothing is cached on the heap: the matrices are mapped, so the operating system's page cache keeps the parts that are used in memory,
+ * and shares them between processes that open the same files.
+ * @author sshorser
+ *
+ */
+public class MappedCorrelationMatrixRegistry implements Closeable
+{
+	private static final Logger logger = LogManager.getLogger();
+
+	/**
+	 * The extension of the files that {@link #openDirectory(Path)} opens. {@link MultiTissueCorrelationScheduler} names its files with it.
+	 */
+	public static final String FILE_EXTENSION = ".cmap";
+
+	private final Map<String, MappedCorrelationMatrix> matrices = new ConcurrentHashMap<>();
+
+	/**
+	 * Opens a tissue's matrix. If the tissue already had a matrix open, it is closed and replaced.
+	 * @param tissue - the name that the matrix will be looked up by.
+	 * @param file - a file written by {@link MappedMatrixFileRowSink}.
+	 * @return the matrix.
+	 * @throws IOException
+	 */
+	public MappedCorrelationMatrix open(String tissue, Path file) throws IOException
+	{
+		MappedCorrelationMatrix matrix = MappedCorrelationMatrix.open(file);
+		MappedCorrelationMatrix previousMatrix = this.matrices.put(tissue, matrix);
+		if (previousMatrix != null)
+		{
+			previousMatrix.close();
+		}
+		logger.info("Opened {} for {}: {} genes, {} encoding", file, tissue, matrix.getNumberOfGenes(), matrix.getEncoding());
+		return matrix;
+	}
+
+	/**
+	 * Opens every {@link #FILE_EXTENSION} file in a directory. Each tissue is named after its file, without the extension.
+	 * @param directory - a directory, such as the output directory of a {@link MultiTissueCorrelationScheduler}.
+	 * @return the number of matrices that were opened.
+	 * @throws IOException
+	 */
+	public int openDirectory(Path directory) throws IOException
+	{
+		int numberOfMatrices = 0;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + FILE_EXTENSION))
+		{
+			for (Path file : files)
+			{
+				String fileName = file.getFileName().toString();
+				this.open(fileName.substring(0, fileName.length() - FILE_EXTENSION.length()), file);
+				numberOfMatrices++;
+			}
+		}
+		return numberOfMatrices;
+	}
+
+	/**
+	 * @return the tissue's matrix.
+	 * @throws IllegalArgumentException If no matrix is open for the tissue.
+	 */
+	public MappedCorrelationMatrix getMatrix(String tissue)
+	{
+		MappedCorrelationMatrix matrix = this.matrices.get(tissue);
+		if (matrix == null)
+		{
+			throw new IllegalArgumentException("No correlation matrix is open for " + tissue);
+		}
+		return matrix;
+	}
+
+	/**
+	 * Gets the correlation of two genes in a tissue.
+	 * @return the correlation value (NaN if either gene had no variance in the tissue).
+	 * @throws IllegalArgumentException If no matrix is open for the tissue, or either gene is not in it.
+	 */
+	public double getCorrelation(String gene, String otherGene, String tissue)
+	{
+		return this.getMatrix(tissue).get(gene, otherGene);
+	}
+
+	/**
+	 * @return the tissues that have a matrix open, in order.
+	 */
+	public Set<String> getTissues()
+	{
+		return Collections.unmodifiableSet(new TreeSet<>(this.matrices.keySet()));
+	}
+
+	/**
+	 * Closes every matrix.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		IOException exception = null;
+		for (String tissue : this.matrices.keySet())
+		{
+			MappedCorrelationMatrix matrix = this.matrices.remove(tissue);
+			try
+			{
+				if (matrix != null)
+				{
+					matrix.close();
+				}
+			}
+			catch (IOException e)
+			{
+				logger.error("Could not close the matrix for " + tissue, e);
+				exception = e;
+			}
+		}
+		if (exception != null)
+		{
+			throw exception;
+		}
+	}
+}
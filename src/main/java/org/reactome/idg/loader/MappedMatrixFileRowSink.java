@@ -0,0 +1,85 @@
+package org.reactome.idg.loader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Map;
+
+import org.reactome.idg.model.Provenance;
+
+/**
+ * Writes the upper triangle of a correlation matrix to a file that can be memory-mapped and queried in place by {@link MappedCorrelationMatrix}.
+ * <br/>
+ * The file has a header, followed by the values in the same packed layout as {@link BinaryFileRowSink} (from the main diagonal to the end of each row,
+ * one row after another). The header is:
+ * <ul>
+ * <li>big-endian ints: {@link #MAGIC_NUMBER}, {@link #FORMAT_VERSION}, N (the number of genes), the {@link BinaryFileRowSink.Encoding} of the values, and the
+ * length of the whole header in bytes;</li>
+ * <li>the provenance's name, URL, category and subcategory, as modified UTF-8 strings (see <code>DataOutput.writeUTF</code>), with "" for null;</li>
+ * <li>the names of the N genes, in index order, in the same way;</li>
+ * <li>padding, so that the values start at a multiple of 8 bytes.</li>
+ * </ul>
+ * @author sshorser
+ *
+ */
+public class MappedMatrixFileRowSink extends BinaryFileRowSink
+{
+	public static final int MAGIC_NUMBER = 0x434D4150; // "CMAP"
+	public static final int FORMAT_VERSION = 1;
+	static final int HEADER_ALIGNMENT = Long.BYTES;
+
+	private final Map<Integer, String> geneIndicesToNames;
+	private final Provenance provenance;
+
+	/**
+	 * Creates a sink that will write to a file. If the file already exists, it will be overwritten.
+	 * @param outputFile - the path to the file to write.
+	 * @param encoding - how the values will be written. {@link BinaryFileRowSink.Encoding#SHORT} is usually precise enough, and halves the file (and page cache) size.
+	 * @param geneIndicesToNames - the names of the genes, by the matrix's gene index (see {@link FilteredGeneIndex#remapGeneNames(Map)} if a prefilter was used).
+	 * @param provenance - where the correlations came from, such as the tissue's Provenance from {@link MultiTissueCorrelationScheduler}.
+	 */
+	public MappedMatrixFileRowSink(Path outputFile, Encoding encoding, Map<Integer, String> geneIndicesToNames, Provenance provenance)
+	{
+		super(outputFile, encoding);
+		this.geneIndicesToNames = geneIndicesToNames;
+		this.provenance = provenance;
+	}
+
+	@Override
+	protected ByteBuffer createHeader(int numberOfGenes) throws IOException
+	{
+		ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+		try (DataOutputStream header = new DataOutputStream(headerBytes))
+		{
+			header.writeUTF(nullToEmpty(this.provenance.getName()));
+			header.writeUTF(nullToEmpty(this.provenance.getUrl()));
+			header.writeUTF(nullToEmpty(this.provenance.getCategory()));
+			header.writeUTF(nullToEmpty(this.provenance.getSubcategory()));
+			for (int geneIndex = 0; geneIndex < numberOfGenes; geneIndex++)
+			{
+				String geneName = this.geneIndicesToNames.get(geneIndex);
+				if (geneName == null)
+				{
+					throw new IllegalArgumentException("There is no name for gene " + geneIndex + " of " + numberOfGenes);
+				}
+				header.writeUTF(geneName);
+			}
+		}
+		int fixedHeaderSize = 5 * Integer.BYTES;
+		int headerSize = fixedHeaderSize + headerBytes.size();
+		headerSize = (headerSize + HEADER_ALIGNMENT - 1) / HEADER_ALIGNMENT * HEADER_ALIGNMENT;
+		ByteBuffer header = ByteBuffer.allocate(headerSize);
+		header.putInt(MAGIC_NUMBER).putInt(FORMAT_VERSION).putInt(numberOfGenes).putInt(this.getEncoding().ordinal()).putInt(headerSize);
+		header.put(headerBytes.toByteArray());
+		// The padding is already zeroes.
+		header.position(headerSize);
+		return header;
+	}
+
+	private static String nullToEmpty(String value)
+	{
+		return value == null ? "" : value;
+	}
+}
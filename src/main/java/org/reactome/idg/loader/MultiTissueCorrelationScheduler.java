@@ -0,0 +1,468 @@
+package org.reactome.idg.loader;
+
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.reactome.idg.dao.ProvenanceDAO;
+import org.reactome.idg.loader.CorrelationCalculator.CorrelationType;
+import org.reactome.idg.model.Provenance;
+
+/**
+ * Calculates the correlation matrices for every tissue in a directory of tissue sample files (such as <code>heart.txt</code>), within a memory budget.
+ * <br/>
+ * Before a tissue is loaded, the memory it will need is estimated from its number of samples (see {@link #estimateMemoryForTissue(int, int)}).
+ * Tissues are calculated at the same time as long as their estimates fit in the budget (and there are no more than <code>maxConcurrentTissues</code>
+ * of them); the others wait until enough memory has been released. When a tissue is finished, its expression values are evicted from the loader's cache.
+ * <br/>
+ * Each tissue's matrix is streamed to its own output file in the output directory, and gets its own {@link Provenance}. When all the tissues
+ * have finished, the wall time and peak memory of each one is logged and returned.
+ * @author sshorser
+ *
+ */
+public class MultiTissueCorrelationScheduler
+{
+	private static final Logger logger = LogManager.getLogger();
+
+	private static final long BYTES_PER_MEGABYTE = 1L << 20;
+	// How often memory use is sampled while tissues are being calculated.
+	private static final long MEMORY_SAMPLE_INTERVAL_MS = 200;
+	// The row blocks that are waiting for a sink, in addition to maxBlocksInFlight: one being calculated and one being written.
+	private static final int EXTRA_BLOCKS = 2;
+	private static final int TILE_SIZE = 64;
+	private static final int MAX_BLOCKS_IN_FLIGHT = 4;
+	private static final String ARCHS4_URL = "https://amp.pharm.mssm.edu/archs4/download.html";
+
+	/**
+	 * The kinds of files that the matrices can be written to.
+	 */
+	public enum OutputFormat
+	{
+		/**
+		 * A binary file of the upper triangle (see {@link BinaryFileRowSink}).
+		 */
+		BINARY,
+		/**
+		 * A binary file with the gene names and Provenance in its header, that can be memory-mapped and queried in place
+		 * (see {@link MappedMatrixFileRowSink} and {@link MappedCorrelationMatrixRegistry#openDirectory(Path)}).
+		 */
+		MAPPED,
+		/**
+		 * A tab-separated file that can be loaded into the database (see {@link LoadDataFileRowSink}). This needs a ProvenanceDAO,
+		 * since each line has the tissue's Provenance ID.
+		 */
+		LOAD_DATA_FILE;
+	}
+
+	private final Archs4ExpressionDataLoader loader;
+	private final long memoryBudget;
+	private int maxConcurrentTissues = 2;
+	private OutputFormat outputFormat = OutputFormat.BINARY;
+	private BinaryFileRowSink.Encoding encoding = BinaryFileRowSink.Encoding.FLOAT;
+	private CorrelationType correlationType = CorrelationType.PEARSON;
+	private ProvenanceDAO provenanceDao;
+
+	/**
+	 * The outcome of calculating one tissue.
+	 */
+	public static class TissueRunReport
+	{
+		private final String tissueName;
+		private final Path tissueFile;
+		private Path outputFile;
+		private Provenance provenance;
+		private int numberOfSamples;
+		private long estimatedMemory;
+		private Duration wallTime = Duration.ZERO;
+		private volatile long peakHeapUsed;
+		private volatile long peakOffHeapUsed;
+		private Exception failure;
+
+		TissueRunReport(String tissueName, Path tissueFile)
+		{
+			this.tissueName = tissueName;
+			this.tissueFile = tissueFile;
+		}
+
+		synchronized void recordMemoryUse(long heapUsed, long offHeapUsed)
+		{
+			this.peakHeapUsed = Math.max(this.peakHeapUsed, heapUsed);
+			this.peakOffHeapUsed = Math.max(this.peakOffHeapUsed, offHeapUsed);
+		}
+
+		public String getTissueName()
+		{
+			return this.tissueName;
+		}
+
+		public Path getTissueFile()
+		{
+			return this.tissueFile;
+		}
+
+		public Path getOutputFile()
+		{
+			return this.outputFile;
+		}
+
+		public Provenance getProvenance()
+		{
+			return this.provenance;
+		}
+
+		public int getNumberOfSamples()
+		{
+			return this.numberOfSamples;
+		}
+
+		public long getEstimatedMemory()
+		{
+			return this.estimatedMemory;
+		}
+
+		public Duration getWallTime()
+		{
+			return this.wallTime;
+		}
+
+		/**
+		 * Gets the largest heap use that was seen while this tissue was being calculated. Other tissues that were calculated
+		 * at the same time are included, since the heap is shared.
+		 */
+		public long getPeakHeapUsed()
+		{
+			return this.peakHeapUsed;
+		}
+
+		/**
+		 * Gets the largest use of direct (off-heap) buffers that was seen while this tissue was being calculated.
+		 */
+		public long getPeakOffHeapUsed()
+		{
+			return this.peakOffHeapUsed;
+		}
+
+		/**
+		 * @return what went wrong, or null if the tissue was calculated successfully.
+		 */
+		public Exception getFailure()
+		{
+			return this.failure;
+		}
+
+		public boolean isSuccessful()
+		{
+			return this.failure == null;
+		}
+	}
+
+	/**
+	 * Creates a scheduler.
+	 * @param loader - the data loader, associated with a specific HDF file.
+	 * @param memoryBudget - the most memory (in bytes, heap and off-heap together) that the tissues being calculated should use at once.
+	 */
+	public MultiTissueCorrelationScheduler(Archs4ExpressionDataLoader loader, long memoryBudget)
+	{
+		if (memoryBudget < BYTES_PER_MEGABYTE)
+		{
+			throw new IllegalArgumentException("The memory budget must be at least 1 MB, but was " + memoryBudget + " bytes.");
+		}
+		this.loader = loader;
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * Calculates the correlation matrix for every tissue file (*.txt) in a directory.
+	 * @param tissueDirectory - the directory with the tissue sample files.
+	 * @param outputDirectory - the directory that the output files will be written to. It will be created if it does not exist.
+	 * @return a report for each tissue, in the order of the tissue file names.
+	 * @throws IOException If the directories could not be read or created. A tissue that fails does not stop the others; its failure is in its report.
+	 */
+	public List<TissueRunReport> calculateAllTissues(Path tissueDirectory, Path outputDirectory) throws IOException
+	{
+		if (this.outputFormat == OutputFormat.LOAD_DATA_FILE && this.provenanceDao == null)
+		{
+			throw new IllegalStateException("A ProvenanceDAO is needed to write load-data files.");
+		}
+		Files.createDirectories(outputDirectory);
+		List<Path> tissueFiles;
+		try (Stream<Path> files = Files.list(tissueDirectory))
+		{
+			tissueFiles = files.filter(Files::isRegularFile).filter(f -> f.getFileName().toString().endsWith(".txt")).sorted().collect(Collectors.toList());
+		}
+		logger.info("{} tissue files found in {}; memory budget is {} MB.", tissueFiles.size(), tissueDirectory, this.memoryBudget / BYTES_PER_MEGABYTE);
+
+		int totalPermits = (int) Math.min(Integer.MAX_VALUE, this.memoryBudget / BYTES_PER_MEGABYTE);
+		Semaphore memoryPermits = new Semaphore(totalPermits, true);
+		Set<TissueRunReport> runningTissues = ConcurrentHashMap.newKeySet();
+		List<TissueRunReport> reports = new ArrayList<>();
+		List<Future<?>> tissueRuns = new ArrayList<>();
+		ExecutorService tissueExecutor = Executors.newFixedThreadPool(this.maxConcurrentTissues);
+		ScheduledExecutorService memoryMonitor = Executors.newSingleThreadScheduledExecutor();
+		try
+		{
+			memoryMonitor.scheduleAtFixedRate(() -> recordMemoryUse(runningTissues), 0, MEMORY_SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+			for (Path tissueFile : tissueFiles)
+			{
+				String fileName = tissueFile.getFileName().toString();
+				TissueRunReport report = new TissueRunReport(fileName.substring(0, fileName.length() - ".txt".length()), tissueFile);
+				reports.add(report);
+				tissueRuns.add(tissueExecutor.submit(() -> this.calculateTissue(report, outputDirectory, memoryPermits, totalPermits, runningTissues)));
+			}
+			for (Future<?> tissueRun : tissueRuns)
+			{
+				tissueRun.get();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for tissues to be calculated.", e);
+		}
+		catch (ExecutionException e)
+		{
+			// calculateTissue records its own failures, so this should not happen.
+			throw new IOException("A tissue calculation failed unexpectedly.", e.getCause());
+		}
+		finally
+		{
+			memoryMonitor.shutdownNow();
+			tissueExecutor.shutdownNow();
+		}
+		logReports(reports);
+		return reports;
+	}
+
+	/**
+	 * Calculates one tissue, once there is enough memory in the budget for it. Failures are recorded in the report, not thrown.
+	 */
+	private void calculateTissue(TissueRunReport report, Path outputDirectory, Semaphore memoryPermits, int totalPermits, Set<TissueRunReport> runningTissues)
+	{
+		int permits = 0;
+		try
+		{
+			report.numberOfSamples = this.loader.getSampleIndicesForTissue(report.getTissueFile()).length;
+			report.estimatedMemory = this.estimateMemoryForTissue(report.getNumberOfSamples(), this.loader.getGeneIndices().size());
+			long estimatedMegabytes = (report.getEstimatedMemory() + BYTES_PER_MEGABYTE - 1) / BYTES_PER_MEGABYTE;
+			if (estimatedMegabytes > totalPermits)
+			{
+				logger.warn("Tissue {} needs about {} MB, which is more than the whole budget. It will be calculated on its own.", report.getTissueName(), estimatedMegabytes);
+			}
+			permits = (int) Math.min(estimatedMegabytes, totalPermits);
+			memoryPermits.acquire(permits);
+			LocalDateTime startTime = LocalDateTime.now();
+			runningTissues.add(report);
+			try
+			{
+				logger.info("Calculating tissue {} ({} samples, about {} MB)", report.getTissueName(), report.getNumberOfSamples(), estimatedMegabytes);
+				report.provenance = this.createProvenance(report.getTissueName());
+				GenePairCorrelationMatrixCalculator calculator = new GenePairCorrelationMatrixCalculator(report.getTissueFile().toString(), this.loader);
+				calculator.setCorrelationType(this.correlationType);
+				calculator.setTileSize(TILE_SIZE);
+				calculator.setMaxBlocksInFlight(MAX_BLOCKS_IN_FLIGHT);
+				calculator.setParallelism(Math.max(1, Runtime.getRuntime().availableProcessors() / this.maxConcurrentTissues));
+				calculator.calculateCorrelation(this.createSink(report, outputDirectory));
+			}
+			finally
+			{
+				runningTissues.remove(report);
+				report.wallTime = Duration.between(startTime, LocalDateTime.now());
+				this.loader.evictTissue(report.getTissueFile());
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			report.failure = e;
+		}
+		catch (Exception e)
+		{
+			logger.error("Tissue " + report.getTissueName() + " failed.", e);
+			report.failure = e;
+		}
+		finally
+		{
+			memoryPermits.release(permits);
+		}
+	}
+
+	/**
+	 * Estimates how much memory a tissue will need while it is being calculated: the expression values (read sample-major, then transposed
+	 * to gene-major), the ranks (for Spearman), the standardized gene vectors, and the row blocks waiting for the sink.
+	 * @param numberOfSamples
+	 * @param numberOfGenes
+	 * @return the estimate, in bytes.
+	 */
+	long estimateMemoryForTissue(int numberOfSamples, int numberOfGenes)
+	{
+		long values = (long) numberOfSamples * numberOfGenes;
+		long expressionValues = 2 * values * Integer.BYTES;
+		long ranks = this.correlationType == CorrelationType.SPEARMAN ? values * Float.BYTES : 0;
+		long standardizedValues = values * Double.BYTES;
+		long rowBlocks = (long) (MAX_BLOCKS_IN_FLIGHT + EXTRA_BLOCKS) * TILE_SIZE * numberOfGenes * Double.BYTES;
+		long sinkBuffer = BYTES_PER_MEGABYTE;
+		return expressionValues + ranks + standardizedValues + rowBlocks + sinkBuffer;
+	}
+
+	/**
+	 * Creates the Provenance for a tissue's correlations. If there is a ProvenanceDAO, the Provenance is added to the database.
+	 */
+	private Provenance createProvenance(String tissueName)
+	{
+		Provenance provenance = new Provenance();
+		provenance.setName("ARCHS4");
+		provenance.setUrl(ARCHS4_URL);
+		provenance.setCategory("Pairwise " + this.correlationType.toString().toLowerCase() + " correlation of genes across expression samples.");
+		provenance.setSubcategory(tissueName);
+		if (this.provenanceDao != null)
+		{
+			provenance = this.provenanceDao.addProvenance(provenance);
+		}
+		return provenance;
+	}
+
+	private CorrelationRowSink createSink(TissueRunReport report, Path outputDirectory)
+	{
+		if (this.outputFormat == OutputFormat.LOAD_DATA_FILE)
+		{
+			report.outputFile = outputDirectory.resolve(report.getTissueName() + ".tsv");
+			return new LoadDataFileRowSink(report.getOutputFile(), this.loader.getGeneIndicesToNames(), report.getProvenance().getId());
+		}
+		if (this.outputFormat == OutputFormat.MAPPED)
+		{
+			report.outputFile = outputDirectory.resolve(report.getTissueName() + MappedCorrelationMatrixRegistry.FILE_EXTENSION);
+			return new MappedMatrixFileRowSink(report.getOutputFile(), this.encoding, this.loader.getGeneIndicesToNames(), report.getProvenance());
+		}
+		report.outputFile = outputDirectory.resolve(report.getTissueName() + ".bin");
+		return new BinaryFileRowSink(report.getOutputFile(), this.encoding);
+	}
+
+	/**
+	 * Samples the current heap and direct-buffer use, and records it for every tissue that is running.
+	 */
+	private static void recordMemoryUse(Set<TissueRunReport> runningTissues)
+	{
+		MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+		long heapUsed = memoryBean.getHeapMemoryUsage().getUsed();
+		long offHeapUsed = 0;
+		for (BufferPoolMXBean bufferPool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class))
+		{
+			offHeapUsed += bufferPool.getMemoryUsed();
+		}
+		for (TissueRunReport report : runningTissues)
+		{
+			report.recordMemoryUse(heapUsed, offHeapUsed);
+		}
+	}
+
+	private static void logReports(List<TissueRunReport> reports)
+	{
+		logger.info("Tissue\tSamples\tWall time\tPeak heap (MB)\tPeak off-heap (MB)\tStatus");
+		for (TissueRunReport report : reports)
+		{
+			logger.info("{}\t{}\t{}\t{}\t{}\t{}", report.getTissueName(), report.getNumberOfSamples(), report.getWallTime(),
+					report.getPeakHeapUsed() / BYTES_PER_MEGABYTE, report.getPeakOffHeapUsed() / BYTES_PER_MEGABYTE,
+					report.isSuccessful() ? "OK" : "FAILED: " + report.getFailure().getMessage());
+		}
+	}
+
+	public long getMemoryBudget()
+	{
+		return this.memoryBudget;
+	}
+
+	public int getMaxConcurrentTissues()
+	{
+		return this.maxConcurrentTissues;
+	}
+
+	/**
+	 * Sets the most tissues that will be calculated at once, even if more would fit in the memory budget. The default is 2.
+	 * The available processors are shared between them.
+	 * @param maxConcurrentTissues
+	 */
+	public void setMaxConcurrentTissues(int maxConcurrentTissues)
+	{
+		if (maxConcurrentTissues < 1)
+		{
+			throw new IllegalArgumentException("maxConcurrentTissues must be greater than 0, but was " + maxConcurrentTissues);
+		}
+		this.maxConcurrentTissues = maxConcurrentTissues;
+	}
+
+	public OutputFormat getOutputFormat()
+	{
+		return this.outputFormat;
+	}
+
+	/**
+	 * Sets the kind of file that each tissue's matrix is written to. The default is {@link OutputFormat#BINARY}.
+	 * @param outputFormat
+	 */
+	public void setOutputFormat(OutputFormat outputFormat)
+	{
+		this.outputFormat = outputFormat;
+	}
+
+	public BinaryFileRowSink.Encoding getEncoding()
+	{
+		return this.encoding;
+	}
+
+	/**
+	 * Sets how values are written to {@link OutputFormat#BINARY} and {@link OutputFormat#MAPPED} files. The default is {@link BinaryFileRowSink.Encoding#FLOAT}.
+	 * @param encoding
+	 */
+	public void setEncoding(BinaryFileRowSink.Encoding encoding)
+	{
+		this.encoding = encoding;
+	}
+
+	public CorrelationType getCorrelationType()
+	{
+		return this.correlationType;
+	}
+
+	/**
+	 * Sets the kind of correlation to calculate. The default is {@link CorrelationType#PEARSON}.
+	 * @param correlationType
+	 */
+	public void setCorrelationType(CorrelationType correlationType)
+	{
+		this.correlationType = correlationType;
+	}
+
+	public ProvenanceDAO getProvenanceDao()
+	{
+		return this.provenanceDao;
+	}
+
+	/**
+	 * Sets the DAO that each tissue's Provenance will be added with. If this is not set, Provenances are created but not stored.
+	 * @param provenanceDao
+	 */
+	public void setProvenanceDao(ProvenanceDAO provenanceDao)
+	{
+		this.provenanceDao = provenanceDao;
+	}
+}
@@ -0,0 +1,89 @@
+package org.reactome.idg.loader;
+
+/**
+ * Normalized expression values for a tissue, stored gene-major as floats (see {@link ExpressionNormalization}). This takes the same
+ * memory as the {@link GeneMajorExpressionMatrix} it was made from.
+ * <br/>
+ * Normalized values are never negative, since counts are not.
+ * @author sshorser
+ *
+ */
+public class NormalizedExpressionMatrix implements GeneVectorSource
+{
+	// outer index is gene, inner index is sample.
+	private final float[][] geneVectors;
+	private final int numberOfSamples;
+	private final boolean[] filtered;
+	private final int numberOfFilteredGenes;
+	private final ExpressionNormalization normalization;
+
+	NormalizedExpressionMatrix(float[][] geneVectors, int numberOfSamples, boolean[] filtered, ExpressionNormalization normalization)
+	{
+		this.geneVectors = geneVectors;
+		this.numberOfSamples = numberOfSamples;
+		this.filtered = filtered;
+		this.normalization = normalization;
+		int count = 0;
+		for (boolean geneFiltered : filtered)
+		{
+			if (geneFiltered)
+			{
+				count++;
+			}
+		}
+		this.numberOfFilteredGenes = count;
+	}
+
+	/**
+	 * Gets the normalized values of a gene across all samples. This is the matrix's own array, NOT a copy, so it must not be modified.
+	 * @param geneIndex - the index of the gene.
+	 */
+	public float[] getGeneVector(int geneIndex)
+	{
+		return this.geneVectors[geneIndex];
+	}
+
+	@Override
+	public void readGeneVector(int geneIndex, double[] destination)
+	{
+		float[] geneVector = this.geneVectors[geneIndex];
+		for (int sampleIndex = 0; sampleIndex < this.numberOfSamples; sampleIndex++)
+		{
+			destination[sampleIndex] = geneVector[sampleIndex];
+		}
+	}
+
+	/**
+	 * Checks if a gene was filtered out. A filtered gene's values are all 0.
+	 * @param geneIndex
+	 */
+	public boolean isFiltered(int geneIndex)
+	{
+		return this.filtered[geneIndex];
+	}
+
+	public int getNumberOfFilteredGenes()
+	{
+		return this.numberOfFilteredGenes;
+	}
+
+	/**
+	 * @return the normalization that produced these values.
+	 */
+	public ExpressionNormalization getNormalization()
+	{
+		return this.normalization;
+	}
+
+	@Override
+	public int getNumberOfGenes()
+	{
+		return this.geneVectors.length;
+	}
+
+	@Override
+	public int getNumberOfSamples()
+	{
+		return this.numberOfSamples;
+	}
+}
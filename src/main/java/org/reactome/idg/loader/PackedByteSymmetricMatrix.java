@@ -0,0 +1,82 @@
+package org.reactome.idg.loader;
+
+import org.apache.commons.math3.linear.RealMatrix;
+
+/**
+ * A packed symmetric matrix that stores its values as quantized bytes (see {@link CorrelationQuantizer}). This uses an eighth of the memory of
+ * {@link PackedDoubleSymmetricMatrix}, but values are only read back to within {@link CorrelationQuantizer#BYTE_ERROR_BOUND}, so it is only
+ * suitable for coarse screening of correlations.
+ * @author sshorser
+ *
+ */
+public class PackedByteSymmetricMatrix extends PackedSymmetricMatrix
+{
+	private final byte[][] segments;
+
+	/**
+	 * Creates a new N x N matrix, with all values set to 0.
+	 * @param dimension - N
+	 */
+	public PackedByteSymmetricMatrix(int dimension)
+	{
+		this(dimension, DEFAULT_SEGMENT_BITS);
+	}
+
+	/**
+	 * Creates a new N x N matrix, with all values set to 0.
+	 * @param dimension - N
+	 * @param segmentBits - the packed values will be stored in arrays of 2^segmentBits values.
+	 */
+	public PackedByteSymmetricMatrix(int dimension, int segmentBits)
+	{
+		super(dimension, segmentBits);
+		long numberOfValues = this.getNumberOfPackedValues();
+		this.segments = new byte[this.getNumberOfSegments(numberOfValues)][];
+		for (int i = 0; i < this.segments.length; i++)
+		{
+			this.segments[i] = new byte[this.getSegmentLength(i, numberOfValues)];
+		}
+	}
+
+	@Override
+	public double getPackedValue(long packedIndex)
+	{
+		return CorrelationQuantizer.fromByte(this.getQuantizedValue(packedIndex));
+	}
+
+	@Override
+	public void setPackedValue(long packedIndex, double value)
+	{
+		this.setQuantizedValue(packedIndex, CorrelationQuantizer.toByte(value));
+	}
+
+	/**
+	 * Gets a value without converting it back to a double.
+	 * @param packedIndex
+	 */
+	public byte getQuantizedValue(long packedIndex)
+	{
+		return this.segments[(int) (packedIndex >>> this.segmentBits)][(int) (packedIndex & this.segmentMask)];
+	}
+
+	/**
+	 * Sets a value that has already been quantized.
+	 * @param packedIndex
+	 * @param quantizedValue
+	 */
+	public void setQuantizedValue(long packedIndex, byte quantizedValue)
+	{
+		this.segments[(int) (packedIndex >>> this.segmentBits)][(int) (packedIndex & this.segmentMask)] = quantizedValue;
+	}
+
+	@Override
+	public RealMatrix copy()
+	{
+		PackedByteSymmetricMatrix copy = new PackedByteSymmetricMatrix(this.dimension, this.segmentBits);
+		for (int i = 0; i < this.segments.length; i++)
+		{
+			System.arraycopy(this.segments[i], 0, copy.segments[i], 0, this.segments[i].length);
+		}
+		return copy;
+	}
+}
@@ -0,0 +1,61 @@
+package org.reactome.idg.loader;
+
+import org.apache.commons.math3.linear.RealMatrix;
+
+/**
+ * A packed symmetric matrix that stores its values as doubles.
+ * @author sshorser
+ *
+ */
+public class PackedDoubleSymmetricMatrix extends PackedSymmetricMatrix
+{
+	private final double[][] segments;
+
+	/**
+	 * Creates a new N x N matrix, with all values set to 0.
+	 * @param dimension - N
+	 */
+	public PackedDoubleSymmetricMatrix(int dimension)
+	{
+		this(dimension, DEFAULT_SEGMENT_BITS);
+	}
+
+	/**
+	 * Creates a new N x N matrix, with all values set to 0.
+	 * @param dimension - N
+	 * @param segmentBits - the packed values will be stored in arrays of 2^segmentBits values.
+	 */
+	public PackedDoubleSymmetricMatrix(int dimension, int segmentBits)
+	{
+		super(dimension, segmentBits);
+		long numberOfValues = this.getNumberOfPackedValues();
+		this.segments = new double[this.getNumberOfSegments(numberOfValues)][];
+		for (int i = 0; i < this.segments.length; i++)
+		{
+			this.segments[i] = new double[this.getSegmentLength(i, numberOfValues)];
+		}
+	}
+
+	@Override
+	public double getPackedValue(long packedIndex)
+	{
+		return this.segments[(int) (packedIndex >>> this.segmentBits)][(int) (packedIndex & this.segmentMask)];
+	}
+
+	@Override
+	public void setPackedValue(long packedIndex, double value)
+	{
+		this.segments[(int) (packedIndex >>> this.segmentBits)][(int) (packedIndex & this.segmentMask)] = value;
+	}
+
+	@Override
+	public RealMatrix copy()
+	{
+		PackedDoubleSymmetricMatrix copy = new PackedDoubleSymmetricMatrix(this.dimension, this.segmentBits);
+		for (int i = 0; i < this.segments.length; i++)
+		{
+			System.arraycopy(this.segments[i], 0, copy.segments[i], 0, this.segments[i].length);
+		}
+		return copy;
+	}
+}
@@ -0,0 +1,62 @@
+package org.reactome.idg.loader;
+
+import org.apache.commons.math3.linear.RealMatrix;
+
+/**
+ * A packed symmetric matrix that stores its values as floats. This uses half the memory of {@link PackedDoubleSymmetricMatrix},
+ * and a float's ~7 significant digits are still more than the 6 decimal places that correlation values are stored with in the database.
+ * @author sshorser
+ *
+ */
+public class PackedFloatSymmetricMatrix extends PackedSymmetricMatrix
+{
+	private final float[][] segments;
+
+	/**
+	 * Creates a new N x N matrix, with all values set to 0.
+	 * @param dimension - N
+	 */
+	public PackedFloatSymmetricMatrix(int dimension)
+	{
+		this(dimension, DEFAULT_SEGMENT_BITS);
+	}
+
+	/**
+	 * Creates a new N x N matrix, with all values set to 0.
+	 * @param dimension - N
+	 * @param segmentBits - the packed values will be stored in arrays of 2^segmentBits values.
+	 */
+	public PackedFloatSymmetricMatrix(int dimension, int segmentBits)
+	{
+		super(dimension, segmentBits);
+		long numberOfValues = this.getNumberOfPackedValues();
+		this.segments = new float[this.getNumberOfSegments(numberOfValues)][];
+		for (int i = 0; i < this.segments.length; i++)
+		{
+			this.segments[i] = new float[this.getSegmentLength(i, numberOfValues)];
+		}
+	}
+
+	@Override
+	public double getPackedValue(long packedIndex)
+	{
+		return this.segments[(int) (packedIndex >>> this.segmentBits)][(int) (packedIndex & this.segmentMask)];
+	}
+
+	@Override
+	public void setPackedValue(long packedIndex, double value)
+	{
+		this.segments[(int) (packedIndex >>> this.segmentBits)][(int) (packedIndex & this.segmentMask)] = (float) value;
+	}
+
+	@Override
+	public RealMatrix copy()
+	{
+		PackedFloatSymmetricMatrix copy = new PackedFloatSymmetricMatrix(this.dimension, this.segmentBits);
+		for (int i = 0; i < this.segments.length; i++)
+		{
+			System.arraycopy(this.segments[i], 0, copy.segments[i], 0, this.segments[i].length);
+		}
+		return copy;
+	}
+}
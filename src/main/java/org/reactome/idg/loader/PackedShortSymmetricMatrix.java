@@ -0,0 +1,82 @@
+package org.reactome.idg.loader;
+
+import org.apache.commons.math3.linear.RealMatrix;
+
+/**
+ * A packed symmetric matrix that stores its values as quantized shorts (see {@link CorrelationQuantizer}). This uses a quarter of the memory of
+ * {@link PackedDoubleSymmetricMatrix}; values are rounded when they are set, and are read back to within {@link CorrelationQuantizer#SHORT_ERROR_BOUND}.
+ * It can only hold values in [-1, 1] (and NaN), so it is only suitable for correlations.
+ * @author sshorser
+ *
+ */
+public class PackedShortSymmetricMatrix extends PackedSymmetricMatrix
+{
+	private final short[][] segments;
+
+	/**
+	 * Creates a new N x N matrix, with all values set to 0.
+	 * @param dimension - N
+	 */
+	public PackedShortSymmetricMatrix(int dimension)
+	{
+		this(dimension, DEFAULT_SEGMENT_BITS);
+	}
+
+	/**
+	 * Creates a new N x N matrix, with all values set to 0.
+	 * @param dimension - N
+	 * @param segmentBits - the packed values will be stored in arrays of 2^segmentBits values.
+	 */
+	public PackedShortSymmetricMatrix(int dimension, int segmentBits)
+	{
+		super(dimension, segmentBits);
+		long numberOfValues = this.getNumberOfPackedValues();
+		this.segments = new short[this.getNumberOfSegments(numberOfValues)][];
+		for (int i = 0; i < this.segments.length; i++)
+		{
+			this.segments[i] = new short[this.getSegmentLength(i, numberOfValues)];
+		}
+	}
+
+	@Override
+	public double getPackedValue(long packedIndex)
+	{
+		return CorrelationQuantizer.fromShort(this.getQuantizedValue(packedIndex));
+	}
+
+	@Override
+	public void setPackedValue(long packedIndex, double value)
+	{
+		this.setQuantizedValue(packedIndex, CorrelationQuantizer.toShort(value));
+	}
+
+	/**
+	 * Gets a value without converting it back to a double.
+	 * @param packedIndex
+	 */
+	public short getQuantizedValue(long packedIndex)
+	{
+		return this.segments[(int) (packedIndex >>> this.segmentBits)][(int) (packedIndex & this.segmentMask)];
+	}
+
+	/**
+	 * Sets a value that has already been quantized.
+	 * @param packedIndex
+	 * @param quantizedValue
+	 */
+	public void setQuantizedValue(long packedIndex, short quantizedValue)
+	{
+		this.segments[(int) (packedIndex >>> this.segmentBits)][(int) (packedIndex & this.segmentMask)] = quantizedValue;
+	}
+
+	@Override
+	public RealMatrix copy()
+	{
+		PackedShortSymmetricMatrix copy = new PackedShortSymmetricMatrix(this.dimension, this.segmentBits);
+		for (int i = 0; i < this.segments.length; i++)
+		{
+			System.arraycopy(this.segments[i], 0, copy.segments[i], 0, this.segments[i].length);
+		}
+		return copy;
+	}
+}
@@ -0,0 +1,192 @@
+package org.reactome.idg.loader;
+
+import org.apache.commons.math3.linear.AbstractRealMatrix;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.MatrixUtils;
+import org.apache.commons.math3.linear.RealMatrix;
+
+/**
+ * A symmetric N x N matrix that only stores the main diagonal and the values above it, packed row by row into primitive arrays.
+ * This takes half the memory of a dense matrix, which matters for correlation matrices: for ~35k genes,
+ * a dense matrix of doubles needs ~9.8 GB, packed doubles need ~4.9 GB and packed floats need ~2.5 GB.
+ * <br/>
+ * Entries can be read and written with either index order: (i, j) and (j, i) are the same entry.
+ * The packed values are split into segments, so matrices with more than 2^31 stored values can be created.
+ * <br/>
+ * This is a commons-math RealMatrix, so it can be used anywhere a RealMatrix is expected. Operations
+ * that produce a matrix that might not be symmetric (such as multiply) will produce a dense matrix.
+ * @author sshorser
+ *
+ */
+public abstract class PackedSymmetricMatrix extends AbstractRealMatrix
+{
+	/**
+	 * The default number of bits used to index values within a segment, so a segment holds 2^30 values.
+	 */
+	public static final int DEFAULT_SEGMENT_BITS = 30;
+
+	protected final int dimension;
+	protected final int segmentBits;
+	protected final long segmentMask;
+
+	/**
+	 * Receives the entries of a row.
+	 */
+	@FunctionalInterface
+	public interface EntryVisitor
+	{
+		void visit(int row, int column, double value);
+	}
+
+	protected PackedSymmetricMatrix(int dimension, int segmentBits)
+	{
+		super(dimension, dimension);
+		if (segmentBits < 1 || segmentBits > 30)
+		{
+			throw new IllegalArgumentException("segmentBits must be between 1 and 30, but was " + segmentBits);
+		}
+		this.dimension = dimension;
+		this.segmentBits = segmentBits;
+		this.segmentMask = (1L << segmentBits) - 1;
+	}
+
+	/**
+	 * Gets the number of values that are stored for a matrix of a given dimension.
+	 * @param dimension - the number of rows (or columns).
+	 * @return N * (N + 1) / 2
+	 */
+	public static long getNumberOfPackedValues(int dimension)
+	{
+		return (long) dimension * (dimension + 1) / 2;
+	}
+
+	/**
+	 * Gets the position of an entry in the packed storage.
+	 * @param row
+	 * @param column
+	 * @return the index of the packed value that holds the entry at (row, column) (and (column, row)).
+	 */
+	public long getPackedIndex(int row, int column)
+	{
+		int i = Math.min(row, column);
+		int j = Math.max(row, column);
+		return getRowOffset(i) + (j - i);
+	}
+
+	/**
+	 * Gets the position in the packed storage of the diagonal entry of a row, which is where that row's stored values begin.
+	 */
+	private long getRowOffset(int row)
+	{
+		return (long) row * this.dimension - (long) row * (row - 1) / 2;
+	}
+
+	/**
+	 * Gets the number of segments needed to hold a number of values.
+	 */
+	protected int getNumberOfSegments(long numberOfValues)
+	{
+		return (int) ((numberOfValues + this.segmentMask) >>> this.segmentBits);
+	}
+
+	/**
+	 * Gets the size of a segment.
+	 * @param segmentIndex - the index of the segment.
+	 * @param numberOfValues - the total number of values.
+	 */
+	protected int getSegmentLength(int segmentIndex, long numberOfValues)
+	{
+		return (int) Math.min(1L << this.segmentBits, numberOfValues - ((long) segmentIndex << this.segmentBits));
+	}
+
+	/**
+	 * Gets a value from the packed storage.
+	 * @param packedIndex - as returned by {@link #getPackedIndex(int, int)}.
+	 */
+	public abstract double getPackedValue(long packedIndex);
+
+	/**
+	 * Sets a value in the packed storage.
+	 * @param packedIndex - as returned by {@link #getPackedIndex(int, int)}.
+	 * @param value
+	 */
+	public abstract void setPackedValue(long packedIndex, double value);
+
+	@Override
+	public double getEntry(int row, int column)
+	{
+		MatrixUtils.checkMatrixIndex(this, row, column);
+		return this.getPackedValue(this.getPackedIndex(row, column));
+	}
+
+	/**
+	 * Sets an entry. Since the matrix is symmetric, this will also set the entry at (column, row).
+	 */
+	@Override
+	public void setEntry(int row, int column, double value)
+	{
+		MatrixUtils.checkMatrixIndex(this, row, column);
+		this.setPackedValue(this.getPackedIndex(row, column), value);
+	}
+
+	/**
+	 * Visits the entries of a row from the main diagonal to the end of the row. These values are stored
+	 * sequentially, so this is the fastest way to read a matrix.
+	 * @param row - the row to visit.
+	 * @param visitor - will receive each entry, in column order.
+	 */
+	public void walkUpperRow(int row, EntryVisitor visitor)
+	{
+		MatrixUtils.checkRowIndex(this, row);
+		long packedIndex = this.getRowOffset(row);
+		for (int column = row; column < this.dimension; column++)
+		{
+			visitor.visit(row, column, this.getPackedValue(packedIndex++));
+		}
+	}
+
+	/**
+	 * Visits all of the entries of a row, in column order.
+	 * @param row - the row to visit.
+	 * @param visitor - will receive each entry.
+	 */
+	public void walkRow(int row, EntryVisitor visitor)
+	{
+		MatrixUtils.checkRowIndex(this, row);
+		// The entries to the left of the diagonal are stored in the rows above this one.
+		for (int column = 0; column < row; column++)
+		{
+			visitor.visit(row, column, this.getPackedValue(this.getRowOffset(column) + (row - column)));
+		}
+		this.walkUpperRow(row, visitor);
+	}
+
+	@Override
+	public int getRowDimension()
+	{
+		return this.dimension;
+	}
+
+	@Override
+	public int getColumnDimension()
+	{
+		return this.dimension;
+	}
+
+	/**
+	 * Creates a dense matrix, since the result of an operation on this matrix might not be symmetric.
+	 */
+	@Override
+	public RealMatrix createMatrix(int rowDimension, int columnDimension)
+	{
+		return new Array2DRowRealMatrix(rowDimension, columnDimension);
+	}
+
+	/**
+	 * @return the number of values that are actually stored.
+	 */
+	public long getNumberOfPackedValues()
+	{
+		return getNumberOfPackedValues(this.dimension);
+	}
+}
@@ -0,0 +1,103 @@
+package org.reactome.idg.loader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Assembles the tiles of a sharded calculation (see {@link ShardedCorrelationWorker}) into rows of the whole matrix, and sends them to a
+ * {@link CorrelationRowSink}: an {@link InMemoryRowSink} for the matrix itself, a {@link BinaryFileRowSink}, or a {@link LoadDataFileRowSink} for bulk-loading.
+ * <br/>
+ * Each tile row is read into one {@link CorrelationRowBlock}, so only one tile row is in memory at a time.
+ * @author sshorser
+ *
+ */
+public final class ShardedCorrelationMerger
+{
+	private static final Logger logger = LogManager.getLogger();
+
+	private ShardedCorrelationMerger()
+	{
+		// only static methods.
+	}
+
+	/**
+	 * Merges the tiles in a work directory.
+	 * @param workDirectory - the work directory that the workers shared.
+	 * @param sink - will receive the rows of the upper triangle of the matrix, in order. The sink will be closed when this method returns.
+	 * @throws IOException If any tiles are missing (nothing is sent to the sink), or a tile could not be read.
+	 */
+	public static void merge(Path workDirectory, CorrelationRowSink sink) throws IOException
+	{
+		CorrelationShard run = readRun(workDirectory);
+		List<Integer> missingTiles = getMissingTiles(workDirectory);
+		if (!missingTiles.isEmpty())
+		{
+			sink.close();
+			throw new IOException(missingTiles.size() + " of " + run.getLastTile() + " tiles have not been calculated yet, such as tile " + missingTiles.get(0));
+		}
+		int numberOfGenes = run.getNumberOfGenes();
+		int tileSize = run.getTileSize();
+		int tilesPerSide = CorrelationShard.getTilesPerSide(numberOfGenes, tileSize);
+		try
+		{
+			sink.start(numberOfGenes);
+			for (int tileRow = 0; tileRow < tilesPerSide; tileRow++)
+			{
+				int rowStart = tileRow * tileSize;
+				CorrelationRowBlock block = new CorrelationRowBlock(numberOfGenes, rowStart, Math.min(tileSize, numberOfGenes - rowStart));
+				int firstTile = run.getFirstTileOfRow(tileRow);
+				for (int tileNumber = firstTile; tileNumber < firstTile + tilesPerSide - tileRow; tileNumber++)
+				{
+					CorrelationTileFile.readInto(ShardedCorrelationWorker.getTileFile(workDirectory, tileNumber), run.getTileBounds(tileNumber), block);
+				}
+				sink.accept(block);
+			}
+		}
+		finally
+		{
+			sink.close();
+		}
+		logger.info("{} tiles from {} merged.", run.getLastTile(), workDirectory);
+	}
+
+	/**
+	 * Gets the tiles that have not been calculated yet.
+	 * @param workDirectory - the work directory that the workers shared.
+	 * @return the numbers of the missing tiles, in order.
+	 * @throws IOException If the work directory does not have run properties.
+	 */
+	public static List<Integer> getMissingTiles(Path workDirectory) throws IOException
+	{
+		CorrelationShard run = readRun(workDirectory);
+		List<Integer> missingTiles = new ArrayList<>();
+		for (int tileNumber = 0; tileNumber < run.getLastTile(); tileNumber++)
+		{
+			if (!Files.exists(ShardedCorrelationWorker.getTileFile(workDirectory, tileNumber)))
+			{
+				missingTiles.add(tileNumber);
+			}
+		}
+		return missingTiles;
+	}
+
+	/**
+	 * Reads the run properties of a work directory, as a shard that covers every tile.
+	 */
+	private static CorrelationShard readRun(Path workDirectory) throws IOException
+	{
+		Properties runProperties = new Properties();
+		try (InputStream inputStream = Files.newInputStream(workDirectory.resolve(ShardedCorrelationWorker.RUN_FILE_NAME)))
+		{
+			runProperties.load(inputStream);
+		}
+		return CorrelationShard.fromProperties(runProperties);
+	}
+}
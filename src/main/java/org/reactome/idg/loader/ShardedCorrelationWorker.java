@@ -0,0 +1,306 @@
+package org.reactome.idg.loader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Calculates the tiles of a {@link CorrelationShard}, in a work directory that is shared with other workers (in this JVM or others, on
+ * a shared filesystem). Any number of workers can work on the same shard, or on overlapping shards: each tile is calculated by whichever
+ * worker claims it first.
+ * <br/>
+ * The work directory has:
+ * <ul>
+ * <li><code>run.properties</code> - the shard's run properties. The first worker writes it (to a temporary file that is moved into place); every other worker
+ * checks that its shard is for the same calculation.</li>
+ * <li><code>claims/tile-&lt;n&gt;.claim</code> - created (with CREATE_NEW, which is atomic) by the worker that claims tile n. No locks are held.</li>
+ * <li><code>tiles/tile-&lt;n&gt;.tile</code> - the tile's values (see {@link CorrelationTileFile}), moved into place when complete.</li>
+ * </ul>
+ * If a worker dies, its claims stay behind without tiles. A claim that is older than the stale-claim timeout, and has no tile, is taken over by renaming it
+ * (only one worker's rename can succeed) and claiming the tile again.
+ * <br/>
+ * Tiles are calculated with the same kernel as {@link GenePairCorrelationMatrixCalculator} (see {@link StandardizedGeneMatrix#computeTile(int, int, int, int, StandardizedGeneMatrix.CorrelationValueConsumer)}),
+ * and the value of a pair does not depend on which tile it is in, so the merged matrix (see {@link ShardedCorrelationMerger}) is identical to a single-node run.
+ * @author sshorser
+ *
+ */
+public class ShardedCorrelationWorker
+{
+	private static final Logger logger = LogManager.getLogger();
+
+	public static final String RUN_FILE_NAME = "run.properties";
+	static final String CLAIMS_DIRECTORY = "claims";
+	static final String TILES_DIRECTORY = "tiles";
+
+	private final Path workDirectory;
+	private final String workerId;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	private Duration staleClaimTimeout = Duration.ofHours(1);
+
+	/**
+	 * Creates a worker.
+	 * @param workDirectory - the work directory that is shared by all of the workers.
+	 * @param workerId - identifies this worker in its claim files, such as the host name and process ID.
+	 */
+	public ShardedCorrelationWorker(Path workDirectory, String workerId)
+	{
+		this.workDirectory = workDirectory;
+		this.workerId = workerId;
+	}
+
+	/**
+	 * Calculates the unclaimed tiles of a shard, reading the tissue's values with a data loader.
+	 * @param shard - the shard.
+	 * @param loader - the data loader, associated with the shard's HDF file.
+	 * @return the number of tiles that this worker calculated.
+	 * @throws IOException
+	 * @throws IllegalArgumentException If the loader is for a different HDF file than the shard.
+	 */
+	public int calculateShard(CorrelationShard shard, Archs4ExpressionDataLoader loader) throws IOException
+	{
+		Path shardHdfFile = Paths.get(shard.getHdfFile()).toAbsolutePath().normalize();
+		Path loaderHdfFile = Paths.get(loader.getHdfExpressionFile()).toAbsolutePath().normalize();
+		if (!shardHdfFile.equals(loaderHdfFile) && !(Files.exists(shardHdfFile) && Files.exists(loaderHdfFile) && Files.isSameFile(shardHdfFile, loaderHdfFile)))
+		{
+			throw new IllegalArgumentException("The shard is for " + shard.getHdfFile() + ", but the loader is for " + loader.getHdfExpressionFile());
+		}
+		GenePairCorrelationMatrixCalculator calculator = new GenePairCorrelationMatrixCalculator(shard.getTissueFile(), loader);
+		calculator.setCorrelationType(shard.getCorrelationType());
+		calculator.setNormalization(shard.getNormalization());
+		return this.calculateShard(shard, calculator.getGeneVectors());
+	}
+
+	/**
+	 * Calculates the unclaimed tiles of a shard.
+	 * @param shard - the shard.
+	 * @param geneVectors - the gene vectors to correlate: already normalized or ranked, as the shard describes.
+	 * @return the number of tiles that this worker calculated.
+	 * @throws IOException
+	 */
+	public int calculateShard(CorrelationShard shard, GeneVectorSource geneVectors) throws IOException
+	{
+		if (geneVectors.getNumberOfGenes() != shard.getNumberOfGenes())
+		{
+			throw new IllegalArgumentException("The shard is for " + shard.getNumberOfGenes() + " genes, but there are " + geneVectors.getNumberOfGenes());
+		}
+		this.prepareWorkDirectory(shard);
+		if (this.countCompletedTiles(shard) == shard.getLastTile() - shard.getFirstTile())
+		{
+			logger.info("Every tile of {} has already been calculated.", shard);
+			return 0;
+		}
+		StandardizedGeneMatrix standardizedMatrix = StandardizedGeneMatrix.fromGeneVectors(geneVectors);
+		AtomicInteger nextTile = new AtomicInteger(shard.getFirstTile());
+		AtomicInteger tilesCalculated = new AtomicInteger(0);
+		ExecutorService executor = Executors.newFixedThreadPool(this.parallelism);
+		try
+		{
+			List<Future<?>> tasks = new ArrayList<>();
+			for (int i = 0; i < this.parallelism; i++)
+			{
+				tasks.add(executor.submit(() -> {
+					for (int tileNumber = nextTile.getAndIncrement(); tileNumber < shard.getLastTile(); tileNumber = nextTile.getAndIncrement())
+					{
+						if (!Files.exists(this.getTileFile(tileNumber)) && this.claimTile(tileNumber))
+						{
+							CorrelationTileFile.calculateAndWrite(standardizedMatrix, shard.getTileBounds(tileNumber), this.getTileFile(tileNumber), this.workerId);
+							tilesCalculated.incrementAndGet();
+						}
+					}
+					return null;
+				}));
+			}
+			for (Future<?> task : tasks)
+			{
+				task.get();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while calculating " + shard, e);
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof IOException)
+			{
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("A tile of " + shard + " could not be calculated.", e.getCause());
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+		logger.info("Worker {} calculated {} tiles of {}; {} of its {} tiles are now complete.", this.workerId, tilesCalculated.get(), shard,
+				this.countCompletedTiles(shard), shard.getLastTile() - shard.getFirstTile());
+		return tilesCalculated.get();
+	}
+
+	/**
+	 * Creates the work directory, and writes (or checks) its run properties. The run file is written to a temporary file and moved into place,
+	 * so other workers never see it partly written.
+	 */
+	private void prepareWorkDirectory(CorrelationShard shard) throws IOException
+	{
+		Files.createDirectories(this.workDirectory.resolve(CLAIMS_DIRECTORY));
+		Files.createDirectories(this.workDirectory.resolve(TILES_DIRECTORY));
+		Path runFile = this.workDirectory.resolve(RUN_FILE_NAME);
+		Properties runProperties = shard.getRunProperties();
+		if (!Files.exists(runFile))
+		{
+			Path tempFile = runFile.resolveSibling(RUN_FILE_NAME + "." + this.workerId + "-" + System.nanoTime() + ".tmp");
+			try
+			{
+				try (OutputStream outputStream = Files.newOutputStream(tempFile))
+				{
+					runProperties.store(outputStream, "Sharded correlation run");
+				}
+				// If another worker has started the run at the same time, one file replaces the other. Every worker checks the file that is
+				// left (below), so a worker for a different calculation will still stop.
+				Files.move(tempFile, runFile, StandardCopyOption.ATOMIC_MOVE);
+			}
+			finally
+			{
+				Files.deleteIfExists(tempFile);
+			}
+		}
+		Properties existingRunProperties = new Properties();
+		try (InputStream inputStream = Files.newInputStream(runFile))
+		{
+			existingRunProperties.load(inputStream);
+		}
+		if (!existingRunProperties.equals(runProperties))
+		{
+			throw new IllegalStateException(this.workDirectory + " is for a different calculation: " + existingRunProperties + "; this shard is for: " + runProperties);
+		}
+	}
+
+	/**
+	 * Tries to claim a tile. If it is already claimed, the claim is taken over only if it is stale.
+	 * @return true if this worker now owns the tile.
+	 */
+	private boolean claimTile(int tileNumber) throws IOException
+	{
+		Path claimFile = this.workDirectory.resolve(CLAIMS_DIRECTORY).resolve("tile-" + tileNumber + ".claim");
+		if (this.createClaim(claimFile))
+		{
+			return true;
+		}
+		try
+		{
+			if (Files.getLastModifiedTime(claimFile).toInstant().plus(this.staleClaimTimeout).isAfter(Instant.now()))
+			{
+				return false;
+			}
+			// Only one worker can rename the stale claim; the others will get NoSuchFileException.
+			Files.move(claimFile, claimFile.resolveSibling(claimFile.getFileName() + ".stale-" + this.workerId + "-" + System.nanoTime()), StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (NoSuchFileException e)
+		{
+			return false;
+		}
+		logger.warn("The claim on tile {} was stale, and has been taken over by worker {}", tileNumber, this.workerId);
+		return !Files.exists(this.getTileFile(tileNumber)) && this.createClaim(claimFile);
+	}
+
+	private boolean createClaim(Path claimFile) throws IOException
+	{
+		try
+		{
+			Files.write(claimFile, (this.workerId + "\t" + Instant.now() + "\n").getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			return true;
+		}
+		catch (FileAlreadyExistsException e)
+		{
+			return false;
+		}
+	}
+
+	private int countCompletedTiles(CorrelationShard shard)
+	{
+		int completedTiles = 0;
+		for (int tileNumber = shard.getFirstTile(); tileNumber < shard.getLastTile(); tileNumber++)
+		{
+			if (Files.exists(this.getTileFile(tileNumber)))
+			{
+				completedTiles++;
+			}
+		}
+		return completedTiles;
+	}
+
+	private Path getTileFile(int tileNumber)
+	{
+		return getTileFile(this.workDirectory, tileNumber);
+	}
+
+	static Path getTileFile(Path workDirectory, int tileNumber)
+	{
+		return workDirectory.resolve(TILES_DIRECTORY).resolve("tile-" + tileNumber + ".tile");
+	}
+
+	public Path getWorkDirectory()
+	{
+		return this.workDirectory;
+	}
+
+	public String getWorkerId()
+	{
+		return this.workerId;
+	}
+
+	public int getParallelism()
+	{
+		return this.parallelism;
+	}
+
+	/**
+	 * Sets the number of tiles this worker calculates at once. The default is the number of available processors.
+	 * @param parallelism
+	 */
+	public void setParallelism(int parallelism)
+	{
+		if (parallelism < 1)
+		{
+			throw new IllegalArgumentException("Parallelism must be greater than 0, but was " + parallelism);
+		}
+		this.parallelism = parallelism;
+	}
+
+	public Duration getStaleClaimTimeout()
+	{
+		return this.staleClaimTimeout;
+	}
+
+	/**
+	 * Sets how old a claim without a tile must be before another worker may take it over. This must be longer than any tile takes to calculate.
+	 * The default is one hour.
+	 * @param staleClaimTimeout
+	 */
+	public void setStaleClaimTimeout(Duration staleClaimTimeout)
+	{
+		this.staleClaimTimeout = staleClaimTimeout;
+	}
+}
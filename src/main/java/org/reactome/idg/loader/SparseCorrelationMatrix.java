@@ -0,0 +1,457 @@
+package org.reactome.idg.loader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.reactome.idg.loader.PackedSymmetricMatrix.EntryVisitor;
+
+/**
+ * A correlation matrix that only keeps the gene pairs whose correlation is at least a threshold (in absolute value), in compressed-sparse-row (CSR) form.
+ * Most gene pairs are barely correlated, so this is much smaller than the full matrix: memory, file size and load time depend on the number of
+ * pairs that are kept, not on N * N.
+ * <br/>
+ * Every pair is stored in both directions, so all the neighbours of a gene can be read from its row. Within a row, the columns are in
+ * ascending order. The main diagonal is not stored.
+ * <br/>
+ * Use {@link ThresholdRowSink} (or {@link GenePairCorrelationMatrixCalculator#calculateSparseCorrelation(double)}) to create one from
+ * calculated correlations, or {@link Archs4Loader#loadSparseMatrix(double)} to create one from the ARCHS4 correlation file.
+ * @author sshorser
+ *
+ */
+public class SparseCorrelationMatrix
+{
+	private static final Logger logger = LogManager.getLogger();
+
+	public static final int MAGIC_NUMBER = 0x43535220; // "CSR "
+	public static final int FORMAT_VERSION = 1;
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private final int numberOfGenes;
+	private final float threshold;
+	// rowPointers[g] to rowPointers[g + 1] is the range of columnIndices and values that belongs to gene g.
+	private final int[] rowPointers;
+	private final int[] columnIndices;
+	private final float[] values;
+	// may be null, if the matrix was created without gene names.
+	private final String[] geneNames;
+	private Map<String, Integer> geneNameIndices;
+
+	private SparseCorrelationMatrix(int numberOfGenes, float threshold, int[] rowPointers, int[] columnIndices, float[] values, String[] geneNames)
+	{
+		this.numberOfGenes = numberOfGenes;
+		this.threshold = threshold;
+		this.rowPointers = rowPointers;
+		this.columnIndices = columnIndices;
+		this.values = values;
+		this.geneNames = geneNames;
+	}
+
+	/**
+	 * Collects the gene pairs for a SparseCorrelationMatrix. Pairs can be added in any order, but each pair should only be added once
+	 * (in either direction). If pairs are added in ascending order of their lower gene index (which is the order that the rows of the
+	 * upper triangle are produced in), no sorting is needed when the matrix is built.
+	 */
+	public static class Builder
+	{
+		private final int numberOfGenes;
+		private final float threshold;
+		private final String[] geneNames;
+		private int[] firstGenes = new int[1024];
+		private int[] secondGenes = new int[1024];
+		private float[] pairValues = new float[1024];
+		private int numberOfPairs = 0;
+
+		/**
+		 * Creates a builder.
+		 * @param numberOfGenes - N
+		 * @param threshold - the threshold that was used to select the pairs. This is recorded in the matrix, it is not applied by the builder.
+		 * @param geneNames - the names of the genes, in index order. May be null.
+		 */
+		public Builder(int numberOfGenes, double threshold, String[] geneNames)
+		{
+			if (geneNames != null && geneNames.length != numberOfGenes)
+			{
+				throw new IllegalArgumentException("There are " + geneNames.length + " gene names, but " + numberOfGenes + " genes.");
+			}
+			this.numberOfGenes = numberOfGenes;
+			this.threshold = (float) threshold;
+			this.geneNames = geneNames;
+		}
+
+		/**
+		 * Adds a pair of genes. Pairs of a gene with itself are ignored.
+		 * @param geneIndex
+		 * @param otherGeneIndex
+		 * @param correlationValue
+		 */
+		public void addPair(int geneIndex, int otherGeneIndex, double correlationValue)
+		{
+			if (geneIndex == otherGeneIndex)
+			{
+				return;
+			}
+			if (this.numberOfPairs == this.firstGenes.length)
+			{
+				// Each pair is stored twice in the matrix, so the number of pairs can only go up to half of the largest array.
+				if (this.numberOfPairs >= Integer.MAX_VALUE / 2 - 1)
+				{
+					throw new IllegalStateException("Too many gene pairs for a sparse matrix; use a higher threshold.");
+				}
+				int newCapacity = (int) Math.min(Integer.MAX_VALUE / 2 - 1, this.numberOfPairs + (this.numberOfPairs >> 1));
+				this.firstGenes = Arrays.copyOf(this.firstGenes, newCapacity);
+				this.secondGenes = Arrays.copyOf(this.secondGenes, newCapacity);
+				this.pairValues = Arrays.copyOf(this.pairValues, newCapacity);
+			}
+			this.firstGenes[this.numberOfPairs] = geneIndex;
+			this.secondGenes[this.numberOfPairs] = otherGeneIndex;
+			this.pairValues[this.numberOfPairs] = (float) correlationValue;
+			this.numberOfPairs++;
+		}
+
+		public int getNumberOfPairs()
+		{
+			return this.numberOfPairs;
+		}
+
+		/**
+		 * Builds the matrix. The builder should not be used after this.
+		 * @return a new SparseCorrelationMatrix.
+		 */
+		public SparseCorrelationMatrix build()
+		{
+			int[] rowPointers = new int[this.numberOfGenes + 1];
+			for (int pair = 0; pair < this.numberOfPairs; pair++)
+			{
+				rowPointers[this.firstGenes[pair] + 1]++;
+				rowPointers[this.secondGenes[pair] + 1]++;
+			}
+			for (int geneIndex = 0; geneIndex < this.numberOfGenes; geneIndex++)
+			{
+				rowPointers[geneIndex + 1] += rowPointers[geneIndex];
+			}
+			int[] columnIndices = new int[this.numberOfPairs * 2];
+			float[] values = new float[this.numberOfPairs * 2];
+			int[] nextPosition = Arrays.copyOf(rowPointers, this.numberOfGenes);
+			for (int pair = 0; pair < this.numberOfPairs; pair++)
+			{
+				int first = this.firstGenes[pair];
+				int second = this.secondGenes[pair];
+				int position = nextPosition[first]++;
+				columnIndices[position] = second;
+				values[position] = this.pairValues[pair];
+				position = nextPosition[second]++;
+				columnIndices[position] = first;
+				values[position] = this.pairValues[pair];
+			}
+			// release the pair lists before sorting, since they are as big as the matrix.
+			this.firstGenes = null;
+			this.secondGenes = null;
+			this.pairValues = null;
+			for (int geneIndex = 0; geneIndex < this.numberOfGenes; geneIndex++)
+			{
+				sortRow(columnIndices, values, rowPointers[geneIndex], rowPointers[geneIndex + 1]);
+			}
+			return new SparseCorrelationMatrix(this.numberOfGenes, this.threshold, rowPointers, columnIndices, values, this.geneNames);
+		}
+
+		/**
+		 * Sorts a row by column index, if it is not already sorted.
+		 */
+		private static void sortRow(int[] columnIndices, float[] values, int start, int end)
+		{
+			boolean sorted = true;
+			for (int i = start + 1; i < end && sorted; i++)
+			{
+				sorted = columnIndices[i - 1] < columnIndices[i];
+			}
+			if (sorted)
+			{
+				return;
+			}
+			// Pack the column index (high half) with the value's bits (low half) so that both can be sorted together.
+			long[] entries = new long[end - start];
+			for (int i = start; i < end; i++)
+			{
+				entries[i - start] = ((long) columnIndices[i] << 32) | (Float.floatToRawIntBits(values[i]) & 0xFFFFFFFFL);
+			}
+			Arrays.sort(entries);
+			for (int i = start; i < end; i++)
+			{
+				columnIndices[i] = (int) (entries[i - start] >>> 32);
+				values[i] = Float.intBitsToFloat((int) entries[i - start]);
+			}
+		}
+	}
+
+	/**
+	 * Gets the correlation between two genes.
+	 * @param geneIndex
+	 * @param otherGeneIndex
+	 * @return the correlation value, or 0 if the pair was below the threshold (or is on the main diagonal).
+	 */
+	public float getValue(int geneIndex, int otherGeneIndex)
+	{
+		int position = Arrays.binarySearch(this.columnIndices, this.rowPointers[geneIndex], this.rowPointers[geneIndex + 1], otherGeneIndex);
+		return position >= 0 ? this.values[position] : 0.0f;
+	}
+
+	/**
+	 * Passes every stored value in a gene's row to a visitor, in ascending column order.
+	 * @param geneIndex - the gene.
+	 * @param visitor - will receive the gene index, the index of the neighbour, and the correlation value.
+	 */
+	public void walkRow(int geneIndex, EntryVisitor visitor)
+	{
+		for (int position = this.rowPointers[geneIndex]; position < this.rowPointers[geneIndex + 1]; position++)
+		{
+			visitor.visit(geneIndex, this.columnIndices[position], this.values[position]);
+		}
+	}
+
+	/**
+	 * Gets the genes that are correlated with a gene (at or above the threshold), by name.
+	 * @param gene - the gene's symbol.
+	 * @return a map of gene names to correlation values, in the order of the genes' indices.
+	 * @throws IllegalStateException If the matrix does not have gene names.
+	 * @throws IllegalArgumentException If the gene is not in the matrix.
+	 */
+	public synchronized Map<String, Float> getNeighbours(String gene)
+	{
+		if (this.geneNames == null)
+		{
+			throw new IllegalStateException("This matrix was created without gene names, so it can only be queried by gene index.");
+		}
+		if (this.geneNameIndices == null)
+		{
+			this.geneNameIndices = new HashMap<>(this.numberOfGenes * 2);
+			for (int geneIndex = 0; geneIndex < this.numberOfGenes; geneIndex++)
+			{
+				this.geneNameIndices.put(this.geneNames[geneIndex], geneIndex);
+			}
+		}
+		Integer geneIndex = this.geneNameIndices.get(gene);
+		if (geneIndex == null)
+		{
+			throw new IllegalArgumentException("Gene " + gene + " is not in the matrix.");
+		}
+		Map<String, Float> neighbours = new LinkedHashMap<>();
+		this.walkRow(geneIndex, (row, column, value) -> neighbours.put(this.geneNames[column], (float) value));
+		return neighbours;
+	}
+
+	/**
+	 * Gets the number of genes that a gene is correlated with (at or above the threshold).
+	 * @param geneIndex
+	 */
+	public int getDegree(int geneIndex)
+	{
+		return this.rowPointers[geneIndex + 1] - this.rowPointers[geneIndex];
+	}
+
+	/**
+	 * Gets the number of gene pairs that are stored. Each pair is counted once, even though it is stored in both directions.
+	 */
+	public long getNumberOfPairs()
+	{
+		return this.rowPointers[this.numberOfGenes] / 2;
+	}
+
+	/**
+	 * Gets the fraction of all gene pairs (not including genes paired with themselves) that are stored.
+	 */
+	public double getDensity()
+	{
+		long possiblePairs = (long) this.numberOfGenes * (this.numberOfGenes - 1) / 2;
+		return possiblePairs > 0 ? (double) this.getNumberOfPairs() / possiblePairs : 0.0;
+	}
+
+	/**
+	 * Logs the number of pairs kept, the density, and the mean and largest number of neighbours per gene.
+	 */
+	public void logDensityStatistics()
+	{
+		int maxDegree = 0;
+		int isolatedGenes = 0;
+		for (int geneIndex = 0; geneIndex < this.numberOfGenes; geneIndex++)
+		{
+			int degree = this.getDegree(geneIndex);
+			maxDegree = Math.max(maxDegree, degree);
+			if (degree == 0)
+			{
+				isolatedGenes++;
+			}
+		}
+		double meanDegree = this.numberOfGenes > 0 ? (double) this.rowPointers[this.numberOfGenes] / this.numberOfGenes : 0.0;
+		logger.info("Threshold |r| >= {}: {} of {} genes have neighbours; {} gene pairs kept (density: {}); neighbours per gene: mean {}, max {}",
+				this.threshold, this.numberOfGenes - isolatedGenes, this.numberOfGenes, this.getNumberOfPairs(),
+				String.format("%.6f", this.getDensity()), String.format("%.2f", meanDegree), maxDegree);
+	}
+
+	/**
+	 * Writes this matrix to a file. If the file already exists, it will be overwritten.
+	 * <br/>
+	 * The file has a header of big-endian values: {@link #MAGIC_NUMBER}, {@link #FORMAT_VERSION}, N, the threshold (a float), and the
+	 * number of gene names (0 or N). Then the gene names (each is an int length followed by UTF-8 bytes), the N + 1 row pointers,
+	 * the column indices, and the values (floats). Use {@link #readFrom(Path)} to read it back.
+	 * @param outputFile - the file to write.
+	 * @throws IOException
+	 */
+	public void writeTo(Path outputFile) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(outputFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			buffer.putInt(MAGIC_NUMBER).putInt(FORMAT_VERSION).putInt(this.numberOfGenes).putFloat(this.threshold);
+			buffer.putInt(this.geneNames != null ? this.numberOfGenes : 0);
+			if (this.geneNames != null)
+			{
+				for (String geneName : this.geneNames)
+				{
+					byte[] nameBytes = geneName.getBytes(StandardCharsets.UTF_8);
+					if (buffer.remaining() < Integer.BYTES + nameBytes.length)
+					{
+						flush(channel, buffer);
+					}
+					buffer.putInt(nameBytes.length).put(nameBytes);
+				}
+			}
+			for (int[] ints : new int[][] { this.rowPointers, this.columnIndices })
+			{
+				for (int value : ints)
+				{
+					if (buffer.remaining() < Integer.BYTES)
+					{
+						flush(channel, buffer);
+					}
+					buffer.putInt(value);
+				}
+			}
+			for (float value : this.values)
+			{
+				if (buffer.remaining() < Float.BYTES)
+				{
+					flush(channel, buffer);
+				}
+				buffer.putFloat(value);
+			}
+			flush(channel, buffer);
+		}
+		logger.info("{} gene pairs written to {}", this.getNumberOfPairs(), outputFile.toString());
+	}
+
+	private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException
+	{
+		buffer.flip();
+		while (buffer.hasRemaining())
+		{
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Reads a matrix that was written by {@link #writeTo(Path)}.
+	 * @param inputFile - the file to read.
+	 * @return the matrix.
+	 * @throws IOException If the file is not in the expected format.
+	 */
+	public static SparseCorrelationMatrix readFrom(Path inputFile) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(inputFile, StandardOpenOption.READ))
+		{
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			buffer.flip();
+			ensureAvailable(channel, buffer, 5 * Integer.BYTES);
+			if (buffer.getInt() != MAGIC_NUMBER || buffer.getInt() != FORMAT_VERSION)
+			{
+				throw new IOException(inputFile.toString() + " is not a sparse correlation matrix file (version " + FORMAT_VERSION + ").");
+			}
+			int numberOfGenes = buffer.getInt();
+			float threshold = buffer.getFloat();
+			int numberOfNames = buffer.getInt();
+			String[] geneNames = null;
+			if (numberOfNames > 0)
+			{
+				geneNames = new String[numberOfNames];
+				for (int i = 0; i < numberOfNames; i++)
+				{
+					ensureAvailable(channel, buffer, Integer.BYTES);
+					byte[] nameBytes = new byte[buffer.getInt()];
+					ensureAvailable(channel, buffer, nameBytes.length);
+					buffer.get(nameBytes);
+					geneNames[i] = new String(nameBytes, StandardCharsets.UTF_8);
+				}
+			}
+			int[] rowPointers = readInts(channel, buffer, numberOfGenes + 1);
+			int[] columnIndices = readInts(channel, buffer, rowPointers[numberOfGenes]);
+			float[] values = new float[rowPointers[numberOfGenes]];
+			for (int i = 0; i < values.length; i++)
+			{
+				ensureAvailable(channel, buffer, Float.BYTES);
+				values[i] = buffer.getFloat();
+			}
+			return new SparseCorrelationMatrix(numberOfGenes, threshold, rowPointers, columnIndices, values, geneNames);
+		}
+	}
+
+	private static int[] readInts(FileChannel channel, ByteBuffer buffer, int count) throws IOException
+	{
+		int[] ints = new int[count];
+		for (int i = 0; i < count; i++)
+		{
+			ensureAvailable(channel, buffer, Integer.BYTES);
+			ints[i] = buffer.getInt();
+		}
+		return ints;
+	}
+
+	/**
+	 * Makes sure that the buffer has at least <code>bytes</code> bytes that have not been read yet, by reading more of the file if necessary.
+	 */
+	private static void ensureAvailable(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException
+	{
+		if (buffer.remaining() >= bytes)
+		{
+			return;
+		}
+		buffer.compact();
+		while (buffer.position() < bytes)
+		{
+			if (channel.read(buffer) < 0)
+			{
+				throw new IOException("Unexpected end of file.");
+			}
+		}
+		buffer.flip();
+	}
+
+	/**
+	 * Gets the name of a gene.
+	 * @param geneIndex
+	 * @return the gene's name, or null if the matrix was created without gene names.
+	 */
+	public String getGeneName(int geneIndex)
+	{
+		return this.geneNames != null ? this.geneNames[geneIndex] : null;
+	}
+
+	public int getNumberOfGenes()
+	{
+		return this.numberOfGenes;
+	}
+
+	public float getThreshold()
+	{
+		return this.threshold;
+	}
+}
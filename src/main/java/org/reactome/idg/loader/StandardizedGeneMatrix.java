@@ -0,0 +1,268 @@
+package org.reactome.idg.loader;
+
+import java.util.stream.IntStream;
+
+/**
+ * Holds the expression vectors of a set of genes, with each vector centred on its mean and scaled to unit length.
+ * Once the vectors have been standardized, the Pearson correlation of two genes is just the dot product of their vectors,
+ * so the mean and variance of a gene only need to be computed once, instead of once for every pair that the gene is in.
+ * <br/>
+ * Values computed this way agree with <code>PearsonsCorrelation</code> to within {@link #TOLERANCE}: both do the same
+ * arithmetic, but in a different order, so they only differ by accumulated rounding error.
+ * <br/>
+ * Genes with no variance across the samples (for example, genes that are never expressed) get a vector of NaNs,
+ * so any correlation with them is NaN - this is also what <code>PearsonsCorrelation</code> returns for them.
+ * @author sshorser
+ *
+ */
+public class StandardizedGeneMatrix
+{
+	/**
+	 * The largest absolute difference expected between a correlation calculated by this class and one calculated
+	 * by commons-math's <code>PearsonsCorrelation</code>, for the same pair of genes.
+	 */
+	public static final double TOLERANCE = 1.0E-10;
+
+	// How many samples are processed at a time, when calculating a tile. Keeping this small means that the
+	// slices of the gene vectors for one tile stay in the CPU cache while the tile is being calculated.
+	private static final int SAMPLE_BLOCK_SIZE = 256;
+
+	// outer index is gene, inner index is sample.
+	private final double[][] geneVectors;
+	private final int numberOfSamples;
+
+	/**
+	 * Receives correlation values as they are calculated.
+	 */
+	@FunctionalInterface
+	public interface CorrelationValueConsumer
+	{
+		void accept(int geneIndex, int otherGeneIndex, double correlationValue);
+	}
+
+	private StandardizedGeneMatrix(double[][] geneVectors, int numberOfSamples)
+	{
+		this.geneVectors = geneVectors;
+		this.numberOfSamples = numberOfSamples;
+	}
+
+	/**
+	 * Creates a standardized matrix from a matrix of expression values, as returned by <code>Archs4ExpressionDataLoader.getExpressionValuesforTissue</code>.
+	 * @param sampleValues - expression values: outer index is sample, inner index is gene.
+	 * @return a StandardizedGeneMatrix with one vector for each gene in <code>sampleValues</code>.
+	 */
+	public static StandardizedGeneMatrix fromSampleValues(int[][] sampleValues)
+	{
+		return fromGeneMajorValues(GeneMajorExpressionMatrix.fromSampleValues(sampleValues));
+	}
+
+	/**
+	 * Creates a standardized matrix from a gene-major matrix of expression values.
+	 * @param expressionValues - the expression values.
+	 * @return a StandardizedGeneMatrix with one vector for each gene in <code>expressionValues</code>.
+	 */
+	public static StandardizedGeneMatrix fromGeneMajorValues(GeneMajorExpressionMatrix expressionValues)
+	{
+		return fromGeneVectors(expressionValues);
+	}
+
+	/**
+	 * Creates a standardized matrix from any source of gene vectors. For example, standardizing a {@link GeneRankMatrix}
+	 * means that the correlations will be Spearman correlations of the original values.
+	 * @param source - the gene vectors.
+	 * @return a StandardizedGeneMatrix with one vector for each gene in <code>source</code>.
+	 */
+	public static StandardizedGeneMatrix fromGeneVectors(GeneVectorSource source)
+	{
+		int numberOfSamples = source.getNumberOfSamples();
+		double[][] geneVectors = new double[source.getNumberOfGenes()][];
+		IntStream.range(0, geneVectors.length).parallel().forEach(geneIndex -> {
+			double[] geneVector = new double[numberOfSamples];
+			source.readGeneVector(geneIndex, geneVector);
+			standardize(geneVector);
+			geneVectors[geneIndex] = geneVector;
+		});
+		return new StandardizedGeneMatrix(geneVectors, numberOfSamples);
+	}
+
+	/**
+	 * Creates a standardized matrix for some of the genes in a source of gene vectors. Only those genes are read and standardized.
+	 * @param source - the gene vectors.
+	 * @param geneIndices - the indices (in <code>source</code>) of the genes to include.
+	 * @return a StandardizedGeneMatrix where gene <code>i</code> is gene <code>geneIndices[i]</code> of <code>source</code>.
+	 */
+	public static StandardizedGeneMatrix fromGeneVectors(GeneVectorSource source, int[] geneIndices)
+	{
+		int numberOfSamples = source.getNumberOfSamples();
+		double[][] geneVectors = new double[geneIndices.length][];
+		IntStream.range(0, geneVectors.length).parallel().forEach(i -> {
+			double[] geneVector = new double[numberOfSamples];
+			source.readGeneVector(geneIndices[i], geneVector);
+			standardize(geneVector);
+			geneVectors[i] = geneVector;
+		});
+		return new StandardizedGeneMatrix(geneVectors, numberOfSamples);
+	}
+
+	/**
+	 * Centres a vector on its mean and scales it to unit length, in place. If the vector has no variance, it will be filled with NaN.
+	 * @param values - the values to standardize.
+	 */
+	static void standardize(double[] values)
+	{
+		double sum = 0.0;
+		for (double value : values)
+		{
+			sum += value;
+		}
+		double mean = sum / values.length;
+		double sumOfSquares = 0.0;
+		for (int i = 0; i < values.length; i++)
+		{
+			double deviation = values[i] - mean;
+			values[i] = deviation;
+			sumOfSquares += deviation * deviation;
+		}
+		double scale = sumOfSquares > 0.0 ? 1.0 / Math.sqrt(sumOfSquares) : Double.NaN;
+		for (int i = 0; i < values.length; i++)
+		{
+			values[i] *= scale;
+		}
+	}
+
+	/**
+	 * Calculates the correlation between two genes.
+	 * @param geneIndex - the index of the first gene.
+	 * @param otherGeneIndex - the index of the second gene.
+	 * @return the Pearson correlation of the two genes.
+	 */
+	public double correlation(int geneIndex, int otherGeneIndex)
+	{
+		return clamp(dot(this.geneVectors[geneIndex], this.geneVectors[otherGeneIndex], 0, this.numberOfSamples));
+	}
+
+	/**
+	 * Calculates the correlations for a rectangular tile of gene pairs, and passes them to a consumer. Only pairs
+	 * on or above the main diagonal (where otherGeneIndex &gt;= geneIndex) are calculated, so tiles that straddle
+	 * the diagonal will only produce their upper half.
+	 * <br/>
+	 * Each tile is accumulated in slices of samples, so that the parts of the gene vectors that are in use fit
+	 * in the CPU cache. Tiles of 32 - 128 genes work well.
+	 * @param rowStart - the first gene of the tile's rows (inclusive).
+	 * @param rowEnd - the last gene of the tile's rows (exclusive).
+	 * @param colStart - the first gene of the tile's columns (inclusive).
+	 * @param colEnd - the last gene of the tile's columns (exclusive).
+	 * @param consumer - will receive every correlation value calculated for the tile.
+	 */
+	public void computeTile(int rowStart, int rowEnd, int colStart, int colEnd, CorrelationValueConsumer consumer)
+	{
+		int tileWidth = colEnd - colStart;
+		double[] sums = new double[(rowEnd - rowStart) * tileWidth];
+		for (int sampleStart = 0; sampleStart < this.numberOfSamples; sampleStart += SAMPLE_BLOCK_SIZE)
+		{
+			int sampleEnd = Math.min(sampleStart + SAMPLE_BLOCK_SIZE, this.numberOfSamples);
+			for (int geneIndex = rowStart; geneIndex < rowEnd; geneIndex++)
+			{
+				double[] geneVector = this.geneVectors[geneIndex];
+				int offset = (geneIndex - rowStart) * tileWidth - colStart;
+				for (int otherGeneIndex = Math.max(geneIndex, colStart); otherGeneIndex < colEnd; otherGeneIndex++)
+				{
+					sums[offset + otherGeneIndex] += dot(geneVector, this.geneVectors[otherGeneIndex], sampleStart, sampleEnd);
+				}
+			}
+		}
+		for (int geneIndex = rowStart; geneIndex < rowEnd; geneIndex++)
+		{
+			int offset = (geneIndex - rowStart) * tileWidth - colStart;
+			for (int otherGeneIndex = Math.max(geneIndex, colStart); otherGeneIndex < colEnd; otherGeneIndex++)
+			{
+				consumer.accept(geneIndex, otherGeneIndex, clamp(sums[offset + otherGeneIndex]));
+			}
+		}
+	}
+
+	/**
+	 * Calculates the correlations between a list of genes and a range of genes, as a full rectangle (pairs below the main
+	 * diagonal are not skipped), and passes them to a consumer. Accumulated in slices of samples, like {@link #computeTile(int, int, int, int, CorrelationValueConsumer)}.
+	 * @param rowGeneIndices - the indices of the genes for the rows.
+	 * @param rowStart - the first position in <code>rowGeneIndices</code> to calculate (inclusive).
+	 * @param rowEnd - the last position in <code>rowGeneIndices</code> to calculate (exclusive).
+	 * @param colStart - the first gene of the columns (inclusive).
+	 * @param colEnd - the last gene of the columns (exclusive).
+	 * @param consumer - will receive every correlation value. Its first argument is the position in <code>rowGeneIndices</code>, NOT the gene index.
+	 */
+	public void computeRectangle(int[] rowGeneIndices, int rowStart, int rowEnd, int colStart, int colEnd, CorrelationValueConsumer consumer)
+	{
+		int tileWidth = colEnd - colStart;
+		double[] sums = new double[(rowEnd - rowStart) * tileWidth];
+		for (int sampleStart = 0; sampleStart < this.numberOfSamples; sampleStart += SAMPLE_BLOCK_SIZE)
+		{
+			int sampleEnd = Math.min(sampleStart + SAMPLE_BLOCK_SIZE, this.numberOfSamples);
+			for (int rowPosition = rowStart; rowPosition < rowEnd; rowPosition++)
+			{
+				double[] geneVector = this.geneVectors[rowGeneIndices[rowPosition]];
+				int offset = (rowPosition - rowStart) * tileWidth - colStart;
+				for (int otherGeneIndex = colStart; otherGeneIndex < colEnd; otherGeneIndex++)
+				{
+					sums[offset + otherGeneIndex] += dot(geneVector, this.geneVectors[otherGeneIndex], sampleStart, sampleEnd);
+				}
+			}
+		}
+		for (int rowPosition = rowStart; rowPosition < rowEnd; rowPosition++)
+		{
+			int offset = (rowPosition - rowStart) * tileWidth - colStart;
+			for (int otherGeneIndex = colStart; otherGeneIndex < colEnd; otherGeneIndex++)
+			{
+				consumer.accept(rowPosition, otherGeneIndex, clamp(sums[offset + otherGeneIndex]));
+			}
+		}
+	}
+
+	/**
+	 * Dot product of a slice of two vectors. Uses four accumulators so that the additions can be pipelined.
+	 */
+	static double dot(double[] a, double[] b, int start, int end)
+	{
+		double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+		int i = start;
+		for (; i + 3 < end; i += 4)
+		{
+			s0 += a[i] * b[i];
+			s1 += a[i + 1] * b[i + 1];
+			s2 += a[i + 2] * b[i + 2];
+			s3 += a[i + 3] * b[i + 3];
+		}
+		for (; i < end; i++)
+		{
+			s0 += a[i] * b[i];
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	/**
+	 * Rounding can push the correlation of (nearly) identical vectors a tiny bit past +/-1, so clamp it back into range.
+	 * NaN is passed through unchanged.
+	 */
+	private static double clamp(double correlationValue)
+	{
+		if (correlationValue > 1.0)
+		{
+			return 1.0;
+		}
+		if (correlationValue < -1.0)
+		{
+			return -1.0;
+		}
+		return correlationValue;
+	}
+
+	public int getNumberOfGenes()
+	{
+		return this.geneVectors.length;
+	}
+
+	public int getNumberOfSamples()
+	{
+		return this.numberOfSamples;
+	}
+}
@@ -0,0 +1,124 @@
+package org.reactome.idg.loader;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.reactome.idg.loader.PackedSymmetricMatrix.EntryVisitor;
+
+/**
+ * The correlations between a subset of genes and every gene: a rectangular |subset| x N matrix, stored as floats in one flat array.
+ * Each row belongs to one gene of the subset, and each column to one gene of the whole set (by gene index).
+ * @author sshorser
+ *
+ */
+public class SubsetCorrelationMatrix
+{
+	private final int[] subsetGeneIndices;
+	private final int numberOfGenes;
+	private final float[] values;
+	private final Map<Integer, Integer> subsetPositions = new HashMap<>();
+
+	/**
+	 * Creates an empty matrix.
+	 * @param subsetGeneIndices - the gene indices of the rows. Must not contain duplicates.
+	 * @param numberOfGenes - N, the number of columns.
+	 */
+	public SubsetCorrelationMatrix(int[] subsetGeneIndices, int numberOfGenes)
+	{
+		if ((long) subsetGeneIndices.length * numberOfGenes > Integer.MAX_VALUE)
+		{
+			throw new IllegalArgumentException(subsetGeneIndices.length + " x " + numberOfGenes + " values will not fit in an array; use a smaller subset.");
+		}
+		this.subsetGeneIndices = subsetGeneIndices;
+		this.numberOfGenes = numberOfGenes;
+		this.values = new float[subsetGeneIndices.length * numberOfGenes];
+		for (int position = 0; position < subsetGeneIndices.length; position++)
+		{
+			if (this.subsetPositions.put(subsetGeneIndices[position], position) != null)
+			{
+				throw new IllegalArgumentException("Gene index " + subsetGeneIndices[position] + " is in the subset more than once.");
+			}
+		}
+	}
+
+	/**
+	 * Gets a value by its row's position in the subset.
+	 * @param subsetPosition - the position of the gene in the subset.
+	 * @param otherGeneIndex - the gene index of the column.
+	 */
+	public double getValue(int subsetPosition, int otherGeneIndex)
+	{
+		return this.values[subsetPosition * this.numberOfGenes + otherGeneIndex];
+	}
+
+	/**
+	 * Sets a value by its row's position in the subset.
+	 * @param subsetPosition - the position of the gene in the subset.
+	 * @param otherGeneIndex - the gene index of the column.
+	 * @param correlationValue
+	 */
+	public void setValue(int subsetPosition, int otherGeneIndex, double correlationValue)
+	{
+		this.values[subsetPosition * this.numberOfGenes + otherGeneIndex] = (float) correlationValue;
+	}
+
+	/**
+	 * Gets the correlation between a gene in the subset and any other gene.
+	 * @param geneIndex - the gene index of a gene in the subset.
+	 * @param otherGeneIndex - the gene index of any gene.
+	 * @throws IllegalArgumentException If <code>geneIndex</code> is not in the subset.
+	 */
+	public double getCorrelation(int geneIndex, int otherGeneIndex)
+	{
+		return this.getValue(this.getSubsetPosition(geneIndex), otherGeneIndex);
+	}
+
+	/**
+	 * Gets the position of a gene in the subset.
+	 * @param geneIndex
+	 * @throws IllegalArgumentException If the gene is not in the subset.
+	 */
+	public int getSubsetPosition(int geneIndex)
+	{
+		Integer position = this.subsetPositions.get(geneIndex);
+		if (position == null)
+		{
+			throw new IllegalArgumentException("Gene index " + geneIndex + " is not in the subset.");
+		}
+		return position;
+	}
+
+	/**
+	 * Passes every value to a visitor, one row after another.
+	 * @param visitor - will receive the gene index of the subset gene, the gene index of the other gene, and the correlation value.
+	 */
+	public void walkRows(EntryVisitor visitor)
+	{
+		for (int position = 0; position < this.subsetGeneIndices.length; position++)
+		{
+			int offset = position * this.numberOfGenes;
+			for (int otherGeneIndex = 0; otherGeneIndex < this.numberOfGenes; otherGeneIndex++)
+			{
+				visitor.visit(this.subsetGeneIndices[position], otherGeneIndex, this.values[offset + otherGeneIndex]);
+			}
+		}
+	}
+
+	/**
+	 * Gets the gene indices of the rows, in row order. This is the matrix's own array, NOT a copy.
+	 */
+	public int[] getSubsetGeneIndices()
+	{
+		return this.subsetGeneIndices;
+	}
+
+	public int getNumberOfSubsetGenes()
+	{
+		return this.subsetGeneIndices.length;
+	}
+
+	public int getNumberOfGenes()
+	{
+		return this.numberOfGenes;
+	}
+}
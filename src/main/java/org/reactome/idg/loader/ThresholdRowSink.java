@@ -0,0 +1,73 @@
+package org.reactome.idg.loader;
+
+/**
+ * Keeps only the correlations whose absolute value is at least a threshold, and collects them into a {@link SparseCorrelationMatrix}.
+ * Memory use depends on how many pairs pass the threshold, not on N * N. NaN correlations, and genes paired with themselves, are never kept.
+ * @author sshorser
+ *
+ */
+public class ThresholdRowSink implements CorrelationRowSink
+{
+	private final double threshold;
+	private final String[] geneNames;
+	private SparseCorrelationMatrix.Builder builder;
+	private SparseCorrelationMatrix matrix;
+
+	/**
+	 * Creates a sink.
+	 * @param threshold - the smallest absolute correlation value that will be kept.
+	 * @param geneNames - the names of the genes, in index order, so that the matrix can be queried by gene name. May be null.
+	 */
+	public ThresholdRowSink(double threshold, String[] geneNames)
+	{
+		this.threshold = threshold;
+		this.geneNames = geneNames;
+	}
+
+	@Override
+	public void start(int numberOfGenes)
+	{
+		this.builder = new SparseCorrelationMatrix.Builder(numberOfGenes, this.threshold, this.geneNames);
+		this.matrix = null;
+	}
+
+	@Override
+	public void accept(CorrelationRowBlock block)
+	{
+		for (int row = block.getStartRow(); row < block.getEndRow(); row++)
+		{
+			for (int column = row + 1; column < block.getNumberOfGenes(); column++)
+			{
+				double value = block.getValue(row, column);
+				// NaN fails this test, so it is never kept.
+				if (Math.abs(value) >= this.threshold)
+				{
+					this.builder.addPair(row, column, value);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Builds the sparse matrix from the pairs that were kept.
+	 */
+	@Override
+	public void close()
+	{
+		if (this.builder != null)
+		{
+			this.matrix = this.builder.build();
+			this.builder = null;
+			this.matrix.logDensityStatistics();
+		}
+	}
+
+	/**
+	 * Gets the matrix. Only available after the sink has been closed.
+	 * @return the sparse matrix, or null if the sink has not been closed yet.
+	 */
+	public SparseCorrelationMatrix getMatrix()
+	{
+		return this.matrix;
+	}
+}
@@ -0,0 +1,413 @@
+package org.reactome.idg.loader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A local copy of a tissue's expression matrix, so that it can be read back in one sequential pass instead of from the HDF file.
+ * <br/>
+ * The values are stored gene-major, as big-endian ints (raw counts) or floats (normalized values), one gene after another. The header records
+ * what the values were made from, so that a stale file can be detected (see {@link #isValidFor(Path, List, String)}):
+ * <ul>
+ * <li>ints: {@link #MAGIC_NUMBER}, {@link #FORMAT_VERSION}, the {@link ValueType}, the number of genes, the number of samples, and the length of the whole header in bytes;</li>
+ * <li>longs: the size and last-modified time (in milliseconds) of the HDF file;</li>
+ * <li>the variant (such as a normalization's cache key, or "" for raw counts), and then each sample ID, as modified UTF-8 strings (see <code>DataOutput.writeUTF</code>);</li>
+ * <li>for floats only, one byte per gene: 1 if the normalization filtered the gene out, otherwise 0;</li>
+ * <li>padding, so that the values start at a multiple of 8 bytes.</li>
+ * </ul>
+ * An opened file is memory-mapped. Its genes are mapped in segments of whole genes, so a file can be bigger than 2 GB.
+ * @author sshorser
+ *
+ */
+public class TissueMatrixFile implements GeneVectorSource, Closeable
+{
+	public static final int MAGIC_NUMBER = 0x544D4154; // "TMAT"
+	public static final int FORMAT_VERSION = 1;
+	private static final int FIXED_HEADER_SIZE = 6 * Integer.BYTES + 2 * Long.BYTES;
+	private static final int HEADER_ALIGNMENT = Long.BYTES;
+	private static final long MAXIMUM_SEGMENT_SIZE = 1L << 30;
+
+	/**
+	 * The type of the values in the file.
+	 */
+	public enum ValueType
+	{
+		/**
+		 * Raw counts, from a {@link GeneMajorExpressionMatrix}.
+		 */
+		INT,
+		/**
+		 * Normalized values, from a {@link NormalizedExpressionMatrix}.
+		 */
+		FLOAT;
+	}
+
+	private final Path file;
+	private final ValueType valueType;
+	private final int numberOfGenes;
+	private final int numberOfSamples;
+	private final long sourceSize;
+	private final long sourceLastModified;
+	private final String variant;
+	private final List<String> sampleIds;
+	private final boolean[] filtered;
+	private final int genesPerSegment;
+	private final MappedByteBuffer[] segments;
+	private FileChannel channel;
+
+	private TissueMatrixFile(Path file, FileChannel channel, ValueType valueType, int numberOfGenes, int numberOfSamples, long sourceSize, long sourceLastModified,
+			String variant, List<String> sampleIds, boolean[] filtered, int genesPerSegment, MappedByteBuffer[] segments)
+	{
+		this.file = file;
+		this.channel = channel;
+		this.valueType = valueType;
+		this.numberOfGenes = numberOfGenes;
+		this.numberOfSamples = numberOfSamples;
+		this.sourceSize = sourceSize;
+		this.sourceLastModified = sourceLastModified;
+		this.variant = variant;
+		this.sampleIds = Collections.unmodifiableList(sampleIds);
+		this.filtered = filtered;
+		this.genesPerSegment = genesPerSegment;
+		this.segments = segments;
+	}
+
+	/**
+	 * Writes raw counts to a file. The file is written beside its final location and then moved there, so a reader never sees a partial file.
+	 * @param file - the file to write. If it exists, it is replaced.
+	 * @param values - the counts.
+	 * @param hdfFile - the HDF file that the counts were read from.
+	 * @param sampleIds - the IDs of the samples that the counts are for (such as the contents of the tissue file).
+	 * @throws IOException
+	 */
+	public static void writeCounts(Path file, GeneMajorExpressionMatrix values, Path hdfFile, List<String> sampleIds) throws IOException
+	{
+		write(file, ValueType.INT, values, null, "", hdfFile, sampleIds);
+	}
+
+	/**
+	 * Writes normalized values to a file, in the same way as {@link #writeCounts(Path, GeneMajorExpressionMatrix, Path, List)}.
+	 * The normalization's cache key is the file's variant.
+	 * @throws IOException
+	 */
+	public static void writeNormalizedValues(Path file, NormalizedExpressionMatrix values, Path hdfFile, List<String> sampleIds) throws IOException
+	{
+		boolean[] filtered = new boolean[values.getNumberOfGenes()];
+		for (int geneIndex = 0; geneIndex < filtered.length; geneIndex++)
+		{
+			filtered[geneIndex] = values.isFiltered(geneIndex);
+		}
+		write(file, ValueType.FLOAT, values, filtered, values.getNormalization().getCacheKey(), hdfFile, sampleIds);
+	}
+
+	private static void write(Path file, ValueType valueType, GeneVectorSource values, boolean[] filtered, String variant, Path hdfFile, List<String> sampleIds) throws IOException
+	{
+		int numberOfGenes = values.getNumberOfGenes();
+		int numberOfSamples = values.getNumberOfSamples();
+		if (sampleIds.size() != numberOfSamples)
+		{
+			throw new IllegalArgumentException("There are " + sampleIds.size() + " sample IDs, but the values are for " + numberOfSamples + " samples.");
+		}
+		ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+		try (DataOutputStream header = new DataOutputStream(headerBytes))
+		{
+			header.writeUTF(variant);
+			for (String sampleId : sampleIds)
+			{
+				header.writeUTF(sampleId);
+			}
+			if (filtered != null)
+			{
+				for (boolean geneFiltered : filtered)
+				{
+					header.writeByte(geneFiltered ? 1 : 0);
+				}
+			}
+		}
+		int headerSize = FIXED_HEADER_SIZE + headerBytes.size();
+		headerSize = (headerSize + HEADER_ALIGNMENT - 1) / HEADER_ALIGNMENT * HEADER_ALIGNMENT;
+		ByteBuffer header = ByteBuffer.allocate(headerSize);
+		header.putInt(MAGIC_NUMBER).putInt(FORMAT_VERSION).putInt(valueType.ordinal()).putInt(numberOfGenes).putInt(numberOfSamples).putInt(headerSize);
+		header.putLong(Files.size(hdfFile)).putLong(Files.getLastModifiedTime(hdfFile).toMillis());
+		header.put(headerBytes.toByteArray());
+		header.clear();
+
+		Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel outputChannel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+		{
+			writeFully(outputChannel, header);
+			ByteBuffer geneBuffer = ByteBuffer.allocate(numberOfSamples * Integer.BYTES);
+			for (int geneIndex = 0; geneIndex < numberOfGenes; geneIndex++)
+			{
+				geneBuffer.clear();
+				if (valueType == ValueType.INT)
+				{
+					geneBuffer.asIntBuffer().put(((GeneMajorExpressionMatrix) values).getGeneVector(geneIndex));
+				}
+				else
+				{
+					geneBuffer.asFloatBuffer().put(((NormalizedExpressionMatrix) values).getGeneVector(geneIndex));
+				}
+				writeFully(outputChannel, geneBuffer);
+			}
+		}
+		Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Opens and maps a file.
+	 * @param file - a file written by this class.
+	 * @return the file, which must be closed.
+	 * @throws IOException If the file could not be read, or is not a tissue matrix file of the expected size.
+	 */
+	public static TissueMatrixFile open(Path file) throws IOException
+	{
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		try
+		{
+			ByteBuffer fixedHeader = ByteBuffer.allocate(FIXED_HEADER_SIZE);
+			readFully(channel, fixedHeader, 0);
+			if (fixedHeader.getInt() != MAGIC_NUMBER || fixedHeader.getInt() != FORMAT_VERSION)
+			{
+				throw new IOException(file + " is not a tissue matrix file (version " + FORMAT_VERSION + ").");
+			}
+			int valueTypeId = fixedHeader.getInt();
+			if (valueTypeId < 0 || valueTypeId >= ValueType.values().length)
+			{
+				throw new IOException(file + " has an unknown value type: " + valueTypeId);
+			}
+			ValueType valueType = ValueType.values()[valueTypeId];
+			int numberOfGenes = fixedHeader.getInt();
+			int numberOfSamples = fixedHeader.getInt();
+			int headerSize = fixedHeader.getInt();
+			long sourceSize = fixedHeader.getLong();
+			long sourceLastModified = fixedHeader.getLong();
+			ByteBuffer variableHeader = ByteBuffer.allocate(headerSize - FIXED_HEADER_SIZE);
+			readFully(channel, variableHeader, FIXED_HEADER_SIZE);
+			String variant;
+			List<String> sampleIds = new ArrayList<>(numberOfSamples);
+			boolean[] filtered = null;
+			try (DataInputStream header = new DataInputStream(new ByteArrayInputStream(variableHeader.array())))
+			{
+				variant = header.readUTF();
+				for (int sampleIndex = 0; sampleIndex < numberOfSamples; sampleIndex++)
+				{
+					sampleIds.add(header.readUTF());
+				}
+				if (valueType == ValueType.FLOAT)
+				{
+					filtered = new boolean[numberOfGenes];
+					for (int geneIndex = 0; geneIndex < numberOfGenes; geneIndex++)
+					{
+						filtered[geneIndex] = header.readByte() != 0;
+					}
+				}
+			}
+			long geneSize = (long) numberOfSamples * Integer.BYTES;
+			long bodySize = geneSize * numberOfGenes;
+			if (channel.size() != headerSize + bodySize)
+			{
+				throw new IOException(file + " should be " + (headerSize + bodySize) + " bytes long, but it is " + channel.size() + " bytes long.");
+			}
+			int genesPerSegment = (int) Math.max(1, Math.min(numberOfGenes, MAXIMUM_SEGMENT_SIZE / Math.max(1, geneSize)));
+			MappedByteBuffer[] segments = new MappedByteBuffer[numberOfGenes == 0 ? 0 : (numberOfGenes + genesPerSegment - 1) / genesPerSegment];
+			for (int segment = 0; segment < segments.length; segment++)
+			{
+				long firstGene = (long) segment * genesPerSegment;
+				long segmentGenes = Math.min(genesPerSegment, numberOfGenes - firstGene);
+				segments[segment] = channel.map(MapMode.READ_ONLY, headerSize + firstGene * geneSize, segmentGenes * geneSize);
+			}
+			return new TissueMatrixFile(file, channel, valueType, numberOfGenes, numberOfSamples, sourceSize, sourceLastModified, variant, sampleIds, filtered, genesPerSegment, segments);
+		}
+		catch (IOException | RuntimeException e)
+		{
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Checks that this file was made from the current HDF file, for the same samples, in the same way.
+	 * @param hdfFile - the HDF file. Its size and last-modified time must be the same as when this file was written.
+	 * @param sampleIds - the IDs of the samples, in order (such as the current contents of the tissue file).
+	 * @param expectedVariant - "" for raw counts, or the normalization's cache key for normalized values.
+	 * @return true if the values in this file can be used in place of reading them from the HDF file.
+	 * @throws IOException If the HDF file could not be read.
+	 */
+	public boolean isValidFor(Path hdfFile, List<String> sampleIds, String expectedVariant) throws IOException
+	{
+		return this.sourceSize == Files.size(hdfFile) && this.sourceLastModified == Files.getLastModifiedTime(hdfFile).toMillis()
+				&& this.variant.equals(expectedVariant) && this.sampleIds.equals(sampleIds);
+	}
+
+	private ByteBuffer getGeneBuffer(int geneIndex)
+	{
+		if (geneIndex < 0 || geneIndex >= this.numberOfGenes)
+		{
+			throw new IndexOutOfBoundsException("Gene " + geneIndex + " is not in a matrix of " + this.numberOfGenes + " genes.");
+		}
+		ByteBuffer geneBuffer = this.segments[geneIndex / this.genesPerSegment].duplicate();
+		int position = (geneIndex % this.genesPerSegment) * this.numberOfSamples * Integer.BYTES;
+		geneBuffer.position(position);
+		geneBuffer.limit(position + this.numberOfSamples * Integer.BYTES);
+		return geneBuffer;
+	}
+
+	/**
+	 * Reads a gene's values, straight from the mapped file.
+	 */
+	@Override
+	public void readGeneVector(int geneIndex, double[] destination)
+	{
+		ByteBuffer geneBuffer = this.getGeneBuffer(geneIndex);
+		if (this.valueType == ValueType.INT)
+		{
+			for (int sampleIndex = 0; sampleIndex < this.numberOfSamples; sampleIndex++)
+			{
+				destination[sampleIndex] = geneBuffer.getInt();
+			}
+		}
+		else
+		{
+			for (int sampleIndex = 0; sampleIndex < this.numberOfSamples; sampleIndex++)
+			{
+				destination[sampleIndex] = geneBuffer.getFloat();
+			}
+		}
+	}
+
+	/**
+	 * Copies the raw counts onto the heap.
+	 * @return the counts.
+	 * @throws IllegalStateException If the file does not have raw counts.
+	 */
+	public GeneMajorExpressionMatrix toGeneMajorExpressionMatrix()
+	{
+		if (this.valueType != ValueType.INT)
+		{
+			throw new IllegalStateException(this.file + " does not have raw counts.");
+		}
+		int[][] geneVectors = new int[this.numberOfGenes][this.numberOfSamples];
+		for (int geneIndex = 0; geneIndex < this.numberOfGenes; geneIndex++)
+		{
+			this.getGeneBuffer(geneIndex).asIntBuffer().get(geneVectors[geneIndex]);
+		}
+		return new GeneMajorExpressionMatrix(geneVectors);
+	}
+
+	/**
+	 * Copies the normalized values onto the heap.
+	 * @param normalization - the normalization that the values were made with. Its cache key must be this file's variant.
+	 * @return the normalized values.
+	 * @throws IllegalStateException If the file does not have values normalized in that way.
+	 */
+	public NormalizedExpressionMatrix toNormalizedExpressionMatrix(ExpressionNormalization normalization)
+	{
+		if (this.valueType != ValueType.FLOAT || !this.variant.equals(normalization.getCacheKey()))
+		{
+			throw new IllegalStateException(this.file + " does not have values normalized by " + normalization);
+		}
+		float[][] geneVectors = new float[this.numberOfGenes][this.numberOfSamples];
+		for (int geneIndex = 0; geneIndex < this.numberOfGenes; geneIndex++)
+		{
+			this.getGeneBuffer(geneIndex).asFloatBuffer().get(geneVectors[geneIndex]);
+		}
+		return new NormalizedExpressionMatrix(geneVectors, this.numberOfSamples, this.filtered.clone(), normalization);
+	}
+
+	/**
+	 * Closes the file. The mapping itself is only released when the buffers are garbage-collected, so the file must not be read after it is closed.
+	 */
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if (this.channel != null)
+		{
+			this.channel.close();
+			this.channel = null;
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			channel.write(buffer);
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			if (channel.read(buffer, position + buffer.position()) < 0)
+			{
+				throw new IOException("Unexpected end of file.");
+			}
+		}
+		buffer.flip();
+	}
+
+	public Path getFile()
+	{
+		return this.file;
+	}
+
+	public ValueType getValueType()
+	{
+		return this.valueType;
+	}
+
+	@Override
+	public int getNumberOfGenes()
+	{
+		return this.numberOfGenes;
+	}
+
+	@Override
+	public int getNumberOfSamples()
+	{
+		return this.numberOfSamples;
+	}
+
+	/**
+	 * @return the size of the HDF file, when this file was written.
+	 */
+	public long getSourceSize()
+	{
+		return this.sourceSize;
+	}
+
+	/**
+	 * @return the last-modified time of the HDF file (in milliseconds), when this file was written.
+	 */
+	public long getSourceLastModified()
+	{
+		return this.sourceLastModified;
+	}
+
+	public String getVariant()
+	{
+		return this.variant;
+	}
+
+	public List<String> getSampleIds()
+	{
+		return this.sampleIds;
+	}
+}
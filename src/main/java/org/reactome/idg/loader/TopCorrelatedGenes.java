@@ -0,0 +1,278 @@
+package org.reactome.idg.loader;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.reactome.idg.loader.PackedSymmetricMatrix.EntryVisitor;
+
+/**
+ * A K-nearest-neighbour table: the K genes that are most correlated with each gene. This takes O(N * K) memory
+ * instead of the O(N * N) of a full correlation matrix.
+ * <br/>
+ * The table is stored in flat arrays: the neighbours of gene <code>g</code> are at positions <code>g * K</code> to <code>g * K + K - 1</code>
+ * of {@link #getNeighbourIndices()} and {@link #getNeighbourValues()}. While the table is being filled, each gene's slots are a bounded
+ * min-heap, so a new value only has to be compared with the weakest neighbour kept so far. Once the table is complete,
+ * each gene's neighbours are sorted from most to least correlated.
+ * <br/>
+ * Use {@link GenePairCorrelationMatrixCalculator#calculateTopCorrelations(int, boolean)} to create one.
+ * @author sshorser
+ *
+ */
+public class TopCorrelatedGenes
+{
+	// Number of locks that genes are spread over while the table is being filled.
+	private static final int LOCK_STRIPES = 1024;
+
+	private final int numberOfGenes;
+	private final int k;
+	private final boolean rankedByAbsoluteValue;
+	private final int[] neighbourIndices;
+	private final float[] neighbourValues;
+	private final int[] neighbourCounts;
+	private final Object[] locks = new Object[LOCK_STRIPES];
+
+	/**
+	 * Creates an empty table.
+	 * @param numberOfGenes - N
+	 * @param k - the maximum number of neighbours to keep for each gene.
+	 * @param rankedByAbsoluteValue - if true, neighbours are ranked by the absolute value of the correlation, so strongly anti-correlated genes are kept too.
+	 * Otherwise, they are ranked by the correlation value.
+	 */
+	TopCorrelatedGenes(int numberOfGenes, int k, boolean rankedByAbsoluteValue)
+	{
+		if (k < 1)
+		{
+			throw new IllegalArgumentException("K must be greater than 0, but was " + k);
+		}
+		if ((long) numberOfGenes * k > Integer.MAX_VALUE)
+		{
+			throw new IllegalArgumentException("Too many neighbours: " + numberOfGenes + " genes x " + k + " neighbours will not fit in an array.");
+		}
+		this.numberOfGenes = numberOfGenes;
+		this.k = k;
+		this.rankedByAbsoluteValue = rankedByAbsoluteValue;
+		this.neighbourIndices = new int[numberOfGenes * k];
+		this.neighbourValues = new float[numberOfGenes * k];
+		this.neighbourCounts = new int[numberOfGenes];
+		for (int i = 0; i < LOCK_STRIPES; i++)
+		{
+			this.locks[i] = new Object();
+		}
+	}
+
+	/**
+	 * Gets the lock that must be held while offering neighbours to a gene. Genes share locks, so only one lock should be held at a time.
+	 * @param geneIndex
+	 */
+	Object getLock(int geneIndex)
+	{
+		return this.locks[geneIndex % LOCK_STRIPES];
+	}
+
+	/**
+	 * Offers a neighbour to a gene. It will be kept if the gene has fewer than K neighbours, or if it is more correlated than the
+	 * gene's weakest neighbour (which it will then replace). NaN values, and the gene itself, are ignored.
+	 * The caller must hold {@link #getLock(int)} for <code>geneIndex</code>.
+	 * @param geneIndex - the gene.
+	 * @param otherGeneIndex - the candidate neighbour.
+	 * @param correlationValue - the correlation between the two.
+	 */
+	void offer(int geneIndex, int otherGeneIndex, double correlationValue)
+	{
+		if (geneIndex == otherGeneIndex || Double.isNaN(correlationValue))
+		{
+			return;
+		}
+		float value = (float) correlationValue;
+		int base = geneIndex * this.k;
+		int count = this.neighbourCounts[geneIndex];
+		if (count < this.k)
+		{
+			// Add to the end, then move it up the heap.
+			int position = count;
+			while (position > 0)
+			{
+				int parent = (position - 1) >>> 1;
+				if (this.rankingKey(this.neighbourValues[base + parent]) <= this.rankingKey(value))
+				{
+					break;
+				}
+				this.neighbourIndices[base + position] = this.neighbourIndices[base + parent];
+				this.neighbourValues[base + position] = this.neighbourValues[base + parent];
+				position = parent;
+			}
+			this.neighbourIndices[base + position] = otherGeneIndex;
+			this.neighbourValues[base + position] = value;
+			this.neighbourCounts[geneIndex] = count + 1;
+		}
+		else if (this.rankingKey(value) > this.rankingKey(this.neighbourValues[base]))
+		{
+			// Replace the weakest neighbour (the root of the heap).
+			this.siftDown(base, 0, this.k, otherGeneIndex, value);
+		}
+	}
+
+	/**
+	 * Puts a neighbour at a position in a gene's heap, and moves it down until the heap is in order again.
+	 */
+	private void siftDown(int base, int position, int heapSize, int neighbourIndex, float value)
+	{
+		float key = this.rankingKey(value);
+		while (true)
+		{
+			int child = 2 * position + 1;
+			if (child >= heapSize)
+			{
+				break;
+			}
+			if (child + 1 < heapSize && this.rankingKey(this.neighbourValues[base + child + 1]) < this.rankingKey(this.neighbourValues[base + child]))
+			{
+				child++;
+			}
+			if (key <= this.rankingKey(this.neighbourValues[base + child]))
+			{
+				break;
+			}
+			this.neighbourIndices[base + position] = this.neighbourIndices[base + child];
+			this.neighbourValues[base + position] = this.neighbourValues[base + child];
+			position = child;
+		}
+		this.neighbourIndices[base + position] = neighbourIndex;
+		this.neighbourValues[base + position] = value;
+	}
+
+	/**
+	 * Sorts every gene's neighbours from most to least correlated. Called once the table is complete; after this, no more neighbours should be offered.
+	 */
+	void sortNeighbours()
+	{
+		for (int geneIndex = 0; geneIndex < this.numberOfGenes; geneIndex++)
+		{
+			int base = geneIndex * this.k;
+			// Heap sort: repeatedly move the weakest neighbour to the end, which leaves the strongest at the start.
+			for (int heapSize = this.neighbourCounts[geneIndex] - 1; heapSize > 0; heapSize--)
+			{
+				int weakestIndex = this.neighbourIndices[base];
+				float weakestValue = this.neighbourValues[base];
+				this.siftDown(base, 0, heapSize, this.neighbourIndices[base + heapSize], this.neighbourValues[base + heapSize]);
+				this.neighbourIndices[base + heapSize] = weakestIndex;
+				this.neighbourValues[base + heapSize] = weakestValue;
+			}
+		}
+	}
+
+	private float rankingKey(float value)
+	{
+		return this.rankedByAbsoluteValue ? Math.abs(value) : value;
+	}
+
+	/**
+	 * Passes every row of the table (gene index, neighbour index, correlation value) to a visitor, gene by gene, from most to least correlated.
+	 * @param visitor
+	 */
+	public void walkNeighbours(EntryVisitor visitor)
+	{
+		for (int geneIndex = 0; geneIndex < this.numberOfGenes; geneIndex++)
+		{
+			int base = geneIndex * this.k;
+			for (int rank = 0; rank < this.neighbourCounts[geneIndex]; rank++)
+			{
+				visitor.visit(geneIndex, this.neighbourIndices[base + rank], this.neighbourValues[base + rank]);
+			}
+		}
+	}
+
+	/**
+	 * Gets the neighbours of a gene, by name.
+	 * @param gene - the gene's symbol.
+	 * @param loader - the loader that the table was calculated from, to look up gene names and indices.
+	 * @return a map of neighbour names to correlation values, from most to least correlated.
+	 * @throws IllegalArgumentException If the gene is not in the HDF file.
+	 */
+	public Map<String, Float> getNeighbours(String gene, Archs4ExpressionDataLoader loader)
+	{
+		Integer geneIndex = loader.getGeneIndices().get(gene);
+		if (geneIndex == null)
+		{
+			throw new IllegalArgumentException("Gene " + gene + " is not recognized in the HDF file.");
+		}
+		Map<Integer, String> geneIndicesToNames = loader.getGeneIndicesToNames();
+		Map<String, Float> neighbours = new LinkedHashMap<>();
+		int base = geneIndex * this.k;
+		for (int rank = 0; rank < this.neighbourCounts[geneIndex]; rank++)
+		{
+			neighbours.put(geneIndicesToNames.get(this.neighbourIndices[base + rank]), this.neighbourValues[base + rank]);
+		}
+		return neighbours;
+	}
+
+	/**
+	 * Gets the index of one of a gene's neighbours.
+	 * @param geneIndex - the gene.
+	 * @param rank - 0 for the most correlated neighbour, up to <code>getNumberOfNeighbours(geneIndex) - 1</code>.
+	 */
+	public int getNeighbour(int geneIndex, int rank)
+	{
+		this.checkRank(geneIndex, rank);
+		return this.neighbourIndices[geneIndex * this.k + rank];
+	}
+
+	/**
+	 * Gets the correlation between a gene and one of its neighbours.
+	 * @param geneIndex - the gene.
+	 * @param rank - 0 for the most correlated neighbour, up to <code>getNumberOfNeighbours(geneIndex) - 1</code>.
+	 */
+	public float getValue(int geneIndex, int rank)
+	{
+		this.checkRank(geneIndex, rank);
+		return this.neighbourValues[geneIndex * this.k + rank];
+	}
+
+	private void checkRank(int geneIndex, int rank)
+	{
+		if (rank < 0 || rank >= this.neighbourCounts[geneIndex])
+		{
+			throw new IndexOutOfBoundsException("Gene " + geneIndex + " has " + this.neighbourCounts[geneIndex] + " neighbours, there is no neighbour " + rank);
+		}
+	}
+
+	/**
+	 * Gets the number of neighbours that a gene has. This is K, unless fewer than K other genes had a (non-NaN) correlation with the gene.
+	 * @param geneIndex
+	 */
+	public int getNumberOfNeighbours(int geneIndex)
+	{
+		return this.neighbourCounts[geneIndex];
+	}
+
+	/**
+	 * Gets the neighbour indices of all genes. This is the table's own array, NOT a copy. See the class description for the layout.
+	 */
+	public int[] getNeighbourIndices()
+	{
+		return this.neighbourIndices;
+	}
+
+	/**
+	 * Gets the correlation values of all genes' neighbours. This is the table's own array, NOT a copy. See the class description for the layout.
+	 */
+	public float[] getNeighbourValues()
+	{
+		return this.neighbourValues;
+	}
+
+	public int getNumberOfGenes()
+	{
+		return this.numberOfGenes;
+	}
+
+	public int getK()
+	{
+		return this.k;
+	}
+
+	public boolean isRankedByAbsoluteValue()
+	{
+		return this.rankedByAbsoluteValue;
+	}
+}
@@ -5,10 +5,14 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
@@ -17,6 +21,8 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import org.reactome.idg.loader.Archs4ExpressionDataLoader;
 import org.reactome.idg.loader.Archs4ExpressionDataLoaderFactory;
+import org.reactome.idg.loader.ExpressionValuesCache;
+import org.reactome.idg.loader.GeneMajorExpressionMatrix;
 
 @SuppressWarnings("static-method")
 public class TestArchs4ExpressionDataLoader
@@ -201,6 +207,140 @@ public class TestArchs4ExpressionDataLoader
 		}
 	}
 	
+	@Test
+	public void testGetGeneVectorIT() throws IOException
+	{
+		Archs4ExpressionDataLoader loader = Archs4ExpressionDataLoaderFactory.buildInstanceForHDFFile(PATH_TO_HDF);
+		loader.evictTissue(Paths.get("src/test/resources/heart.txt"));
+		ExpressionValuesCache cache = loader.getExpressionValuesCache();
+		long hits = cache.getHits();
+		long misses = cache.getMisses();
+		int[][] expressionValues = loader.getExpressionValuesforTissue(Paths.get("src/test/resources/heart.txt"));
+		int geneIndex = loader.getGeneIndices().get("A1BG");
+		int[] geneVector = loader.getGeneVector(Paths.get("src/test/resources/heart.txt"), "A1BG");
+		assertEquals(expressionValues.length, geneVector.length);
+		for (int i = 0; i < geneVector.length; i++)
+		{
+			assertEquals(expressionValues[i][geneIndex], geneVector[i]);
+		}
+		// Should come from the cache the second time, so it should be the same array.
+		assertTrue(geneVector == loader.getGeneVector(Paths.get("src/test/resources/heart.txt"), "A1BG"));
+		// One miss for the sample-major values, and one for the gene-major values (which were made from the cached sample-major values
+		// without counting another miss), then one hit.
+		assertEquals(misses + 2, cache.getMisses());
+		assertEquals(hits + 1, cache.getHits());
+	}
+	
+	@Test
+	public void testRepeatedGeneLookupsIT()
+	{
+		Archs4ExpressionDataLoader loader = Archs4ExpressionDataLoaderFactory.buildInstanceForHDFFile(PATH_TO_HDF);
+		int[] firstValues = loader.getExpressionValuesForGeneAndTissue("A1BG", "Heart");
+		int numberOfLookups = 100;
+		LocalDateTime start = LocalDateTime.now();
+		for (int i = 0; i < numberOfLookups; i++)
+		{
+			// The file and dataset stay open between lookups, so every lookup should read the same values.
+			assertTrue(Arrays.equals(firstValues, loader.getExpressionValuesForGeneAndTissue("A1BG", "Heart")));
+		}
+		Duration elapsed = Duration.between(start, LocalDateTime.now());
+		System.out.println(numberOfLookups + " lookups: " + elapsed + " (" + elapsed.toNanos() / numberOfLookups / 1000 + " microseconds per lookup)");
+		// The file is opened again after it is closed.
+		loader.close();
+		assertTrue(Arrays.equals(firstValues, loader.getExpressionValuesForGeneAndTissue("A1BG", "Heart")));
+	}
+	
+	@Test
+	public void testGeneSetReadIT() throws IOException
+	{
+		Archs4ExpressionDataLoader loader = Archs4ExpressionDataLoaderFactory.buildInstanceForHDFFile(PATH_TO_HDF);
+		// Not in index order, and with a repeated gene.
+		List<String> genes = Arrays.asList("BRCA2", "A1BG", "BRCA1", "A1CF", "A1BG");
+		LocalDateTime start = LocalDateTime.now();
+		GeneMajorExpressionMatrix geneSetValues = loader.getExpressionValuesForGenesAndTissue(genes, "Heart");
+		System.out.println(genes.size() + " genes read together: " + Duration.between(start, LocalDateTime.now()));
+		assertEquals(genes.size(), geneSetValues.getNumberOfGenes());
+		for (int i = 0; i < genes.size(); i++)
+		{
+			assertTrue(Arrays.equals(loader.getExpressionValuesForGeneAndTissue(genes.get(i), "Heart"), geneSetValues.getGeneVector(i)));
+		}
+
+		// By tissue file, the genes should match the tissue's whole gene-major matrix.
+		Path tissueFile = Paths.get("src/test/resources/heart.txt");
+		geneSetValues = loader.getExpressionValuesForGenesAndTissue(genes, tissueFile);
+		for (int i = 0; i < genes.size(); i++)
+		{
+			assertTrue(Arrays.equals(loader.getGeneVector(tissueFile, genes.get(i)), geneSetValues.getGeneVector(i)));
+		}
+		loader.evictTissue(tissueFile);
+	}
+	
+	@Test
+	public void testTissueMatrixDirectoryIT() throws IOException
+	{
+		Archs4ExpressionDataLoader loader = Archs4ExpressionDataLoaderFactory.buildInstanceForHDFFile(PATH_TO_HDF);
+		Path tissueFile = Paths.get("src/test/resources/heart.txt");
+		Path tissueMatrixDirectory = Files.createTempDirectory("tissue-matrices");
+		try
+		{
+			loader.setTissueMatrixDirectory(tissueMatrixDirectory);
+			loader.evictTissue(tissueFile);
+			LocalDateTime start = LocalDateTime.now();
+			GeneMajorExpressionMatrix fromHdf = loader.getGeneMajorExpressionValuesForTissue(tissueFile);
+			System.out.println("Read from the HDF file: " + Duration.between(start, LocalDateTime.now()));
+			assertEquals(1, Files.list(tissueMatrixDirectory).filter(file -> file.toString().endsWith(".tmat")).count());
+			// Evicting the tissue from memory means that the second read has to come from the tissue matrix file.
+			loader.evictTissue(tissueFile);
+			start = LocalDateTime.now();
+			GeneMajorExpressionMatrix fromFile = loader.getGeneMajorExpressionValuesForTissue(tissueFile);
+			System.out.println("Read from the tissue matrix file: " + Duration.between(start, LocalDateTime.now()));
+			assertEquals(fromHdf.getNumberOfGenes(), fromFile.getNumberOfGenes());
+			for (int geneIndex = 0; geneIndex < fromHdf.getNumberOfGenes(); geneIndex++)
+			{
+				assertTrue(Arrays.equals(fromHdf.getGeneVector(geneIndex), fromFile.getGeneVector(geneIndex)));
+			}
+		}
+		finally
+		{
+			loader.setTissueMatrixDirectory(null);
+			loader.evictTissue(tissueFile);
+			for (Path file : Files.list(tissueMatrixDirectory).collect(Collectors.toList()))
+			{
+				Files.delete(file);
+			}
+			Files.delete(tissueMatrixDirectory);
+		}
+	}
+	
+	@Test
+	public void testSampleOrderIT() throws IOException
+	{
+		Archs4ExpressionDataLoader loader = Archs4ExpressionDataLoaderFactory.buildInstanceForHDFFile(PATH_TO_HDF);
+		Path tissueFile = Paths.get("src/test/resources/heart.txt");
+		List<String> sampleIds = Files.readAllLines(tissueFile);
+		List<String> reversedSampleIds = new ArrayList<>(sampleIds);
+		Collections.reverse(reversedSampleIds);
+		Path reversedTissueFile = Files.createTempFile("heart-reversed", ".txt");
+		try
+		{
+			Files.write(reversedTissueFile, reversedSampleIds);
+			int[][] expressionValues = loader.getExpressionValuesforTissue(tissueFile);
+			int[][] reversedExpressionValues = loader.getExpressionValuesforTissue(reversedTissueFile);
+			// The rows come back in the order of the tissue file, whatever order the samples are in the HDF file.
+			assertEquals(expressionValues.length, reversedExpressionValues.length);
+			for (int i = 0; i < expressionValues.length; i++)
+			{
+				assertTrue(Arrays.equals(expressionValues[i], reversedExpressionValues[expressionValues.length - 1 - i]));
+			}
+			System.out.println("Bytes read: " + loader.getReadPlanner().getTotalBytesRead() + "; bytes used: " + loader.getReadPlanner().getTotalBytesUsed());
+		}
+		finally
+		{
+			loader.evictTissue(reversedTissueFile);
+			Files.delete(reversedTissueFile);
+		}
+	}
+	
 	@Test
 	public void testGetGeneIndicesToNamesIT()
 	{
@@ -6,13 +6,21 @@ import static org.junit.Assert.assertTrue;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.temporal.Temporal;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
@@ -25,11 +33,34 @@ import java.util.concurrent.TimeUnit;
 import org.apache.commons.math3.exception.OutOfRangeException;
 import org.apache.commons.math3.linear.Array2DRowRealMatrix;
 import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.stat.correlation.PearsonsCorrelation;
+import org.apache.commons.math3.stat.correlation.SpearmansCorrelation;
 import org.junit.Test;
 import org.reactome.idg.loader.Archs4ExpressionDataLoader;
 import org.reactome.idg.loader.Archs4ExpressionDataLoaderFactory;
+import org.reactome.idg.loader.BinaryFileRowSink;
+import org.reactome.idg.loader.ChunkedCorrelationCalculator;
+import org.reactome.idg.loader.CorrelationCalculator.CorrelationType;
+import org.reactome.idg.loader.CorrelationSufficientStatistics;
+import org.reactome.idg.loader.FilteredGeneIndex;
+import org.reactome.idg.loader.GeneMajorExpressionMatrix;
+import org.reactome.idg.loader.GenePrefilter;
+import org.reactome.idg.loader.GenePrefilter.ExclusionReason;
+import org.reactome.idg.loader.ExpressionNormalization;
+import org.reactome.idg.loader.ExpressionNormalization.LibrarySizeScaling;
+import org.reactome.idg.loader.GeneRankMatrix;
+import org.reactome.idg.loader.NormalizedExpressionMatrix;
+import org.reactome.idg.loader.MultiTissueCorrelationScheduler;
+import org.reactome.idg.loader.MultiTissueCorrelationScheduler.TissueRunReport;
+import org.reactome.idg.loader.PackedSymmetricMatrix;
+import org.reactome.idg.loader.GeneSubsetCorrelationCalculator;
 import org.reactome.idg.loader.GenePairCorrelationCalculator;
 import org.reactome.idg.loader.GenePairCorrelationMatrixCalculator;
+import org.reactome.idg.loader.GenePairCorrelationResults;
+import org.reactome.idg.loader.GenePairCorrelationMatrixCalculator.CalculationMode;
+import org.reactome.idg.loader.StandardizedGeneMatrix;
+import org.reactome.idg.loader.SubsetCorrelationMatrix;
+import org.reactome.idg.loader.TopCorrelatedGenes;
 
 
 
@@ -128,4 +159,446 @@ public class TestCorrelationCalculator
 			assertTrue(e.getMessage().contains("Gene BLAH6666666 is not recognized in the HDF file."));
 		}
 	}
+	
+	/**
+	 * Builds a matrix of random expression values. Outer index is sample, inner index is gene.
+	 * A few genes are made constant, and a few are made copies of other genes, to cover the edge cases.
+	 */
+	static int[][] createRandomSampleValues(int numberOfSamples, int numberOfGenes, long seed)
+	{
+		Random random = new Random(seed);
+		int[][] sampleValues = new int[numberOfSamples][numberOfGenes];
+		for (int i = 0; i < numberOfSamples; i++)
+		{
+			for (int j = 0; j < numberOfGenes; j++)
+			{
+				// heavy-tailed, like RNA-seq counts.
+				sampleValues[i][j] = (int) Math.exp(random.nextGaussian() * 2.0 + 3.0);
+			}
+			sampleValues[i][3] = 7;
+			sampleValues[i][5] = sampleValues[i][1];
+		}
+		return sampleValues;
+	}
+	
+	@Test
+	public void testMultiTissueSchedulerIT() throws IOException
+	{
+		Archs4ExpressionDataLoader loader = Archs4ExpressionDataLoaderFactory.buildInstanceForHDFFile(PATH_TO_HDF);
+		Path tissueDirectory = Files.createTempDirectory("tissues");
+		Path outputDirectory = Files.createTempDirectory("tissue-correlations");
+		Files.copy(Paths.get("src/test/resources/heart.txt"), tissueDirectory.resolve("heart.txt"));
+		MultiTissueCorrelationScheduler scheduler = new MultiTissueCorrelationScheduler(loader, 8L << 30);
+		scheduler.setEncoding(BinaryFileRowSink.Encoding.SHORT);
+		List<TissueRunReport> reports = scheduler.calculateAllTissues(tissueDirectory, outputDirectory);
+		assertEquals(1, reports.size());
+		TissueRunReport report = reports.get(0);
+		assertTrue(report.isSuccessful());
+		assertEquals("heart", report.getTissueName());
+		assertEquals("heart", report.getProvenance().getSubcategory());
+		assertTrue(report.getPeakHeapUsed() > 0);
+		PackedSymmetricMatrix matrix = BinaryFileRowSink.readMatrix(report.getOutputFile());
+		assertEquals(loader.getGeneIndices().size(), matrix.getRowDimension());
+		System.out.println("heart: " + report.getWallTime() + ", peak heap " + report.getPeakHeapUsed() + " bytes");
+	}
+
+	@Test
+	public void testChunkedCorrelationIT() throws IOException
+	{
+		Archs4ExpressionDataLoader loader = Archs4ExpressionDataLoaderFactory.buildInstanceForHDFFile(PATH_TO_HDF);
+		ChunkedCorrelationCalculator chunkedCalculator = new ChunkedCorrelationCalculator("src/test/resources/heart.txt", loader);
+		// heart.txt has 141 samples, so this reads them in 3 chunks.
+		chunkedCalculator.setChunkSize(50);
+		CorrelationSufficientStatistics statistics = chunkedCalculator.calculateStatistics();
+		assertEquals(141, statistics.getNumberOfSamples());
+		GenePairCorrelationCalculator pairCalculator = new GenePairCorrelationCalculator("src/test/resources/heart.txt", "A1BG", "A1CF", loader);
+		Map<String, Integer> geneIndices = loader.getGeneIndices();
+		assertEquals(pairCalculator.calculateGenePairCorrelation(), statistics.getCorrelation(geneIndices.get("A1BG"), geneIndices.get("A1CF")), StandardizedGeneMatrix.TOLERANCE);
+	}
+
+	@Test
+	public void testPairCalculatorsWithDifferentTypesIT() throws IOException
+	{
+		Archs4ExpressionDataLoader loader = Archs4ExpressionDataLoaderFactory.buildInstanceForHDFFile(PATH_TO_HDF);
+		GenePairCorrelationCalculator spearmanCalculator = new GenePairCorrelationCalculator("src/test/resources/heart.txt", "A1BG", "A1CF", loader);
+		spearmanCalculator.setCorrelationType(CorrelationType.SPEARMAN);
+		double spearmanValue = spearmanCalculator.calculateGenePairCorrelation();
+		// Another calculator, for the same tissue but a different type, must not change the values that the first one uses.
+		GenePairCorrelationCalculator pearsonCalculator = new GenePairCorrelationCalculator("src/test/resources/heart.txt", "A1BG", "A1CF", loader);
+		double pearsonValue = pearsonCalculator.calculateGenePairCorrelation();
+		assertEquals(spearmanValue, spearmanCalculator.calculateGenePairCorrelation(), 0);
+		assertEquals(pearsonValue, pearsonCalculator.calculateGenePairCorrelation(), 0);
+	}
+
+	@Test
+	public void testGeneMajorTranspose()
+	{
+		// Not a multiple of the transpose block size in either direction.
+		int[][] sampleValues = createRandomSampleValues(131, 77, 3L);
+		GeneMajorExpressionMatrix geneMajor = GeneMajorExpressionMatrix.fromSampleValues(sampleValues);
+		assertEquals(77, geneMajor.getNumberOfGenes());
+		assertEquals(131, geneMajor.getNumberOfSamples());
+		for (int geneIndex = 0; geneIndex < 77; geneIndex++)
+		{
+			int[] geneVector = geneMajor.getGeneVector(geneIndex);
+			for (int sampleIndex = 0; sampleIndex < 131; sampleIndex++)
+			{
+				assertEquals(sampleValues[sampleIndex][geneIndex], geneVector[sampleIndex]);
+			}
+		}
+	}
+	
+	@Test
+	public void testStandardizedTiledMatchesCommonsMath()
+	{
+		int numberOfGenes = 150;
+		int[][] sampleValues = createRandomSampleValues(300, numberOfGenes, 42L);
+		GenePairCorrelationMatrixCalculator calculator = new GenePairCorrelationMatrixCalculator(null, null);
+		RealMatrix expected = calculator.calculateCorrelation(sampleValues);
+		
+		calculator.setCalculationMode(CalculationMode.STANDARDIZED_TILED);
+		calculator.setTileSize(16);
+		RealMatrix actual = calculator.calculateCorrelation(sampleValues);
+		
+		for (int i = 0; i < numberOfGenes; i++)
+		{
+			for (int j = i; j < numberOfGenes; j++)
+			{
+				assertEquals(expected.getEntry(i, j), actual.getEntry(i, j), StandardizedGeneMatrix.TOLERANCE);
+			}
+		}
+		assertTrue(Double.isNaN(actual.getEntry(3, 10)));
+		assertEquals(1.0, actual.getEntry(1, 5), StandardizedGeneMatrix.TOLERANCE);
+		assertEquals(1.0, actual.getEntry(numberOfGenes - 1, numberOfGenes - 1), StandardizedGeneMatrix.TOLERANCE);
+	}
+	
+	@Test
+	public void testRankTies()
+	{
+		float[] ranks = GeneRankMatrix.rank(new int[] { 7, 5, 9, 7, 0, 7 });
+		float[] expected = new float[] { 4.0f, 2.0f, 6.0f, 4.0f, 1.0f, 4.0f };
+		for (int i = 0; i < expected.length; i++)
+		{
+			assertEquals(expected[i], ranks[i], 0.0f);
+		}
+	}
+	
+	@Test
+	public void testSpearmanMatchesCommonsMath()
+	{
+		int numberOfGenes = 60;
+		int numberOfSamples = 200;
+		// small, heavy-tailed counts, so there are lots of ties.
+		int[][] sampleValues = createRandomSampleValues(numberOfSamples, numberOfGenes, 7L);
+		GenePairCorrelationMatrixCalculator calculator = new GenePairCorrelationMatrixCalculator(null, null);
+		calculator.setCorrelationType(CorrelationType.SPEARMAN);
+		RealMatrix commonsMath = calculator.calculateCorrelation(sampleValues);
+		calculator.setCalculationMode(CalculationMode.STANDARDIZED_TILED);
+		calculator.setTileSize(16);
+		RealMatrix tiled = calculator.calculateCorrelation(sampleValues);
+		
+		GeneMajorExpressionMatrix geneMajor = GeneMajorExpressionMatrix.fromSampleValues(sampleValues);
+		SpearmansCorrelation spearman = new SpearmansCorrelation();
+		for (int i = 0; i < numberOfGenes; i++)
+		{
+			double[] geneSamples = new double[numberOfSamples];
+			geneMajor.readGeneVector(i, geneSamples);
+			for (int j = i; j < numberOfGenes; j++)
+			{
+				if (i == 3 || j == 3)
+				{
+					// constant gene: no variance, so no correlation.
+					assertTrue(Double.isNaN(tiled.getEntry(i, j)));
+					continue;
+				}
+				double[] otherGeneSamples = new double[numberOfSamples];
+				geneMajor.readGeneVector(j, otherGeneSamples);
+				double expected = spearman.correlation(geneSamples, otherGeneSamples);
+				assertEquals(expected, commonsMath.getEntry(i, j), StandardizedGeneMatrix.TOLERANCE);
+				assertEquals(expected, tiled.getEntry(i, j), StandardizedGeneMatrix.TOLERANCE);
+			}
+		}
+	}
+	
+	@Test
+	public void testNormalization()
+	{
+		// 3 samples (rows) x 4 genes (columns). Gene 3 is only expressed in one sample.
+		int[][] sampleValues = { { 10, 30, 60, 0 }, { 100, 100, 800, 0 }, { 5, 0, 15, 80 } };
+		GeneMajorExpressionMatrix geneMajor = GeneMajorExpressionMatrix.fromSampleValues(sampleValues);
+		NormalizedExpressionMatrix normalized = ExpressionNormalization.logCpm().normalize(geneMajor);
+		for (int sampleIndex = 0; sampleIndex < 3; sampleIndex++)
+		{
+			double librarySize = Arrays.stream(sampleValues[sampleIndex]).sum();
+			for (int geneIndex = 0; geneIndex < 4; geneIndex++)
+			{
+				double expected = Math.log(1.0 + sampleValues[sampleIndex][geneIndex] * 1.0E6 / librarySize) / Math.log(2.0);
+				assertEquals(expected, normalized.getGeneVector(geneIndex)[sampleIndex], 1.0E-5);
+			}
+		}
+		assertEquals(0, normalized.getNumberOfFilteredGenes());
+
+		// Genes must have at least 1000 CPM in two thirds of the samples.
+		NormalizedExpressionMatrix filtered = new ExpressionNormalization(LibrarySizeScaling.CPM, true, 1000.0, 0.6).normalize(geneMajor);
+		assertEquals(1, filtered.getNumberOfFilteredGenes());
+		assertTrue(filtered.isFiltered(3));
+		assertEquals(0.0f, filtered.getGeneVector(3)[2], 0);
+
+		// Correlations are calculated from the normalized values, and a filtered gene's correlations are NaN.
+		GenePairCorrelationMatrixCalculator calculator = new GenePairCorrelationMatrixCalculator(null, null);
+		calculator.setCalculationMode(CalculationMode.STANDARDIZED_TILED);
+		calculator.setNormalization(new ExpressionNormalization(LibrarySizeScaling.CPM, true, 1000.0, 0.6));
+		RealMatrix matrix = calculator.calculateCorrelation(sampleValues);
+		double[] gene0 = new double[3];
+		double[] gene2 = new double[3];
+		filtered.readGeneVector(0, gene0);
+		filtered.readGeneVector(2, gene2);
+		assertEquals(new PearsonsCorrelation().correlation(gene0, gene2), matrix.getEntry(0, 2), 1.0E-6);
+		assertTrue(Double.isNaN(matrix.getEntry(0, 3)));
+	}
+
+	@Test
+	public void testGenePrefilter() throws IOException
+	{
+		int[][] sampleValues = createRandomSampleValues(50, 20, 23L);
+		for (int sampleIndex = 0; sampleIndex < sampleValues.length; sampleIndex++)
+		{
+			// Gene 7 is only expressed in a few samples, and gene 9 is barely expressed at all. Gene 3 is already constant.
+			sampleValues[sampleIndex][7] = sampleIndex % 10 == 0 ? 500 : 0;
+			sampleValues[sampleIndex][9] = sampleIndex % 2;
+		}
+		GenePrefilter prefilter = new GenePrefilter(0.5, 1.0, 0.0);
+		FilteredGeneIndex filteredGeneIndex = prefilter.apply(GeneMajorExpressionMatrix.fromSampleValues(sampleValues));
+		assertEquals(17, filteredGeneIndex.getNumberOfGenes());
+		assertEquals(ExclusionReason.LOW_VARIANCE, filteredGeneIndex.getExclusionReason(3));
+		assertEquals(ExclusionReason.MOSTLY_ZERO, filteredGeneIndex.getExclusionReason(7));
+		assertEquals(ExclusionReason.LOW_MEAN, filteredGeneIndex.getExclusionReason(9));
+		assertEquals(Arrays.asList(3, 7, 9), new ArrayList<>(filteredGeneIndex.getExcludedGenes().keySet()));
+		assertEquals(0.9, filteredGeneIndex.getZeroFraction(7), 1.0E-12);
+		assertEquals(-1, filteredGeneIndex.getCompactGeneIndex(7));
+		assertEquals(7, filteredGeneIndex.getCompactGeneIndex(10));
+		assertEquals(10, filteredGeneIndex.getOriginalGeneIndex(7));
+
+		GenePairCorrelationMatrixCalculator calculator = new GenePairCorrelationMatrixCalculator(null, null);
+		calculator.setCalculationMode(CalculationMode.STANDARDIZED_TILED);
+		RealMatrix fullMatrix = calculator.calculateCorrelation(sampleValues);
+		calculator.setPrefilter(prefilter);
+		RealMatrix filteredMatrix = calculator.calculateCorrelation(sampleValues);
+		assertEquals(17, filteredMatrix.getRowDimension());
+		for (int i = 0; i < 17; i++)
+		{
+			for (int j = i; j < 17; j++)
+			{
+				assertEquals(fullMatrix.getEntry(filteredGeneIndex.getOriginalGeneIndex(i), filteredGeneIndex.getOriginalGeneIndex(j)), filteredMatrix.getEntry(i, j), 0);
+			}
+		}
+
+		Map<Integer, String> geneNames = new HashMap<>();
+		for (int geneIndex = 0; geneIndex < 20; geneIndex++)
+		{
+			geneNames.put(geneIndex, "GENE" + geneIndex);
+		}
+		assertEquals("GENE10", calculator.getFilteredGeneIndex().remapGeneNames(geneNames).get(7));
+		Path exclusionsFile = Files.createTempFile("exclusions", ".tsv");
+		filteredGeneIndex.writeExclusions(exclusionsFile, geneNames);
+		List<String> lines = Files.readAllLines(exclusionsFile);
+		assertEquals(4, lines.size());
+		assertTrue(lines.get(2).startsWith("GENE7\tMOSTLY_ZERO\t0.9\t"));
+		Files.delete(exclusionsFile);
+	}
+
+	@Test
+	public void testTopCorrelationsMatchFullMatrix()
+	{
+		int numberOfGenes = 90;
+		int k = 10;
+		int[][] sampleValues = createRandomSampleValues(120, numberOfGenes, 11L);
+		GenePairCorrelationMatrixCalculator calculator = new GenePairCorrelationMatrixCalculator(null, null);
+		calculator.setCalculationMode(CalculationMode.STANDARDIZED_TILED);
+		calculator.setTileSize(16);
+		RealMatrix fullMatrix = calculator.calculateCorrelation(sampleValues);
+		GeneMajorExpressionMatrix geneMajor = GeneMajorExpressionMatrix.fromSampleValues(sampleValues);
+		for (boolean byAbsoluteValue : new boolean[] { false, true })
+		{
+			TopCorrelatedGenes topGenes = calculator.calculateTopCorrelations(geneMajor, k, byAbsoluteValue);
+			for (int i = 0; i < numberOfGenes; i++)
+			{
+				List<Double> expected = new ArrayList<>();
+				for (int j = 0; j < numberOfGenes; j++)
+				{
+					double value = i <= j ? fullMatrix.getEntry(i, j) : fullMatrix.getEntry(j, i);
+					if (i != j && !Double.isNaN(value))
+					{
+						expected.add(byAbsoluteValue ? Math.abs(value) : value);
+					}
+				}
+				expected.sort(Collections.reverseOrder());
+				assertEquals(Math.min(k, expected.size()), topGenes.getNumberOfNeighbours(i));
+				for (int rank = 0; rank < topGenes.getNumberOfNeighbours(i); rank++)
+				{
+					int j = topGenes.getNeighbour(i, rank);
+					double matrixValue = i <= j ? fullMatrix.getEntry(i, j) : fullMatrix.getEntry(j, i);
+					assertEquals(matrixValue, topGenes.getValue(i, rank), 1.0E-6);
+					double rankedValue = byAbsoluteValue ? Math.abs(topGenes.getValue(i, rank)) : topGenes.getValue(i, rank);
+					assertEquals(expected.get(rank), rankedValue, 1.0E-6);
+				}
+			}
+			// gene 3 is constant, so it has no neighbours. Genes 1 and 5 are identical, so they are each other's best neighbour.
+			assertEquals(0, topGenes.getNumberOfNeighbours(3));
+			assertEquals(5, topGenes.getNeighbour(1, 0));
+			assertEquals(1, topGenes.getNeighbour(5, 0));
+		}
+	}
+	
+	@Test
+	public void testGeneSubsetMatchesFullMatrix()
+	{
+		int numberOfGenes = 70;
+		int[][] sampleValues = createRandomSampleValues(100, numberOfGenes, 19L);
+		GenePairCorrelationMatrixCalculator matrixCalculator = new GenePairCorrelationMatrixCalculator(null, null);
+		matrixCalculator.setCalculationMode(CalculationMode.STANDARDIZED_TILED);
+		RealMatrix fullMatrix = matrixCalculator.calculateCorrelation(sampleValues);
+		
+		int[] subset = new int[] { 42, 3, 0, 69, 5 };
+		GeneSubsetCorrelationCalculator subsetCalculator = new GeneSubsetCorrelationCalculator(null, null);
+		subsetCalculator.setTileSize(16);
+		SubsetCorrelationMatrix subsetMatrix = subsetCalculator.calculateCorrelation(GeneMajorExpressionMatrix.fromSampleValues(sampleValues), subset);
+		assertEquals(subset.length, subsetMatrix.getNumberOfSubsetGenes());
+		assertEquals(numberOfGenes, subsetMatrix.getNumberOfGenes());
+		for (int position = 0; position < subset.length; position++)
+		{
+			int i = subset[position];
+			for (int j = 0; j < numberOfGenes; j++)
+			{
+				double expected = i <= j ? fullMatrix.getEntry(i, j) : fullMatrix.getEntry(j, i);
+				if (Double.isNaN(expected))
+				{
+					assertTrue(Double.isNaN(subsetMatrix.getValue(position, j)));
+				}
+				else
+				{
+					assertEquals(expected, subsetMatrix.getCorrelation(i, j), 1e-6);
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void testBatchGenePairs()
+	{
+		int numberOfGenes = 30;
+		int numberOfSamples = 80;
+		int[][] sampleValues = createRandomSampleValues(numberOfSamples, numberOfGenes, 23L);
+		GeneMajorExpressionMatrix geneMajor = GeneMajorExpressionMatrix.fromSampleValues(sampleValues);
+		Map<String, Integer> geneIndices = new HashMap<>();
+		for (int i = 0; i < numberOfGenes; i++)
+		{
+			geneIndices.put("GENE" + i, i);
+		}
+		List<String> firstGenes = Arrays.asList("GENE1", "GENE2", "BLAH6666666", "GENE7", "GENE1", "GENE3");
+		List<String> secondGenes = Arrays.asList("GENE5", "GENE29", "GENE2", "GENE0", "GENE29", "GENE4");
+		GenePairCorrelationCalculator calculator = new GenePairCorrelationCalculator(null, null);
+		GenePairCorrelationResults results = calculator.calculateGenePairCorrelations(geneMajor, geneIndices, firstGenes, secondGenes);
+		
+		assertEquals(6, results.getNumberOfPairs());
+		assertEquals(1, results.getFailures().size());
+		assertTrue(results.isFailed(2));
+		assertTrue(results.getFailures().get(2).contains("Gene BLAH6666666 is not recognized in the HDF file."));
+		assertTrue(Double.isNaN(results.getValue(2)));
+		// gene 3 is constant.
+		assertTrue(Double.isNaN(results.getValue(5)));
+		PearsonsCorrelation cor = new PearsonsCorrelation();
+		for (int pairIndex : new int[] { 0, 1, 3, 4 })
+		{
+			double[] geneSamples = new double[numberOfSamples];
+			double[] otherGeneSamples = new double[numberOfSamples];
+			geneMajor.readGeneVector(geneIndices.get(firstGenes.get(pairIndex)), geneSamples);
+			geneMajor.readGeneVector(geneIndices.get(secondGenes.get(pairIndex)), otherGeneSamples);
+			assertEquals(cor.correlation(geneSamples, otherGeneSamples), results.getValue(pairIndex), StandardizedGeneMatrix.TOLERANCE);
+		}
+	}
+	
+	/**
+	 * The way the matrix used to be calculated: one Callable for each gene pair, invoked in batches, with results
+	 * written under a lock. This is only kept here so that it can be compared with the tile scheduler.
+	 */
+	private static RealMatrix calculateWithBatchedCallables(int[][] sampleValues, int numberOfGenes) throws InterruptedException
+	{
+		RealMatrix corMatrix = new Array2DRowRealMatrix(numberOfGenes, numberOfGenes);
+		ForkJoinPool pool = new ForkJoinPool();
+		List<Callable<Double>> workers = new ArrayList<>();
+		for (int geneIndex = 0; geneIndex < numberOfGenes; geneIndex++)
+		{
+			final double[] geneSamples = new double[sampleValues.length];
+			for (int s = 0; s < sampleValues.length; s++)
+			{
+				geneSamples[s] = sampleValues[s][geneIndex];
+			}
+			for (int otherGeneIndex = geneIndex; otherGeneIndex < numberOfGenes; otherGeneIndex++)
+			{
+				final double[] otherGeneSamples = new double[sampleValues.length];
+				for (int s = 0; s < sampleValues.length; s++)
+				{
+					otherGeneSamples[s] = sampleValues[s][otherGeneIndex];
+				}
+				final int gIndx = geneIndex;
+				final int gOtherIndx = otherGeneIndex;
+				workers.add(() -> {
+					double correlationValue = new PearsonsCorrelation().correlation(geneSamples, otherGeneSamples);
+					synchronized (corMatrix)
+					{
+						corMatrix.setEntry(gIndx, gOtherIndx, correlationValue);
+					}
+					return correlationValue;
+				});
+				if (workers.size() % (pool.getParallelism() * 10000) == 0)
+				{
+					pool.invokeAll(workers);
+					workers.clear();
+				}
+			}
+		}
+		pool.invokeAll(workers);
+		pool.shutdown();
+		return corMatrix;
+	}
+	
+	/**
+	 * Compares the throughput of the old batched-Callable scheme with the tile scheduler, in both calculation modes.
+	 */
+	@Test
+	public void testTileSchedulerThroughputComparison() throws InterruptedException
+	{
+		int numberOfGenes = 600;
+		int[][] sampleValues = createRandomSampleValues(141, numberOfGenes, 1L);
+		long numberOfPairs = (long) numberOfGenes * (numberOfGenes + 1) / 2;
+		
+		LocalDateTime start = LocalDateTime.now();
+		RealMatrix batched = calculateWithBatchedCallables(sampleValues, numberOfGenes);
+		Duration batchedTime = Duration.between(start, LocalDateTime.now());
+		
+		GenePairCorrelationMatrixCalculator calculator = new GenePairCorrelationMatrixCalculator(null, null);
+		start = LocalDateTime.now();
+		RealMatrix tiled = calculator.calculateCorrelation(sampleValues);
+		Duration tiledTime = Duration.between(start, LocalDateTime.now());
+		
+		calculator.setCalculationMode(CalculationMode.STANDARDIZED_TILED);
+		start = LocalDateTime.now();
+		RealMatrix standardized = calculator.calculateCorrelation(sampleValues);
+		Duration standardizedTime = Duration.between(start, LocalDateTime.now());
+		
+		System.out.println(numberOfPairs + " gene pairs, " + calculator.getParallelism() + " workers, tile size " + calculator.getTileSize());
+		System.out.println("Batched Callables:           " + batchedTime + " (" + (numberOfPairs * 1000 / Math.max(1, batchedTime.toMillis())) + " pairs/sec)");
+		System.out.println("Tile scheduler, commons-math: " + tiledTime + " (" + (numberOfPairs * 1000 / Math.max(1, tiledTime.toMillis())) + " pairs/sec)");
+		System.out.println("Tile scheduler, standardized: " + standardizedTime + " (" + (numberOfPairs * 1000 / Math.max(1, standardizedTime.toMillis())) + " pairs/sec)");
+		
+		for (int i = 0; i < numberOfGenes; i++)
+		{
+			for (int j = i; j < numberOfGenes; j++)
+			{
+				assertEquals(batched.getEntry(i, j), tiled.getEntry(i, j), 0);
+				assertEquals(batched.getEntry(i, j), standardized.getEntry(i, j), StandardizedGeneMatrix.TOLERANCE);
+			}
+		}
+	}
 }
@@ -0,0 +1,460 @@
+package org.reactome.idg;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.apache.commons.math3.linear.RealMatrix;
+import org.junit.Test;
+import org.reactome.idg.loader.BinaryFileRowSink;
+import org.reactome.idg.loader.BinaryFileRowSink.Encoding;
+import org.reactome.idg.loader.CorrelationCheckpoint;
+import org.reactome.idg.loader.CorrelationProgressSnapshot;
+import org.reactome.idg.loader.CorrelationShard;
+import org.reactome.idg.loader.CorrelationSufficientStatistics;
+import org.reactome.idg.loader.CorrelationTileScheduler;
+import org.reactome.idg.loader.CorrelationCalculator.CorrelationType;
+import org.reactome.idg.loader.CorrelationRowBlock;
+import org.reactome.idg.loader.CorrelationQuantizer;
+import org.reactome.idg.loader.CorrelationRowSink;
+import org.reactome.idg.loader.GeneMajorExpressionMatrix;
+import org.reactome.idg.loader.GenePairCorrelationMatrixCalculator;
+import org.reactome.idg.loader.GenePairCorrelationMatrixCalculator.CalculationMode;
+import org.reactome.idg.loader.InMemoryRowSink;
+import org.reactome.idg.loader.LoadDataFileRowSink;
+import org.reactome.idg.loader.MappedCorrelationMatrix;
+import org.reactome.idg.loader.MappedCorrelationMatrixRegistry;
+import org.reactome.idg.loader.MappedMatrixFileRowSink;
+import org.reactome.idg.loader.PackedSymmetricMatrix;
+import org.reactome.idg.loader.ShardedCorrelationMerger;
+import org.reactome.idg.loader.ShardedCorrelationWorker;
+import org.reactome.idg.loader.StandardizedGeneMatrix;
+import org.reactome.idg.model.Provenance;
+
+@SuppressWarnings("static-method")
+public class TestCorrelationRowSinks
+{
+	private static final int NUMBER_OF_GENES = 45;
+	private static final int[][] SAMPLE_VALUES = TestCorrelationCalculator.createRandomSampleValues(60, NUMBER_OF_GENES, 11L);
+
+	private static GenePairCorrelationMatrixCalculator createCalculator()
+	{
+		GenePairCorrelationMatrixCalculator calculator = new GenePairCorrelationMatrixCalculator(null, null);
+		calculator.setCalculationMode(CalculationMode.STANDARDIZED_TILED);
+		calculator.setTileSize(8);
+		calculator.setMaxBlocksInFlight(1);
+		return calculator;
+	}
+
+	@Test
+	public void testInMemorySink() throws IOException
+	{
+		GenePairCorrelationMatrixCalculator calculator = createCalculator();
+		RealMatrix expected = calculator.calculateCorrelation(SAMPLE_VALUES);
+		InMemoryRowSink sink = new InMemoryRowSink();
+		calculator.calculateCorrelation(SAMPLE_VALUES, sink);
+		assertEquals(6, sink.getBlocksReceived());
+		PackedSymmetricMatrix actual = sink.getMatrix();
+		for (int i = 0; i < NUMBER_OF_GENES; i++)
+		{
+			for (int j = i; j < NUMBER_OF_GENES; j++)
+			{
+				assertEquals(expected.getEntry(i, j), actual.getEntry(i, j), 0);
+			}
+		}
+	}
+
+	@Test
+	public void testBinaryFileSink() throws IOException
+	{
+		Path outputFile = Files.createTempFile("correlations", ".bin");
+		try
+		{
+			GenePairCorrelationMatrixCalculator calculator = createCalculator();
+			RealMatrix expected = calculator.calculateCorrelation(SAMPLE_VALUES);
+			calculator.calculateCorrelation(SAMPLE_VALUES, new BinaryFileRowSink(outputFile));
+			PackedSymmetricMatrix actual = BinaryFileRowSink.readMatrix(outputFile);
+			assertEquals(NUMBER_OF_GENES, actual.getRowDimension());
+			for (int i = 0; i < NUMBER_OF_GENES; i++)
+			{
+				for (int j = i; j < NUMBER_OF_GENES; j++)
+				{
+					assertEquals(expected.getEntry(i, j), actual.getEntry(j, i), 1e-6);
+				}
+			}
+		}
+		finally
+		{
+			Files.deleteIfExists(outputFile);
+		}
+	}
+
+	@Test
+	public void testQuantizedBinaryFileSink() throws IOException
+	{
+		GenePairCorrelationMatrixCalculator calculator = createCalculator();
+		RealMatrix expected = calculator.calculateCorrelation(SAMPLE_VALUES);
+		for (Encoding encoding : new Encoding[] { Encoding.SHORT, Encoding.BYTE })
+		{
+			Path outputFile = Files.createTempFile("correlations", ".bin");
+			try
+			{
+				calculator.calculateCorrelation(SAMPLE_VALUES, new BinaryFileRowSink(outputFile, encoding));
+				long numberOfValues = NUMBER_OF_GENES * (NUMBER_OF_GENES + 1) / 2;
+				assertEquals(4 * Integer.BYTES + numberOfValues * encoding.getBytesPerValue(), Files.size(outputFile));
+				PackedSymmetricMatrix actual = BinaryFileRowSink.readMatrix(outputFile);
+				double tolerance = encoding == Encoding.SHORT ? CorrelationQuantizer.SHORT_ERROR_BOUND : CorrelationQuantizer.BYTE_ERROR_BOUND;
+				for (int i = 0; i < NUMBER_OF_GENES; i++)
+				{
+					for (int j = i; j < NUMBER_OF_GENES; j++)
+					{
+						if (Double.isNaN(expected.getEntry(i, j)))
+						{
+							assertTrue(Double.isNaN(actual.getEntry(i, j)));
+						}
+						else
+						{
+							assertEquals(expected.getEntry(i, j), actual.getEntry(i, j), tolerance);
+						}
+					}
+				}
+			}
+			finally
+			{
+				Files.deleteIfExists(outputFile);
+			}
+		}
+	}
+
+	@Test
+	public void testMappedMatrixFile() throws IOException
+	{
+		GenePairCorrelationMatrixCalculator calculator = createCalculator();
+		RealMatrix expected = calculator.calculateCorrelation(SAMPLE_VALUES);
+		Map<Integer, String> geneNames = new HashMap<>();
+		for (int i = 0; i < NUMBER_OF_GENES; i++)
+		{
+			geneNames.put(i, String.format("GENE%03d", i));
+		}
+		Path directory = Files.createTempDirectory("correlations");
+		try (MappedCorrelationMatrixRegistry registry = new MappedCorrelationMatrixRegistry())
+		{
+			for (Encoding encoding : new Encoding[] { Encoding.FLOAT, Encoding.SHORT })
+			{
+				String tissue = "heart_" + encoding.toString().toLowerCase();
+				Provenance provenance = new Provenance("ARCHS4", "https://amp.pharm.mssm.edu/archs4/download.html", "Pairwise pearson correlation", tissue);
+				calculator.calculateCorrelation(SAMPLE_VALUES, new MappedMatrixFileRowSink(directory.resolve(tissue + MappedCorrelationMatrixRegistry.FILE_EXTENSION), encoding, geneNames, provenance));
+			}
+			assertEquals(2, registry.openDirectory(directory));
+			assertEquals(Arrays.asList("heart_float", "heart_short"), new ArrayList<>(registry.getTissues()));
+			for (String tissue : registry.getTissues())
+			{
+				MappedCorrelationMatrix actual = registry.getMatrix(tissue);
+				assertEquals(NUMBER_OF_GENES, actual.getNumberOfGenes());
+				assertEquals("ARCHS4", actual.getProvenance().getName());
+				assertEquals(tissue, actual.getProvenance().getSubcategory());
+				assertEquals(12, actual.getGeneIndex("GENE012"));
+				assertEquals("GENE044", actual.getGeneName(44));
+				double tolerance = actual.getEncoding() == Encoding.SHORT ? CorrelationQuantizer.SHORT_ERROR_BOUND : 1e-6;
+				for (int i = 0; i < NUMBER_OF_GENES; i++)
+				{
+					for (int j = i; j < NUMBER_OF_GENES; j++)
+					{
+						if (Double.isNaN(expected.getEntry(i, j)))
+						{
+							assertTrue(Double.isNaN(actual.get(i, j)));
+						}
+						else
+						{
+							assertEquals(expected.getEntry(i, j), actual.get(i, j), tolerance);
+						}
+						assertEquals(actual.get(i, j), actual.get(j, i), 0);
+					}
+				}
+				assertEquals(actual.get(5, 17), registry.getCorrelation("GENE017", "GENE005", tissue), 0);
+				try
+				{
+					actual.get("GENE005", "NOT_A_GENE");
+					fail("An unknown gene should be rejected.");
+				}
+				catch (IllegalArgumentException e)
+				{
+					// expected.
+				}
+			}
+		}
+		finally
+		{
+			try (Stream<Path> files = Files.list(directory))
+			{
+				for (Path file : (Iterable<Path>) files::iterator)
+				{
+					Files.delete(file);
+				}
+			}
+			Files.delete(directory);
+		}
+	}
+
+	@Test
+	public void testLoadDataFileSink() throws IOException
+	{
+		Map<Integer, String> geneNames = new HashMap<>();
+		for (int i = 0; i < NUMBER_OF_GENES; i++)
+		{
+			// Names in reverse alphabetical order, so that every pair has to be swapped.
+			geneNames.put(i, String.format("GENE%03d", NUMBER_OF_GENES - i));
+		}
+		Path outputFile = Files.createTempFile("correlations", ".tsv");
+		try
+		{
+			createCalculator().calculateCorrelation(SAMPLE_VALUES, new LoadDataFileRowSink(outputFile, geneNames, 12L));
+			List<String> lines = Files.readAllLines(outputFile);
+			// gene #3 is constant, so its pairs are NaN and left out.
+			assertEquals(NUMBER_OF_GENES * (NUMBER_OF_GENES + 1) / 2 - NUMBER_OF_GENES, lines.size());
+			assertTrue(lines.get(0).equals("'GENE045'\t'GENE045'\t'1.0'\t'12'"));
+			String[] parts = lines.get(1).split("\t");
+			assertEquals(4, parts.length);
+			assertEquals("'GENE044'", parts[0]);
+			assertEquals("'GENE045'", parts[1]);
+			assertTrue(parts[2].startsWith("'") && parts[2].endsWith("'"));
+		}
+		finally
+		{
+			Files.deleteIfExists(outputFile);
+		}
+	}
+
+	@Test
+	public void testCheckpoint() throws IOException
+	{
+		Path directory = Files.createTempDirectory("checkpoint");
+		Properties manifest = new Properties();
+		manifest.setProperty("hdf.numberOfGenes", String.valueOf(NUMBER_OF_GENES));
+		manifest.setProperty("tileSize", "8");
+		CorrelationRowBlock block = new CorrelationRowBlock(NUMBER_OF_GENES, 8, 8);
+		block.walkRows((row, column, value) -> block.setValue(row, column, row * 0.01 - column * 0.001));
+
+		CorrelationCheckpoint checkpoint = CorrelationCheckpoint.open(directory, manifest);
+		assertFalse(checkpoint.hasBlock(8));
+		checkpoint.writeBlock(block);
+		assertEquals(1, checkpoint.getNumberOfCompletedBlocks());
+
+		// The same calculation: the block can be reused.
+		checkpoint = CorrelationCheckpoint.open(directory, manifest);
+		assertTrue(checkpoint.hasBlock(8));
+		CorrelationRowBlock readBlock = checkpoint.readBlock(NUMBER_OF_GENES, 8, 8);
+		block.walkRows((row, column, value) -> assertEquals(value, readBlock.getValue(row, column), 0));
+		try
+		{
+			checkpoint.readBlock(NUMBER_OF_GENES + 1, 8, 8);
+			fail("A block for a different matrix should not be read.");
+		}
+		catch (IOException e)
+		{
+			// expected.
+		}
+
+		// A different calculation: the old blocks are discarded.
+		Properties otherManifest = new Properties();
+		otherManifest.putAll(manifest);
+		otherManifest.setProperty("hdf.numberOfGenes", String.valueOf(NUMBER_OF_GENES + 1));
+		checkpoint = CorrelationCheckpoint.open(directory, otherManifest);
+		assertFalse(checkpoint.hasBlock(8));
+		assertEquals(0, checkpoint.getNumberOfCompletedBlocks());
+		checkpoint.delete();
+		assertFalse(Files.exists(directory.resolve(CorrelationCheckpoint.MANIFEST_FILE_NAME)));
+	}
+
+	@Test
+	public void testProgressMetrics() throws IOException, MalformedObjectNameException
+	{
+		GenePairCorrelationMatrixCalculator calculator = createCalculator();
+		calculator.calculateCorrelation(SAMPLE_VALUES, new InMemoryRowSink());
+		CorrelationProgressSnapshot snapshot = calculator.getMetrics().snapshot();
+		long totalPairs = (long) NUMBER_OF_GENES * (NUMBER_OF_GENES + 1) / 2;
+		assertEquals(totalPairs, snapshot.getTotalPairs());
+		assertEquals(totalPairs, snapshot.getPairsCompleted());
+		assertEquals(1.0, snapshot.getFractionComplete(), 0);
+		assertTrue(snapshot.isFinished());
+		assertEquals(0, snapshot.getQueuedTiles());
+		assertEquals(Duration.ZERO, snapshot.getEstimatedTimeRemaining());
+		assertFalse(snapshot.getWorkerBusyTimes().isEmpty());
+		assertTrue(snapshot.getPairsPerSecond() > 0);
+		// The MXBean is only registered while the calculation runs.
+		assertTrue(ManagementFactory.getPlatformMBeanServer().queryNames(new ObjectName("org.reactome.idg:type=CorrelationProgress,*"), null).isEmpty());
+	}
+
+	@Test
+	public void testShardedCalculation() throws IOException
+	{
+		GenePairCorrelationMatrixCalculator calculator = createCalculator();
+		InMemoryRowSink singleNodeSink = new InMemoryRowSink();
+		calculator.calculateCorrelation(SAMPLE_VALUES, singleNodeSink);
+		PackedSymmetricMatrix expected = singleNodeSink.getMatrix();
+
+		List<CorrelationShard> shards = CorrelationShard.partition("test.h5", "tissue.txt", NUMBER_OF_GENES, 8, CorrelationType.PEARSON, null, 3);
+		assertEquals(21, shards.get(2).getLastTile());
+		// The tile numbers cover the upper triangle, row by row.
+		assertArrayEquals(new int[] { 0, 8, 40, 45 }, shards.get(0).getTileBounds(5));
+		assertArrayEquals(new int[] { 8, 16, 8, 16 }, shards.get(0).getTileBounds(6));
+		assertArrayEquals(new int[] { 40, 45, 40, 45 }, shards.get(0).getTileBounds(20));
+		Path shardFile = Files.createTempFile("shard", ".properties");
+		shards.get(1).writeTo(shardFile);
+		CorrelationShard shard = CorrelationShard.readFrom(shardFile);
+		assertEquals(shards.get(1).toProperties(), shard.toProperties());
+
+		Path workDirectory = Files.createTempDirectory("shards");
+		GeneMajorExpressionMatrix geneMajor = GeneMajorExpressionMatrix.fromSampleValues(SAMPLE_VALUES);
+		// A worker that died while it had tile 2 claimed.
+		Path claimsDirectory = Files.createDirectories(workDirectory.resolve("claims"));
+		Path staleClaim = Files.write(claimsDirectory.resolve("tile-2.claim"), "dead-worker".getBytes());
+		Files.setLastModifiedTime(staleClaim, FileTime.from(Instant.now().minus(Duration.ofHours(2))));
+		for (int i = 0; i < shards.size(); i++)
+		{
+			ShardedCorrelationWorker worker = new ShardedCorrelationWorker(workDirectory, "worker-" + i);
+			worker.setParallelism(2);
+			worker.calculateShard(shards.get(i), geneMajor);
+		}
+		assertTrue(ShardedCorrelationMerger.getMissingTiles(workDirectory).isEmpty());
+		// Everything is already done, so a second worker has nothing to do.
+		assertEquals(0, new ShardedCorrelationWorker(workDirectory, "late-worker").calculateShard(shards.get(0), geneMajor));
+
+		InMemoryRowSink mergedSink = new InMemoryRowSink();
+		ShardedCorrelationMerger.merge(workDirectory, mergedSink);
+		PackedSymmetricMatrix merged = mergedSink.getMatrix();
+		for (int i = 0; i < NUMBER_OF_GENES; i++)
+		{
+			for (int j = i; j < NUMBER_OF_GENES; j++)
+			{
+				assertEquals(expected.getEntry(i, j), merged.getEntry(i, j), 0);
+			}
+		}
+	}
+
+	@Test
+	public void testIncrementalStatistics() throws IOException
+	{
+		GenePairCorrelationMatrixCalculator calculator = createCalculator();
+		InMemoryRowSink fullSink = new InMemoryRowSink();
+		calculator.calculateCorrelation(SAMPLE_VALUES, fullSink);
+		PackedSymmetricMatrix expected = fullSink.getMatrix();
+
+		// Add the samples in three uneven batches, saving and re-reading the statistics in between, as an incremental update would.
+		int[] batchEnds = { 25, 45, SAMPLE_VALUES.length };
+		List<String> geneSymbols = new ArrayList<>();
+		for (int geneIndex = 0; geneIndex < NUMBER_OF_GENES; geneIndex++)
+		{
+			geneSymbols.add("GENE" + geneIndex);
+		}
+		String geneListFingerprint = CorrelationSufficientStatistics.getGeneListFingerprint(geneSymbols);
+		CorrelationSufficientStatistics statistics = new CorrelationSufficientStatistics(NUMBER_OF_GENES, "none", geneListFingerprint);
+		Path statisticsFile = Files.createTempFile("statistics", ".bin");
+		int batchStart = 0;
+		try (CorrelationTileScheduler scheduler = new CorrelationTileScheduler(2, 8))
+		{
+			for (int batchEnd : batchEnds)
+			{
+				List<String> sampleIds = new ArrayList<>();
+				for (int sampleIndex = batchStart; sampleIndex < batchEnd; sampleIndex++)
+				{
+					sampleIds.add("GSM" + sampleIndex);
+				}
+				statistics.addSamples(GeneMajorExpressionMatrix.fromSampleValues(Arrays.copyOfRange(SAMPLE_VALUES, batchStart, batchEnd)), sampleIds, scheduler);
+				statistics.writeTo(statisticsFile);
+				statistics = CorrelationSufficientStatistics.readFrom(statisticsFile);
+				batchStart = batchEnd;
+			}
+			try
+			{
+				statistics.addSamples(GeneMajorExpressionMatrix.fromSampleValues(Arrays.copyOfRange(SAMPLE_VALUES, 0, 1)), Arrays.asList("GSM0"), scheduler);
+				fail("A sample that was already added should be rejected.");
+			}
+			catch (IllegalArgumentException e)
+			{
+				// expected.
+			}
+		}
+		assertEquals(SAMPLE_VALUES.length, statistics.getNumberOfSamples());
+		assertEquals(SAMPLE_VALUES.length, statistics.getSampleIds().size());
+		// What the values are is kept with the statistics, so that new samples are only merged into statistics of the same kind.
+		assertEquals("none", statistics.getNormalizationKey());
+		assertEquals(geneListFingerprint, statistics.getGeneListFingerprint());
+		Collections.swap(geneSymbols, 0, 1);
+		assertNotEquals(geneListFingerprint, CorrelationSufficientStatistics.getGeneListFingerprint(geneSymbols));
+
+		InMemoryRowSink incrementalSink = new InMemoryRowSink();
+		statistics.calculateCorrelation(incrementalSink, 8);
+		PackedSymmetricMatrix actual = incrementalSink.getMatrix();
+		for (int i = 0; i < NUMBER_OF_GENES; i++)
+		{
+			for (int j = i; j < NUMBER_OF_GENES; j++)
+			{
+				assertEquals(expected.getEntry(i, j), actual.getEntry(i, j), StandardizedGeneMatrix.TOLERANCE);
+			}
+		}
+		Files.delete(statisticsFile);
+	}
+
+	@Test
+	public void testFailingSink()
+	{
+		CorrelationRowSink failingSink = new CorrelationRowSink()
+		{
+			private boolean closed = false;
+
+			@Override
+			public void start(int numberOfGenes)
+			{
+				// nothing to start
+			}
+
+			@Override
+			public void accept(CorrelationRowBlock block) throws IOException
+			{
+				if (block.getStartRow() > 0)
+				{
+					throw new IOException("Disk full!");
+				}
+			}
+
+			@Override
+			public void close()
+			{
+				assertTrue(!this.closed);
+				this.closed = true;
+			}
+		};
+		try
+		{
+			createCalculator().calculateCorrelation(SAMPLE_VALUES, failingSink);
+			fail();
+		}
+		catch (IOException e)
+		{
+			assertEquals("Disk full!", e.getMessage());
+		}
+	}
+}
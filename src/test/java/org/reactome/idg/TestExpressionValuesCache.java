@@ -0,0 +1,133 @@
+package org.reactome.idg;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+import org.reactome.idg.loader.ExpressionValuesCache;
+import org.reactome.idg.loader.ExpressionValuesCache.CacheKey;
+import org.reactome.idg.loader.GeneMajorExpressionMatrix;
+import org.reactome.idg.loader.GeneRankMatrix;
+
+@SuppressWarnings("static-method")
+public class TestExpressionValuesCache
+{
+	private static final String HDF_FILE = "/data/human_matrix.h5";
+
+	private static CacheKey key(String sampleSet, String variant)
+	{
+		return new CacheKey(HDF_FILE, sampleSet, variant);
+	}
+
+	private static long sizeOf(Object value)
+	{
+		ExpressionValuesCache cache = new ExpressionValuesCache(Long.MAX_VALUE);
+		cache.put(key("size", ""), value);
+		return cache.getSizeInBytes();
+	}
+
+	@Test
+	public void testLeastRecentlyUsedEviction()
+	{
+		int[][] heart = TestCorrelationCalculator.createRandomSampleValues(30, 20, 1L);
+		int[][] brain = TestCorrelationCalculator.createRandomSampleValues(30, 20, 2L);
+		int[][] liver = TestCorrelationCalculator.createRandomSampleValues(30, 20, 3L);
+		long size = sizeOf(heart);
+		assertTrue(size > 30 * 20 * Integer.BYTES);
+		ExpressionValuesCache cache = new ExpressionValuesCache(size * 5 / 2);
+		cache.put(key("heart", ""), heart);
+		cache.put(key("brain", ""), brain);
+		// Using heart makes brain the least recently used, so brain is the one that is evicted to make room for liver.
+		assertTrue(heart == cache.get(key("heart", "")));
+		cache.put(key("liver", ""), liver);
+		assertEquals(2, cache.size());
+		assertEquals(2 * size, cache.getSizeInBytes());
+		assertNull(cache.get(key("brain", "")));
+		assertTrue(liver == cache.get(key("liver", "")));
+		assertTrue(heart == cache.get(key("heart", "")));
+		// The same samples from another HDF file are a different entry.
+		assertNull(cache.get(new CacheKey("/data/mouse_matrix.h5", "heart", "")));
+		// A peek is not counted.
+		assertTrue(heart == cache.peek(key("heart", "")));
+		assertNull(cache.peek(key("brain", "")));
+		assertEquals(3, cache.getHits());
+		assertEquals(2, cache.getMisses());
+		assertEquals(1, cache.getEvictions());
+		assertEquals(0, cache.getSpills());
+
+		// Lowering the ceiling evicts straight away.
+		cache.setMaximumBytes(size);
+		assertEquals(1, cache.size());
+		assertEquals(2, cache.getEvictions());
+		// A matrix that is bigger than the ceiling is not cached.
+		cache.put(key("big", ""), TestCorrelationCalculator.createRandomSampleValues(60, 20, 4L));
+		assertNull(cache.get(key("big", "")));
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void testSpillToDisk() throws IOException
+	{
+		GeneMajorExpressionMatrix heart = GeneMajorExpressionMatrix.fromSampleValues(TestCorrelationCalculator.createRandomSampleValues(30, 20, 1L));
+		int[][] brain = TestCorrelationCalculator.createRandomSampleValues(25, 20, 2L);
+		GeneRankMatrix heartRanks = GeneRankMatrix.fromGeneMajorValues(heart);
+		Path spillDirectory = Files.createTempDirectory("spill");
+		try
+		{
+			ExpressionValuesCache cache = new ExpressionValuesCache(sizeOf(heart));
+			cache.setSpillDirectory(spillDirectory);
+			cache.put(key("heart", "gene-major"), heart);
+			cache.put(key("brain", ""), brain);
+			cache.put(key("heart", "ranks"), heartRanks);
+			// Both sets of counts were spilled; nothing else fits alongside the ranks.
+			assertEquals(2, cache.getEvictions());
+			assertEquals(2, cache.getSpills());
+			assertEquals(2, countFiles(spillDirectory));
+
+			GeneMajorExpressionMatrix spilledHeart = (GeneMajorExpressionMatrix) cache.get(key("heart", "gene-major"));
+			assertEquals(1, cache.getSpillHits());
+			assertEquals(0, cache.getMisses());
+			assertEquals(heart.getNumberOfGenes(), spilledHeart.getNumberOfGenes());
+			for (int geneIndex = 0; geneIndex < heart.getNumberOfGenes(); geneIndex++)
+			{
+				assertArrayEquals(heart.getGeneVector(geneIndex), spilledHeart.getGeneVector(geneIndex));
+			}
+			// Reading heart back evicted the ranks, which are not spilled, and its own file was deleted.
+			assertEquals(3, cache.getEvictions());
+			assertEquals(1, countFiles(spillDirectory));
+			assertNull(cache.get(key("heart", "ranks")));
+
+			// Removing a sample set removes its spilled matrices too.
+			assertEquals(1, cache.removeSampleSet("brain"));
+			assertEquals(0, countFiles(spillDirectory));
+			assertEquals(0, cache.getSpilledBytes());
+			assertNull(cache.get(key("brain", "")));
+		}
+		finally
+		{
+			try (Stream<Path> files = Files.list(spillDirectory))
+			{
+				for (Path file : (Iterable<Path>) files::iterator)
+				{
+					Files.delete(file);
+				}
+			}
+			Files.delete(spillDirectory);
+		}
+	}
+
+	private static long countFiles(Path directory) throws IOException
+	{
+		try (Stream<Path> files = Files.list(directory))
+		{
+			return files.count();
+		}
+	}
+}
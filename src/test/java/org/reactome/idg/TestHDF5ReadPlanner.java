@@ -0,0 +1,93 @@
+package org.reactome.idg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.reactome.idg.loader.HDF5ReadPlanner;
+import org.reactome.idg.loader.HDF5ReadPlanner.ReadPlan;
+import org.reactome.idg.loader.HDF5ReadPlanner.Strategy;
+
+@SuppressWarnings("static-method")
+public class TestHDF5ReadPlanner
+{
+	private static void assertReadRows(ReadPlan plan, int... expectedReadRows)
+	{
+		assertEquals(expectedReadRows.length, plan.getNumberOfRequests());
+		for (int request = 0; request < expectedReadRows.length; request++)
+		{
+			assertEquals(expectedReadRows[request], plan.getReadRow(request));
+		}
+	}
+
+	@Test
+	public void testContiguousDataset()
+	{
+		int[] requestedRows = { 10, 3, 4, 5, 12, 3, 40 };
+		HDF5ReadPlanner planner = new HDF5ReadPlanner();
+		planner.setMaximumGapRows(2);
+		ReadPlan plan = planner.plan(requestedRows, 100, 8, 0);
+		// Runs 3-5, 10, 12 and 40: 10 and 12 are close enough to be read as one strip, with row 11 discarded.
+		assertEquals(Strategy.COALESCED_STRIPS, plan.getStrategy());
+		assertEquals(3, plan.getNumberOfStrips());
+		assertEquals(10, plan.getStripStart(1));
+		assertEquals(3, plan.getStripLength(1));
+		assertEquals(7, plan.getRowsRead());
+		assertEquals(7 * 8, plan.getBytesRead());
+		assertEquals(6 * 8, plan.getBytesUsed());
+		assertReadRows(plan, 3, 0, 1, 2, 5, 0, 6);
+
+		// With no gaps allowed, strips would not save any selections, so the runs are read as one hyperslab.
+		planner.setMaximumGapRows(0);
+		plan = planner.plan(requestedRows, 100, 8, 0);
+		assertEquals(Strategy.HYPERSLAB_UNION, plan.getStrategy());
+		assertEquals(4, plan.getNumberOfStrips());
+		assertEquals(6, plan.getRowsRead());
+		assertReadRows(plan, 3, 0, 1, 2, 4, 0, 5);
+	}
+
+	@Test
+	public void testChunkedDataset()
+	{
+		int[] requestedRows = { 17, 1, 9, 2 };
+		HDF5ReadPlanner planner = new HDF5ReadPlanner();
+		// Whole chunks are only worth reading when they save selections: three runs in three chunks do not.
+		ReadPlan plan = planner.plan(requestedRows, 20, 8, 8);
+		assertEquals(Strategy.HYPERSLAB_UNION, plan.getStrategy());
+		assertEquals(3, plan.getNumberOfStrips());
+		assertReadRows(plan, 3, 0, 2, 1);
+
+		// Four runs in two chunks, which read 12 rows for 4.
+		requestedRows = new int[] { 5, 1, 3, 17 };
+		planner.setMaximumReadAmplification(3.0);
+		plan = planner.plan(requestedRows, 20, 8, 8);
+		assertEquals(Strategy.COALESCED_STRIPS, plan.getStrategy());
+		assertEquals(2, plan.getNumberOfStrips());
+		// The last chunk is cut short at the end of the dataset.
+		assertEquals(16, plan.getStripStart(1));
+		assertEquals(4, plan.getStripLength(1));
+		assertEquals(12, plan.getRowsRead());
+		assertReadRows(plan, 5, 1, 3, 9);
+
+		// With a lower limit, the two chunks read too many unrequested rows, so only the requested rows are selected.
+		planner.setMaximumReadAmplification(2.5);
+		plan = planner.plan(requestedRows, 20, 8, 8);
+		assertEquals(Strategy.HYPERSLAB_UNION, plan.getStrategy());
+		assertEquals(4, plan.getRowsRead());
+		assertReadRows(plan, 2, 0, 1, 3);
+	}
+
+	@Test
+	public void testRowOutOfRange()
+	{
+		try
+		{
+			new HDF5ReadPlanner().plan(new int[] { 5, 20 }, 20, 8, 0);
+			fail("A row past the end of the dataset should be rejected.");
+		}
+		catch (IndexOutOfBoundsException e)
+		{
+			// expected.
+		}
+	}
+}
@@ -10,6 +10,7 @@ import java.util.Map;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.MockitoAnnotations;
+import org.reactome.idg.loader.CorrelationQuantizer;
 import org.reactome.idg.loader.HarmonizomeLoader;
 import org.reactome.idg.model.Provenance;
 
@@ -46,4 +47,24 @@ public class TestHarmonizomeDataRepository
 		// Should get the same values back.
 		assertEquals(correlations1, correlations2);
 	}
+	
+	@Test
+	public void testQuantizedGeneLookup()
+	{
+		repository.executeDataLoaders();
+		Map<Provenance, HarmonizomeLoader> quantizedLoaders = new HashMap<>(1);
+		quantizedLoaders.put(this.prov, new HarmonizomeLoader("src/test/resources/test_gene_association_file.tsv"));
+		HarmonizomeDataRepository quantizedRepository = HarmonizomeDataRepository.createDataRepository(quantizedLoaders, true);
+		quantizedRepository.executeDataLoaders();
+		
+		List<Double> expected = repository.getGeneCorrelation(prov, "PTPRA", "AMICA1");
+		List<Double> actual = quantizedRepository.getGeneCorrelation(prov, "PTPRA", "AMICA1");
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++)
+		{
+			assertEquals(expected.get(i), actual.get(i), CorrelationQuantizer.SHORT_ERROR_BOUND);
+		}
+		assertEquals(repository.getGeneCorrelation("AMICA1", "PRKAR1A").keySet(), quantizedRepository.getGeneCorrelation("AMICA1", "PRKAR1A").keySet());
+		assertTrue(quantizedRepository.getGeneCorrelation(prov, "PTPRA", "NOT_A_GENE") == null);
+	}
 }
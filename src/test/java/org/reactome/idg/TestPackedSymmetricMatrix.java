@@ -0,0 +1,132 @@
+package org.reactome.idg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.math3.linear.RealMatrix;
+import org.junit.Test;
+import org.reactome.idg.loader.CorrelationQuantizer;
+import org.reactome.idg.loader.GenePairCorrelationMatrixCalculator;
+import org.reactome.idg.loader.GenePairCorrelationMatrixCalculator.CalculationMode;
+import org.reactome.idg.loader.GenePairCorrelationMatrixCalculator.MatrixStorage;
+import org.reactome.idg.loader.PackedDoubleSymmetricMatrix;
+import org.reactome.idg.loader.PackedFloatSymmetricMatrix;
+import org.reactome.idg.loader.PackedShortSymmetricMatrix;
+import org.reactome.idg.loader.PackedSymmetricMatrix;
+import org.reactome.idg.loader.StandardizedGeneMatrix;
+
+@SuppressWarnings("static-method")
+public class TestPackedSymmetricMatrix
+{
+	@Test
+	public void testGetAndSetInEitherOrder()
+	{
+		// Use tiny segments so that the values are spread across several of them.
+		PackedSymmetricMatrix matrix = new PackedDoubleSymmetricMatrix(37, 4);
+		assertEquals(37 * 38 / 2, matrix.getNumberOfPackedValues());
+		for (int i = 0; i < 37; i++)
+		{
+			for (int j = i; j < 37; j++)
+			{
+				matrix.setEntry(j, i, i * 1000 + j);
+			}
+		}
+		for (int i = 0; i < 37; i++)
+		{
+			for (int j = 0; j < 37; j++)
+			{
+				assertEquals(Math.min(i, j) * 1000 + Math.max(i, j), matrix.getEntry(i, j), 0);
+			}
+		}
+		RealMatrix copy = matrix.copy();
+		matrix.setEntry(2, 3, -1);
+		assertEquals(2003, copy.getEntry(3, 2), 0);
+	}
+
+	@Test
+	public void testWalkRows()
+	{
+		PackedSymmetricMatrix matrix = new PackedFloatSymmetricMatrix(10, 3);
+		for (int i = 0; i < 10; i++)
+		{
+			for (int j = i; j < 10; j++)
+			{
+				matrix.setEntry(i, j, (i + 1) * 0.01 + j);
+			}
+		}
+		List<Double> upper = new ArrayList<>();
+		matrix.walkUpperRow(4, (row, column, value) -> {
+			assertEquals(4, row);
+			assertEquals(4 + upper.size(), column);
+			upper.add(value);
+		});
+		assertEquals(6, upper.size());
+		assertEquals(0.05 + 4, upper.get(0), 1e-6);
+
+		List<Double> fullRow = new ArrayList<>();
+		matrix.walkRow(4, (row, column, value) -> {
+			assertEquals(fullRow.size(), column);
+			fullRow.add(value);
+		});
+		assertEquals(10, fullRow.size());
+		for (int j = 0; j < 10; j++)
+		{
+			assertEquals(matrix.getEntry(j, 4), fullRow.get(j), 0);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testOutOfRange()
+	{
+		new PackedFloatSymmetricMatrix(5).getEntry(2, 5);
+	}
+
+	@Test
+	public void testCalculatorWithPackedStorage()
+	{
+		int numberOfGenes = 70;
+		int[][] sampleValues = TestCorrelationCalculator.createRandomSampleValues(50, numberOfGenes, 7L);
+		GenePairCorrelationMatrixCalculator calculator = new GenePairCorrelationMatrixCalculator(null, null);
+		calculator.setCalculationMode(CalculationMode.STANDARDIZED_TILED);
+		RealMatrix dense = calculator.calculateCorrelation(sampleValues);
+		calculator.setMatrixStorage(MatrixStorage.PACKED_FLOAT);
+		RealMatrix packed = calculator.calculateCorrelation(sampleValues);
+		assertTrue(packed instanceof PackedFloatSymmetricMatrix);
+		for (int i = 0; i < numberOfGenes; i++)
+		{
+			for (int j = i; j < numberOfGenes; j++)
+			{
+				assertEquals(dense.getEntry(i, j), packed.getEntry(j, i), 1e-6);
+			}
+		}
+		calculator.setMatrixStorage(MatrixStorage.PACKED_DOUBLE);
+		calculator.setCalculationMode(CalculationMode.COMMONS_MATH);
+		packed = calculator.calculateCorrelation(sampleValues);
+		assertEquals(dense.getEntry(10, 20), packed.getEntry(20, 10), StandardizedGeneMatrix.TOLERANCE);
+	}
+
+	@Test
+	public void testQuantizer()
+	{
+		assertEquals(CorrelationQuantizer.SHORT_NAN, CorrelationQuantizer.toShort(Double.NaN));
+		assertTrue(Double.isNaN(CorrelationQuantizer.fromShort(CorrelationQuantizer.SHORT_NAN)));
+		assertTrue(Double.isNaN(CorrelationQuantizer.fromByte(CorrelationQuantizer.toByte(Double.NaN))));
+		assertEquals(1.0, CorrelationQuantizer.fromShort(CorrelationQuantizer.toShort(1.0)), 0.0);
+		assertEquals(-1.0, CorrelationQuantizer.fromShort(CorrelationQuantizer.toShort(-1.0)), 0.0);
+		// rounding error past 1 is clamped, rather than wrapping around.
+		assertEquals(1.0, CorrelationQuantizer.fromShort(CorrelationQuantizer.toShort(1.0000001)), 0.0);
+		assertEquals(-1.0, CorrelationQuantizer.fromByte(CorrelationQuantizer.toByte(-1.0000001)), 0.0);
+		for (double value = -1.0; value <= 1.0; value += 0.000123)
+		{
+			assertEquals(value, CorrelationQuantizer.fromShort(CorrelationQuantizer.toShort(value)), CorrelationQuantizer.SHORT_ERROR_BOUND);
+			assertEquals(value, CorrelationQuantizer.fromByte(CorrelationQuantizer.toByte(value)), CorrelationQuantizer.BYTE_ERROR_BOUND);
+		}
+		PackedShortSymmetricMatrix matrix = new PackedShortSymmetricMatrix(5, 2);
+		matrix.setEntry(4, 1, 0.123456);
+		assertEquals(CorrelationQuantizer.toShort(0.123456), matrix.getQuantizedValue(matrix.getPackedIndex(1, 4)));
+		assertEquals(0.123456, matrix.getEntry(1, 4), CorrelationQuantizer.SHORT_ERROR_BOUND);
+	}
+}
@@ -0,0 +1,164 @@
+package org.reactome.idg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.apache.commons.math3.linear.RealMatrix;
+import org.junit.Test;
+import org.reactome.idg.loader.Archs4Loader;
+import org.reactome.idg.loader.GeneMajorExpressionMatrix;
+import org.reactome.idg.loader.GenePairCorrelationMatrixCalculator;
+import org.reactome.idg.loader.GenePairCorrelationMatrixCalculator.CalculationMode;
+import org.reactome.idg.loader.SparseCorrelationMatrix;
+
+@SuppressWarnings("static-method")
+public class TestSparseCorrelationMatrix
+{
+	private static final int NUMBER_OF_GENES = 45;
+	private static final double THRESHOLD = 0.2;
+
+	/**
+	 * Checks that a sparse matrix has exactly the off-diagonal pairs of a full matrix that are at or above the threshold.
+	 */
+	private static void assertMatchesThreshold(RealMatrix expected, SparseCorrelationMatrix actual, double tolerance)
+	{
+		long expectedPairs = 0;
+		for (int i = 0; i < NUMBER_OF_GENES; i++)
+		{
+			int degree = 0;
+			for (int j = 0; j < NUMBER_OF_GENES; j++)
+			{
+				double value = i <= j ? expected.getEntry(i, j) : expected.getEntry(j, i);
+				if (i != j && Math.abs(value) >= THRESHOLD)
+				{
+					degree++;
+					assertEquals(value, actual.getValue(i, j), tolerance);
+				}
+				else
+				{
+					assertEquals(0.0, actual.getValue(i, j), 0.0);
+				}
+			}
+			assertEquals(degree, actual.getDegree(i));
+			expectedPairs += degree;
+		}
+		assertEquals(expectedPairs / 2, actual.getNumberOfPairs());
+	}
+
+	@Test
+	public void testCalculatedSparseMatrix() throws IOException
+	{
+		int[][] sampleValues = TestCorrelationCalculator.createRandomSampleValues(60, NUMBER_OF_GENES, 11L);
+		GenePairCorrelationMatrixCalculator calculator = new GenePairCorrelationMatrixCalculator(null, null);
+		calculator.setCalculationMode(CalculationMode.STANDARDIZED_TILED);
+		calculator.setTileSize(8);
+		RealMatrix expected = calculator.calculateCorrelation(sampleValues);
+		SparseCorrelationMatrix sparseMatrix = calculator.calculateSparseCorrelation(GeneMajorExpressionMatrix.fromSampleValues(sampleValues), THRESHOLD);
+		assertMatchesThreshold(expected, sparseMatrix, 1e-6);
+		assertTrue(sparseMatrix.getDensity() > 0.0 && sparseMatrix.getDensity() < 1.0);
+
+		Path outputFile = Files.createTempFile("correlations", ".csr");
+		try
+		{
+			sparseMatrix.writeTo(outputFile);
+			SparseCorrelationMatrix readMatrix = SparseCorrelationMatrix.readFrom(outputFile);
+			assertEquals(THRESHOLD, readMatrix.getThreshold(), 1e-6);
+			assertMatchesThreshold(expected, readMatrix, 1e-6);
+		}
+		finally
+		{
+			Files.deleteIfExists(outputFile);
+		}
+	}
+
+	@Test
+	public void testLoadSparseMatrixFromCorrelationFile() throws IOException
+	{
+		int[][] sampleValues = TestCorrelationCalculator.createRandomSampleValues(60, NUMBER_OF_GENES, 5L);
+		RealMatrix expected = new GenePairCorrelationMatrixCalculator(null, null).calculateCorrelation(sampleValues);
+		Path correlationFile = Files.createTempFile("correlations", ".csv");
+		Path outputFile = Files.createTempFile("correlations", ".csr");
+		try
+		{
+			// Same layout as the ARCHS4 file: a header of quoted gene symbols, then one full row per gene.
+			try (BufferedWriter writer = Files.newBufferedWriter(correlationFile))
+			{
+				writer.write("\"\"");
+				for (int i = 0; i < NUMBER_OF_GENES; i++)
+				{
+					writer.write(",\"GENE" + i + "\"");
+				}
+				writer.newLine();
+				for (int i = 0; i < NUMBER_OF_GENES; i++)
+				{
+					writer.write("\"GENE" + i + "\"");
+					for (int j = 0; j < NUMBER_OF_GENES; j++)
+					{
+						writer.write("," + (i <= j ? expected.getEntry(i, j) : expected.getEntry(j, i)));
+					}
+					writer.newLine();
+				}
+			}
+			SparseCorrelationMatrix sparseMatrix = new Archs4Loader(correlationFile.toString()).loadSparseMatrix(THRESHOLD);
+			assertMatchesThreshold(expected, sparseMatrix, 1e-6);
+
+			sparseMatrix.writeTo(outputFile);
+			SparseCorrelationMatrix readMatrix = SparseCorrelationMatrix.readFrom(outputFile);
+			assertEquals("GENE7", readMatrix.getGeneName(7));
+			// genes 1 and 5 are identical.
+			Map<String, Float> neighbours = readMatrix.getNeighbours("GENE1");
+			assertEquals(1.0f, neighbours.get("GENE5"), 1e-6f);
+			assertEquals(readMatrix.getDegree(1), neighbours.size());
+		}
+		finally
+		{
+			Files.deleteIfExists(correlationFile);
+			Files.deleteIfExists(outputFile);
+		}
+	}
+
+	@Test
+	public void testMalformedCorrelationFiles() throws IOException
+	{
+		String header = "\"\",\"A\",\"B\",\"C\"";
+		String[][] malformedFiles = {
+			// A short row.
+			{ header, "\"A\",1,0.5,0.3", "\"B\",0.5,1", "\"C\",0.3,0.1,1" },
+			// A value that is not a number.
+			{ header, "\"A\",1,0.5,x", "\"B\",0.5,1,0.1", "\"C\",0.3,0.1,1" },
+			// Rows that are not in the same order as the header.
+			{ header, "\"A\",1,0.5,0.3", "\"C\",0.3,0.1,1", "\"B\",0.5,1,0.1" },
+			// A missing row.
+			{ header, "\"A\",1,0.5,0.3", "\"B\",0.5,1,0.1" },
+		};
+		Path correlationFile = Files.createTempFile("correlations", ".csv");
+		try
+		{
+			for (String[] lines : malformedFiles)
+			{
+				Files.write(correlationFile, Arrays.asList(lines));
+				try
+				{
+					new Archs4Loader(correlationFile.toString()).loadSparseMatrix(THRESHOLD);
+					fail("A malformed file should be rejected: " + Arrays.toString(lines));
+				}
+				catch (IOException e)
+				{
+					// expected.
+				}
+			}
+		}
+		finally
+		{
+			Files.deleteIfExists(correlationFile);
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package org.reactome.idg;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.reactome.idg.loader.ExpressionNormalization;
+import org.reactome.idg.loader.GeneMajorExpressionMatrix;
+import org.reactome.idg.loader.NormalizedExpressionMatrix;
+import org.reactome.idg.loader.TissueMatrixFile;
+import org.reactome.idg.loader.TissueMatrixFile.ValueType;
+
+@SuppressWarnings("static-method")
+public class TestTissueMatrixFile
+{
+	private static final int NUMBER_OF_SAMPLES = 40;
+	private static final int NUMBER_OF_GENES = 25;
+
+	private static List<String> createSampleIds()
+	{
+		List<String> sampleIds = new ArrayList<>();
+		for (int sampleIndex = 0; sampleIndex < NUMBER_OF_SAMPLES; sampleIndex++)
+		{
+			sampleIds.add("GSM" + (1000 + sampleIndex));
+		}
+		return sampleIds;
+	}
+
+	@Test
+	public void testCountsRoundTrip() throws IOException
+	{
+		GeneMajorExpressionMatrix values = GeneMajorExpressionMatrix.fromSampleValues(TestCorrelationCalculator.createRandomSampleValues(NUMBER_OF_SAMPLES, NUMBER_OF_GENES, 5L));
+		List<String> sampleIds = createSampleIds();
+		// Stands in for the HDF file: only its size and last-modified time are used.
+		Path hdfFile = Files.createTempFile("expression", ".h5");
+		Path matrixFile = Files.createTempFile("tissue", ".tmat");
+		try
+		{
+			Files.write(hdfFile, new byte[100]);
+			TissueMatrixFile.writeCounts(matrixFile, values, hdfFile, sampleIds);
+			try (TissueMatrixFile tissueMatrixFile = TissueMatrixFile.open(matrixFile))
+			{
+				assertEquals(ValueType.INT, tissueMatrixFile.getValueType());
+				assertEquals(NUMBER_OF_GENES, tissueMatrixFile.getNumberOfGenes());
+				assertEquals(NUMBER_OF_SAMPLES, tissueMatrixFile.getNumberOfSamples());
+				assertEquals(sampleIds, tissueMatrixFile.getSampleIds());
+				assertTrue(tissueMatrixFile.isValidFor(hdfFile, sampleIds, ""));
+				// A different set of samples, or a normalized variant, does not match.
+				assertFalse(tissueMatrixFile.isValidFor(hdfFile, sampleIds.subList(1, NUMBER_OF_SAMPLES), ""));
+				assertFalse(tissueMatrixFile.isValidFor(hdfFile, sampleIds, ExpressionNormalization.logCpm().getCacheKey()));
+
+				GeneMajorExpressionMatrix readValues = tissueMatrixFile.toGeneMajorExpressionMatrix();
+				double[] geneVector = new double[NUMBER_OF_SAMPLES];
+				for (int geneIndex = 0; geneIndex < NUMBER_OF_GENES; geneIndex++)
+				{
+					assertArrayEquals(values.getGeneVector(geneIndex), readValues.getGeneVector(geneIndex));
+					tissueMatrixFile.readGeneVector(geneIndex, geneVector);
+					for (int sampleIndex = 0; sampleIndex < NUMBER_OF_SAMPLES; sampleIndex++)
+					{
+						assertEquals(values.getValue(geneIndex, sampleIndex), geneVector[sampleIndex], 0);
+					}
+				}
+			}
+			// A changed HDF file makes the matrix file stale.
+			Files.write(hdfFile, new byte[101]);
+			try (TissueMatrixFile tissueMatrixFile = TissueMatrixFile.open(matrixFile))
+			{
+				assertFalse(tissueMatrixFile.isValidFor(hdfFile, sampleIds, ""));
+			}
+		}
+		finally
+		{
+			Files.deleteIfExists(hdfFile);
+			Files.deleteIfExists(matrixFile);
+		}
+	}
+
+	@Test
+	public void testNormalizedValuesRoundTrip() throws IOException
+	{
+		GeneMajorExpressionMatrix counts = GeneMajorExpressionMatrix.fromSampleValues(TestCorrelationCalculator.createRandomSampleValues(NUMBER_OF_SAMPLES, NUMBER_OF_GENES, 6L));
+		ExpressionNormalization normalization = ExpressionNormalization.logCpm();
+		NormalizedExpressionMatrix values = normalization.normalize(counts);
+		List<String> sampleIds = createSampleIds();
+		Path hdfFile = Files.createTempFile("expression", ".h5");
+		Path matrixFile = Files.createTempFile("tissue", ".tmat");
+		try
+		{
+			TissueMatrixFile.writeNormalizedValues(matrixFile, values, hdfFile, sampleIds);
+			try (TissueMatrixFile tissueMatrixFile = TissueMatrixFile.open(matrixFile))
+			{
+				assertEquals(ValueType.FLOAT, tissueMatrixFile.getValueType());
+				assertTrue(tissueMatrixFile.isValidFor(hdfFile, sampleIds, normalization.getCacheKey()));
+				assertFalse(tissueMatrixFile.isValidFor(hdfFile, sampleIds, ""));
+				NormalizedExpressionMatrix readValues = tissueMatrixFile.toNormalizedExpressionMatrix(normalization);
+				assertEquals(values.getNumberOfFilteredGenes(), readValues.getNumberOfFilteredGenes());
+				for (int geneIndex = 0; geneIndex < NUMBER_OF_GENES; geneIndex++)
+				{
+					assertEquals(values.isFiltered(geneIndex), readValues.isFiltered(geneIndex));
+					assertArrayEquals(values.getGeneVector(geneIndex), readValues.getGeneVector(geneIndex), 0f);
+				}
+			}
+			try
+			{
+				TissueMatrixFile.writeCounts(matrixFile, counts, hdfFile, Arrays.asList("GSM1"));
+				fail("The wrong number of sample IDs should be rejected.");
+			}
+			catch (IllegalArgumentException e)
+			{
+				// expected.
+			}
+		}
+		finally
+		{
+			Files.deleteIfExists(hdfFile);
+			Files.deleteIfExists(matrixFile);
+		}
+	}
+}